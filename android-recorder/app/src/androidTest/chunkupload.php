@@ -0,0 +1,78 @@
+<?php
+
+  /*
+   * Resumable chunked upload, the server side of ChunkedUploadHandler
+   * Parts: session, offset, final and the chunk file (gzipped on its own if the name ends .gz)
+   * plus an optional metrics snapshot on the final chunk
+   * Chunks are appended to SMS_FILE/sessions/<session>.part. The committed offset is the length
+   * of that file. A chunk that doesn't start at the committed offset is ignored and the
+   * committed offset is sent back so the client can carry on from there
+   */
+    define('MULTIPART_NAME','chunk');
+    error_reporting(E_ALL ^ E_WARNING);
+    $filename = "SMS_FILE";
+
+    function respond($succeeded, $message, $committed) {
+        echo json_encode(array("message" => $message, "succeeded" => $succeeded, "committedOffset" => $committed));
+        exit(0);
+    }
+
+    $session = $_POST["session"];
+    $offset = intval($_POST["offset"]);
+    $final = $_POST["final"] === "true";
+    if (!preg_match('/^[A-Za-z0-9-]{1,64}$/', $session)) {
+        respond(false, "bad session", -1);
+    }
+
+    $sessionDir = $filename . '/sessions';
+    if (!is_dir($sessionDir)) {
+        mkdir($sessionDir, 0777, true);
+    }
+    $part = $sessionDir . '/' . $session . '.part';
+    clearstatcache();
+    $committed = file_exists($part) ? filesize($part) : 0;
+    if ($offset != $committed) {
+        respond(false, "offset mismatch", $committed);
+    }
+    if ($_FILES[MULTIPART_NAME]["error"] > 0) {
+        respond(false, "internal error code: " . $_FILES[MULTIPART_NAME]["error"], $committed);
+    }
+
+    // Append the chunk, decompressing it a block at a time if the client gzipped it
+    $gzipped = substr($_FILES[MULTIPART_NAME]["name"], -3) === ".gz";
+    // Keep the segment's format suffix, .smsb for binary segments, everything else is CSV
+    $partname = preg_replace('/\.gz$/', '', $_FILES[MULTIPART_NAME]["name"]);
+    $suffix = substr($partname, -5) === ".smsb" ? ".smsb" : ".csv";
+    $in = $gzipped ? gzopen($_FILES[MULTIPART_NAME]["tmp_name"], "rb") : fopen($_FILES[MULTIPART_NAME]["tmp_name"], "rb");
+    $out = fopen($part, "ab");
+    if ($gzipped) {
+        while (!gzeof($in)) {
+            fwrite($out, gzread($in, 65536));
+        }
+        gzclose($in);
+    } else {
+        stream_copy_to_stream($in, $out);
+        fclose($in);
+    }
+    fflush($out);
+    fclose($out);
+    clearstatcache();
+    $committed = filesize($part);
+
+    if ($final) {
+        // Same daily layout as fileupload.php, the session ID keeps the name unique
+        date_default_timezone_set('UTC');
+        $dayDir = $filename . '/' . date("Y") . '/' . date("m") . '/' . date("d");
+        if (!is_dir($dayDir)) {
+            mkdir($dayDir, 0777, true);
+        }
+        $server_time = date("Ymd") . "T" . date("His") . "Z";
+        if (!rename($part, $dayDir . "/smslog_" . $server_time . "_" . $session . $suffix)) {
+            respond(false, "store failed", $committed);
+        }
+        // The final chunk can carry the client's latest metrics snapshot
+        if (isset($_FILES["metrics"]) && $_FILES["metrics"]["error"] == 0) {
+            move_uploaded_file($_FILES["metrics"]["tmp_name"], $dayDir . "/smslog_" . $server_time . "_" . $session . ".metrics");
+        }
+    }
+    respond(true, "Good to go", $committed);
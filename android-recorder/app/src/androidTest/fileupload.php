@@ -27,8 +27,32 @@
    * report_20140416T160152Z_20140416T155049Z_106064851_1410103821.csv
    */
     $server_time = date("Ymd") . "T". date("His") . "Z";
-    $filename = $filename . "/smslog_" . $server_time . ".csv";
+    // Keep the segment's format suffix, .smsb for binary segments, everything else is CSV
+    $partname = preg_replace('/\.gz$/', '', $_FILES[MULTIPART_NAME]["name"]);
+    $suffix = substr($partname, -5) === ".smsb" ? ".smsb" : ".csv";
+    $filename = $filename . "/smslog_" . $server_time . $suffix;
   
-    move_uploaded_file($_FILES[MULTIPART_NAME]["tmp_name"], $filename);
+    /*
+     * The client names the part <segment>.gz when it gzips the file while uploading it
+     * Decompress a block at a time so the whole file is never held in memory
+     */
+    if (substr($_FILES[MULTIPART_NAME]["name"], -3) === ".gz") {
+        $in = gzopen($_FILES[MULTIPART_NAME]["tmp_name"], "rb");
+        $out = fopen($filename, "wb");
+        while (!gzeof($in)) {
+            fwrite($out, gzread($in, 65536));
+        }
+        gzclose($in);
+        fclose($out);
+    } else {
+        move_uploaded_file($_FILES[MULTIPART_NAME]["tmp_name"], $filename);
+    }
+    /*
+     * The client's latest RecorderMetrics snapshot, when it sent one, is kept next to the segment
+     * Counters and histogram buckets are totals since the recorder started
+     */
+    if (isset($_FILES["metrics"]) && $_FILES["metrics"]["error"] == 0) {
+        move_uploaded_file($_FILES["metrics"]["tmp_name"], preg_replace('/\.[a-z]+$/', '.metrics', $filename));
+    }
 	// Send back succeeded json but put a message in there
     echo ( "{\"message\":\"Good to go\",\"succeeded\":true}");
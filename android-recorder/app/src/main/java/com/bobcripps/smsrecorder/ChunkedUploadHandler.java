@@ -0,0 +1,205 @@
+package com.bobcripps.smsrecorder;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.bobcripps.smsrecorder.core.FileUploadListener;
+import com.bobcripps.smsrecorder.core.SegmentedSmsLog;
+import com.bobcripps.smsrecorder.core.ServerCommittedIds;
+import com.bobcripps.smsrecorder.core.UploadEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Uploads a file in fixed size chunks that the server appends to an upload session.
+ * A failure only loses the chunk in flight, the next attempt carries on from the offset the
+ * server last confirmed. Session IDs and offsets are kept in shared preferences so an upload
+ * resumes after the process is killed.
+ * <p>
+ * Protocol, each chunk is a multipart POST to chunkupload.php with the parts
+ * <ul>
+ * <li>session - ID the client made up for this file</li>
+ * <li>offset - position of the chunk in the uncompressed file</li>
+ * <li>final - "true" on the last chunk</li>
+ * <li>device - identifies this install, the server drops records it already holds from it</li>
+ * <li>chunk - the bytes, gzipped on their own if the file name ends .gz</li>
+ * <li>metrics - final chunk only and optional, the latest RecorderMetrics snapshot</li>
+ * </ul>
+ * The server answers with the usual JSON plus committedOffset, the number of bytes it holds.
+ * If the offset doesn't match what it holds it appends nothing and answers succeeded false with
+ * its committedOffset so the client can carry on from there. Once the final chunk is committed
+ * the server moves the assembled file into its store and answers with the committedId and
+ * committed ID ranges it holds for the device, see ServerCommittedIds. If that answer is lost
+ * the server remembers the session is complete and acknowledges the retry without the file
+ * being sent again.
+ * <p>
+ * A compacted segment is sent as the records it holds, chunk by chunk, as the server can't
+ * split one gzip stream into chunks. Compacting renames the segment so an upload session
+ * started before it starts again and the server drops the records it already has. The session
+ * of a segment that's compacted or dropped is discarded so it isn't kept forever.
+ */
+public class ChunkedUploadHandler implements UploadEngine.Uploader {
+	private static final String TAG = "Recorder";
+	private static final MediaType TEXT = MediaType.parse("text/plain");
+	// Keys in the session preferences are the file name plus one of these
+	private static final String SESSION_SUFFIX = ":session";
+	private static final String OFFSET_SUFFIX = ":offset";
+	// Offset corrections allowed in a row before giving up on the attempt
+	private static final int MAX_RESYNCS = 3;
+
+	private final FileUploadHandler.FileUploadService service;
+	private final UploadCodec codec;
+	private final int chunkSize;
+	private final SharedPreferences sessions;
+	private final File metricsFile;
+	private final String deviceId;
+	private final ServerCommittedIds committedIds;
+
+	/**
+	 * @param service shared service proxy
+	 * @param codec compression applied to each chunk separately
+	 * @param chunkSize uncompressed bytes per chunk
+	 * @param sessions where session IDs and confirmed offsets are kept
+	 * @param metricsFile metrics snapshot to send with the final chunk, null for none
+	 * @param deviceId identifies this install to the server
+	 * @param committedIds told which IDs the server holds once a file is complete
+	 */
+	public ChunkedUploadHandler(FileUploadHandler.FileUploadService service, UploadCodec codec, int chunkSize,
+								SharedPreferences sessions, File metricsFile, String deviceId,
+								ServerCommittedIds committedIds) {
+		this.service = service;
+		this.codec = codec;
+		this.chunkSize = chunkSize;
+		this.sessions = sessions;
+		this.metricsFile = metricsFile;
+		this.deviceId = deviceId;
+		this.committedIds = committedIds;
+	}
+
+	@Override
+	public void uploadFile(File file, FileUploadListener fileUploadListener) {
+		String name = file.getName();
+		String session = sessions.getString(name + SESSION_SUFFIX, null);
+		if (session == null) {
+			session = UUID.randomUUID().toString();
+			sessions.edit()
+					.putString(name + SESSION_SUFFIX, session)
+					.putLong(name + OFFSET_SUFFIX, 0)
+					.commit();
+		}
+		long offset = sessions.getLong(name + OFFSET_SUFFIX, 0);
+		long fileLength;
+		try {
+			fileLength = SegmentedSmsLog.getUncompressedLength(file);
+		} catch (IOException e) {
+			Log.d(TAG, "uploadFile() " + name + " unreadable " + e.getMessage());
+			fileUploadListener.fileUploaded(file, false);
+			return;
+		}
+		Log.d(TAG, "uploadFile() " + name + " session " + session + " from " + offset);
+		new Transfer(file, session, fileUploadListener, fileLength).sendChunk(offset);
+	}
+
+	@Override
+	public void discard(File file) {
+		forget(file.getName());
+	}
+
+	private void forget(String name) {
+		sessions.edit()
+				.remove(name + SESSION_SUFFIX)
+				.remove(name + OFFSET_SUFFIX)
+				.apply();
+	}
+
+	/**
+	 * State of one attempt at uploading a file
+	 */
+	private class Transfer implements Callback<ResponseBody> {
+		private final File file;
+		private final String session;
+		private final FileUploadListener listener;
+		// Sent decompressed if it's been compacted, offsets are in the records
+		private final boolean compacted;
+		private final long fileLength;
+		private long offset;
+		private boolean last;
+		private int resyncs;
+
+		Transfer(File file, String session, FileUploadListener listener, long fileLength) {
+			this.file = file;
+			this.session = session;
+			this.listener = listener;
+			this.compacted = SegmentedSmsLog.isCompacted(file);
+			this.fileLength = fileLength;
+		}
+
+		void sendChunk(long offset) {
+			long length = Math.min(chunkSize, Math.max(0, fileLength - offset));
+			this.offset = offset;
+			this.last = offset + length >= fileLength;
+			MultipartBody.Part chunk = MultipartBody.Part.createFormData("chunk",
+					SegmentedSmsLog.uncompressedName(file) + codec.getFileSuffix(),
+					new FileRequestBody(file, offset, length, codec, compacted));
+			service.uploadChunk(RequestBody.create(TEXT, session),
+					RequestBody.create(TEXT, String.valueOf(offset)),
+					RequestBody.create(TEXT, String.valueOf(last)),
+					RequestBody.create(TEXT, deviceId),
+					chunk,
+					last ? FileUploadHandler.metricsPart(metricsFile) : null).enqueue(this);
+		}
+
+		@Override
+		public void onResponse(Call<ResponseBody> call, Response<ResponseBody> response) {
+			FileUploadResponse result;
+			try {
+				result = FileUploadHandler.readResponse(response);
+			} catch (IOException e) {
+				Log.d(TAG, "chunk failed " + e.getMessage());
+				listener.fileUploaded(file, false);
+				return;
+			}
+			long committed = result.getCommittedOffset();
+			if (result.isSucceeded() && last) {
+				Log.d(TAG, "chunked upload complete " + file.getName());
+				committedIds.merge(result.getCommittedId(), result.getCommitted());
+				forget(file.getName());
+				listener.fileUploaded(file, true);
+			} else if (result.isSucceeded() && committed > offset && committed <= fileLength) {
+				resyncs = 0;
+				saveOffset(committed);
+				sendChunk(committed);
+			} else if ((result.isSucceeded() || committed != offset) && committed >= 0 && committed <= fileLength
+					&& resyncs++ < MAX_RESYNCS) {
+				// The server holds a different amount than we thought, e.g. a response was lost, or it
+				// took the chunk without moving forward. Only progress resets the count
+				Log.d(TAG, "chunk offset " + offset + " resync to " + committed);
+				saveOffset(committed);
+				sendChunk(committed);
+			} else {
+				Log.d(TAG, "chunk rejected " + result.getMessage());
+				listener.fileUploaded(file, false);
+			}
+		}
+
+		@Override
+		public void onFailure(Call<ResponseBody> call, Throwable t) {
+			Log.d(TAG, "chunk failed " + t.getMessage());
+			listener.fileUploaded(file, false);
+		}
+
+		private void saveOffset(long committed) {
+			sessions.edit().putLong(file.getName() + OFFSET_SUFFIX, committed).apply();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.bobcripps.smsrecorder;
+
+import com.bobcripps.smsrecorder.core.SegmentedSmsLog;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * Request body that streams a file, or a range of it, through an UploadCodec into the request.
+ * The file is copied through Okio's small pooled buffers so it's never held in memory
+ * and no compressed copy is written to disk. A range of a compacted segment is taken from its
+ * decompressed records
+ */
+public class FileRequestBody extends RequestBody {
+	private final File file;
+	private final long offset;
+	private final long length;
+	private final UploadCodec codec;
+	private final boolean decompress;
+	private final MediaType mediaType;
+
+	/**
+	 * The whole file
+	 * @param file
+	 * @param codec
+	 */
+	public FileRequestBody(File file, UploadCodec codec) {
+		this(file, 0, file.length(), codec);
+	}
+
+	/**
+	 * length bytes of the file starting at offset
+	 * @param file
+	 * @param offset
+	 * @param length
+	 * @param codec
+	 */
+	public FileRequestBody(File file, long offset, long length, UploadCodec codec) {
+		this(file, offset, length, codec, false);
+	}
+
+	/**
+	 * length bytes of a segment's records starting at offset
+	 * @param file
+	 * @param offset in the records before compaction if decompress is set
+	 * @param length
+	 * @param codec
+	 * @param decompress the file is a compacted segment, send the records it holds
+	 */
+	public FileRequestBody(File file, long offset, long length, UploadCodec codec, boolean decompress) {
+		this.file = file;
+		this.offset = offset;
+		this.length = length;
+		this.codec = codec;
+		this.decompress = decompress;
+		this.mediaType = MediaType.parse(codec.getMediaType());
+	}
+
+	@Override
+	public MediaType contentType() {
+		return mediaType;
+	}
+
+	/**
+	 * @return the range length when it's sent as is, -1 when compressed as the size isn't known
+	 * until it's been written
+	 */
+	@Override
+	public long contentLength() {
+		return codec == UploadCodec.NONE ? length : -1;
+	}
+
+	@Override
+	public void writeTo(BufferedSink sink) throws IOException {
+		InputStream inputStream = decompress ? SegmentedSmsLog.openSegment(file) : new FileInputStream(file);
+		try {
+			if (decompress) {
+				skipFully(inputStream, offset);
+			} else {
+				((FileInputStream) inputStream).getChannel().position(offset);
+			}
+			Source source = Okio.source(inputStream);
+			if (codec == UploadCodec.NONE) {
+				sink.write(source, length);
+			} else {
+				BufferedSink encoded = codec.wrap(sink);
+				encoded.write(source, length);
+				// Writes the codec trailer, the request sink stays open
+				encoded.close();
+			}
+		} finally {
+			inputStream.close();
+		}
+	}
+
+	private static void skipFully(InputStream in, long count) throws IOException {
+		while (count > 0) {
+			long skipped = in.skip(count);
+			if (skipped <= 0) {
+				throw new EOFException("Segment ends before the offset");
+			}
+			count -= skipped;
+		}
+	}
+}
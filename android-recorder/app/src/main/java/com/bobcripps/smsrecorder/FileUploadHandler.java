@@ -3,9 +3,16 @@ package com.bobcripps.smsrecorder;
 
 import android.util.Log;
 
+import com.bobcripps.smsrecorder.core.FileUploadListener;
+import com.bobcripps.smsrecorder.core.SegmentedSmsLog;
+import com.bobcripps.smsrecorder.core.ServerCommittedIds;
+import com.bobcripps.smsrecorder.core.UploadEngine;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 import okhttp3.MediaType;
@@ -19,51 +26,92 @@ import retrofit2.http.Multipart;
 import retrofit2.http.POST;
 import retrofit2.http.Part;
 
-public class FileUploadHandler {
+public class FileUploadHandler implements UploadEngine.Uploader {
 	private static String TAG = "Recorder";
-	private final FileUploadListener fileUploadListener;
+	// Shared service proxy, its client and connections are reused for every upload
+	private final FileUploadService service;
+	// Compression applied to the file as it's streamed into the request
+	private final UploadCodec codec;
+	// Latest metrics snapshot, sent along with each file
+	private final File metricsFile;
+	private final String deviceId;
+	// Told which IDs the server holds after each upload
+	private final ServerCommittedIds committedIds;
 
+	/**
+	 * The metrics part is optional, Retrofit leaves null parts out of the request.
+	 * The device part lets the server drop records it already holds from this device
+	 */
 	public interface FileUploadService {
 		@Multipart
 		@POST("fileupload.php")
-		Call<ResponseBody> upload(@Part("description") RequestBody description, @Part MultipartBody.Part file);
+		Call<ResponseBody> upload(@Part("description") RequestBody description, @Part("device") RequestBody device,
+								  @Part MultipartBody.Part file, @Part MultipartBody.Part metrics);
+
+		/**
+		 * One chunk of a resumable upload, see ChunkedUploadHandler for the protocol
+		 */
+		@Multipart
+		@POST("chunkupload.php")
+		Call<ResponseBody> uploadChunk(@Part("session") RequestBody session, @Part("offset") RequestBody offset,
+									   @Part("final") RequestBody last, @Part("device") RequestBody device,
+									   @Part MultipartBody.Part chunk, @Part MultipartBody.Part metrics);
 	}
 
-	public FileUploadHandler(FileUploadListener fileUploadListener) {
-		this.fileUploadListener = fileUploadListener;
+	/**
+	 * @param service shared service proxy
+	 * @param codec compression applied to the file
+	 * @param metricsFile metrics snapshot to piggyback on each upload, null for none
+	 * @param deviceId identifies this install to the server
+	 * @param committedIds told which IDs the server holds after each upload
+	 */
+	public FileUploadHandler(FileUploadService service, UploadCodec codec, File metricsFile, String deviceId,
+							 ServerCommittedIds committedIds) {
+		this.service = service;
+		this.codec = codec;
+		this.metricsFile = metricsFile;
+		this.deviceId = deviceId;
+		this.committedIds = committedIds;
 	}
 
-	public void uploadFile(File file) {
-		// create upload service client
-		FileUploadService service = ServiceGenerator.createService(FileUploadService.class);
-		// create RequestBody instance from file
-		RequestBody requestFile = RequestBody.create(MediaType.parse("multipart/form-data"), file);
+	@Override
+	public void discard(File file) {
+		// Each upload sends the whole file, there's nothing to resume
+	}
+
+	@Override
+	public void uploadFile(final File file, final FileUploadListener fileUploadListener) {
+		// A compacted segment is already gzipped and its name ends .gz so it's sent as it is
+		UploadCodec fileCodec = SegmentedSmsLog.isCompacted(file) ? UploadCodec.NONE : codec;
+		// create RequestBody instance from file, compressed as it's sent if a codec is configured
+		RequestBody requestFile = new FileRequestBody(file, fileCodec);
 		// MultipartBody.Part is used to send also the actual file name
-		MultipartBody.Part body = MultipartBody.Part.createFormData("smslog", file.getName(), requestFile);
+		// The codec suffix e.g. .gz tells the server to decompress it
+		MultipartBody.Part body = MultipartBody.Part.createFormData("smslog",
+				file.getName() + fileCodec.getFileSuffix(), requestFile);
 		// add another part within the multipart request
 		String descriptionString = "SMS file for upload";
 		RequestBody description = RequestBody.create(MediaType.parse("multipart/form-data"), descriptionString);
 
 		// finally, execute the request
-		Call<ResponseBody> call = service.upload(description, body);
+		Call<ResponseBody> call = service.upload(description, RequestBody.create(MediaType.parse("text/plain"), deviceId),
+				body, metricsPart(metricsFile));
 		call.enqueue(new Callback<ResponseBody>() {
 			@Override
 			public void onResponse(Call<ResponseBody> call,
 								   Response<ResponseBody> response) {
 				Log.v(TAG, "success");
 				try {
-					byte[] bytes = response.body().bytes();
-					Gson gson = new Gson();
-					String json = new String(bytes);
-					FileUploadResponse result = gson.fromJson(json, FileUploadResponse.class);
+					FileUploadResponse result = readResponse(response);
 					Log.d(TAG, result.getMessage() + " - " + result.isSucceeded());
 					if (result.isSucceeded()) {
-						fileUploadListener.fileUploaded(true);
+						committedIds.merge(result.getCommittedId(), result.getCommitted());
+						fileUploadListener.fileUploaded(file, true);
 					} else {
-						fileUploadListener.fileUploaded(false);
+						fileUploadListener.fileUploaded(file, false);
 					}
 				} catch (IOException e) {
-					fileUploadListener.fileUploaded(false);
+					fileUploadListener.fileUploaded(file, false);
 					Log.d(TAG, e.getMessage());
 				}
 			}
@@ -71,8 +119,59 @@ public class FileUploadHandler {
 			@Override
 			public void onFailure(Call<ResponseBody> call, Throwable t) {
 				Log.d(TAG, t.getMessage());
-				fileUploadListener.fileUploaded(false);
+				fileUploadListener.fileUploaded(file, false);
 			}
 		});
 	}
+
+	/**
+	 * Read the metrics snapshot now so the request doesn't depend on the file still being there when
+	 * it's sent. It's a few hundred bytes
+	 * @param metricsFile
+	 * @return the snapshot as a part named metrics, null if there isn't one yet
+	 */
+	static MultipartBody.Part metricsPart(File metricsFile) {
+		if (metricsFile == null || !metricsFile.exists()) {
+			return null;
+		}
+		try {
+			byte[] bytes = new byte[(int) metricsFile.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(metricsFile));
+			try {
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+			return MultipartBody.Part.createFormData("metrics", metricsFile.getName(),
+					RequestBody.create(MediaType.parse("text/plain"), bytes));
+		} catch (IOException e) {
+			// Replaced while we read it, the next upload sends the new one
+			Log.d(TAG, "metrics not sent " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Parse the JSON the server sends back
+	 * @param response
+	 * @return the parsed response
+	 * @throws IOException if the request failed or the body isn't a valid response
+	 */
+	static FileUploadResponse readResponse(Response<ResponseBody> response) throws IOException {
+		if (!response.isSuccessful() || response.body() == null) {
+			throw new IOException("HTTP " + response.code());
+		}
+		byte[] bytes = response.body().bytes();
+		Gson gson = new Gson();
+		String json = new String(bytes);
+		try {
+			FileUploadResponse result = gson.fromJson(json, FileUploadResponse.class);
+			if (result == null) {
+				throw new IOException("Empty response");
+			}
+			return result;
+		} catch (JsonParseException e) {
+			throw new IOException("Bad response " + e.getMessage());
+		}
+	}
 }
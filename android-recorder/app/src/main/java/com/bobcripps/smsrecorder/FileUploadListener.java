@@ -1,5 +0,0 @@
-package com.bobcripps.smsrecorder;
-
-public interface FileUploadListener {
-	void fileUploaded(boolean success);
-}
@@ -3,6 +3,12 @@ package com.bobcripps.smsrecorder;
 public class FileUploadResponse {
 	private boolean succeeded;
 	private String message;
+	// Resumable uploads only, bytes of the file the server has committed
+	private long committedOffset;
+	// Highest SMS ID the server holds for this device, 0 if it doesn't deduplicate
+	private long committedId;
+	// Start, end pairs of the highest ID ranges the server holds for this device
+	private long[] committed;
 
 	public boolean isSucceeded() {
 		return succeeded;
@@ -19,4 +25,28 @@ public class FileUploadResponse {
 	public void setMessage(String message) {
 		this.message = message;
 	}
+
+	public long getCommittedOffset() {
+		return committedOffset;
+	}
+
+	public void setCommittedOffset(long committedOffset) {
+		this.committedOffset = committedOffset;
+	}
+
+	public long getCommittedId() {
+		return committedId;
+	}
+
+	public void setCommittedId(long committedId) {
+		this.committedId = committedId;
+	}
+
+	public long[] getCommitted() {
+		return committed;
+	}
+
+	public void setCommitted(long[] committed) {
+		this.committed = committed;
+	}
 }
@@ -0,0 +1,37 @@
+package com.bobcripps.smsrecorder;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Names threads after the work they do and runs them at a Linux thread priority, e.g.
+ * Process.THREAD_PRIORITY_BACKGROUND, so the scheduler favours the threads recording SMS over
+ * uploads and backfill. Java thread priorities are ignored by Android's scheduler.
+ */
+public class PriorityThreadFactory implements ThreadFactory {
+	private final String name;
+	private final int priority;
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @param name threads are called name-1, name-2...
+	 * @param priority Process thread priority, -20 highest to 19 lowest
+	 */
+	public PriorityThreadFactory(String name, int priority) {
+		this.name = name;
+		this.priority = priority;
+	}
+
+	@Override
+	public Thread newThread(final Runnable runnable) {
+		return new Thread(new Runnable() {
+			@Override
+			public void run() {
+				Process.setThreadPriority(priority);
+				runnable.run();
+			}
+		}, name + "-" + count.incrementAndGet());
+	}
+}
@@ -0,0 +1,167 @@
+package com.bobcripps.smsrecorder;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+import android.provider.Telephony;
+import android.util.Log;
+
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsSource;
+
+import java.io.IOException;
+
+/**
+ * Reads SMS from the content provider, streaming rows straight from the cursor to the sink.
+ * Every query filters the folders we record in its selection so SQLite skips the rest, and a
+ * message the observer named is looked up by its primary key rather than scanned for.
+ * Column indices are resolved once per cursor and a single SmsData is reused for every row
+ * so memory use doesn't depend on how many rows are waiting to be written.
+ * Not thread safe, only the persist stage uses it.
+ */
+public class ProviderSmsSource implements SmsSource {
+	private static final String TAG = "Recorder";
+	// The uri for the SMS database
+	public static final Uri CONTENT_SMS = Uri.parse("content://sms");
+	// Columns the cursor is queried with
+	public static final String[] PROJECTION = new String[]{
+			Telephony.TextBasedSmsColumns.DATE,
+			Telephony.TextBasedSmsColumns.BODY,
+			Telephony.TextBasedSmsColumns.ADDRESS,
+			Telephony.TextBasedSmsColumns.TYPE,
+			BaseColumns._ID
+	};
+	// Rows are read oldest first so the log stays in _ID order
+	public static final String SORT_ORDER = BaseColumns._ID + " ASC";
+	// Message types (folders) we record
+	private static final int TYPE_INBOX = 1;
+	private static final int TYPE_SENT = 2;
+	private static final String TYPE_SELECTION = " AND " + Telephony.TextBasedSmsColumns.TYPE + " IN ("
+			+ TYPE_INBOX + "," + TYPE_SENT + ")";
+	private static final String AFTER_SELECTION = BaseColumns._ID + ">?" + TYPE_SELECTION;
+	// A bounded range, for paging through history. With the type in the selection LIMIT counts
+	// only rows that are recorded
+	private static final String RANGE_SELECTION = BaseColumns._ID + ">? AND " + BaseColumns._ID + "<=?"
+			+ TYPE_SELECTION;
+	private static final String ID_SELECTION = BaseColumns._ID + "=?" + TYPE_SELECTION;
+	// The provider hands the projection to SQLite, so it counts the rows without a cursor over them
+	public static final String[] COUNT_PROJECTION = new String[]{
+			"COUNT(*)"
+	};
+
+	private final ContentResolver resolver;
+	private final SmsData row = new SmsData();
+
+	public ProviderSmsSource(ContentResolver resolver) {
+		this.resolver = resolver;
+	}
+
+	@Override
+	public int read(long afterId, RecordSink sink) throws IOException {
+		return stream(resolver.query(CONTENT_SMS,
+				PROJECTION,
+				AFTER_SELECTION,
+				new String[]{String.valueOf(afterId)},
+				SORT_ORDER), sink);
+	}
+
+	@Override
+	public int readMessage(long id, RecordSink sink) throws IOException {
+		return stream(resolver.query(CONTENT_SMS,
+				PROJECTION,
+				ID_SELECTION,
+				new String[]{String.valueOf(id)},
+				null), sink);
+	}
+
+	@Override
+	public int read(long afterId, long toId, int limit, RecordSink sink) throws IOException {
+		// The provider passes the sort order to SQLite so a LIMIT can ride on it, API 16 has no
+		// query argument for it
+		return stream(resolver.query(CONTENT_SMS,
+				PROJECTION,
+				RANGE_SELECTION,
+				new String[]{String.valueOf(afterId), String.valueOf(toId)},
+				SORT_ORDER + " LIMIT " + limit), sink);
+	}
+
+	@Override
+	public long count(long afterId, long toId) {
+		Cursor cursor = resolver.query(CONTENT_SMS,
+				COUNT_PROJECTION,
+				RANGE_SELECTION,
+				new String[]{String.valueOf(afterId), String.valueOf(toId)},
+				null);
+		if (cursor == null) {
+			return 0;
+		}
+		try {
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Pass the recorded rows of a cursor to the sink and close it
+	 * @param cursor from a query with PROJECTION, can be null
+	 * @param sink
+	 * @return rows passed to the sink
+	 * @throws IOException if the sink fails
+	 */
+	private int stream(Cursor cursor, RecordSink sink) throws IOException {
+		if (cursor == null) {
+			return 0;
+		}
+		try {
+			final int dateIndex = cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.DATE);
+			final int typeIndex = cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.TYPE);
+			final int bodyIndex = cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.BODY);
+			final int addressIndex = cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.ADDRESS);
+			final int idIndex = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+			int count = 0;
+			while (cursor.moveToNext()) {
+				// the type is which folder, the query only returns inbox and sent
+				final int type = cursor.getInt(typeIndex);
+				row.setId(cursor.getLong(idIndex));
+				row.setDate(cursor.getLong(dateIndex));
+				row.setBody(cursor.getString(bodyIndex));
+				row.setNumber(cursor.getString(addressIndex));
+				row.setDirection(type == TYPE_INBOX ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+				sink.accept(row);
+				count++;
+			}
+			return count;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public long getTopMessageId() {
+		long topId = 0;
+		Cursor cursor = null;
+		try {
+			cursor = resolver.query(CONTENT_SMS,
+					new String[]{
+							BaseColumns._ID
+					},
+					null,
+					null,
+					BaseColumns._ID + " DESC LIMIT 1");
+			if (cursor != null && cursor.getCount() > 0) {
+				if (cursor.moveToNext()) {
+					topId = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
+					Log.d(TAG, "Top message id = " + topId);
+				}
+			}
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		return topId;
+	}
+}
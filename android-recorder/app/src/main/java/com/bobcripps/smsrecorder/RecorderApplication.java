@@ -2,13 +2,25 @@ package com.bobcripps.smsrecorder;
 
 import android.app.Application;
 import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.StrictMode;
 import android.util.Log;
 
+import java.util.UUID;
+
 public class RecorderApplication extends Application {
 	private static final String TAG = RecorderApplication.class.getSimpleName()+"-Recorder";
 
+	// Identifies this install to the server, which deduplicates each device's records by ID
+	private static final String DEVICE_ID_KEY = "deviceId";
+
 	private static RecorderApplication recorderApplication;
 
+	// Shared HTTP client and Retrofit for all uploads, created on first use
+	private ServiceGenerator serviceGenerator;
+	private FileUploadHandler.FileUploadService fileUploadService;
+	private UploadConfig uploadConfig;
+
 	public static RecorderApplication getApplication() {
 		return RecorderApplication.recorderApplication;
 	}
@@ -17,13 +29,83 @@ public class RecorderApplication extends Application {
 	public void onCreate() {
 		super.onCreate();
 		RecorderApplication.recorderApplication = this;
+		if (BuildConfig.DEBUG) {
+			enableStrictMode();
+		}
 		startService();
 		Log.d(TAG, "onCreate()");
 	}
 
+	/**
+	 * Debug builds log disk or network access from the main thread and leaked cursors and
+	 * streams, so running one checks the threading model. RecorderApplicationTest fails on them
+	 */
+	private static void enableStrictMode() {
+		StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+				.detectDiskReads()
+				.detectDiskWrites()
+				.detectNetwork()
+				.penaltyLog()
+				.build());
+		StrictMode.setVmPolicy(new StrictMode.VmPolicy.Builder()
+				.detectLeakedSqlLiteObjects()
+				.detectLeakedClosableObjects()
+				.penaltyLog()
+				.build());
+	}
+
 	@Override
 	public void onTerminate() {
 		super.onTerminate();
+		synchronized (this) {
+			if (serviceGenerator != null) {
+				serviceGenerator.shutdown();
+				serviceGenerator = null;
+				fileUploadService = null;
+			}
+		}
+	}
+
+	/**
+	 * @return upload settings from res/values/config.xml
+	 */
+	public synchronized UploadConfig getUploadConfig() {
+		if (uploadConfig == null) {
+			uploadConfig = UploadConfig.fromResources(getResources());
+		}
+		return uploadConfig;
+	}
+
+	/**
+	 * Replace the upload settings before the first upload, tests point them at a local server
+	 * @param uploadConfig
+	 */
+	synchronized void setUploadConfig(UploadConfig uploadConfig) {
+		this.uploadConfig = uploadConfig;
+	}
+
+	/**
+	 * @return random ID made the first time it's asked for and kept in the preferences
+	 */
+	public synchronized String getDeviceId() {
+		SharedPreferences settings = getSharedPreferences(SmsListenerService.PREFS_FILENAME, 0);
+		String deviceId = settings.getString(DEVICE_ID_KEY, null);
+		if (deviceId == null) {
+			deviceId = UUID.randomUUID().toString();
+			settings.edit().putString(DEVICE_ID_KEY, deviceId).commit();
+		}
+		return deviceId;
+	}
+
+	/**
+	 * @return the upload service proxy shared by every upload
+	 */
+	public synchronized FileUploadHandler.FileUploadService getFileUploadService() {
+		if (fileUploadService == null) {
+			serviceGenerator = new ServiceGenerator(getUploadConfig());
+			fileUploadService = serviceGenerator.createService(FileUploadHandler.FileUploadService.class);
+		}
+		return fileUploadService;
 	}
 
 	public final void startService() {
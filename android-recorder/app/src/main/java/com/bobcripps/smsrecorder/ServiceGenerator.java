@@ -1,22 +1,83 @@
 package com.bobcripps.smsrecorder;
 
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import retrofit2.Retrofit;
 
+/**
+ * Owns the one OkHttpClient and Retrofit used for every upload so connections, the dispatcher
+ * and its threads are shared and kept alive between uploads.
+ * Created and shut down by RecorderApplication
+ */
 public class ServiceGenerator {
+	// Retrofit calls back on the main thread by default. The callbacks read the next chunk and
+	// update the log so they run on the http thread that made the call instead
+	private static final Executor CALLING_THREAD = new Executor() {
+		@Override
+		public void execute(Runnable runnable) {
+			runnable.run();
+		}
+	};
 
-	public static final String API_BASE_URL = "http://192.168.0.9:8080/bobcripps/";
+	private final OkHttpClient httpClient;
 
-	private static OkHttpClient.Builder httpClient = new OkHttpClient.Builder();
+	private final Retrofit retrofit;
 
-	private static Retrofit.Builder builder = new Retrofit.Builder()
-					.baseUrl(API_BASE_URL);
-					// From retrofit sample not sure why so leave commented out but we don't need it
-					// TODO work out if it's useful
-					//.addConverterFactory(GsonConverterFactory.create());
+	public ServiceGenerator(UploadConfig config) {
+		// OkHttp's own unbounded pool, with our thread names and priority
+		Dispatcher dispatcher = new Dispatcher(new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>(), new PriorityThreadFactory("http", config.getThreadPriority())));
+		// All uploads go to the one host, let them all run at once
+		dispatcher.setMaxRequestsPerHost(dispatcher.getMaxRequests());
+		OkHttpClient.Builder builder = new OkHttpClient.Builder()
+				.dispatcher(dispatcher)
+				.connectionPool(new ConnectionPool(config.getMaxIdleConnections(),
+						config.getKeepAliveMinutes(), TimeUnit.MINUTES))
+				.connectTimeout(config.getConnectTimeoutSeconds(), TimeUnit.SECONDS)
+				.readTimeout(config.getReadTimeoutSeconds(), TimeUnit.SECONDS)
+				.writeTimeout(config.getWriteTimeoutSeconds(), TimeUnit.SECONDS);
+		if (config.isHttp2()) {
+			// Negotiated with ALPN over TLS, plain http stays on HTTP/1.1
+			builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+		} else {
+			builder.protocols(Arrays.asList(Protocol.HTTP_1_1));
+		}
+		httpClient = builder.build();
+		retrofit = new Retrofit.Builder()
+				.baseUrl(config.getBaseUrl())
+				.client(httpClient)
+				.callbackExecutor(CALLING_THREAD)
+				// From retrofit sample not sure why so leave commented out but we don't need it
+				// TODO work out if it's useful
+				//.addConverterFactory(GsonConverterFactory.create())
+				.build();
+	}
 
-	public static <S> S createService(Class<S> serviceClass) {
-		Retrofit retrofit = builder.client(httpClient.build()).build();
+	public <S> S createService(Class<S> serviceClass) {
 		return retrofit.create(serviceClass);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return number of open connections, idle or in use
+	 */
+	public int getConnectionCount() {
+		return httpClient.connectionPool().connectionCount();
+	}
+
+	/**
+	 * Cancel anything in flight, stop the dispatcher threads and close pooled connections
+	 */
+	public void shutdown() {
+		httpClient.dispatcher().cancelAll();
+		httpClient.dispatcher().executorService().shutdown();
+		httpClient.connectionPool().evictAll();
+	}
+}
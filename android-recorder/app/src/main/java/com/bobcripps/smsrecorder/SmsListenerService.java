@@ -1,66 +1,114 @@
 package com.bobcripps.smsrecorder;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.ContentObserver;
-import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.provider.BaseColumns;
-import android.provider.Telephony;
 import android.util.Log;
 
+import com.bobcripps.smsrecorder.core.Backfill;
+import com.bobcripps.smsrecorder.core.DurabilityPolicy;
+import com.bobcripps.smsrecorder.core.OverflowPolicy;
+import com.bobcripps.smsrecorder.core.PipelineConfig;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.RecorderPipeline;
+import com.bobcripps.smsrecorder.core.RetryScheduler;
+import com.bobcripps.smsrecorder.core.SegmentedSmsLog;
+import com.bobcripps.smsrecorder.core.ServerCommittedIds;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+import com.bobcripps.smsrecorder.core.UploadEngine;
+
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.text.NumberFormat;
-import java.text.ParsePosition;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Service that listens for inbound and outbound SMS. Writes them to a CSV file and uploads the file
  * to a server.
+ * The work is done by a RecorderPipeline, the service plugs the Android pieces into it: the
+ * content observer, the SMS provider, connectivity and preferences.
+ * Threads, each at the priority set in res/values/config.xml:
+ * <ul>
+ * <li>recorder - a HandlerThread for the observer and connectivity callbacks and the service's
+ * setup and teardown. The main thread only hands work to it so never touches disk or network</li>
+ * <li>persist - provider reads streamed into log appends and fsyncs, see RecorderPipeline</li>
+ * <li>uploads - hands segments to the upload engine, OkHttp's http threads do the network</li>
+ * <li>retry - upload retries and metrics snapshots</li>
+ * <li>backfill - history and gaps, below everything else</li>
+ * </ul>
  */
-public class SmsListenerService extends Service implements FileUploadListener {
+public class SmsListenerService extends Service {
 	private static final String TAG = SmsListenerService.class.getSimpleName()+"-Recorder";
 	// preferences file for storing app persistent data
 	public static final String PREFS_FILENAME = "recorder-prefs";
-	// Store the last SMS id database ID autoincremented by the OS. Increments every time an SMS is received or sent
-	// Avoids saving duplicates if the app is restarted
+	// preferences file for resumable upload sessions so they survive the process being killed
+	public static final String UPLOAD_SESSIONS_PREFS_FILENAME = "upload-sessions";
+	// Older versions stored the last SMS database ID written here. Now the watermark lives in the
+	// segmented log, the preference is only read once to carry it over
 	private static final String CURRENT_ID_KEY = "currentId";
-	// The uri for our listener observing the SMS database
-	private static final String CONTENT_SMS = "content://sms";
-	// Store the SMS's received and sent in this file
+	// Upload retry backoff state so it survives a restart
+	private static final String RETRY_FAILURES_KEY = "retryFailures";
+	private static final String RETRY_AT_KEY = "retryAt";
+	// First retry after a failed upload is around this long, doubling each failure up to the cap
+	private static final long RETRY_BASE_DELAY_MS = 30 * 1000;
+	private static final long RETRY_MAX_DELAY_MS = 60 * 60 * 1000;
+	// Older versions stored the SMS's received and sent in this file
+	// Adopted into the segmented log on start
 	private static final String SMS_FILE = "smsfile";
-	// move the previous storage file to this one for upload. Do it inside the lock
+	// Older versions moved the previous storage file to this one for upload
 	private static final String SMS_FILE_UPLOAD = "smsfile-upload";
+	// Directory under the files dir holding the segmented SMS log
+	private static final String SEGMENT_DIR = "smslog";
+	// Checkpoint of the history and gaps still to backfill, under the files dir
+	private static final String BACKFILL_FILE = "backfill";
+	// Seal the segment being written and start a new one once it reaches this size
+	// Bounds how much a failed upload has to resend
+	private static final long MAX_SEGMENT_BYTES = 256 * 1024;
+	// or once its first record is this old
+	private static final long MAX_SEGMENT_AGE_MS = 60 * 60 * 1000;
+	// Latest metrics snapshot, under the files dir and sent with each upload
+	private static final String METRICS_FILE = "metrics";
+	// How often the metrics snapshot is saved
+	private static final long METRICS_INTERVAL_MS = 5 * 60 * 1000;
+	// Size of the buffer rows are encoded into before they are written to file
+	private static final int FILE_BUFFER_SIZE = 8192;
+	// When appended records are forced to flash, see DurabilityPolicy for the crash-loss window of each
+	private static final DurabilityPolicy DURABILITY_POLICY = DurabilityPolicy.groupCommit(1000, 32);
+	// How long teardown waits for each worker to finish what it's doing
+	private static final long SHUTDOWN_WAIT_MS = 5000;
 	// Services can be started multiple times so only initialize it once
 	private volatile boolean started = false;
-	// Service creates a worker thread for handling SMS sent/received notifications
-	private Thread smsQueueThread;
-	// the listener places the SMS uri on this queue
-	BlockingQueue<Uri> smsQueue = new LinkedBlockingQueue<>();
-	// So we don't write duplicate SMS to the smsfile keep a set of unique ID
-	// This is because we can get more than one notification for the same SMS
-	// The ID is the system unique ID for the message
-	// Possibly persist this Set although in reality it would need thousands of SMS with no
-	// app restart for the Set to grow "large"
-	private Set<Long> idSet = new HashSet<>();
-	// For interaction with file upload completion callback
-	private Object lock = new Object();
-	// Separate class for file upload
-	private FileUploadHandler fileUploadHandler;
-	// Don't call file upload if an upload is still in progress
-	private volatile boolean isUploading = false;
+	// Runs the observer callbacks, setup and teardown off the main thread
+	private HandlerThread recorderThread;
+	private Handler recorderHandler;
+	private SmsObserver smsObserver;
+	// observer -> events -> persist -> uploads, see RecorderPipeline
+	private RecorderPipeline pipeline;
+	// Run the persist and upload workers
+	private ExecutorService persistExecutor;
+	private ExecutorService uploadExecutor;
+	// Runs the backfill a chunk at a time on a background priority thread
+	private ScheduledExecutorService backfillExecutor;
+	// Runs retries of failed uploads with backoff and saves the metrics snapshot
+	private ScheduledExecutorService retryExecutor;
+	private RetryScheduler retryScheduler;
+	// Lets a retry waiting for connectivity go as soon as it's back
+	private BroadcastReceiver connectivityReceiver;
+	// What the server has said it holds, lets segments whose upload response was lost be skipped
+	private final ServerCommittedIds serverCommittedIds = new ServerCommittedIds();
 
 	// Mandatory override not used as our service is not bound
 	@Override
@@ -71,52 +119,128 @@ public class SmsListenerService extends Service implements FileUploadListener {
 	@Override
 	public void onCreate() {
 		super.onCreate();
-		fileUploadHandler = new FileUploadHandler(this);
+		recorderThread = new HandlerThread("recorder", getResources().getInteger(R.integer.thread_priority_recorder));
+		recorderThread.start();
+		recorderHandler = new Handler(recorderThread.getLooper());
+		// Reads preferences and creates files so it's done on the recorder thread
+		recorderHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				createPipeline();
+			}
+		});
 		Log.d(TAG, "onCreate()");
-		// Create a thread that consumes a queue produced on by an SMS content observer
-		// onStartCommand() kicks both off
-		smsQueueThread = new Thread(new Runnable() {
+	}
+
+	/**
+	 * Build the pipeline and the workers it runs on. Called on the recorder thread
+	 */
+	private void createPipeline() {
+		configureRetryScheduler();
+		// See record_format in config.xml for what each changes on the server
+		RecordFormat recordFormat = RecordFormat.fromName(getResources().getString(R.string.record_format));
+		// Shared by the appender and the segment log so each segment starts with fresh encoder state
+		SmsRecordEncoder recordEncoder = recordFormat.createEncoder();
+		SegmentedSmsLog segmentLog = new SegmentedSmsLog(new File(getFilesDir(), SEGMENT_DIR), recordFormat,
+				recordEncoder, DURABILITY_POLICY, FILE_BUFFER_SIZE, MAX_SEGMENT_BYTES, MAX_SEGMENT_AGE_MS);
+		persistExecutor = Executors.newSingleThreadExecutor(new PriorityThreadFactory("persist",
+				getResources().getInteger(R.integer.thread_priority_persist)));
+		uploadExecutor = Executors.newSingleThreadExecutor(new PriorityThreadFactory("uploads",
+				getResources().getInteger(R.integer.thread_priority_upload)));
+		PipelineConfig config = new PipelineConfig();
+		config.setBackfillHistory(getResources().getBoolean(R.bool.backfill_history));
+		config.setCompactAboveBytes(getResources().getInteger(R.integer.backlog_compact_above_kb) * 1024L);
+		config.setMaxBacklogBytes(getResources().getInteger(R.integer.backlog_max_kb) * 1024L);
+		config.setOverflowPolicy(OverflowPolicy.fromName(getResources().getString(R.string.backlog_overflow)));
+		pipeline = new RecorderPipeline(new ProviderSmsSource(getContentResolver()), segmentLog, recordEncoder,
+				createUploader(), retryScheduler, config, persistExecutor, uploadExecutor,
+				new PipelineCallbacks());
+		pipeline.getUploadEngine().setSkipCheck(serverCommittedIds);
+		configureBackfill();
+	}
+
+	/**
+	 * Backfill on a thread below the persist worker's priority so live SMS go first
+	 */
+	private void configureBackfill() {
+		backfillExecutor = Executors.newSingleThreadScheduledExecutor(new PriorityThreadFactory("backfill",
+				getResources().getInteger(R.integer.thread_priority_backfill)));
+		pipeline.setBackfill(new Backfill(new File(getFilesDir(), BACKFILL_FILE)), backfillExecutor);
+	}
+
+	/**
+	 * Create the upload retry scheduler, gated on connectivity, and restore its saved state
+	 */
+	private void configureRetryScheduler() {
+		retryExecutor = Executors.newSingleThreadScheduledExecutor(new PriorityThreadFactory("retry",
+				getResources().getInteger(R.integer.thread_priority_upload)));
+		retryScheduler = new RetryScheduler(retryExecutor, new Runnable() {
 			@Override
 			public void run() {
-				// If we have just been started manually and not at boot up
-				// there could be SMS we have not read so they need persisting
-				missedMessageCheck();
-				// If there is an upload file present then try and upload it
-				entryUploadFileCheck();
-				for(;;) {
-					try {
-						// Block here. The observer queues the Uri's so no events are missed
-						// The observer will be executed in the context of the application thread
-						Uri uri = smsQueue.take();
-						Log.d(TAG, "listener take uri = " + uri.toString());
-						// The URI should contain an ID for the message although for inbound it
-						// sometimes doesn't (returns -1) "raw" but by the time we read the store it
-						// could have a valid ID
-						long id = getIdFromUri(uri);
-						// Check this ID is not < than the currentId
-						overtakeCheck(id);
-						// If the ID is not in the Set<Long> then read and persist the message
-						if(!idSet.contains(id)){
-							processMessages();
-						}
-					} catch (InterruptedException e) {
-						Log.d(TAG, "listener InterruptedException = " + e.getMessage());
-						return;
-					}
-				}
+				Log.d(TAG, "retry uploads " + retryScheduler);
+				pipeline.retryUploads();
+			}
+		}, RETRY_BASE_DELAY_MS, RETRY_MAX_DELAY_MS, RetryScheduler.SYSTEM_CLOCK, new RetryScheduler.Gate() {
+			@Override
+			public boolean isOpen() {
+				ConnectivityManager manager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+				NetworkInfo network = manager.getActiveNetworkInfo();
+				return network != null && network.isConnected();
+			}
+		}, new Random());
+		final SharedPreferences settings = getSharedPreferences(PREFS_FILENAME, 0);
+		retryScheduler.restore(settings.getInt(RETRY_FAILURES_KEY, 0), settings.getLong(RETRY_AT_KEY, 0));
+		retryScheduler.setListener(new RetryScheduler.Listener() {
+			@Override
+			public void retryStateChanged(int failures, long nextRetryAtMs) {
+				settings.edit()
+						.putInt(RETRY_FAILURES_KEY, failures)
+						.putLong(RETRY_AT_KEY, nextRetryAtMs)
+						.apply();
 			}
 		});
+		connectivityReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(Context context, Intent intent) {
+				retryScheduler.gateOpened();
+			}
+		};
+		registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION), null,
+				recorderHandler);
 	}
 
 	/**
-	 * Called on entry to the listener thread hence not using the lock
+	 * Save a metrics snapshot every METRICS_INTERVAL_MS, starting now so the first upload has one
 	 */
-	private void entryUploadFileCheck() {
-		File smsFile = new File(getFilesDir() + "/" + SMS_FILE_UPLOAD);
-		if(smsFile.exists()) {
-			isUploading = true;
-			fileUploadHandler.uploadFile(smsFile);
+	private void scheduleMetricsSnapshots() {
+		final File metricsFile = new File(getFilesDir(), METRICS_FILE);
+		retryExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pipeline.saveMetrics(metricsFile);
+					Log.d(TAG, "metrics " + pipeline.getMetrics());
+				} catch (IOException e) {
+					Log.e(TAG, "metrics snapshot failed " + e.getMessage());
+				}
+			}
+		}, 0, METRICS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return resumable chunked uploader if a chunk size is configured otherwise whole file uploads
+	 */
+	private UploadEngine.Uploader createUploader() {
+		RecorderApplication application = RecorderApplication.getApplication();
+		UploadConfig config = application.getUploadConfig();
+		File metricsFile = new File(getFilesDir(), METRICS_FILE);
+		if (config.getChunkSize() > 0) {
+			return new ChunkedUploadHandler(application.getFileUploadService(), config.getCodec(),
+					config.getChunkSize(), getSharedPreferences(UPLOAD_SESSIONS_PREFS_FILENAME, 0), metricsFile,
+					application.getDeviceId(), serverCommittedIds);
 		}
+		return new FileUploadHandler(application.getFileUploadService(), config.getCodec(), metricsFile,
+				application.getDeviceId(), serverCommittedIds);
 	}
 
 	/**
@@ -136,9 +260,15 @@ public class SmsListenerService extends Service implements FileUploadListener {
 		} else {
 			Log.d(TAG, "onStartCommand() not started");
 			started = true;
-			// Start the thread (consumer) and the observer (producer)
-			smsQueueThread.start();
-			configureSmsObserver();
+			// Start the pipeline (consumer) and the observer (producer), after createPipeline()
+			recorderHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					pipeline.start();
+					configureSmsObserver();
+					scheduleMetricsSnapshots();
+				}
+			});
 		}
 		return START_STICKY;
 	}
@@ -146,25 +276,48 @@ public class SmsListenerService extends Service implements FileUploadListener {
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
-		smsQueueThread.interrupt();
+		// Closing the log syncs it so it's done on the recorder thread, which then quits. Runs
+		// after anything already posted, quit() on its own would drop that
+		recorderHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+				recorderThread.quit();
+			}
+		});
 	}
 
 	/**
-	 * Callback from the file upload handler
-	 * if the upload succeeded then delete the file
-	 * Do it all inside the lock
-	 * @param success
+	 * Stop the callbacks first so nothing new arrives, then the pipeline and its workers.
+	 * Called on the recorder thread
 	 */
-	@Override
-	public void fileUploaded(boolean success) {
-		synchronized (lock) {
-			isUploading = false;
-			if(success) {
-				File smsFile = new File(getFilesDir() + "/" + SMS_FILE_UPLOAD);
-				Log.d(TAG, "fileUploaded() = " +smsFile.delete());
-			} else {
-				Log.d(TAG, "fileUploaded() failed");
+	private void shutdown() {
+		if (smsObserver != null) {
+			getContentResolver().unregisterContentObserver(smsObserver);
+		}
+		unregisterReceiver(connectivityReceiver);
+		retryScheduler.shutdown();
+		retryExecutor.shutdownNow();
+		// Waits for the workers to finish their batches, interrupting one could close the log
+		// while it's being forced
+		pipeline.stop();
+		persistExecutor.shutdown();
+		uploadExecutor.shutdown();
+		backfillExecutor.shutdownNow();
+		awaitTermination(retryExecutor);
+		awaitTermination(persistExecutor);
+		awaitTermination(uploadExecutor);
+		awaitTermination(backfillExecutor);
+		Log.d(TAG, "shutdown() " + pipeline);
+	}
+
+	private static void awaitTermination(ExecutorService executor) {
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_WAIT_MS, TimeUnit.MILLISECONDS)) {
+				Log.e(TAG, "worker still running after " + SHUTDOWN_WAIT_MS + " ms");
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
@@ -182,281 +335,79 @@ public class SmsListenerService extends Service implements FileUploadListener {
 		}
 
 		/**
-		 * Runs in the context of the application thread to just queue the URI
+		 * Runs on the recorder thread to just pass the ID on
+		 * The pipeline never blocks here, if its buffer is full it reads everything instead
 		 * @param selfChange
 		 * @param uri
 		 */
 		@Override
 		public void onChange(boolean selfChange, Uri uri) {
-			try {
-				Log.d(TAG, "onChange()- " + uri);
-				smsQueue.put(uri);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			pipeline.notifyChanged(uri == null ? RecorderPipeline.NO_ID : getIdFromUri(uri));
 		}
 	}
 
 	/**
-	 * Configure the SMS content observer
-	 * Checks for first time into the application
+	 * Configure the SMS content observer, its callbacks run on the recorder thread
+	 * The pipeline sets the watermark the first time in
 	 */
 	private void configureSmsObserver() {
-		// Read the last SMS ID which is persisted
-		SharedPreferences settings = getSharedPreferences(PREFS_FILENAME, 0);
-		long currentId = settings.getLong(CURRENT_ID_KEY, 0);
-		Log.d(TAG,"configureSmsObserver() enter currentId = " + currentId);
-		// the current id is zero if it's first time in
-		if (currentId == 0) {
-			// Read the top message ID from the DB
-			currentId = getTopMessageId();
-			Log.d(TAG, "configureSmsObserver() getTopMessage() returned currentId = " + currentId);
-			SharedPreferences.Editor editor = settings.edit();
-			editor.putLong(CURRENT_ID_KEY, currentId);
-			editor.commit();
-		}
+		smsObserver = new SmsObserver(recorderHandler);
 		// Register the observer
 		getContentResolver().
 				registerContentObserver(
-						Uri.parse(CONTENT_SMS),
+						ProviderSmsSource.CONTENT_SMS,
 						true,
-						new SmsObserver(new Handler()));
-	}
-
-	/**
-	 * It's possible for a message to get to the state we persist it out of sequence
-	 * so reset the currentId if we detect that condition
-	 * @param id
-	 */
-	private void overtakeCheck(long id) {
-		SharedPreferences settings = getSharedPreferences(PREFS_FILENAME, 0);
-		long currentId = settings.getLong(CURRENT_ID_KEY, 0);
-		// Id can be set negative by getIdFromUri()
-		if(id > 0 && id < currentId) {
-			Log.d(TAG, "overtakeCheck() reset current id from " + currentId + " - to " + id);
-			SharedPreferences.Editor editor = settings.edit();
-			editor.putLong(CURRENT_ID_KEY, id);
-			editor.commit();
-		}
-	}
-
-	/**
-	 * read and persist messages with an ID > than the currentId
-	 */
-	private void processMessages() {
-		SharedPreferences settings = getSharedPreferences(PREFS_FILENAME, 0);
-		long currentId = settings.getLong(CURRENT_ID_KEY, 0);
-		// Read the messages from the DB. They are only added to the list if they are in either inbox or sent
-		List<SmsData> list = readMessagesUniqueAfterId(currentId);
-		Log.d(TAG, "List size = " + list.size());
-		if (list.size() > 0) {
-			// Could be more than 1 message but the highest ID will be position zero in the list
-			Log.d(TAG,"processMessages() save the id from list= " + list.get(0).getId());
-			SharedPreferences.Editor editor = settings.edit();
-			editor.putLong(CURRENT_ID_KEY, list.get(0).getId());
-			editor.commit();
-			// Save the list to file
-			processSmsFile(list);
-		}
+						smsObserver);
 	}
 
 	/**
 	 * The last part of a URI is the ID or it can be "raw"
-	 * Detect if it's an integer and return it if it is or -1 if not
+	 * Parsed in place, the Uri keeps its string so nothing is allocated per notification
 	 * @param uri
-	 * @return
+	 * @return the ID or -1 if it isn't one
 	 */
 	private long getIdFromUri(Uri uri) {
-		long ret = -1;
-		// The URI is split with "/"
-		String[] tokens = uri.toString().split("/");
-		if (tokens.length > 0) {
-			String lastToken = tokens[tokens.length - 1];
-			Log.d(TAG,"getIdFromUri() = " + lastToken);
-			// Code from stackoverflow. Alternative is a 3rd party lib or catch
-			// number format exception
-			NumberFormat formatter = NumberFormat.getInstance();
-			ParsePosition pos = new ParsePosition(0);
-			formatter.parse(lastToken, pos);
-			if (lastToken.length() == pos.getIndex()) {
-				ret = Long.parseLong(lastToken);
-			}
-		}
-		Log.d(TAG, "getIdFromUri() id = " + ret);
-		return ret;
+		return RecorderPipeline.idOf(uri.toString());
 	}
 
 	/**
-	 * Read SMS messages with a higher _ID than the parameter
-	 * @param id
-	 * @return
+	 * Android side of the pipeline's hooks
 	 */
-	private List<SmsData> readMessagesUniqueAfterId(long id) {
-		List<SmsData> smsList = new ArrayList<>();
-		Uri uri = Uri.parse(CONTENT_SMS);
-		Cursor cursor = null;
-		try {
-			cursor = getContentResolver().query(uri,
-					new String[]{
-							Telephony.TextBasedSmsColumns.DATE,
-							Telephony.TextBasedSmsColumns.BODY,
-							Telephony.TextBasedSmsColumns.ADDRESS,
-							Telephony.TextBasedSmsColumns.TYPE,
-							BaseColumns._ID
-					},
-					BaseColumns._ID + ">?",
-					new String[]{String.valueOf(id)}, null);
-			if (cursor != null && cursor.getCount() > 0) {
-				while (cursor.moveToNext()) {
-					final long ldate = cursor.getLong(cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.DATE));
-					final int type = cursor.getInt(cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.TYPE));
-					final String body = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.BODY)).toString();
-					final String number = cursor.getString(cursor.getColumnIndexOrThrow(Telephony.TextBasedSmsColumns.ADDRESS)).toString();
-					final long currentId = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
-					// the type is which folder. Currently just save inbox and sent
-					if ((type == 1 || type == 2)) {
-						// Bear in mind duplicate events of the same type for the same message ID can occur
-						// To check for duplicates use Set<Long>
-						// Only add it if the ID is not in the Set
-						// This can can be used if we are not saving "pending" and "sending" state messages
-						// If we are saving all states we will need
-						// private Map<Long,Set<Integer>> theMap = new HashMap<>();
-						// Where the Long is the message _ID and where
-						// Set<Integer> is the type and must be unique
-						// TODO periodic clear of lower Set elements to keep the heap size down
-						// Possibly a tree so they are ordered for iterating
-						if (!idSet.contains(currentId)) {
-							idSet.add(currentId);
-							SmsData smsData = new SmsData();
-							smsData.setId(currentId);
-							smsData.setDate(ldate);
-							smsData.setBody(body);
-							smsData.setNumber(number);
-							smsData.setDirection(type == 1 ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
-							smsList.add(smsData);
-						}
-					}
-				}
-			}
-		} finally {
-			if (cursor != null) {
-				cursor.close();
-			}
-		}
-		return smsList;
-	}
-
-	/**
-	 *
-	 * @return long _ID of the top message in the SMS database
-	 */
-	private long getTopMessageId() {
-		long topId = 0;
-		Uri uri = Uri.parse(CONTENT_SMS);
-		Cursor cursor = null;
-		try {
-			cursor = getContentResolver().query(uri,
-					new String[]{
-							BaseColumns._ID
-					},
-					null,
-					null,
-					BaseColumns._ID + " DESC LIMIT 1");
-			if (cursor != null && cursor.getCount() > 0) {
-				if (cursor.moveToNext()) {
-					topId = cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
-					Log.d(TAG, "Top message id = " + topId);
-				}
-			}
-		} finally {
-			if (cursor != null) {
-				cursor.close();
+	private class PipelineCallbacks implements RecorderPipeline.Callbacks {
+		/**
+		 * Move any files left by older versions into the log, upload file first as it holds the
+		 * older records, and carry over the watermark they kept in the preferences
+		 * @param log
+		 * @throws IOException
+		 */
+		@Override
+		public void logRecovered(SegmentedSmsLog log) throws IOException {
+			String legacySuffix = RecordFormat.LEGACY_CSV.getFileSuffix();
+			log.adopt(new File(getFilesDir(), SMS_FILE_UPLOAD), legacySuffix);
+			log.adopt(new File(getFilesDir(), SMS_FILE), legacySuffix);
+			Log.d(TAG, "logRecovered() sealed segments = " + log.getSealedSegments().size());
+			SharedPreferences settings = getSharedPreferences(PREFS_FILENAME, 0);
+			long legacyId = settings.getLong(CURRENT_ID_KEY, 0);
+			if (legacyId != 0) {
+				log.checkpoint(legacyId);
+				settings.edit().remove(CURRENT_ID_KEY).apply();
 			}
+			Log.d(TAG, "logRecovered() watermark = " + log.getWatermark());
 		}
-		return topId;
-	}
 
-	/**
-	 * Process a list of SMS messages read from the SMS database and persist them to file
-	 * Upload to the server if able to do so
-	 * Uses two files one we write to and one we rename it to for upload
-	 * This means there is always a file to write to
-	 * Attempt an upload for every SMS(s) written to file
-	 * @param smsData
-	 */
-	private void processSmsFile(List<SmsData> smsData) {
-		try {
-			synchronized (lock) {
-				FileOutputStream outputStream = openFileOutput(SMS_FILE, Context.MODE_PRIVATE | Context.MODE_APPEND);
-				// Reverse through the List which has oldest message last. Append to the file in that order
-				for (int index = smsData.size() - 1; index >= 0; index--) {
-					SmsData s = smsData.get(index);
-					outputStream.write(s.toCsvString().getBytes());
-				}
-				outputStream.getFD().sync();
-				outputStream.close();
-				// Get File class for the file we write to and the one we rename to for upload
-				File smsFile = new File(getFilesDir() + "/" + SMS_FILE);
-				File smsUploadFile = new File(getFilesDir() + "/" + SMS_FILE_UPLOAD);
-				if(!smsUploadFile.exists()) {
-					Log.e(TAG,"processSmsFile() ready upload");
-					// The upload file doesn't exist meaning first time in or the last upload
-					// completion deleted it
-					// rename the file we have appended to to the upload filename
-					boolean success = smsFile.renameTo(smsUploadFile);
-					if(success) {
-						// Call the file upload handler to upload asynchronously
-						smsUploadFile = new File(getFilesDir() + "/" + SMS_FILE_UPLOAD);
-						fileUploadHandler.uploadFile(smsUploadFile);
-					} else {
-						Log.e(TAG,"processSmsFile() rename failed");
-					}
-				} else {
-					Log.e(TAG,"processSmsFile() upload file exists uploading = " + isUploading);
-					// The upload file is there so try and upload if not already uploading
-					// This can happen first time into the app after a stop of the application
-					// Also happens with SMS in rapid succession before the last upload completes
-					if(!isUploading) {
-						fileUploadHandler.uploadFile(smsUploadFile);
-					}
-				}
-				//diagnosticPrintTopOfFile();
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		@Override
+		public void batchPersisted(int events, int written) {
+			Log.d(TAG, "batch events = " + events + " written = " + written + " " + pipeline);
 		}
-	}
 
-	private void diagnosticPrintTopOfFile() throws IOException {
-		File file = new File(getFilesDir() + "/" + SMS_FILE);
-		int fileLength = (int) file.length();
-		FileInputStream inputStream = openFileInput(SMS_FILE);
-		byte[] bytes = new byte[fileLength];
-		Log.d(TAG, "Bytes read = " + inputStream.read(bytes, 0, fileLength));
-		String contents = new String(bytes);
-		int bytesToPrint = 200;
-		if(fileLength < 200){
-			bytesToPrint = fileLength;
+		@Override
+		public void backfillPersisted(int written, long remaining) {
+			Log.d(TAG, "backfill written = " + written + " remaining = " + remaining);
 		}
-		contents = contents.substring(contents.length() - bytesToPrint);
-		Log.d(TAG, contents);
-		inputStream.close();
-
-	}
 
-	/**
-	 * Called on thread entry
-	 * Appends any missed messages to file and attempts upload
-	 *
-	 */
-	private void missedMessageCheck() {
-		SharedPreferences settings = getSharedPreferences(PREFS_FILENAME, 0);
-		long currentId = settings.getLong(CURRENT_ID_KEY, 0);
-		Log.d(TAG,"missedMessageCheck() enter currentId = " + currentId);
-		long topMessageId = getTopMessageId();
-		if(currentId < topMessageId) {
-			processMessages();
+		@Override
+		public void error(String where, Exception e) {
+			Log.e(TAG, where + " failed " + e.getMessage());
 		}
 	}
-
 }
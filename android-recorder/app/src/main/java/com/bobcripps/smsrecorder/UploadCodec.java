@@ -0,0 +1,78 @@
+package com.bobcripps.smsrecorder;
+
+import java.io.IOException;
+
+import okio.BufferedSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Compression applied to a file while it's streamed into the upload request.
+ * The codec's suffix is added to the uploaded file name so the server knows how to decode it
+ */
+public enum UploadCodec {
+	NONE("", "multipart/form-data") {
+		@Override
+		public BufferedSink wrap(BufferedSink sink) {
+			return sink;
+		}
+	},
+	GZIP(".gz", "application/gzip") {
+		@Override
+		public BufferedSink wrap(BufferedSink sink) {
+			return Okio.buffer(new GzipSink(new UnclosableSink(sink)));
+		}
+	};
+
+	private final String fileSuffix;
+	private final String mediaType;
+
+	UploadCodec(String fileSuffix, String mediaType) {
+		this.fileSuffix = fileSuffix;
+		this.mediaType = mediaType;
+	}
+
+	/**
+	 * Wrap the request sink. Closing the returned sink finishes the encoding but leaves the
+	 * request sink open for the rest of the multipart body
+	 * @param sink
+	 * @return sink the file is written to
+	 */
+	public abstract BufferedSink wrap(BufferedSink sink);
+
+	public String getFileSuffix() {
+		return fileSuffix;
+	}
+
+	public String getMediaType() {
+		return mediaType;
+	}
+
+	/**
+	 * @param name codec name from config, case insensitive
+	 * @return the codec, NONE if the name isn't known
+	 */
+	public static UploadCodec fromName(String name) {
+		for (UploadCodec codec : values()) {
+			if (codec.name().equalsIgnoreCase(name)) {
+				return codec;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Flushes instead of closing so a codec's trailer can be written without ending the request
+	 */
+	private static class UnclosableSink extends ForwardingSink {
+		UnclosableSink(BufferedSink delegate) {
+			super(delegate);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.bobcripps.smsrecorder;
+
+import android.content.res.Resources;
+
+/**
+ * Settings for the shared upload client, read from res/values/config.xml
+ */
+public class UploadConfig {
+	private String baseUrl;
+	private int connectTimeoutSeconds;
+	private int readTimeoutSeconds;
+	private int writeTimeoutSeconds;
+	private int maxIdleConnections;
+	private int keepAliveMinutes;
+	private boolean http2;
+	private UploadCodec codec;
+	private int chunkSize;
+	private int threadPriority;
+
+	public static UploadConfig fromResources(Resources resources) {
+		UploadConfig config = new UploadConfig();
+		config.setBaseUrl(resources.getString(R.string.upload_base_url));
+		config.setConnectTimeoutSeconds(resources.getInteger(R.integer.upload_connect_timeout_seconds));
+		config.setReadTimeoutSeconds(resources.getInteger(R.integer.upload_read_timeout_seconds));
+		config.setWriteTimeoutSeconds(resources.getInteger(R.integer.upload_write_timeout_seconds));
+		config.setMaxIdleConnections(resources.getInteger(R.integer.upload_max_idle_connections));
+		config.setKeepAliveMinutes(resources.getInteger(R.integer.upload_keep_alive_minutes));
+		config.setHttp2(resources.getBoolean(R.bool.upload_http2));
+		config.setCodec(UploadCodec.fromName(resources.getString(R.string.upload_codec)));
+		config.setChunkSize(resources.getInteger(R.integer.upload_chunk_kb) * 1024);
+		config.setThreadPriority(resources.getInteger(R.integer.thread_priority_upload));
+		return config;
+	}
+
+	public String getBaseUrl() {
+		return baseUrl;
+	}
+
+	public void setBaseUrl(String baseUrl) {
+		this.baseUrl = baseUrl;
+	}
+
+	public int getConnectTimeoutSeconds() {
+		return connectTimeoutSeconds;
+	}
+
+	public void setConnectTimeoutSeconds(int connectTimeoutSeconds) {
+		this.connectTimeoutSeconds = connectTimeoutSeconds;
+	}
+
+	public int getReadTimeoutSeconds() {
+		return readTimeoutSeconds;
+	}
+
+	public void setReadTimeoutSeconds(int readTimeoutSeconds) {
+		this.readTimeoutSeconds = readTimeoutSeconds;
+	}
+
+	public int getWriteTimeoutSeconds() {
+		return writeTimeoutSeconds;
+	}
+
+	public void setWriteTimeoutSeconds(int writeTimeoutSeconds) {
+		this.writeTimeoutSeconds = writeTimeoutSeconds;
+	}
+
+	public int getMaxIdleConnections() {
+		return maxIdleConnections;
+	}
+
+	public void setMaxIdleConnections(int maxIdleConnections) {
+		this.maxIdleConnections = maxIdleConnections;
+	}
+
+	public int getKeepAliveMinutes() {
+		return keepAliveMinutes;
+	}
+
+	public void setKeepAliveMinutes(int keepAliveMinutes) {
+		this.keepAliveMinutes = keepAliveMinutes;
+	}
+
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	public void setHttp2(boolean http2) {
+		this.http2 = http2;
+	}
+
+	public UploadCodec getCodec() {
+		return codec;
+	}
+
+	public void setCodec(UploadCodec codec) {
+		this.codec = codec;
+	}
+
+	/**
+	 * @return bytes per resumable chunk, 0 to upload files whole
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return Process thread priority of the threads making HTTP calls
+	 */
+	public int getThreadPriority() {
+		return threadPriority;
+	}
+
+	public void setThreadPriority(int threadPriority) {
+		this.threadPriority = threadPriority;
+	}
+}
@@ -0,0 +1,268 @@
+package com.bobcripps.smsrecorder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.bobcripps.smsrecorder.core.CsvRecordReader;
+import com.bobcripps.smsrecorder.core.FileUploadListener;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.ServerCommittedIds;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+import com.bobcripps.smsrecorder.server.DeviceLedgers;
+import com.bobcripps.smsrecorder.server.IngestServer;
+import com.bobcripps.smsrecorder.server.PartitionedStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resumable uploads to the ingest server's chunkupload.php through a proxy that kills
+ * connections part way through
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ChunkedUploadHandlerTest {
+	private static final int CHUNK = 16 * 1024;
+	private static final int RECORDS = 2500;
+	// As in ChunkedUploadHandler
+	private static final int MAX_RESYNCS = 3;
+
+	private File dir;
+	private IngestServer server;
+	private FaultInjectingProxy proxy;
+	private ServiceGenerator serviceGenerator;
+	private SharedPreferences sessions;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("chunked", "");
+		dir.delete();
+		File root = new File(dir, "store");
+		root.mkdirs();
+		server = new IngestServer(new PartitionedStore(root), new DeviceLedgers(root, 16), 0, 8);
+		server.start();
+		proxy = new FaultInjectingProxy(server.getPort());
+		serviceGenerator = new ServiceGenerator(newConfig("http://localhost:" + proxy.getPort() + "/"));
+		sessions = RuntimeEnvironment.application.getSharedPreferences("uploads", Context.MODE_PRIVATE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		serviceGenerator.shutdown();
+		proxy.close();
+		server.stop();
+		delete(dir);
+	}
+
+	@Test
+	public void killedConnectionsResendLessThanAChunkEach() throws Exception {
+		// Sent from another device so its records aren't dropped as duplicates of the first
+		File clean = writeSegment("smslog-0000000001.csv");
+		long before = proxy.getBytesSent();
+		assertTrue(upload(newHandler("clean"), clean));
+		long cleanBytes = proxy.getBytesSent() - before;
+		int chunks = (int) ((clean.length() + CHUNK - 1) / CHUNK);
+		long overhead = (cleanBytes - clean.length()) / chunks;
+
+		File segment = writeSegment("smslog-0000000002.csv");
+		before = proxy.getBytesSent();
+		proxy.killAt(before + cleanBytes / 4);
+		proxy.killAt(before + cleanBytes / 2 + overhead);
+		proxy.killAt(before + cleanBytes * 4 / 5);
+		int attempts = 0;
+		boolean uploaded = false;
+		while (!uploaded && attempts++ < 10) {
+			// A handler per attempt, as after the process is killed, so the session comes from prefs
+			uploaded = upload(newHandler("device"), segment);
+		}
+		assertTrue("not uploaded", uploaded);
+		assertEquals(3, proxy.getKills());
+		long resent = proxy.getBytesSent() - before - cleanBytes;
+		// Each failure costs at most the chunk it cut short, plus the headers of finding out
+		assertTrue("resent " + resent + " bytes", resent < proxy.getKills() * (CHUNK + 2 * overhead));
+		assertEquals(2 * RECORDS, storedRecords(new File(dir, "store")));
+	}
+
+	@Test
+	public void completedUploadForgetsItsSession() throws Exception {
+		File segment = writeSegment("smslog-0000000003.csv");
+		assertTrue(upload(newHandler("device"), segment));
+		assertTrue(sessions.getAll().isEmpty());
+	}
+
+	@Test
+	public void discardedSegmentForgetsItsSession() throws Exception {
+		File segment = writeSegment("smslog-0000000004.csv");
+		// Part way through, and again on each of the client's retries
+		for (int i = 0; i < 5; i++) {
+			proxy.killAt(proxy.getBytesSent() + segment.length() / 2 + i);
+		}
+		ChunkedUploadHandler handler = newHandler("device");
+		assertFalse(upload(handler, segment));
+		assertEquals(2, sessions.getAll().size());
+		// Compacted or dropped by the quota
+		handler.discard(segment);
+		assertTrue(sessions.getAll().isEmpty());
+	}
+
+	@Test
+	public void acknowledgementsThatDontMoveForwardFailAfterBoundedResends() throws Exception {
+		File segment = writeSegment("smslog-0000000005.csv");
+		// Says every chunk succeeded but never holds more than it did at the start
+		assertEquals(1 + MAX_RESYNCS, answerEveryChunkWith(segment, 0));
+	}
+
+	@Test
+	public void acknowledgementPastTheEndOfTheFileFailsIt() throws Exception {
+		File segment = writeSegment("smslog-0000000006.csv");
+		assertEquals(1, answerEveryChunkWith(segment, 2 * segment.length()));
+	}
+
+	/**
+	 * Upload to a server that answers every chunk with succeeded and the same committed offset,
+	 * the upload must fail
+	 * @return chunks sent
+	 */
+	private int answerEveryChunkWith(File segment, long committedOffset) throws Exception {
+		MockWebServer broken = new MockWebServer();
+		final String answer = "{\"succeeded\":true,\"message\":\"ok\",\"committedOffset\":" + committedOffset + "}";
+		broken.setDispatcher(new Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) {
+				return new MockResponse().setBody(answer);
+			}
+		});
+		broken.start();
+		ServiceGenerator generator = new ServiceGenerator(newConfig(broken.url("/").toString()));
+		try {
+			ChunkedUploadHandler handler = new ChunkedUploadHandler(
+					generator.createService(FileUploadHandler.FileUploadService.class),
+					UploadCodec.NONE, CHUNK, sessions, null, "device", new ServerCommittedIds());
+			assertFalse(upload(handler, segment));
+			return broken.getRequestCount();
+		} finally {
+			generator.shutdown();
+			broken.shutdown();
+		}
+	}
+
+	private ChunkedUploadHandler newHandler(String device) {
+		return new ChunkedUploadHandler(serviceGenerator.createService(FileUploadHandler.FileUploadService.class),
+				UploadCodec.NONE, CHUNK, sessions, null, device, new ServerCommittedIds());
+	}
+
+	private static UploadConfig newConfig(String baseUrl) {
+		UploadConfig config = new UploadConfig();
+		config.setBaseUrl(baseUrl);
+		config.setConnectTimeoutSeconds(5);
+		config.setReadTimeoutSeconds(5);
+		config.setWriteTimeoutSeconds(5);
+		config.setMaxIdleConnections(3);
+		config.setKeepAliveMinutes(5);
+		config.setCodec(UploadCodec.NONE);
+		return config;
+	}
+
+	/**
+	 * @return true once the upload has succeeded
+	 */
+	private boolean upload(ChunkedUploadHandler handler, File segment) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicBoolean succeeded = new AtomicBoolean();
+		handler.uploadFile(segment, new FileUploadListener() {
+			@Override
+			public void fileUploaded(File file, boolean success) {
+				succeeded.set(success);
+				done.countDown();
+			}
+		});
+		assertTrue("no answer", done.await(20, TimeUnit.SECONDS));
+		return succeeded.get();
+	}
+
+	private File writeSegment(String name) throws IOException {
+		File file = new File(dir, name);
+		SmsRecordEncoder encoder = RecordFormat.CSV.createEncoder();
+		SmsData record = new SmsData();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			for (long id = 1; id <= RECORDS; id++) {
+				record.setId(id);
+				record.setDate(1472475636000L + id * 1000);
+				record.setNumber("+4477009" + (id % 100000));
+				record.setDirection(id % 2 == 0 ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+				record.setBody("Message " + id + " long enough to look like a real one");
+				encoder.encode(record, out);
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	/**
+	 * @param dir
+	 * @return records in the CSV files the server stored under the directory
+	 */
+	private static int storedRecords(File dir) throws IOException {
+		int records = 0;
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				records += storedRecords(file);
+			} else if (file.getName().startsWith("smslog_") && file.getName().endsWith(".csv")) {
+				InputStream in = new BufferedInputStream(new FileInputStream(file));
+				try {
+					CsvRecordReader reader = new CsvRecordReader(in);
+					SmsData record = new SmsData();
+					while (reader.read(record)) {
+						records++;
+					}
+				} finally {
+					in.close();
+				}
+			}
+		}
+		return records;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,172 @@
+package com.bobcripps.smsrecorder;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SMS provider whose rows are made up as the cursor moves, so it holds none of them.
+ * Understands the selections and COUNT(*) projection ProviderSmsSource uses, every row is in the
+ * inbox or sent.
+ * Row IDs run from 1 to the row count, which grows as messages arrive
+ */
+class FakeSmsProvider extends ContentProvider {
+	private volatile int rows;
+	private final AtomicInteger queries = new AtomicInteger();
+
+	/**
+	 * @param rows already on the phone, at least 1
+	 */
+	FakeSmsProvider(int rows) {
+		this.rows = rows;
+	}
+
+	/**
+	 * @param count new messages
+	 * @return ID of the last one
+	 */
+	synchronized long arrive(int count) {
+		rows += count;
+		return rows;
+	}
+
+	int getQueries() {
+		return queries.get();
+	}
+
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+						String sortOrder) {
+		queries.incrementAndGet();
+		int rows = this.rows;
+		long after = 0;
+		long to = rows;
+		if (selection != null && selection.startsWith("_id=?")) {
+			long id = Long.parseLong(selectionArgs[0]);
+			after = id - 1;
+			to = Math.min(id, rows);
+		} else if (selectionArgs != null) {
+			after = Long.parseLong(selectionArgs[0]);
+			if (selectionArgs.length > 1) {
+				to = Math.min(Long.parseLong(selectionArgs[1]), rows);
+			}
+		}
+		if (sortOrder != null && sortOrder.startsWith("_id DESC")) {
+			// The top ID
+			after = rows - 1;
+		}
+		int limit = sortOrder != null && sortOrder.contains(" LIMIT ")
+				? Integer.parseInt(sortOrder.substring(sortOrder.indexOf(" LIMIT ") + 7)) : Integer.MAX_VALUE;
+		int count = (int) Math.max(0, Math.min(limit, to - after));
+		if (projection.length == 1 && projection[0].equalsIgnoreCase("COUNT(*)")) {
+			MatrixCursor counted = new MatrixCursor(projection, 1);
+			counted.addRow(new Object[]{count});
+			return counted;
+		}
+		return new RowCursor(projection, after, count);
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		return null;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException();
+	}
+
+	private static class RowCursor extends AbstractCursor {
+		private final String[] columns;
+		private final long firstId;
+		private final int count;
+
+		RowCursor(String[] columns, long afterId, int count) {
+			this.columns = columns;
+			this.firstId = afterId + 1;
+			this.count = count;
+		}
+
+		@Override
+		public int getCount() {
+			return count;
+		}
+
+		@Override
+		public String[] getColumnNames() {
+			return columns;
+		}
+
+		@Override
+		public String getString(int column) {
+			String name = columns[column];
+			long id = firstId + getPosition();
+			if ("body".equals(name)) {
+				return "Message " + id + " from the backlog, long enough to look like a real one";
+			} else if ("address".equals(name)) {
+				return "+4477009" + (id % 100000);
+			}
+			return String.valueOf(getLong(column));
+		}
+
+		@Override
+		public short getShort(int column) {
+			return (short) getLong(column);
+		}
+
+		@Override
+		public int getInt(int column) {
+			return (int) getLong(column);
+		}
+
+		@Override
+		public long getLong(int column) {
+			String name = columns[column];
+			long id = firstId + getPosition();
+			if ("_id".equals(name)) {
+				return id;
+			} else if ("date".equals(name)) {
+				return 1472475636000L + id * 1000;
+			} else if ("type".equals(name)) {
+				// Inbox or sent
+				return 1 + id % 2;
+			}
+			return 0;
+		}
+
+		@Override
+		public float getFloat(int column) {
+			return getLong(column);
+		}
+
+		@Override
+		public double getDouble(int column) {
+			return getLong(column);
+		}
+
+		@Override
+		public boolean isNull(int column) {
+			return false;
+		}
+	}
+}
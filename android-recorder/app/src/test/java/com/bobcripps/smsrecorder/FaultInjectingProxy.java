@@ -0,0 +1,149 @@
+package com.bobcripps.smsrecorder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP proxy in front of a test server that counts the bytes clients send through it and kills
+ * the connection carrying them once the count reaches each of the given points
+ */
+public class FaultInjectingProxy {
+	private final int serverPort;
+	private final ServerSocket listener;
+	private final AtomicLong bytesSent = new AtomicLong();
+	// Ascending byte counts to kill connections at, a kill removes its point
+	private final List<Long> killPoints = new ArrayList<>();
+	private int kills;
+	private final List<Socket> sockets = new ArrayList<>();
+	private volatile boolean closed;
+
+	/**
+	 * @param serverPort on localhost
+	 * @throws IOException
+	 */
+	public FaultInjectingProxy(int serverPort) throws IOException {
+		this.serverPort = serverPort;
+		this.listener = new ServerSocket(0);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "proxy");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return listener.getLocalPort();
+	}
+
+	/**
+	 * @param bytes kill the connection that takes the bytes sent so far past this
+	 */
+	public synchronized void killAt(long bytes) {
+		killPoints.add(bytes);
+	}
+
+	/**
+	 * @return bytes sent by clients, request lines, headers and bodies
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	public synchronized int getKills() {
+		return kills;
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		listener.close();
+		synchronized (this) {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				Socket client = listener.accept();
+				Socket server = new Socket();
+				server.connect(new InetSocketAddress("localhost", serverPort));
+				synchronized (this) {
+					sockets.add(client);
+					sockets.add(server);
+				}
+				pump(client, server, true);
+				pump(server, client, false);
+			} catch (IOException e) {
+				// Closed
+			}
+		}
+	}
+
+	private void pump(final Socket from, final Socket to, final boolean counted) {
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				byte[] buffer = new byte[1024];
+				try {
+					InputStream in = from.getInputStream();
+					OutputStream out = to.getOutputStream();
+					int read;
+					while ((read = in.read(buffer)) > 0) {
+						if (counted) {
+							int allowed = allowed(read);
+							if (allowed < read) {
+								out.write(buffer, 0, allowed);
+								out.flush();
+								from.close();
+								to.close();
+								return;
+							}
+						}
+						out.write(buffer, 0, read);
+						out.flush();
+					}
+				} catch (IOException e) {
+					// One side went away
+				}
+				try {
+					from.close();
+					to.close();
+				} catch (IOException e) {
+					// Already closed
+				}
+			}
+		}, "proxy pump");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Count bytes a client is sending
+	 * @param read
+	 * @return how many of them to pass on before the connection is killed, read if it isn't
+	 */
+	private synchronized int allowed(int read) {
+		long before = bytesSent.get();
+		if (!killPoints.isEmpty() && before + read >= killPoints.get(0)) {
+			long point = killPoints.remove(0);
+			kills++;
+			int allowed = (int) Math.max(0, point - before);
+			bytesSent.addAndGet(allowed);
+			return allowed;
+		}
+		bytesSent.addAndGet(read);
+		return read;
+	}
+}
@@ -0,0 +1,157 @@
+package com.bobcripps.smsrecorder;
+
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+import com.bobcripps.smsrecorder.server.PartitionedStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import okio.Buffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Request bodies encoded by each codec must decode to the bytes of the file, or the range of it,
+ * through the ingest server's own decoder
+ */
+public class FileRequestBodyTest {
+	private static final int RECORDS = 2000;
+	private static final int CHUNK = 16 * 1024;
+
+	private File dir;
+	private PartitionedStore store;
+	private File segment;
+	private byte[] records;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("body", "");
+		dir.delete();
+		dir.mkdirs();
+		store = new PartitionedStore(new File(dir, "store"));
+		segment = new File(dir, "smslog-0000000001.csv");
+		SmsRecordEncoder encoder = RecordFormat.CSV.createEncoder();
+		SmsData record = new SmsData();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (long id = 1; id <= RECORDS; id++) {
+			record.setId(id);
+			record.setDate(1472475636000L + id * 1000);
+			record.setNumber("+4477009" + (id % 100000));
+			record.setDirection(id % 2 == 0 ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+			record.setBody("Message " + id + " long enough to look like a real one");
+			encoder.encode(record, bytes);
+		}
+		records = bytes.toByteArray();
+		write(new FileOutputStream(segment), records);
+	}
+
+	@After
+	public void tearDown() {
+		delete(dir);
+	}
+
+	@Test
+	public void gzippedFileDecodesToItsBytes() throws IOException {
+		Buffer wire = new Buffer();
+		FileRequestBody body = new FileRequestBody(segment, UploadCodec.GZIP);
+		assertEquals(-1, body.contentLength());
+		body.writeTo(wire);
+		long sent = wire.size();
+		assertTrue("sent " + sent + " of " + records.length, sent < records.length / 3);
+		assertArrayEquals(records, decode(wire, true));
+	}
+
+	@Test
+	public void plainFileIsSentAsItIs() throws IOException {
+		Buffer wire = new Buffer();
+		FileRequestBody body = new FileRequestBody(segment, UploadCodec.NONE);
+		assertEquals(records.length, body.contentLength());
+		body.writeTo(wire);
+		assertArrayEquals(records, decode(wire, false));
+	}
+
+	@Test
+	public void chunksGzippedOnTheirOwnReassemble() throws IOException {
+		assertArrayEquals(records, sendInChunks(segment, false));
+	}
+
+	@Test
+	public void compactedSegmentIsChunkedFromItsRecords() throws IOException {
+		File compacted = new File(dir, "smslog-0000000002.csv.gz");
+		write(new GZIPOutputStream(new FileOutputStream(compacted)), records);
+		assertArrayEquals(records, sendInChunks(compacted, true));
+	}
+
+	/**
+	 * Send the records in chunks as ChunkedUploadHandler does, each gzipped, and decode each
+	 * as the server does
+	 * @return the chunks decoded and put back together
+	 */
+	private byte[] sendInChunks(File file, boolean compacted) throws IOException {
+		ByteArrayOutputStream assembled = new ByteArrayOutputStream();
+		for (long offset = 0; offset < records.length; offset += CHUNK) {
+			long length = Math.min(CHUNK, records.length - offset);
+			Buffer wire = new Buffer();
+			new FileRequestBody(file, offset, length, UploadCodec.GZIP, compacted).writeTo(wire);
+			assembled.write(decode(wire, true));
+		}
+		return assembled.toByteArray();
+	}
+
+	/**
+	 * @param wire a request body
+	 * @param gzipped
+	 * @return what the server received
+	 */
+	private byte[] decode(Buffer wire, boolean gzipped) throws IOException {
+		File received = store.receive(wire.inputStream(), gzipped);
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			InputStream in = new FileInputStream(received);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					bytes.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+			return bytes.toByteArray();
+		} finally {
+			received.delete();
+		}
+	}
+
+	private static void write(OutputStream out, byte[] bytes) throws IOException {
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,103 @@
+package com.bobcripps.smsrecorder;
+
+import com.bobcripps.smsrecorder.core.LogAppender;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SeenIdWindow;
+import com.bobcripps.smsrecorder.core.SmsData;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ProviderSmsSourceTest {
+	private static final int ROWS = 100000;
+
+	private FakeSmsProvider provider;
+	private ProviderSmsSource source;
+
+	@Before
+	public void setUp() {
+		provider = new FakeSmsProvider(ROWS);
+		ShadowContentResolver.registerProvider(ProviderSmsSource.CONTENT_SMS.getAuthority(), provider);
+		source = new ProviderSmsSource(RuntimeEnvironment.application.getContentResolver());
+	}
+
+	@Test
+	public void streamsABacklogInFlatHeap() throws IOException {
+		final LogAppender appender = new LogAppender(RecordFormat.CSV.createEncoder());
+		final long[] heapUsed = new long[2];
+		final long[] bytes = new long[1];
+		appender.begin(new SeenIdWindow(0, 4096), new OutputStream() {
+			@Override
+			public void write(int b) {
+				bytes[0]++;
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				bytes[0] += len;
+			}
+		});
+		int read = source.read(0, new RecordSink() {
+			@Override
+			public void accept(SmsData record) throws IOException {
+				appender.accept(record);
+				if (record.getId() == ROWS / 10) {
+					heapUsed[0] = usedHeap();
+				} else if (record.getId() == ROWS) {
+					heapUsed[1] = usedHeap();
+				}
+			}
+		});
+		assertEquals(ROWS, read);
+		assertEquals(ROWS, appender.getCount());
+		// Every row held on to would be well over 100 bytes
+		long growth = heapUsed[1] - heapUsed[0];
+		assertTrue("heap grew " + growth + " bytes over " + bytes[0] + " written", growth < ROWS * 10);
+	}
+
+	@Test
+	public void readsRecordedRowsInIdOrder() throws IOException {
+		final List<Long> ids = new ArrayList<>();
+		RecordSink sink = new RecordSink() {
+			@Override
+			public void accept(SmsData record) {
+				ids.add(record.getId());
+			}
+		};
+		assertEquals(3, source.read(ROWS - 3, sink));
+		assertEquals(2, source.read(10, 20, 2, sink));
+		assertEquals(1, source.readMessage(7, sink));
+		assertEquals(0, source.readMessage(ROWS + 1, sink));
+		assertEquals(ROWS - 2, ids.get(0).longValue());
+		assertEquals(ROWS, ids.get(2).longValue());
+		assertEquals(11, ids.get(3).longValue());
+		assertEquals(12, ids.get(4).longValue());
+		assertEquals(7, ids.get(5).longValue());
+		assertEquals(10, source.count(10, 20));
+		assertEquals(ROWS, source.getTopMessageId());
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
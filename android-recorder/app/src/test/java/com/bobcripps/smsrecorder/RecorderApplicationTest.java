@@ -0,0 +1,59 @@
+package com.bobcripps.smsrecorder;
+
+import android.content.Context;
+import android.os.HandlerThread;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.util.ServiceController;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * The application turned StrictMode on for this, the main thread, when it was created as a debug
+ * build. The main thread only hands work to the recorder thread so it never trips it
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class RecorderApplicationTest {
+	@After
+	public void tearDown() {
+		// Robolectric never runs what was posted to it, so it would wait forever
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if ("recorder".equals(thread.getName())) {
+				((HandlerThread) thread).quit();
+			}
+		}
+	}
+
+	@Test
+	public void serviceLifecycleHasNoStrictModeViolations() {
+		ServiceController<SmsListenerService> controller = Robolectric.buildService(SmsListenerService.class)
+				.create().startCommand(0, 1);
+		controller.startCommand(0, 2);
+		controller.destroy();
+		assertEquals(String.valueOf(violations()), 0, violations().size());
+	}
+
+	@Test
+	public void violationsAreLoggedNotFatal() {
+		// Creating a directory from the main thread is a disk write
+		RuntimeEnvironment.application.getDir("probe", Context.MODE_PRIVATE);
+		assertFalse(violations().isEmpty());
+	}
+
+	private static List<ShadowLog.LogItem> violations() {
+		List<ShadowLog.LogItem> logs = ShadowLog.getLogsForTag("StrictMode");
+		return logs == null ? Collections.<ShadowLog.LogItem>emptyList() : logs;
+	}
+}
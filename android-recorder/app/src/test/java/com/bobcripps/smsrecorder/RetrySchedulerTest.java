@@ -0,0 +1,214 @@
+package com.bobcripps.smsrecorder;
+
+import com.bobcripps.smsrecorder.core.FileUploadListener;
+import com.bobcripps.smsrecorder.core.IngestStats;
+import com.bobcripps.smsrecorder.core.RecorderMetrics;
+import com.bobcripps.smsrecorder.core.RetryScheduler;
+import com.bobcripps.smsrecorder.core.ServerCommittedIds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Backoff of retries against a local server that fails for a while, on a virtual clock so hours
+ * of outage take no time
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class RetrySchedulerTest {
+	private static final long BASE_DELAY_MS = 30 * 1000;
+	private static final long MAX_DELAY_MS = 60 * 60 * 1000;
+	private static final long OUTAGE_MS = 6 * 60 * 60 * 1000;
+	private static final long START_MS = 1476700000000L;
+	private static final String SUCCEEDED = "{\"succeeded\":true,\"message\":\"stored\"}";
+
+	private MockWebServer server;
+	private ServiceGenerator serviceGenerator;
+	private FileUploadHandler handler;
+	private File segment;
+	private VirtualScheduler virtual;
+	private volatile long upAtMs;
+	private volatile boolean connected = true;
+	private RetryScheduler scheduler;
+
+	@Before
+	public void setUp() throws IOException {
+		virtual = new VirtualScheduler(START_MS);
+		upAtMs = START_MS + OUTAGE_MS;
+		server = new MockWebServer();
+		server.setDispatcher(new Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) {
+				if (virtual.currentTimeMillis() < upAtMs) {
+					return new MockResponse().setResponseCode(500);
+				}
+				return new MockResponse().setBody(SUCCEEDED);
+			}
+		});
+		server.start();
+		UploadConfig config = new UploadConfig();
+		config.setBaseUrl(server.url("/bobcripps/").toString());
+		config.setConnectTimeoutSeconds(5);
+		config.setReadTimeoutSeconds(5);
+		config.setWriteTimeoutSeconds(5);
+		config.setMaxIdleConnections(3);
+		config.setKeepAliveMinutes(5);
+		config.setCodec(UploadCodec.NONE);
+		serviceGenerator = new ServiceGenerator(config);
+		handler = new FileUploadHandler(serviceGenerator.createService(FileUploadHandler.FileUploadService.class),
+				UploadCodec.NONE, null, "device", new ServerCommittedIds());
+		segment = File.createTempFile("smslog-", ".csv");
+		FileOutputStream out = new FileOutputStream(segment);
+		try {
+			out.write("1,2016-08-29T13:00:36Z,+447700900000,In,Hello\r\n".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		scheduler = newScheduler();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		scheduler.shutdown();
+		serviceGenerator.shutdown();
+		server.shutdown();
+		segment.delete();
+	}
+
+	@Test
+	public void backsOffUntilTheServerRecovers() throws Exception {
+		upload();
+		RecorderMetrics metrics = new RecorderMetrics(new IngestStats(), START_MS);
+		long lastMs = virtual.currentTimeMillis();
+		while (scheduler.getFailures() > 0) {
+			int failures = scheduler.getFailures();
+			long delay = Math.min(BASE_DELAY_MS << (failures - 1), MAX_DELAY_MS);
+			assertEquals(delay, scheduler.getCurrentDelayMs());
+			metrics.setBackoff(scheduler);
+			assertTrue(metrics.snapshot(virtual.currentTimeMillis()).contains("gauge backoffDelayMs " + delay + "\n"));
+			assertTrue("nothing pending", virtual.runNext());
+			long waited = virtual.currentTimeMillis() - lastMs;
+			// Equal jitter, somewhere in the upper half of the delay
+			assertTrue("waited " + waited + " after " + failures, waited >= delay / 2 && waited <= delay);
+			lastMs = virtual.currentTimeMillis();
+		}
+		assertFalse(scheduler.isBackingOff());
+		assertEquals(0, virtual.getPending());
+		// The first retry after the outage got through
+		assertTrue(lastMs >= upAtMs && lastMs < upAtMs + MAX_DELAY_MS);
+		assertEquals(scheduler.getRetriesRun() + 1, server.getRequestCount());
+		// Doubling to the cap then hourly, rather than every 30s for six hours
+		assertTrue("requests " + server.getRequestCount(), server.getRequestCount() <= 16);
+		metrics.setBackoff(scheduler);
+		String snapshot = metrics.snapshot(virtual.currentTimeMillis());
+		assertTrue(snapshot.startsWith("metrics " + RecorderMetrics.SNAPSHOT_VERSION + " "));
+		assertTrue(snapshot.contains("gauge backoffFailures 0\n"));
+		assertTrue(snapshot.contains("gauge backoffDelayMs 0\n"));
+		assertTrue(snapshot.contains("counter retriesRun " + scheduler.getRetriesRun() + "\n"));
+	}
+
+	@Test
+	public void retryWaitsForConnectivity() throws Exception {
+		upAtMs = START_MS + 1000;
+		upload();
+		connected = false;
+		assertTrue(virtual.runNext());
+		// Fell due offline so nothing was sent and nothing more is scheduled
+		assertEquals(1, server.getRequestCount());
+		assertEquals(1, scheduler.getGatedRetries());
+		assertTrue(scheduler.isBackingOff());
+		assertEquals(0, virtual.getPending());
+		connected = true;
+		scheduler.gateOpened();
+		assertEquals(2, server.getRequestCount());
+		assertEquals(0, scheduler.getFailures());
+		assertFalse(scheduler.isBackingOff());
+	}
+
+	@Test
+	public void restartKeepsTheBackoff() throws Exception {
+		final long[] saved = new long[2];
+		scheduler.setListener(new RetryScheduler.Listener() {
+			@Override
+			public void retryStateChanged(int failures, long nextRetryAtMs) {
+				saved[0] = failures;
+				saved[1] = nextRetryAtMs;
+			}
+		});
+		upload();
+		assertTrue(virtual.runNext());
+		assertTrue(virtual.runNext());
+		assertEquals(3, saved[0]);
+		long dueMs = saved[1];
+		// The process dies with a retry pending and a new scheduler picks it up
+		scheduler.shutdown();
+		assertEquals(0, virtual.getPending());
+		scheduler = newScheduler();
+		scheduler.restore((int) saved[0], dueMs);
+		assertEquals(BASE_DELAY_MS * 4, scheduler.getCurrentDelayMs());
+		assertTrue(virtual.runNext());
+		assertEquals(dueMs, virtual.currentTimeMillis());
+		assertEquals(4, server.getRequestCount());
+		assertEquals(4, scheduler.getFailures());
+	}
+
+	private RetryScheduler newScheduler() {
+		return new RetryScheduler(virtual, new Runnable() {
+			@Override
+			public void run() {
+				upload();
+			}
+		}, BASE_DELAY_MS, MAX_DELAY_MS, virtual, new RetryScheduler.Gate() {
+			@Override
+			public boolean isOpen() {
+				return connected;
+			}
+		}, new Random(42));
+	}
+
+	/**
+	 * Upload the segment and tell the scheduler how it went, as the pipeline does
+	 */
+	private void upload() {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicBoolean succeeded = new AtomicBoolean();
+		handler.uploadFile(segment, new FileUploadListener() {
+			@Override
+			public void fileUploaded(File file, boolean success) {
+				succeeded.set(success);
+				done.countDown();
+			}
+		});
+		try {
+			assertTrue("no answer", done.await(10, TimeUnit.SECONDS));
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+		if (succeeded.get()) {
+			scheduler.succeeded();
+		} else {
+			scheduler.failed();
+		}
+	}
+}
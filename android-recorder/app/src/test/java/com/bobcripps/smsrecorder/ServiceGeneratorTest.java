@@ -0,0 +1,121 @@
+package com.bobcripps.smsrecorder;
+
+import com.bobcripps.smsrecorder.core.FileUploadListener;
+import com.bobcripps.smsrecorder.core.ServerCommittedIds;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Uploads through the shared client to a local server that counts the connections they arrive on
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ServiceGeneratorTest {
+	private static final int UPLOADS = 10;
+	private static final String SUCCEEDED = "{\"succeeded\":true,\"message\":\"stored\"}";
+
+	private MockWebServer server;
+	private ServiceGenerator serviceGenerator;
+	private File segment;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new MockWebServer();
+		server.start();
+		UploadConfig config = new UploadConfig();
+		config.setBaseUrl(server.url("/bobcripps/").toString());
+		config.setConnectTimeoutSeconds(5);
+		config.setReadTimeoutSeconds(5);
+		config.setWriteTimeoutSeconds(5);
+		config.setMaxIdleConnections(3);
+		config.setKeepAliveMinutes(5);
+		config.setCodec(UploadCodec.NONE);
+		serviceGenerator = new ServiceGenerator(config);
+		segment = File.createTempFile("smslog-", ".csv");
+		FileOutputStream out = new FileOutputStream(segment);
+		try {
+			out.write("1,2016-08-29T13:00:36Z,+447700900000,In,Hello\r\n".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		serviceGenerator.shutdown();
+		server.shutdown();
+		segment.delete();
+	}
+
+	@Test
+	public void uploadsShareOneConnection() throws Exception {
+		FileUploadHandler handler = new FileUploadHandler(
+				serviceGenerator.createService(FileUploadHandler.FileUploadService.class), UploadCodec.NONE, null,
+				"device", new ServerCommittedIds());
+		for (int i = 0; i < UPLOADS; i++) {
+			server.enqueue(new MockResponse().setBody(SUCCEEDED));
+			assertTrue("upload " + i, upload(handler));
+		}
+		int connections = 0;
+		for (int i = 0; i < UPLOADS; i++) {
+			RecordedRequest request = server.takeRequest();
+			assertEquals("/bobcripps/fileupload.php", request.getPath());
+			// Numbered from 0 on each connection
+			if (request.getSequenceNumber() == 0) {
+				connections++;
+			}
+		}
+		assertEquals(1, connections);
+		assertEquals(1, serviceGenerator.getConnectionCount());
+	}
+
+	@Test
+	public void servicesShareTheClientsConnections() throws Exception {
+		for (int i = 0; i < UPLOADS; i++) {
+			// A proxy per upload, as the service did before it kept one
+			FileUploadHandler handler = new FileUploadHandler(
+					serviceGenerator.createService(FileUploadHandler.FileUploadService.class), UploadCodec.NONE, null,
+					"device", new ServerCommittedIds());
+			server.enqueue(new MockResponse().setBody(SUCCEEDED));
+			assertTrue("upload " + i, upload(handler));
+		}
+		assertEquals(UPLOADS, server.getRequestCount());
+		assertEquals(1, serviceGenerator.getConnectionCount());
+	}
+
+	/**
+	 * @return true once the upload has succeeded
+	 */
+	private boolean upload(FileUploadHandler handler) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(1);
+		final AtomicBoolean succeeded = new AtomicBoolean();
+		handler.uploadFile(segment, new FileUploadListener() {
+			@Override
+			public void fileUploaded(File file, boolean success) {
+				succeeded.set(success);
+				done.countDown();
+			}
+		});
+		assertTrue("no answer", done.await(10, TimeUnit.SECONDS));
+		return succeeded.get();
+	}
+}
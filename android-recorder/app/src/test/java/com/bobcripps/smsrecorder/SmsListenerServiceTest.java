@@ -0,0 +1,195 @@
+package com.bobcripps.smsrecorder;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.HandlerThread;
+import android.os.StrictMode;
+
+import com.bobcripps.smsrecorder.core.CsvRecordReader;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.server.DeviceLedgers;
+import com.bobcripps.smsrecorder.server.IngestServer;
+import com.bobcripps.smsrecorder.server.PartitionedStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowContentResolver;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.ServiceController;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The service as the OS runs it: messages arrive in a fake SMS provider, the content observer
+ * is notified the ways the provider does it, and the segments go up to an ingest server over
+ * HTTP. Every message that arrived after the first start must be stored exactly once
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class SmsListenerServiceTest {
+	// Already on the phone, not recorded as history backfill is off
+	private static final int ON_PHONE = 10;
+	private static final int MESSAGES = 3000;
+	private static final long WAIT_MS = 30000;
+
+	private File dir;
+	private IngestServer server;
+	private FakeSmsProvider provider;
+	private ContentResolver resolver;
+	private ServiceController<SmsListenerService> controller;
+	private ShadowLooper recorder;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = File.createTempFile("service", "");
+		dir.delete();
+		dir.mkdirs();
+		server = new IngestServer(new PartitionedStore(dir), new DeviceLedgers(dir, 16), 0, 8);
+		server.start();
+		provider = new FakeSmsProvider(ON_PHONE);
+		ShadowContentResolver.registerProvider(ProviderSmsSource.CONTENT_SMS.getAuthority(), provider);
+		resolver = RuntimeEnvironment.application.getContentResolver();
+		RecorderApplication application = (RecorderApplication) RuntimeEnvironment.application;
+		UploadConfig config = UploadConfig.fromResources(application.getResources());
+		config.setBaseUrl("http://localhost:" + server.getPort() + "/");
+		application.setUploadConfig(config);
+		controller = Robolectric.buildService(SmsListenerService.class).create();
+		// Robolectric queues what's posted to a HandlerThread until it's told to run it, from
+		// here on it runs straight away on this thread, so the main thread's StrictMode policy
+		// doesn't apply
+		StrictMode.setThreadPolicy(StrictMode.ThreadPolicy.LAX);
+		recorder = Shadows.shadowOf(recorderThread().getLooper());
+		recorder.idleConstantly(true);
+		controller.startCommand(0, 1);
+		// Posted while the controller had the main looper paused
+		recorder.idle();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		delete(dir);
+	}
+
+	@Test
+	public void everyNewMessageReachesTheServerOnce() throws Exception {
+		// The first start reads the top ID to record from, messages before it are on the phone
+		while (provider.getQueries() == 0) {
+			Thread.sleep(1);
+		}
+		for (int i = 0; i < MESSAGES; i++) {
+			long id = provider.arrive(1);
+			if (i % 50 == 0) {
+				// Raw, the observer reads everything past the watermark
+				notifyChange("raw");
+			} else if (i % 50 == 1) {
+				// Twice
+				notifyChange(String.valueOf(id));
+				notifyChange(String.valueOf(id));
+			} else if (i % 50 != 2) {
+				// and now and then not at all, the next notification's gap read picks it up
+				notifyChange(String.valueOf(id));
+			}
+		}
+		int[] received = new int[ON_PHONE + MESSAGES + 1];
+		long deadline = System.currentTimeMillis() + WAIT_MS;
+		while (storedRecords(dir, received) < MESSAGES && System.currentTimeMillis() < deadline) {
+			Thread.sleep(100);
+			// The active segment is sealed for upload once a batch finds the uploads idle
+			notifyChange("raw");
+		}
+		controller.destroy();
+		// Closes the log and stops the workers
+		recorder.idle();
+		storedRecords(dir, received);
+		for (int id = 1; id <= ON_PHONE; id++) {
+			assertEquals("ID " + id + " was on the phone before the first start", 0, received[id]);
+		}
+		for (int id = ON_PHONE + 1; id < received.length; id++) {
+			assertEquals("times ID " + id + " was stored", 1, received[id]);
+		}
+	}
+
+	/**
+	 * Notify the observers of the SMS provider with the URI of the row that changed, as the
+	 * provider does. Robolectric only tells observers registered for exactly the URI notified
+	 * @param last ID or "raw"
+	 */
+	private void notifyChange(String last) {
+		Uri uri = Uri.withAppendedPath(ProviderSmsSource.CONTENT_SMS, last);
+		for (ContentObserver observer : Shadows.shadowOf(resolver).getContentObservers(ProviderSmsSource.CONTENT_SMS)) {
+			observer.dispatchChange(false, uri);
+		}
+	}
+
+	private static HandlerThread recorderThread() {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if ("recorder".equals(thread.getName())) {
+				return (HandlerThread) thread;
+			}
+		}
+		throw new IllegalStateException("no recorder thread");
+	}
+
+	/**
+	 * @param dir
+	 * @param received set to the times each ID is in the CSV files the server stored under the directory
+	 * @return records in them
+	 */
+	private static int storedRecords(File dir, int[] received) throws IOException {
+		for (int i = 0; i < received.length; i++) {
+			received[i] = 0;
+		}
+		return count(dir, received);
+	}
+
+	private static int count(File dir, int[] received) throws IOException {
+		int records = 0;
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		for (File file : files) {
+			if (file.isDirectory()) {
+				records += count(file, received);
+			} else if (file.getName().startsWith("smslog_") && file.getName().endsWith(".csv")) {
+				InputStream in = new BufferedInputStream(new FileInputStream(file));
+				try {
+					CsvRecordReader reader = new CsvRecordReader(in);
+					SmsData record = new SmsData();
+					while (reader.read(record)) {
+						received[(int) record.getId()]++;
+						records++;
+					}
+				} finally {
+					in.close();
+				}
+			}
+		}
+		return records;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,181 @@
+package com.bobcripps.smsrecorder;
+
+import com.bobcripps.smsrecorder.core.RetryScheduler;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduled executor on a virtual clock. Nothing runs until the test calls runNext(), which
+ * moves the clock to the earliest task due and runs it on the test's thread
+ */
+public class VirtualScheduler extends AbstractExecutorService implements ScheduledExecutorService,
+		RetryScheduler.Clock {
+	private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+	private long nowMs;
+	private long sequence;
+
+	public VirtualScheduler(long nowMs) {
+		this.nowMs = nowMs;
+	}
+
+	@Override
+	public synchronized long currentTimeMillis() {
+		return nowMs;
+	}
+
+	/**
+	 * @return tasks waiting to run, cancelled ones not counted
+	 */
+	public synchronized int getPending() {
+		int pending = 0;
+		for (Task task : tasks) {
+			if (!task.cancelled) {
+				pending++;
+			}
+		}
+		return pending;
+	}
+
+	/**
+	 * Move the clock on to the earliest task due and run it
+	 * @return false if there's nothing to run
+	 */
+	public boolean runNext() {
+		Task task;
+		synchronized (this) {
+			do {
+				task = tasks.poll();
+			} while (task != null && task.cancelled);
+			if (task == null) {
+				return false;
+			}
+			nowMs = Math.max(nowMs, task.atMs);
+			task.done = true;
+		}
+		task.runnable.run();
+		return true;
+	}
+
+	@Override
+	public synchronized ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+		Task task = new Task(command, nowMs + unit.toMillis(delay), sequence++);
+		tasks.add(task);
+		return task;
+	}
+
+	@Override
+	public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay,
+													 TimeUnit unit) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		schedule(command, 0, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public void shutdown() {
+	}
+
+	@Override
+	public List<Runnable> shutdownNow() {
+		return Collections.emptyList();
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return false;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return false;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) {
+		return true;
+	}
+
+	private class Task implements ScheduledFuture<Object> {
+		private final Runnable runnable;
+		private final long atMs;
+		private final long sequence;
+		private boolean cancelled;
+		private boolean done;
+
+		Task(Runnable runnable, long atMs, long sequence) {
+			this.runnable = runnable;
+			this.atMs = atMs;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(atMs - currentTimeMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			Task task = (Task) other;
+			if (atMs != task.atMs) {
+				return atMs < task.atMs ? -1 : 1;
+			}
+			return sequence < task.sequence ? -1 : sequence == task.sequence ? 0 : 1;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			synchronized (VirtualScheduler.this) {
+				if (done) {
+					return false;
+				}
+				cancelled = true;
+				return true;
+			}
+		}
+
+		@Override
+		public boolean isCancelled() {
+			synchronized (VirtualScheduler.this) {
+				return cancelled;
+			}
+		}
+
+		@Override
+		public boolean isDone() {
+			synchronized (VirtualScheduler.this) {
+				return done || cancelled;
+			}
+		}
+
+		@Override
+		public Object get() {
+			return null;
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordReader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * The indexing stage, builds a SegmentIndex for each stored segment and adds it to its
+ * partition's PartitionSummary, and in the same pass over the records its Rollup to the
+ * RollupStore. Runs on its own low priority thread after the upload has been acknowledged, so
+ * indexing never holds up a client. When segments start arriving in a new day's partition the
+ * earlier days' rollups are compacted.
+ * A segment stored just before a crash may be left without an index or rollup, ArchiveQuery
+ * scans it and reindex() catches it up. The device isn't kept with the segment so a rollup
+ * caught up that way counts it under an empty device.
+ * <pre>
+ * java ArchiveIndexer &lt;storage dir&gt;     index and roll up every stored segment missing either
+ * </pre>
+ * Thread safe.
+ */
+public class ArchiveIndexer {
+	private static final Pattern YEAR = Pattern.compile("\\d{4}");
+	private static final Pattern MONTH_OR_DAY = Pattern.compile("\\d{2}");
+
+	private final RollupStore rollups;
+	private final ExecutorService executor;
+	private final AtomicLong indexed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	// Partition of the last segment indexed, only used on the indexer thread
+	private File lastPartition;
+
+	/**
+	 * @param rollups segments' rollups are added to
+	 */
+	public ArchiveIndexer(RollupStore rollups) {
+		this.rollups = rollups;
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "archive-indexer");
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Index a segment in the background
+	 * @param segment just stored
+	 * @param device that uploaded it, null if it didn't say
+	 */
+	public void submit(final File segment, final String device) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if (!segment.getParentFile().equals(lastPartition)) {
+						if (lastPartition != null) {
+							rollups.compactClosed(System.currentTimeMillis());
+						}
+						lastPartition = segment.getParentFile();
+					}
+					index(segment, device, true, true);
+				} catch (IOException e) {
+					failed.incrementAndGet();
+					System.err.println("index of " + segment.getName() + " failed " + e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read a segment and write its index, its rollup or both
+	 * @param segment a stored segment
+	 * @param device that uploaded it, null if it isn't known
+	 * @param index build its index
+	 * @param rollUp add its rollup
+	 * @return false if its format can't be read back, e.g. legacy CSV
+	 * @throws IOException
+	 */
+	boolean index(File segment, String device, boolean index, boolean rollUp) throws IOException {
+		RecordFormat format = RecordFormat.readableFormatOf(segment.getName());
+		if (format == null) {
+			return false;
+		}
+		SegmentIndex.Builder builder = index ? new SegmentIndex.Builder() : null;
+		Rollup rollup = rollUp ? new Rollup() : null;
+		SmsData record = new SmsData();
+		InputStream in = new BufferedInputStream(new FileInputStream(segment), 64 * 1024);
+		try {
+			SmsRecordReader reader = format.createReader(in);
+			while (reader.read(record)) {
+				if (builder != null) {
+					builder.add(record);
+				}
+				if (rollup != null) {
+					rollup.add(device, record);
+				}
+			}
+		} catch (IOException e) {
+			return false;
+		} finally {
+			in.close();
+		}
+		commit(segment, builder, rollup);
+		return true;
+	}
+
+	/**
+	 * Write the index of a segment and add it to the partition summary, then add its rollup.
+	 * In that order so a crash part way never leaves a rollup for reindex() to add again
+	 * @param segment
+	 * @param builder holding every record of the segment, null to leave the index
+	 * @param rollup of every record of the segment, null to leave the rollups
+	 * @throws IOException
+	 */
+	void commit(File segment, SegmentIndex.Builder builder, Rollup rollup) throws IOException {
+		if (builder != null) {
+			builder.write(SegmentIndex.indexFileOf(segment));
+			PartitionSummary.Entry entry = new PartitionSummary.Entry(segment.getName(), builder.getRecords(),
+					builder.getMinDate(), builder.getMaxDate(), PartitionSummary.filterOf(builder.getNumbers()));
+			synchronized (this) {
+				PartitionSummary.append(segment.getParentFile(), entry);
+			}
+		}
+		if (rollup != null) {
+			rollups.append(segment, rollup);
+		}
+		indexed.incrementAndGet();
+	}
+
+	/**
+	 * Compact the rollups of days that are over, in the background
+	 */
+	public void submitCompaction() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				rollups.compactClosed(System.currentTimeMillis());
+			}
+		});
+	}
+
+	/**
+	 * Index and roll up every segment under the root that's missing either
+	 * @param root storage directory
+	 * @return segments read
+	 * @throws IOException
+	 */
+	public int reindex(File root) throws IOException {
+		int count = 0;
+		for (File partition : partitions(root)) {
+			Set<String> rolledUp = rollups.segmentsIn(partition);
+			for (File segment : segments(partition)) {
+				boolean index = !SegmentIndex.indexFileOf(segment).exists();
+				boolean rollUp = !rolledUp.contains(segment.getName());
+				if ((index || rollUp) && index(segment, null, index, rollUp)) {
+					count++;
+				}
+			}
+		}
+		rollups.compactClosed(System.currentTimeMillis());
+		return count;
+	}
+
+	/**
+	 * Wait for segments already submitted
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+	}
+
+	@Override
+	public String toString() {
+		return "indexed=" + indexed.get() + " failed=" + failed.get();
+	}
+
+	/**
+	 * @param root storage directory
+	 * @return its YYYY/MM/DD partitions in date order
+	 */
+	static File[] partitions(File root) {
+		File[] days = new File[0];
+		for (File year : children(root, YEAR)) {
+			for (File month : children(year, MONTH_OR_DAY)) {
+				File[] inMonth = children(month, MONTH_OR_DAY);
+				int length = days.length;
+				days = Arrays.copyOf(days, length + inMonth.length);
+				System.arraycopy(inMonth, 0, days, length, inMonth.length);
+			}
+		}
+		return days;
+	}
+
+	/**
+	 * @param partition
+	 * @return the stored segments in name order, the order they arrived to the second
+	 */
+	static File[] segments(File partition) {
+		File[] files = partition.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(PartitionedStore.PREFIX) && (name.endsWith(MultipartHandler.BINARY_SUFFIX)
+					|| name.endsWith(MultipartHandler.CSV_SUFFIX))) {
+				files[count++] = file;
+			}
+		}
+		files = Arrays.copyOf(files, count);
+		Arrays.sort(files);
+		return files;
+	}
+
+	private static File[] children(File dir, Pattern name) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return new File[0];
+		}
+		int count = 0;
+		for (File file : files) {
+			if (file.isDirectory() && name.matcher(file.getName()).matches()) {
+				files[count++] = file;
+			}
+		}
+		files = Arrays.copyOf(files, count);
+		Arrays.sort(files);
+		return files;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: ArchiveIndexer <storage dir>");
+			System.exit(1);
+		}
+		long start = System.currentTimeMillis();
+		File root = new File(args[0]);
+		int count = new ArchiveIndexer(new RollupStore(root)).reindex(root);
+		System.out.println("indexed " + count + " segments in " + (System.currentTimeMillis() - start) + " ms");
+	}
+}
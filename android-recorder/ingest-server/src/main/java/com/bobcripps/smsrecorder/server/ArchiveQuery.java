@@ -0,0 +1,242 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordReader;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Finds stored records by number, date range and direction, reading as little as it can:
+ * <ol>
+ * <li>Partitions are days of arrival and a message can't arrive before it was sent, so days
+ * that ended before the range starts are skipped unread, allowing a day for phone clocks.</li>
+ * <li>Each remaining partition's summary rules out segments by date range and number.</li>
+ * <li>A surviving segment's index gives the ordinals of its matching records, often none.</li>
+ * <li>Only segments with matches are read, and only up to the last match.</li>
+ * </ol>
+ * Segments without an index are scanned. Numbers match exactly as the phone stored them.
+ * Records come out in partition, then arrival, then segment order.
+ * Thread safe, each query only reads.
+ */
+public class ArchiveQuery {
+	private static final long MILLIS_PER_DAY = 86400000L;
+	// How far ahead of the server a phone's clock is allowed to be
+	private static final long CLOCK_SKEW_MS = MILLIS_PER_DAY;
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	/**
+	 * How much of the archive a query touched
+	 */
+	public static class Stats {
+		public int partitions;
+		public int partitionsSkipped;
+		public int segments;
+		public int segmentsSkipped;
+		public int segmentsScanned;
+		public long recordsRead;
+		public long matched;
+
+		@Override
+		public String toString() {
+			return "matched=" + matched + " partitions=" + partitions + " skipped=" + partitionsSkipped
+					+ " segments=" + segments + " skipped=" + segmentsSkipped + " scanned=" + segmentsScanned
+					+ " recordsRead=" + recordsRead;
+		}
+	}
+
+	private final File root;
+	private final boolean useIndexes;
+
+	/**
+	 * @param root storage directory
+	 * @param useIndexes false reads every record, for comparison
+	 */
+	public ArchiveQuery(File root, boolean useIndexes) {
+		this.root = root;
+		this.useIndexes = useIndexes;
+	}
+
+	/**
+	 * @param number null for any
+	 * @param fromMs earliest date, inclusive
+	 * @param toMs latest date, inclusive
+	 * @param direction null for both
+	 * @param limit most records to return
+	 * @param sink given each match, the record is reused
+	 * @return what the query read
+	 * @throws IOException
+	 */
+	public Stats find(String number, long fromMs, long toMs, SmsData.SMSDirection direction, long limit,
+			RecordSink sink) throws IOException {
+		Filter filter = new Filter(number, fromMs, toMs, direction, limit, sink);
+		Calendar calendar = Calendar.getInstance(UTC);
+		for (File partition : ArchiveIndexer.partitions(root)) {
+			filter.stats.partitions++;
+			if (useIndexes && dayEnd(partition, calendar) + CLOCK_SKEW_MS < fromMs) {
+				filter.stats.partitionsSkipped++;
+				continue;
+			}
+			Map<String, PartitionSummary.Entry> summary = useIndexes ? PartitionSummary.read(partition) : null;
+			for (File segment : ArchiveIndexer.segments(partition)) {
+				filter.stats.segments++;
+				if (useIndexes) {
+					findIndexed(segment, summary.get(segment.getName()), filter);
+				} else {
+					filter.stats.segmentsScanned++;
+					scan(segment, null, 0, filter);
+				}
+				if (filter.isFull()) {
+					return filter.stats;
+				}
+			}
+		}
+		return filter.stats;
+	}
+
+	private static void findIndexed(File segment, PartitionSummary.Entry entry, Filter filter) throws IOException {
+		if (entry != null && (entry.records == 0 || entry.maxDate < filter.fromMs || entry.minDate > filter.toMs
+				|| (filter.number != null && !entry.mightContain(filter.numberBytes)))) {
+			filter.stats.segmentsSkipped++;
+			return;
+		}
+		SegmentIndex index;
+		try {
+			index = SegmentIndex.open(SegmentIndex.indexFileOf(segment));
+		} catch (IOException e) {
+			// Not indexed yet or torn
+			filter.stats.segmentsScanned++;
+			scan(segment, null, 0, filter);
+			return;
+		}
+		if (index.getRecords() == 0 || index.getMaxDate() < filter.fromMs || index.getMinDate() > filter.toMs) {
+			filter.stats.segmentsSkipped++;
+			return;
+		}
+		int[] ordinals;
+		int count;
+		if (filter.number != null) {
+			ordinals = index.find(filter.numberBytes);
+			count = 0;
+			for (int ordinal : ordinals) {
+				if (filter.matches(index.getDate(ordinal), index.getDirection(ordinal))) {
+					ordinals[count++] = ordinal;
+				}
+			}
+		} else {
+			ordinals = new int[index.getRecords()];
+			count = 0;
+			for (int ordinal = 0; ordinal < ordinals.length; ordinal++) {
+				if (filter.matches(index.getDate(ordinal), index.getDirection(ordinal))) {
+					ordinals[count++] = ordinal;
+				}
+			}
+		}
+		if (count == 0) {
+			filter.stats.segmentsSkipped++;
+			return;
+		}
+		scan(segment, ordinals, count, filter);
+	}
+
+	/**
+	 * Read a segment from the start
+	 * @param segment
+	 * @param ordinals records to return in ascending order, null to check every record
+	 * @param count ordinals used
+	 * @param filter
+	 * @throws IOException
+	 */
+	private static void scan(File segment, int[] ordinals, int count, Filter filter) throws IOException {
+		RecordFormat format = RecordFormat.readableFormatOf(segment.getName());
+		if (format == null) {
+			return;
+		}
+		SmsData record = filter.record;
+		InputStream in = new BufferedInputStream(new FileInputStream(segment), 64 * 1024);
+		try {
+			SmsRecordReader reader = format.createReader(in);
+			int ordinal = 0;
+			int next = 0;
+			while ((ordinals == null || next < count) && reader.read(record)) {
+				filter.stats.recordsRead++;
+				if (ordinals == null ? filter.matches(record) : ordinal == ordinals[next]) {
+					filter.accept(record);
+					if (filter.isFull()) {
+						return;
+					}
+					next++;
+				}
+				ordinal++;
+			}
+		} catch (IOException e) {
+			// Legacy CSV or damaged, the records before the damage have been returned
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @param partition YYYY/MM/DD directory
+	 * @param calendar reused
+	 * @return the end of its day in UTC
+	 */
+	private static long dayEnd(File partition, Calendar calendar) {
+		File month = partition.getParentFile();
+		calendar.clear();
+		calendar.set(Integer.parseInt(month.getParentFile().getName()), Integer.parseInt(month.getName()) - 1,
+				Integer.parseInt(partition.getName()));
+		return calendar.getTimeInMillis() + MILLIS_PER_DAY - 1;
+	}
+
+	/**
+	 * A query's conditions and progress
+	 */
+	private static class Filter {
+		final String number;
+		final byte[] numberBytes;
+		final long fromMs;
+		final long toMs;
+		final SmsData.SMSDirection direction;
+		final long limit;
+		final RecordSink sink;
+		final SmsData record = new SmsData();
+		final Stats stats = new Stats();
+
+		Filter(String number, long fromMs, long toMs, SmsData.SMSDirection direction, long limit, RecordSink sink) {
+			this.number = number;
+			this.numberBytes = SegmentIndex.bytesOf(number);
+			this.fromMs = fromMs;
+			this.toMs = toMs;
+			this.direction = direction;
+			this.limit = limit;
+			this.sink = sink;
+		}
+
+		boolean matches(long date, SmsData.SMSDirection recordDirection) {
+			return date >= fromMs && date <= toMs && (direction == null || direction == recordDirection);
+		}
+
+		boolean matches(SmsData record) {
+			return matches(record.getDate(), record.getDirection())
+					&& (number == null || number.equals(record.getNumber()));
+		}
+
+		void accept(SmsData record) throws IOException {
+			stats.matched++;
+			sink.accept(record);
+		}
+
+		boolean isFull() {
+			return stats.matched >= limit;
+		}
+	}
+}
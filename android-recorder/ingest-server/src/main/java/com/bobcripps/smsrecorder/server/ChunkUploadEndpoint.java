@@ -0,0 +1,235 @@
+package com.bobcripps.smsrecorder.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * chunkupload.php, the server side of ChunkedUploadHandler's resumable protocol. Parts:
+ * <ul>
+ * <li>session - ID the client made up for the file</li>
+ * <li>offset - where the chunk goes in the uncompressed file</li>
+ * <li>final - "true" on the last chunk</li>
+ * <li>device - optional ID of the device, see FileUploadEndpoint</li>
+ * <li>chunk - the bytes, gzipped on their own if the file name ends .gz</li>
+ * <li>metrics - optional on the final chunk, kept beside the file</li>
+ * </ul>
+ * Chunks are appended to sessions/&lt;session&gt;.part under the store root, its length is the
+ * committed offset. A chunk that doesn't start there is skipped and the committed offset sent
+ * back so the client carries on from it. Each chunk is synced before it's acknowledged and a
+ * chunk that fails part way is cut off again so the committed offset only ever covers whole
+ * chunks. The final chunk hands the file to DedupIngest and leaves sessions/&lt;session&gt;.done
+ * holding its length, so a client that lost the response to it is told the file is complete
+ * rather than starting the session again. sweep() removes markers after a week, and parts no chunk
+ * has arrived for in a week, the client of an abandoned part that comes back is told to start
+ * again from offset 0.
+ * Chunks for the same session are handled one at a time.
+ */
+public class ChunkUploadEndpoint extends MultipartHandler {
+	private static final Pattern SESSION = Pattern.compile("[A-Za-z0-9-]{1,64}");
+	private static final String SESSION_DIR = "sessions";
+	private static final String PART_SUFFIX = ".part";
+	private static final String DONE_SUFFIX = ".done";
+	private static final long DONE_KEEP_MS = 7L * 24 * 60 * 60 * 1000;
+	private static final long PART_KEEP_MS = 7L * 24 * 60 * 60 * 1000;
+	private static final int MAX_FIELD_BYTES = 64;
+	// Sessions are locked by hash, collisions only cost a little concurrency
+	private static final int LOCK_STRIPES = 256;
+
+	private final PartitionedStore store;
+	private final DedupIngest dedup;
+	private final File sessionDir;
+	private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+	/**
+	 * @param store finished files go in, sessions are kept under its root
+	 * @param dedup finished files are handed to
+	 * @throws IOException if the sessions directory can't be created
+	 */
+	public ChunkUploadEndpoint(PartitionedStore store, DedupIngest dedup) throws IOException {
+		this.store = store;
+		this.dedup = dedup;
+		this.sessionDir = new File(store.getRoot(), SESSION_DIR);
+		if (!sessionDir.isDirectory() && !sessionDir.mkdirs()) {
+			throw new IOException("Can't create " + sessionDir);
+		}
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+		sweep(System.currentTimeMillis());
+	}
+
+	@Override
+	protected Result handleParts(MultipartReader reader) throws IOException {
+		String session = null;
+		long offset = -1;
+		boolean last = false;
+		String device = null;
+		while (reader.next()) {
+			String name = reader.getName();
+			if (name.equals("session")) {
+				session = reader.readString(MAX_FIELD_BYTES);
+			} else if (name.equals("offset")) {
+				offset = parseOffset(reader.readString(MAX_FIELD_BYTES));
+			} else if (name.equals("final")) {
+				last = reader.readString(MAX_FIELD_BYTES).equals("true");
+			} else if (name.equals(FileUploadEndpoint.DEVICE_PART)) {
+				device = FileUploadEndpoint.readDevice(reader);
+			} else if (name.equals("chunk")) {
+				if (session == null || !SESSION.matcher(session).matches()) {
+					throw new BadRequestException("bad session");
+				}
+				if (offset < 0) {
+					throw new BadRequestException("bad offset");
+				}
+				ReentrantLock lock = lockFor(session);
+				lock.lock();
+				try {
+					return append(reader, session, offset, last, device);
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+		throw new BadRequestException("no chunk part");
+	}
+
+	/**
+	 * Append the chunk if it starts at the committed offset
+	 * @param reader positioned on the chunk part
+	 * @param session
+	 * @param offset
+	 * @param last
+	 * @param device null if the client didn't send one
+	 * @return the answer with the committed offset
+	 * @throws IOException
+	 */
+	private Result append(MultipartReader reader, String session, long offset, boolean last, String device)
+			throws IOException {
+		File done = new File(sessionDir, session + DONE_SUFFIX);
+		long completed = readMarker(done);
+		if (completed >= 0) {
+			return new Result(true, "Already complete", completed);
+		}
+		File part = new File(sessionDir, session + PART_SUFFIX);
+		long committed = part.length();
+		if (offset != committed) {
+			return new Result(false, "offset mismatch", committed);
+		}
+		String fileName = reader.getFileName();
+		FileOutputStream out = new FileOutputStream(part, true);
+		boolean synced = false;
+		try {
+			PartitionedStore.copy(isGzipped(fileName) ? new GZIPInputStream(reader.getBody()) : reader.getBody(), out);
+			out.getChannel().force(true);
+			synced = true;
+			committed = out.getChannel().size();
+		} finally {
+			if (!synced) {
+				// Whatever of the chunk did arrive is dropped, the client resends it whole
+				out.getChannel().truncate(committed);
+			}
+			out.close();
+		}
+		if (!last) {
+			return new Result(true, "Good to go", committed);
+		}
+		DedupIngest.Outcome outcome = dedup.ingest(part, suffixOf(fileName), device);
+		writeMarker(done, committed);
+		while (reader.next()) {
+			if (reader.getName().equals(FileUploadEndpoint.METRICS_PART) && outcome.stored != null) {
+				FileUploadEndpoint.storeMetrics(store, reader, outcome.stored);
+			}
+		}
+		return FileUploadEndpoint.resultOf(outcome, committed);
+	}
+
+	/**
+	 * @param done
+	 * @return length of the completed file, -1 if the session isn't complete
+	 */
+	private static long readMarker(File done) {
+		if (!done.exists()) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(done.toPath()), "UTF-8").trim());
+		} catch (IOException e) {
+			return -1;
+		} catch (NumberFormatException e) {
+			// Torn by a crash, the client is told to start again and the records are deduplicated
+			return -1;
+		}
+	}
+
+	/**
+	 * Best effort, the file is already stored. Without the marker a resent final chunk is told
+	 * to start again and the resent records are dropped as duplicates
+	 * @param done
+	 * @param length
+	 */
+	private static void writeMarker(File done, long length) {
+		try {
+			FileOutputStream out = new FileOutputStream(done);
+			try {
+				out.write(Long.toString(length).getBytes("UTF-8"));
+				out.getChannel().force(true);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			System.err.println("marker " + done.getName() + " not written " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Remove old completion markers and abandoned parts. A part whose session has a chunk
+	 * arriving is left for the next sweep
+	 * @param nowMs
+	 * @return files removed
+	 */
+	public int sweep(long nowMs) {
+		File[] files = sessionDir.listFiles();
+		if (files == null) {
+			return 0;
+		}
+		int removed = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(DONE_SUFFIX)) {
+				if (file.lastModified() < nowMs - DONE_KEEP_MS && file.delete()) {
+					removed++;
+				}
+			} else if (name.endsWith(PART_SUFFIX) && file.lastModified() < nowMs - PART_KEEP_MS) {
+				ReentrantLock lock = lockFor(name.substring(0, name.length() - PART_SUFFIX.length()));
+				if (lock.tryLock()) {
+					try {
+						// Checked again in case a chunk was appended since the listing
+						if (file.lastModified() < nowMs - PART_KEEP_MS && file.delete()) {
+							removed++;
+						}
+					} finally {
+						lock.unlock();
+					}
+				}
+			}
+		}
+		return removed;
+	}
+
+	private ReentrantLock lockFor(String session) {
+		return locks[(session.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	private static long parseOffset(String value) throws BadRequestException {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new BadRequestException("bad offset");
+		}
+	}
+}
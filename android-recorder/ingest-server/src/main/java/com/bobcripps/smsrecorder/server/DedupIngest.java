@@ -0,0 +1,169 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.IdIntervalSet;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+import com.bobcripps.smsrecorder.core.SmsRecordReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stores a received segment keeping only records the device hasn't sent before, so a client
+ * resending a segment after a lost response doesn't leave duplicates for readers to deal with.
+ * <ol>
+ * <li>Read the segment's IDs and check them against the device's ledger.</li>
+ * <li>Nothing new, the segment is dropped. Nothing old, it's stored as it arrived. Otherwise
+ * the new records are encoded again into a filtered copy and that's stored.</li>
+ * <li>Once the stored file is synced the new IDs are committed to the ledger.</li>
+ * </ol>
+ * A crash between the last two steps leaves the records stored but not in the ledger, a resend
+ * then stores them a second time. The other way round would lose them.
+ * Segments without a device, or in a format that can't be read back, are stored as they arrived.
+ * Every stored file is handed to the ArchiveIndexer.
+ * Thread safe, uploads for the same device are handled one at a time.
+ */
+public class DedupIngest {
+	// Ranges sent back to the client, enough to cover its segments waiting for acknowledgement
+	static final int RESPONSE_RANGES = 64;
+
+	/**
+	 * What happened to a segment
+	 */
+	public static class Outcome {
+		// Null if every record was a duplicate
+		public final File stored;
+		public final int records;
+		public final int duplicates;
+		// Highest ID held for the device and the ranges below it, -1 and null without a device
+		public final long committedId;
+		public final long[] committed;
+
+		Outcome(File stored, int records, int duplicates, long committedId, long[] committed) {
+			this.stored = stored;
+			this.records = records;
+			this.duplicates = duplicates;
+			this.committedId = committedId;
+			this.committed = committed;
+		}
+	}
+
+	private final PartitionedStore store;
+	private final DeviceLedgers ledgers;
+	private final ArchiveIndexer indexer;
+
+	public DedupIngest(PartitionedStore store, DeviceLedgers ledgers, ArchiveIndexer indexer) {
+		this.store = store;
+		this.ledgers = ledgers;
+		this.indexer = indexer;
+	}
+
+	/**
+	 * @param received a segment written by PartitionedStore.receive() or assembled from chunks,
+	 * moved into the store or deleted
+	 * @param suffix record format suffix
+	 * @param device the client's device ID, null if it didn't send one
+	 * @return what was stored
+	 * @throws IOException
+	 */
+	public Outcome ingest(File received, String suffix, String device) throws IOException {
+		RecordFormat format = RecordFormat.readableFormatOf(suffix);
+		if (device == null || format == null) {
+			PartitionedStore.sync(received);
+			return new Outcome(adopt(received, suffix, device), -1, 0, -1, null);
+		}
+		ReentrantLock lock = ledgers.lockFor(device);
+		lock.lock();
+		try {
+			DeviceLedger ledger = ledgers.get(device);
+			IdIntervalSet added = new IdIntervalSet();
+			int records = 0;
+			int duplicates = 0;
+			try {
+				SmsData record = new SmsData();
+				InputStream in = new BufferedInputStream(new FileInputStream(received));
+				try {
+					SmsRecordReader reader = format.createReader(in);
+					while (reader.read(record)) {
+						records++;
+						long id = record.getId();
+						if (ledger.contains(id) || !added.add(id)) {
+							duplicates++;
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				// Not the format the suffix says, e.g. legacy CSV from a version that named it .csv,
+				// keep it as it is
+				PartitionedStore.sync(received);
+				return new Outcome(adopt(received, suffix, device), -1, 0, ledger.getCommittedId(),
+						ledger.getCommittedRanges(RESPONSE_RANGES));
+			}
+			File stored = null;
+			if (duplicates == 0) {
+				PartitionedStore.sync(received);
+				stored = adopt(received, suffix, device);
+			} else if (duplicates < records) {
+				File filtered = filter(received, format, ledger);
+				stored = adopt(filtered, suffix, device);
+			}
+			if (!received.delete() && received.exists()) {
+				throw new IOException("Can't delete " + received);
+			}
+			ledger.commit(added);
+			return new Outcome(stored, records, duplicates, ledger.getCommittedId(),
+					ledger.getCommittedRanges(RESPONSE_RANGES));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private File adopt(File file, String suffix, String device) throws IOException {
+		File stored = store.adopt(file, suffix);
+		indexer.submit(stored, device);
+		return stored;
+	}
+
+	/**
+	 * Encode the records the ledger doesn't hold into a synced copy
+	 * @param received
+	 * @param format
+	 * @param ledger
+	 * @return the copy, next to the received file
+	 * @throws IOException
+	 */
+	private static File filter(File received, RecordFormat format, DeviceLedger ledger) throws IOException {
+		File filtered = new File(received.getPath() + ".filtered");
+		IdIntervalSet written = new IdIntervalSet();
+		SmsRecordEncoder encoder = format.createEncoder();
+		SmsData record = new SmsData();
+		InputStream in = new BufferedInputStream(new FileInputStream(received));
+		FileOutputStream file = new FileOutputStream(filtered);
+		try {
+			OutputStream out = new BufferedOutputStream(file, 64 * 1024);
+			SmsRecordReader reader = format.createReader(in);
+			encoder.startSegment(out);
+			while (reader.read(record)) {
+				if (!ledger.contains(record.getId()) && written.add(record.getId())) {
+					encoder.encode(record, out);
+				}
+			}
+			out.flush();
+			file.getChannel().force(true);
+		} finally {
+			file.close();
+			in.close();
+		}
+		return filtered;
+	}
+}
@@ -0,0 +1,160 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.IdIntervalSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The SMS IDs committed for one device, persisted as a journal of ID ranges:
+ * <pre>
+ * int ranges, then start, end longs   the snapshot written at the last compaction
+ * long start, long end ...            one pair per range committed since
+ * </pre>
+ * Each upload appends the ranges it added and syncs them, a few dozen bytes however many IDs it
+ * held. Loading replays the journal into an IdIntervalSet. Once the journal holds a lot more
+ * pairs than the set has ranges it's rewritten as a snapshot.
+ * A journal torn by a crash is cut back to its last whole pair, the upload that was writing it
+ * wasn't acknowledged so the client sends it again.
+ * Callers hold DeviceLedgers.lockFor(device), one upload per device at a time.
+ */
+public class DeviceLedger {
+	private static final int PAIR_BYTES = 16;
+	// Compact once the journal has this many more pairs than the set has ranges
+	private static final int COMPACT_SLACK = 1024;
+
+	private final File file;
+	private final IdIntervalSet ids = new IdIntervalSet();
+	private long journalPairs;
+
+	private DeviceLedger(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @param file the device's journal, created on first commit
+	 * @return the ledger with the journal replayed
+	 * @throws IOException
+	 */
+	public static DeviceLedger load(File file) throws IOException {
+		DeviceLedger ledger = new DeviceLedger(file);
+		if (file.exists()) {
+			ledger.replay();
+		}
+		return ledger;
+	}
+
+	private void replay() throws IOException {
+		long valid = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			ids.readFrom(in);
+			valid = 4 + (long) ids.getRangeCount() * PAIR_BYTES;
+			for (;;) {
+				long start = in.readLong();
+				long end = in.readLong();
+				ids.add(start, end);
+				journalPairs++;
+				valid += PAIR_BYTES;
+			}
+		} catch (EOFException e) {
+			// End of the journal, or a pair torn by a crash
+		} finally {
+			in.close();
+		}
+		if (valid < file.length()) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return true if a record with the ID has been committed
+	 */
+	public boolean contains(long id) {
+		return ids.contains(id);
+	}
+
+	/**
+	 * Add the IDs of a stored upload and sync them to the journal
+	 * @param added IDs the upload held that weren't already committed
+	 * @throws IOException
+	 */
+	public void commit(IdIntervalSet added) throws IOException {
+		if (added.isEmpty()) {
+			return;
+		}
+		ids.addAll(added);
+		if (!file.exists() || journalPairs + added.getRangeCount() > ids.getRangeCount() + COMPACT_SLACK) {
+			compact();
+			return;
+		}
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+			for (int i = 0; i < added.getRangeCount(); i++) {
+				data.writeLong(added.getStart(i));
+				data.writeLong(added.getEnd(i));
+			}
+			data.flush();
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		journalPairs += added.getRangeCount();
+	}
+
+	/**
+	 * Replace the journal with a snapshot of the set
+	 * @throws IOException
+	 */
+	private void compact() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+			ids.writeTo(data);
+			data.flush();
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		PartitionedStore.syncDirectory(file.getParentFile());
+		journalPairs = 0;
+	}
+
+	/**
+	 * @return highest ID committed, 0 if there are none
+	 */
+	public long getCommittedId() {
+		return ids.getMax();
+	}
+
+	/**
+	 * @param maxRanges
+	 * @return the highest committed ranges as start, end pairs
+	 */
+	public long[] getCommittedRanges(int maxRanges) {
+		return ids.toArray(maxRanges);
+	}
+
+	public int getRangeCount() {
+		return ids.getRangeCount();
+	}
+}
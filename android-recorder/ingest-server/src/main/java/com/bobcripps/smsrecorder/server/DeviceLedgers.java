@@ -0,0 +1,91 @@
+package com.bobcripps.smsrecorder.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+/**
+ * Every device's DeviceLedger, kept under devices/ in the store root. The most recently used are
+ * held in memory, the rest are loaded from their journal when the device next uploads.
+ * Thread safe.
+ */
+public class DeviceLedgers {
+	private static final Pattern DEVICE = Pattern.compile("[A-Za-z0-9-]{1,64}");
+	private static final String DEVICE_DIR = "devices";
+	private static final String LEDGER_SUFFIX = ".ids";
+	// Devices are locked by hash, collisions only cost a little concurrency
+	private static final int LOCK_STRIPES = 256;
+
+	private final File dir;
+	private final LinkedHashMap<String, DeviceLedger> cache;
+	private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+
+	/**
+	 * @param root store root
+	 * @param maxCached ledgers kept in memory
+	 * @throws IOException if the devices directory can't be created
+	 */
+	public DeviceLedgers(File root, final int maxCached) throws IOException {
+		this.dir = new File(root, DEVICE_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+		// Access order so the least recently used is evicted
+		this.cache = new LinkedHashMap<String, DeviceLedger>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, DeviceLedger> eldest) {
+				return size() > maxCached;
+			}
+		};
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			locks[i] = new ReentrantLock();
+		}
+	}
+
+	/**
+	 * @param device
+	 * @return lock to hold while the device's ledger is read and committed
+	 */
+	public ReentrantLock lockFor(String device) {
+		return locks[(device.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+	}
+
+	/**
+	 * @param device
+	 * @return true if it can be used as a device ID
+	 */
+	public static boolean isValid(String device) {
+		return device != null && DEVICE.matcher(device).matches();
+	}
+
+	/**
+	 * Call holding lockFor(device). A ledger evicted while an upload is using it stays valid,
+	 * the next upload for the device waits for the lock then loads the journal it wrote.
+	 * The journal is replayed holding only the device's lock, so other devices' uploads don't
+	 * wait for it
+	 * @param device a valid device ID
+	 * @return the device's ledger
+	 * @throws IOException
+	 */
+	public DeviceLedger get(String device) throws IOException {
+		synchronized (cache) {
+			DeviceLedger ledger = cache.get(device);
+			if (ledger != null) {
+				return ledger;
+			}
+		}
+		DeviceLedger loaded = DeviceLedger.load(new File(dir, device + LEDGER_SUFFIX));
+		synchronized (cache) {
+			// Only if the caller didn't hold the device's lock
+			DeviceLedger ledger = cache.get(device);
+			if (ledger != null) {
+				return ledger;
+			}
+			cache.put(device, loaded);
+			return loaded;
+		}
+	}
+}
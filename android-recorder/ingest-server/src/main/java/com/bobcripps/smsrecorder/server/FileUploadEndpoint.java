@@ -0,0 +1,90 @@
+package com.bobcripps.smsrecorder.server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * fileupload.php, a whole segment in one request. Parts as FileUploadHandler sends them:
+ * <ul>
+ * <li>description - ignored</li>
+ * <li>device - optional ID of the device, its records are deduplicated against what it sent before</li>
+ * <li>smslog - the segment, gzipped if the file name ends .gz</li>
+ * <li>metrics - optional RecorderMetrics snapshot, kept beside the segment</li>
+ * </ul>
+ * Succeeds once the segment's new records are synced under their final name, or straight away
+ * if it held none.
+ */
+public class FileUploadEndpoint extends MultipartHandler {
+	static final String DEVICE_PART = "device";
+	static final String FILE_PART = "smslog";
+	static final String METRICS_PART = "metrics";
+	private static final int MAX_DEVICE_BYTES = 64;
+
+	private final PartitionedStore store;
+	private final DedupIngest dedup;
+
+	public FileUploadEndpoint(PartitionedStore store, DedupIngest dedup) {
+		this.store = store;
+		this.dedup = dedup;
+	}
+
+	@Override
+	protected Result handleParts(MultipartReader reader) throws IOException {
+		String device = null;
+		DedupIngest.Outcome outcome = null;
+		while (reader.next()) {
+			if (DEVICE_PART.equals(reader.getName())) {
+				device = readDevice(reader);
+			} else if (FILE_PART.equals(reader.getName()) && outcome == null) {
+				String fileName = reader.getFileName();
+				File received = store.receive(reader.getBody(), isGzipped(fileName));
+				outcome = dedup.ingest(received, suffixOf(fileName), device);
+			} else if (METRICS_PART.equals(reader.getName()) && outcome != null && outcome.stored != null) {
+				storeMetrics(store, reader, outcome.stored);
+			}
+		}
+		if (outcome == null) {
+			throw new BadRequestException("no " + FILE_PART + " part");
+		}
+		return resultOf(outcome, -1);
+	}
+
+	/**
+	 * @param reader positioned on the device part
+	 * @return the device ID
+	 * @throws IOException
+	 * @throws BadRequestException if it isn't a usable ID
+	 */
+	static String readDevice(MultipartReader reader) throws IOException {
+		String device = reader.readString(MAX_DEVICE_BYTES).trim();
+		if (!DeviceLedgers.isValid(device)) {
+			throw new BadRequestException("bad device");
+		}
+		return device;
+	}
+
+	/**
+	 * @param outcome
+	 * @param committedOffset negative for whole uploads
+	 * @return success with the device's committed IDs
+	 */
+	static Result resultOf(DedupIngest.Outcome outcome, long committedOffset) {
+		String message = outcome.duplicates == 0 ? "Good to go" : "Good to go, " + outcome.duplicates + " duplicates";
+		return new Result(true, message, committedOffset, outcome.committedId, outcome.committed);
+	}
+
+	/**
+	 * The segment is already stored so failing here would only make the client send it again,
+	 * losing a metrics sample is fine
+	 * @param store
+	 * @param reader positioned on the metrics part
+	 * @param stored the segment it goes with
+	 */
+	static void storeMetrics(PartitionedStore store, MultipartReader reader, File stored) {
+		try {
+			store.storeBeside(reader.getBody(), stored, METRICS_SUFFIX);
+		} catch (IOException e) {
+			System.err.println("metrics for " + stored.getName() + " not stored " + e.getMessage());
+		}
+	}
+}
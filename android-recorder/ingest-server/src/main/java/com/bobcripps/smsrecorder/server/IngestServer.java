@@ -0,0 +1,144 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Standalone replacement for fileupload.php and chunkupload.php, the same multipart contract as
+ * FileUploadHandler.FileUploadService so the app only needs its base URL pointed here.
+ * <pre>
+ * java -jar ingest-server.jar &lt;storage dir&gt; [port] [threads]
+ * </pre>
+ * Built on the JDK's HTTP server, its NIO dispatcher accepts and parses connections and each
+ * request is handled on the executor. Request bodies are streamed to the store so memory doesn't
+ * grow with upload size. On a JVM with virtual threads every request gets one, thousands of
+ * devices uploading at once cost a thread stack each only while they're sending. Otherwise a
+ * fixed pool handles that many at once and the rest wait in the accept queue.
+ * Stored segments are indexed and rolled up in the background, searched through /query, see
+ * QueryEndpoint, and reported on through RollupStore. Old chunked upload sessions are swept
+ * hourly.
+ */
+public class IngestServer {
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_THREADS = 256;
+	// Connections waiting to be accepted
+	private static final int BACKLOG = 4096;
+	// Device ledgers kept in memory, a few KB each
+	private static final int CACHED_LEDGERS = 10000;
+	private static final long SWEEP_INTERVAL_MS = 60 * 60 * 1000;
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final FileUploadEndpoint fileUpload;
+	private final ChunkUploadEndpoint chunkUpload;
+	private final ArchiveIndexer indexer;
+	private final ScheduledExecutorService sweeper;
+
+	/**
+	 * @param store uploads are stored in
+	 * @param ledgers IDs each device has sent, uploads are deduplicated against them
+	 * @param port 0 picks a free one
+	 * @param threads size of the handler pool when there are no virtual threads
+	 * @throws IOException
+	 */
+	public IngestServer(PartitionedStore store, DeviceLedgers ledgers, int port, int threads) throws IOException {
+		this.indexer = new ArchiveIndexer(new RollupStore(store.getRoot()));
+		DedupIngest dedup = new DedupIngest(store, ledgers, indexer);
+		this.fileUpload = new FileUploadEndpoint(store, dedup);
+		this.chunkUpload = new ChunkUploadEndpoint(store, dedup);
+		this.executor = createExecutor(threads);
+		this.server = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+		server.createContext("/fileupload.php", fileUpload);
+		server.createContext("/chunkupload.php", chunkUpload);
+		server.createContext("/query", new QueryEndpoint(new ArchiveQuery(store.getRoot(), true)));
+		server.setExecutor(executor);
+		this.sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "session-sweeper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	public void start() {
+		indexer.submitCompaction();
+		sweeper.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				chunkUpload.sweep(System.currentTimeMillis());
+			}
+		}, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		server.start();
+	}
+
+	/**
+	 * Stop accepting, give requests in progress a second to finish and the indexer a minute
+	 */
+	public void stop() {
+		server.stop(1);
+		sweeper.shutdownNow();
+		executor.shutdown();
+		try {
+			indexer.shutdown();
+		} catch (InterruptedException e) {
+			// Segments left unindexed are scanned by queries
+		}
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	@Override
+	public String toString() {
+		return "fileupload requests=" + fileUpload.getRequests() + " failed=" + fileUpload.getFailures()
+				+ " chunkupload requests=" + chunkUpload.getRequests() + " failed=" + chunkUpload.getFailures() + " "
+				+ indexer;
+	}
+
+	/**
+	 * @param threads pool size if the JVM has no virtual threads
+	 * @return a virtual thread per request executor if the JVM has them, otherwise a fixed pool.
+	 * Looked up by reflection so the server still builds and runs on Java 7
+	 */
+	static ExecutorService createExecutor(int threads) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(threads);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: IngestServer <storage dir> [port] [threads]");
+			System.exit(1);
+		}
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THREADS;
+		File root = new File(args[0]);
+		final IngestServer server = new IngestServer(new PartitionedStore(root), new DeviceLedgers(root, CACHED_LEDGERS),
+				port, threads);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				server.stop();
+				System.out.println(server);
+			}
+		});
+		server.start();
+		System.out.println("listening on " + server.getPort() + " storing in " + args[0]);
+	}
+}
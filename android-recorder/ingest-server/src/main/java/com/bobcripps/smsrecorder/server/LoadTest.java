@@ -0,0 +1,200 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.CsvRecordEncoder;
+import com.bobcripps.smsrecorder.core.LatencyHistogram;
+import com.bobcripps.smsrecorder.core.SmsData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load test for a running IngestServer, every simulated device uploads segments as fast as the
+ * server answers. Each device is a thread so the server sees that many concurrent uploads.
+ * <pre>
+ * java LoadTest http://localhost:8080/ [devices] [uploads per device] [records per segment] [file|chunk]
+ * </pre>
+ * file sends whole segments to fileupload.php, chunk sends them in 64KB chunks to chunkupload.php.
+ * Each device sends its own ID and each of its uploads new message IDs, so the server stores every
+ * record rather than dropping them as duplicates. Run it again against the same store to load the
+ * duplicate path instead.
+ * Prints uploads and MB a second and the latency of each request.
+ */
+public class LoadTest {
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final String BOUNDARY = "loadtest-boundary";
+
+	private final String baseUrl;
+	// One per upload, the same for every device
+	private final byte[][] segments;
+	private final boolean chunked;
+	private final LatencyHistogram latency = new LatencyHistogram("requestMs");
+	private final AtomicLong uploads = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	public LoadTest(String baseUrl, byte[][] segments, boolean chunked) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+		this.segments = segments;
+		this.chunked = chunked;
+	}
+
+	/**
+	 * @param firstId ID of the first record, the rest follow on
+	 * @param records
+	 * @return a CSV segment of that many records
+	 * @throws IOException
+	 */
+	static byte[] createSegment(long firstId, int records) throws IOException {
+		CsvRecordEncoder encoder = new CsvRecordEncoder();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.startSegment(out);
+		SmsData sms = new SmsData();
+		long now = System.currentTimeMillis();
+		for (int i = 1; i <= records; i++) {
+			sms.setId(firstId + i - 1);
+			sms.setDate(now - (records - i) * 1000L);
+			sms.setNumber("+4477009" + (i % 100));
+			sms.setDirection(i % 2 == 0 ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+			sms.setBody("Load test message " + i + ", see you at the station?");
+			encoder.encode(sms, out);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param devices concurrent uploaders
+	 * @return wall time in ms
+	 * @throws InterruptedException
+	 */
+	public long run(int devices) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(devices);
+		for (int d = 0; d < devices; d++) {
+			final int device = d;
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < segments.length; i++) {
+							upload("device" + device, i);
+						}
+					} catch (InterruptedException e) {
+						// Stopped
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "device-" + d);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		return (System.nanoTime() - begin) / 1000000;
+	}
+
+	private void upload(String device, int index) {
+		byte[] segment = segments[index];
+		String name = device + "-" + index;
+		try {
+			if (chunked) {
+				String session = UUID.randomUUID().toString();
+				for (int offset = 0; offset < segment.length; offset += CHUNK_SIZE) {
+					int length = Math.min(CHUNK_SIZE, segment.length - offset);
+					boolean last = offset + length >= segment.length;
+					if (!post("chunkupload.php", new String[]{"session", session, "offset", String.valueOf(offset),
+							"final", String.valueOf(last), "device", device}, "chunk", name + ".csv", segment, offset,
+							length)) {
+						failures.incrementAndGet();
+						return;
+					}
+				}
+			} else if (!post("fileupload.php", new String[]{"description", "SMS file for upload", "device", device},
+					"smslog", name + ".csv", segment, 0, segment.length)) {
+				failures.incrementAndGet();
+				return;
+			}
+			uploads.incrementAndGet();
+			bytes.addAndGet(segment.length);
+		} catch (IOException e) {
+			failures.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return true if the server answered succeeded
+	 */
+	private boolean post(String path, String[] fields, String filePart, String fileName, byte[] segment, int offset,
+			int length) throws IOException {
+		StringBuilder head = new StringBuilder();
+		for (int i = 0; i < fields.length; i += 2) {
+			head.append("--").append(BOUNDARY).append("\r\nContent-Disposition: form-data; name=\"")
+					.append(fields[i]).append("\"\r\n\r\n").append(fields[i + 1]).append("\r\n");
+		}
+		head.append("--").append(BOUNDARY).append("\r\nContent-Disposition: form-data; name=\"").append(filePart)
+				.append("\"; filename=\"").append(fileName).append("\"\r\nContent-Type: text/csv\r\n\r\n");
+		byte[] headBytes = head.toString().getBytes("UTF-8");
+		byte[] tailBytes = ("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8");
+		long start = System.nanoTime();
+		HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+		try {
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+			connection.setFixedLengthStreamingMode(headBytes.length + length + tailBytes.length);
+			OutputStream out = connection.getOutputStream();
+			out.write(headBytes);
+			out.write(segment, offset, length);
+			out.write(tailBytes);
+			out.close();
+			int status = connection.getResponseCode();
+			InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			if (in != null) {
+				byte[] buffer = new byte[256];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					response.write(buffer, 0, read);
+				}
+				in.close();
+			}
+			return status == 200 && response.toString("UTF-8").contains("\"succeeded\":true");
+		} finally {
+			latency.record((System.nanoTime() - start) / 1000000);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "uploads=" + uploads.get() + " failed=" + failures.get() + " " + latency;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String url = args.length > 0 ? args[0] : "http://localhost:" + IngestServer.DEFAULT_PORT + "/";
+		int devices = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int uploadsPerDevice = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int records = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+		boolean chunked = args.length > 4 && args[4].equals("chunk");
+		byte[][] segments = new byte[uploadsPerDevice][];
+		for (int i = 0; i < uploadsPerDevice; i++) {
+			segments[i] = createSegment((long) i * records + 1, records);
+		}
+		LoadTest test = new LoadTest(url, segments, chunked);
+		System.out.println(devices + " devices x " + uploadsPerDevice + " uploads of " + segments[0].length
+				+ " bytes" + (chunked ? " in chunks" : "") + " to " + url);
+		long wallMs = test.run(devices);
+		double seconds = Math.max(wallMs, 1) / 1000.0;
+		System.out.println(test);
+		System.out.println(String.format("%.1f uploads/s %.2f MB/s in %d ms", test.uploads.get() / seconds,
+				test.bytes.get() / seconds / (1024 * 1024), wallMs));
+	}
+}
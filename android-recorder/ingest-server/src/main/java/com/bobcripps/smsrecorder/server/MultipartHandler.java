@@ -0,0 +1,203 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base for the upload endpoints. Checks the request is a multipart POST, hands the parts to the
+ * endpoint as they stream in and sends back the JSON FileUploadResponse the app parses:
+ * <pre>
+ * {"message":"Good to go","succeeded":true,"committedOffset":1024,"committedId":5230,"committed":[1,4999,5001,5230]}
+ * </pre>
+ * committedOffset is only sent by endpoints that track one, committedId and committed only
+ * when the client sent its device ID.
+ * A request the endpoint can't make sense of is answered 400, and a storage failure or a bug in
+ * the endpoint 500, the app treats both as a failed upload and retries it later.
+ */
+public abstract class MultipartHandler implements HttpHandler {
+	// Segment formats the app uploads, see RecordFormat
+	static final String BINARY_SUFFIX = ".smsb";
+	static final String CSV_SUFFIX = ".csv";
+	static final String GZIP_SUFFIX = ".gz";
+	static final String METRICS_SUFFIX = ".metrics";
+
+	/**
+	 * What an endpoint answers
+	 */
+	static class Result {
+		final boolean succeeded;
+		final String message;
+		// Negative leaves it out of the response
+		final long committedOffset;
+		// Highest ID held for the device and the ranges below it, see DedupIngest
+		final long committedId;
+		final long[] committed;
+
+		Result(boolean succeeded, String message, long committedOffset) {
+			this(succeeded, message, committedOffset, -1, null);
+		}
+
+		Result(boolean succeeded, String message, long committedOffset, long committedId, long[] committed) {
+			this.succeeded = succeeded;
+			this.message = message;
+			this.committedOffset = committedOffset;
+			this.committedId = committedId;
+			this.committed = committed;
+		}
+	}
+
+	/**
+	 * The request was malformed, answered 400
+	 */
+	static class BadRequestException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		BadRequestException(String message) {
+			super(message);
+		}
+	}
+
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		try {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				respond(exchange, 405, new Result(false, "POST only", -1));
+				return;
+			}
+			String boundary = MultipartReader.boundaryOf(exchange.getRequestHeaders().getFirst("Content-Type"));
+			if (boundary == null) {
+				respond(exchange, 400, new Result(false, "multipart/form-data only", -1));
+				return;
+			}
+			Result result;
+			int status = 200;
+			try {
+				result = handleParts(new MultipartReader(exchange.getRequestBody(), boundary));
+			} catch (BadRequestException e) {
+				status = 400;
+				result = new Result(false, e.getMessage(), -1);
+			} catch (IOException e) {
+				status = 500;
+				result = new Result(false, "store failed " + e.getMessage(), -1);
+			} catch (RuntimeException e) {
+				// Still answer so the client retries rather than waiting on a dropped exchange
+				System.err.println(exchange.getRequestURI().getPath() + " failed " + e);
+				status = 500;
+				result = new Result(false, "internal error", -1);
+			}
+			if (!result.succeeded) {
+				failures.incrementAndGet();
+			}
+			respond(exchange, status, result);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Read the request's parts and store the upload. Only return success once it's synced
+	 * @param reader
+	 * @return the answer for the client
+	 * @throws BadRequestException if the parts aren't what the endpoint expects
+	 * @throws IOException if the upload couldn't be stored
+	 */
+	protected abstract Result handleParts(MultipartReader reader) throws IOException;
+
+	public long getRequests() {
+		return requests.get();
+	}
+
+	public long getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @param fileName part file name e.g. smslog-0000000012.smsb.gz
+	 * @return true if the client gzipped the part
+	 */
+	static boolean isGzipped(String fileName) {
+		return fileName != null && fileName.endsWith(GZIP_SUFFIX);
+	}
+
+	/**
+	 * Keep the segment's format suffix, anything without a known one is CSV
+	 * @param fileName part file name
+	 * @return suffix to store it under
+	 */
+	static String suffixOf(String fileName) {
+		if (fileName == null) {
+			return CSV_SUFFIX;
+		}
+		String name = isGzipped(fileName) ? fileName.substring(0, fileName.length() - GZIP_SUFFIX.length()) : fileName;
+		RecordFormat format = RecordFormat.ofFileName(name);
+		return format == null ? CSV_SUFFIX : format.getFileSuffix();
+	}
+
+	/**
+	 * Drain what's left of the body so the connection can be reused
+	 * @param in
+	 * @throws IOException
+	 */
+	static void drain(InputStream in) throws IOException {
+		byte[] skip = new byte[4096];
+		while (in.read(skip) != -1) {
+			// Discard
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, Result result) throws IOException {
+		StringBuilder json = new StringBuilder(result.committed == null ? 96 : 128 + result.committed.length * 12);
+		json.append("{\"message\":\"").append(escape(result.message)).append("\",\"succeeded\":")
+				.append(result.succeeded);
+		if (result.committedOffset >= 0) {
+			json.append(",\"committedOffset\":").append(result.committedOffset);
+		}
+		if (result.committedId >= 0) {
+			json.append(",\"committedId\":").append(result.committedId);
+		}
+		if (result.committed != null) {
+			json.append(",\"committed\":[");
+			for (int i = 0; i < result.committed.length; i++) {
+				if (i > 0) {
+					json.append(',');
+				}
+				json.append(result.committed[i]);
+			}
+			json.append(']');
+		}
+		json.append('}');
+		byte[] bytes = json.toString().getBytes("UTF-8");
+		InputStream in = exchange.getRequestBody();
+		drain(in);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+
+	private static String escape(String value) {
+		StringBuilder out = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < 0x20) {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+}
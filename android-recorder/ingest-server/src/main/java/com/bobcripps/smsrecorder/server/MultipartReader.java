@@ -0,0 +1,291 @@
+package com.bobcripps.smsrecorder.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Streams the parts of a multipart/form-data request body one at a time.
+ * Each part's body is read straight from the request through a fixed buffer, nothing is held in
+ * memory beyond that so a part can be any size.
+ * <pre>
+ * MultipartReader reader = new MultipartReader(in, boundary);
+ * while (reader.next()) {
+ *     if (reader.getName().equals("smslog")) copy(reader.getBody(), out);
+ * }
+ * </pre>
+ * Parts are read in the order the client sent them, Retrofit sends them in parameter order.
+ * Not thread safe.
+ */
+public class MultipartReader {
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// Part headers bigger than this are refused
+	private static final int MAX_HEADER_BYTES = 8 * 1024;
+
+	private final InputStream in;
+	// CRLF--boundary, the body ends at the first occurrence
+	private final byte[] delimiter;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int pos;
+	private int limit;
+	private boolean partOpen;
+	private boolean finished;
+	private String name;
+	private String fileName;
+	private final InputStream body = new PartStream();
+
+	/**
+	 * @param in request body
+	 * @param boundary from the Content-Type header
+	 */
+	public MultipartReader(InputStream in, String boundary) {
+		this.in = in;
+		this.delimiter = ("\r\n--" + boundary).getBytes(ISO_8859_1);
+		// The first boundary has no CRLF in front of it, pretend it has so every one looks the same
+		buffer[0] = '\r';
+		buffer[1] = '\n';
+		limit = 2;
+		partOpen = true;
+	}
+
+	/**
+	 * @param contentType Content-Type header of the request
+	 * @return the boundary, null if it's not multipart/form-data
+	 */
+	public static String boundaryOf(String contentType) {
+		if (contentType == null || !contentType.toLowerCase().startsWith("multipart/form-data")) {
+			return null;
+		}
+		return parameter(contentType, "boundary");
+	}
+
+	/**
+	 * Skip the rest of the current part and move to the next
+	 * @return false once there are no more parts
+	 * @throws IOException if the body isn't valid multipart or ends early
+	 */
+	public boolean next() throws IOException {
+		if (finished) {
+			return false;
+		}
+		if (partOpen) {
+			skipPart();
+		}
+		// After a boundary comes -- for the end or CRLF then the next part's headers
+		if (!fill(2)) {
+			throw new EOFException("Multipart body ends after a boundary");
+		}
+		if (buffer[pos] == '-' && buffer[pos + 1] == '-') {
+			finished = true;
+			return false;
+		}
+		readHeaders();
+		partOpen = true;
+		return true;
+	}
+
+	/**
+	 * @return form field name of the current part
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return file name of the current part, null if it's a plain field
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @return body of the current part, ends at its boundary. Closing it does nothing
+	 */
+	public InputStream getBody() {
+		return body;
+	}
+
+	/**
+	 * Read a small field, e.g. an offset
+	 * @param maxBytes longest value accepted
+	 * @return the value as UTF-8
+	 * @throws IOException if it's longer than maxBytes
+	 */
+	public String readString(int maxBytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] chunk = new byte[256];
+		int read;
+		while ((read = body.read(chunk)) != -1) {
+			if (out.size() + read > maxBytes) {
+				throw new IOException("Field " + name + " too long");
+			}
+			out.write(chunk, 0, read);
+		}
+		return out.toString("UTF-8");
+	}
+
+	private void skipPart() throws IOException {
+		byte[] skip = new byte[4096];
+		while (body.read(skip) != -1) {
+			// Discard
+		}
+	}
+
+	/**
+	 * Read the header lines of a part up to the blank line
+	 * @throws IOException
+	 */
+	private void readHeaders() throws IOException {
+		name = null;
+		fileName = null;
+		// The CRLF that ends the boundary line
+		pos += 2;
+		int headerBytes = 0;
+		for (;;) {
+			String line = readLine();
+			headerBytes += line.length() + 2;
+			if (headerBytes > MAX_HEADER_BYTES) {
+				throw new IOException("Part headers too long");
+			}
+			if (line.isEmpty()) {
+				break;
+			}
+			int colon = line.indexOf(':');
+			if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Disposition")) {
+				String value = line.substring(colon + 1);
+				name = parameter(value, "name");
+				fileName = parameter(value, "filename");
+			}
+		}
+		if (name == null) {
+			throw new IOException("Part has no name");
+		}
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		for (;;) {
+			if (!fill(2)) {
+				throw new EOFException("Multipart body ends in part headers");
+			}
+			if (buffer[pos] == '\r' && buffer[pos + 1] == '\n') {
+				pos += 2;
+				return line.toString();
+			}
+			if (line.length() >= MAX_HEADER_BYTES) {
+				throw new IOException("Part header line too long");
+			}
+			line.append((char) (buffer[pos++] & 0xff));
+		}
+	}
+
+	/**
+	 * Make sure at least count bytes are buffered
+	 * @param count
+	 * @return false if the body ended first
+	 * @throws IOException
+	 */
+	private boolean fill(int count) throws IOException {
+		if (limit - pos >= count) {
+			return true;
+		}
+		if (pos > 0) {
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		while (limit < count) {
+			int read = in.read(buffer, limit, buffer.length - limit);
+			if (read == -1) {
+				return false;
+			}
+			limit += read;
+		}
+		return true;
+	}
+
+	/**
+	 * @return index in the buffer of the first delimiter at or after pos, -1 if there's none
+	 */
+	private int findDelimiter() {
+		byte first = delimiter[0];
+		int last = limit - delimiter.length;
+		outer:
+		for (int i = pos; i <= last; i++) {
+			if (buffer[i] != first) {
+				continue;
+			}
+			for (int j = 1; j < delimiter.length; j++) {
+				if (buffer[i + j] != delimiter[j]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param header header value with ; separated parameters
+	 * @param name parameter name
+	 * @return the parameter value without quotes, null if it isn't there
+	 */
+	static String parameter(String header, String name) {
+		for (String field : header.split(";")) {
+			int equals = field.indexOf('=');
+			if (equals < 0 || !field.substring(0, equals).trim().equalsIgnoreCase(name)) {
+				continue;
+			}
+			String value = field.substring(equals + 1).trim();
+			if (value.length() >= 2 && value.charAt(0) == '"' && value.charAt(value.length() - 1) == '"') {
+				value = value.substring(1, value.length() - 1);
+			}
+			return value;
+		}
+		return null;
+	}
+
+	/**
+	 * Body of the current part. Bytes are handed out as soon as they can't be the start of the
+	 * delimiter so only a delimiter's length is ever held back
+	 */
+	private class PartStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (!partOpen) {
+				return -1;
+			}
+			if (len == 0) {
+				return 0;
+			}
+			for (;;) {
+				int end = findDelimiter();
+				if (end == pos) {
+					pos += delimiter.length;
+					partOpen = false;
+					return -1;
+				}
+				// Everything before the delimiter, or before where a delimiter could start
+				int available = end >= 0 ? end - pos : limit - pos - (delimiter.length - 1);
+				if (available > 0) {
+					int count = Math.min(len, available);
+					System.arraycopy(buffer, pos, b, off, count);
+					pos += count;
+					return count;
+				}
+				if (!fill(delimiter.length + 1)) {
+					throw new EOFException("Multipart body ends inside part " + name);
+				}
+			}
+		}
+	}
+}
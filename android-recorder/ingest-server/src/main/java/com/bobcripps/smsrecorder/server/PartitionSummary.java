@@ -0,0 +1,215 @@
+package com.bobcripps.smsrecorder.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A partition's index, index.sum in the day directory with an entry appended for each segment
+ * as it's indexed:
+ * <pre>
+ * short name length, UTF-8 name
+ * int records, long min date, long max date
+ * int filter bytes, Bloom filter of the segment's numbers
+ * </pre>
+ * A query reads it, memory mapped, to skip every segment whose dates or numbers can't match
+ * without opening the segment or its SegmentIndex. The filter has about 10 bits per number
+ * so it answers maybe for roughly 1 in 100 numbers the segment doesn't hold.
+ * Not synced, a segment missing from it is just checked through its own index. An entry torn by
+ * a crash ends the summary when it's read and is cut off before the next append.
+ */
+class PartitionSummary {
+	static final String FILE_NAME = "index.sum";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int BITS_PER_NUMBER = 10;
+	private static final int HASHES = 4;
+
+	/**
+	 * One segment's entry
+	 */
+	static class Entry {
+		final String name;
+		final int records;
+		final long minDate;
+		final long maxDate;
+		final byte[] filter;
+
+		Entry(String name, int records, long minDate, long maxDate, byte[] filter) {
+			this.name = name;
+			this.records = records;
+			this.minDate = minDate;
+			this.maxDate = maxDate;
+			this.filter = filter;
+		}
+
+		/**
+		 * @param number UTF-8 bytes
+		 * @return false if the segment certainly has no records with the number
+		 */
+		boolean mightContain(byte[] number) {
+			long hash = hash(number);
+			int mask = filter.length * 8 - 1;
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				int bit = (h1 + i * h2) & mask;
+				if ((filter[bit >>> 3] & (1 << (bit & 7))) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private PartitionSummary() {
+	}
+
+	/**
+	 * @param numbers a segment's distinct numbers as UTF-8
+	 * @return Bloom filter of them, a power of two bytes long
+	 */
+	static byte[] filterOf(byte[][] numbers) {
+		int bytes = Integer.highestOneBit(Math.max(8, numbers.length * BITS_PER_NUMBER / 8) * 2 - 1);
+		byte[] filter = new byte[bytes];
+		int mask = bytes * 8 - 1;
+		for (byte[] number : numbers) {
+			long hash = hash(number);
+			int h1 = (int) hash;
+			int h2 = (int) (hash >>> 32) | 1;
+			for (int i = 0; i < HASHES; i++) {
+				int bit = (h1 + i * h2) & mask;
+				filter[bit >>> 3] |= 1 << (bit & 7);
+			}
+		}
+		return filter;
+	}
+
+	/**
+	 * FNV-1a, 64 bit
+	 */
+	private static long hash(byte[] bytes) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : bytes) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * @param partition day directory
+	 * @return its entries by segment name, empty if it has no summary
+	 */
+	static Map<String, Entry> read(File partition) {
+		Map<String, Entry> entries = new HashMap<>();
+		File file = new File(partition, FILE_NAME);
+		if (!file.exists()) {
+			return entries;
+		}
+		try {
+			ByteBuffer buffer = map(file);
+			while (buffer.hasRemaining()) {
+				Entry entry = readEntry(buffer);
+				if (entry == null) {
+					break;
+				}
+				entries.put(entry.name, entry);
+			}
+		} catch (IOException e) {
+			// Unreadable, its segments are checked through their own indexes
+		}
+		return entries;
+	}
+
+	/**
+	 * Append an entry, cutting off a torn one left by a crash first.
+	 * Callers append to a partition one at a time
+	 * @param partition day directory
+	 * @param entry
+	 * @throws IOException
+	 */
+	static void append(File partition, Entry entry) throws IOException {
+		File file = new File(partition, FILE_NAME);
+		if (file.exists()) {
+			long valid = validLength(file);
+			if (valid < file.length()) {
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(valid);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+		byte[] name = entry.name.getBytes(UTF_8);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(34 + name.length + entry.filter.length);
+		DataOutputStream data = new DataOutputStream(bytes);
+		data.writeShort(name.length);
+		data.write(name);
+		data.writeInt(entry.records);
+		data.writeLong(entry.minDate);
+		data.writeLong(entry.maxDate);
+		data.writeInt(entry.filter.length);
+		data.write(entry.filter);
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			// One write so readers see whole entries or a torn tail
+			bytes.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static long validLength(File file) throws IOException {
+		ByteBuffer buffer = map(file);
+		while (buffer.hasRemaining()) {
+			int start = buffer.position();
+			if (readEntry(buffer) == null) {
+				return start;
+			}
+		}
+		return buffer.position();
+	}
+
+	/**
+	 * @param buffer positioned on an entry
+	 * @return the entry, null if it's torn
+	 */
+	private static Entry readEntry(ByteBuffer buffer) {
+		try {
+			byte[] name = new byte[buffer.getShort() & 0xffff];
+			buffer.get(name);
+			int records = buffer.getInt();
+			long minDate = buffer.getLong();
+			long maxDate = buffer.getLong();
+			int filterBytes = buffer.getInt();
+			if (filterBytes <= 0 || Integer.bitCount(filterBytes) != 1 || filterBytes > buffer.remaining()) {
+				return null;
+			}
+			byte[] filter = new byte[filterBytes];
+			buffer.get(filter);
+			return new Entry(new String(name, UTF_8), records, minDate, maxDate, filter);
+		} catch (BufferUnderflowException e) {
+			return null;
+		}
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+}
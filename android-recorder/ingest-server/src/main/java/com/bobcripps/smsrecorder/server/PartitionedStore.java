@@ -0,0 +1,217 @@
+package com.bobcripps.smsrecorder.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Calendar;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Uploaded segments stored by the UTC day they arrived, the layout fileupload.php used:
+ * <pre>
+ * root/2016/10/17/smslog_20161017T101500Z_ix3k2a-42.csv
+ * </pre>
+ * Names are unique, the server time is followed by an ID for this server run and a counter, so
+ * uploads arriving in the same second never overwrite each other.
+ * An upload is streamed to a temporary file in incoming/, synced, renamed into its partition
+ * and the partition synced, so once adopt() returns the upload survives a crash and a crash
+ * before then leaves no partial file under a final name.
+ * Thread safe.
+ */
+public class PartitionedStore {
+	static final String PREFIX = "smslog_";
+	private static final String TEMP_SUFFIX = ".tmp";
+	// Uploads being received, before they're deduplicated and moved into a partition
+	private static final String INCOMING_DIR = "incoming";
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+	private final File root;
+	private final File incoming;
+	// Partitions known to exist, so mkdirs is only called for the first upload of the day
+	private final ConcurrentHashMap<String, File> partitions = new ConcurrentHashMap<>();
+	private final String runId = Long.toString(System.currentTimeMillis(), 36);
+	private final AtomicLong sequence = new AtomicLong();
+
+	/**
+	 * @param root directory the day partitions are created under
+	 * @throws IOException if the incoming directory can't be created
+	 */
+	public PartitionedStore(File root) throws IOException {
+		this.root = root;
+		this.incoming = new File(root, INCOMING_DIR);
+		if (!incoming.isDirectory() && !incoming.mkdirs()) {
+			throw new IOException("Can't create " + incoming);
+		}
+		// Left by uploads in progress when the server stopped, none were acknowledged
+		File[] leftovers = incoming.listFiles();
+		if (leftovers != null) {
+			for (File leftover : leftovers) {
+				leftover.delete();
+			}
+		}
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	/**
+	 * Stream an upload to a new file in the incoming directory, not synced yet as it may be
+	 * filtered before it's stored
+	 * @param in the upload, read to the end
+	 * @param gzipped decompress it on the way
+	 * @return the file, pass it to adopt() or delete it
+	 * @throws IOException
+	 */
+	public File receive(InputStream in, boolean gzipped) throws IOException {
+		File temp = new File(incoming, runId + "-" + sequence.incrementAndGet() + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		boolean received = false;
+		try {
+			copy(gzipped ? new GZIPInputStream(in, COPY_BUFFER_SIZE) : in, out);
+			received = true;
+		} finally {
+			out.close();
+			if (!received) {
+				temp.delete();
+			}
+		}
+		return temp;
+	}
+
+	/**
+	 * Move a finished file, e.g. a received or an assembled chunked upload, into today's partition.
+	 * The file must already be synced and on the same file system
+	 * @param file
+	 * @param suffix file suffix for the record format
+	 * @return the stored file
+	 * @throws IOException
+	 */
+	public File adopt(File file, String suffix) throws IOException {
+		long nowMs = System.currentTimeMillis();
+		File target = new File(partition(nowMs), uniqueName(nowMs, suffix));
+		commit(file, target);
+		return target;
+	}
+
+	/**
+	 * Stream a small file to go alongside a stored one, e.g. the client's metrics snapshot
+	 * @param in
+	 * @param stored the stored upload
+	 * @param suffix replaces the stored file's suffix
+	 * @return the file written
+	 * @throws IOException
+	 */
+	public File storeBeside(InputStream in, File stored, String suffix) throws IOException {
+		String name = stored.getName();
+		int dot = name.lastIndexOf('.');
+		File target = new File(stored.getParentFile(), (dot < 0 ? name : name.substring(0, dot)) + suffix);
+		File temp = new File(target.getPath() + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			copy(in, out);
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		commit(temp, target);
+		return target;
+	}
+
+	/**
+	 * @param nowMs
+	 * @return the day's partition, created if needed
+	 * @throws IOException
+	 */
+	File partition(long nowMs) throws IOException {
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.setTimeInMillis(nowMs);
+		String day = String.format("%04d/%02d/%02d", calendar.get(Calendar.YEAR),
+				calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH));
+		File partition = partitions.get(day);
+		if (partition == null) {
+			partition = new File(root, day);
+			if (!partition.isDirectory() && !partition.mkdirs() && !partition.isDirectory()) {
+				throw new IOException("Can't create " + partition);
+			}
+			partitions.put(day, partition);
+		}
+		return partition;
+	}
+
+	/**
+	 * @param nowMs
+	 * @param suffix
+	 * @return smslog_YYYYMMDDTHHMMSSZ_run-seq plus the suffix
+	 */
+	String uniqueName(long nowMs, String suffix) {
+		Calendar calendar = Calendar.getInstance(UTC);
+		calendar.setTimeInMillis(nowMs);
+		return PREFIX + String.format("%04d%02d%02dT%02d%02d%02dZ_%s-%d%s", calendar.get(Calendar.YEAR),
+				calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH),
+				calendar.get(Calendar.HOUR_OF_DAY), calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND),
+				runId, sequence.incrementAndGet(), suffix);
+	}
+
+	/**
+	 * Rename into place and sync the directory so the new name is durable too
+	 * @param from
+	 * @param to
+	 * @throws IOException
+	 */
+	private static void commit(File from, File to) throws IOException {
+		Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory(to.getParentFile());
+	}
+
+	/**
+	 * @param file synced to disk, data and length
+	 * @throws IOException
+	 */
+	static void sync(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Not every platform lets a directory be opened for sync, there the rename is as durable as
+	 * the file system makes it
+	 * @param dir
+	 */
+	static void syncDirectory(File dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// Not supported here
+		}
+	}
+
+	static long copy(InputStream in, FileOutputStream out) throws IOException {
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+}
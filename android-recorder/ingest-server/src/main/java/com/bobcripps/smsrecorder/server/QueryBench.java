@@ -0,0 +1,195 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.BinaryRecordEncoder;
+import com.bobcripps.smsrecorder.core.LatencyHistogram;
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SmsData;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Scan against indexed query latency on a generated archive.
+ * <pre>
+ * java QueryBench &lt;archive dir&gt; [records] [segments per day] [records per segment] [queries]
+ * </pre>
+ * If the directory has no partitions an archive of binary segments is generated into it, 100M
+ * records by default, indexed and rolled up as ArchiveIndexer would as it's written. Each
+ * segment is one device's upload: messages through the day with about 100 of the device's
+ * contacts drawn from a million numbers. Then each kind of query runs with and without the indexes:
+ * <ul>
+ * <li>number - every message with one number</li>
+ * <li>number week - the same over the last seven days</li>
+ * <li>hour - every message in an hour, up to 1000</li>
+ * </ul>
+ * The scans read every record so they run fewer times. Run it on an archive bigger than memory
+ * to see the effect of the page cache.
+ */
+public class QueryBench {
+	private static final long MILLIS_PER_DAY = 86400000L;
+	private static final int NUMBERS = 1000000;
+	private static final int CONTACTS = 100;
+	private static final int SCAN_QUERIES = 3;
+	private static final String[] BODIES = {"On my way", "Running late, see you at the station?",
+			"Can you call me back when you get this", "Thanks!", "Where are you?",
+			"Meeting moved to 3pm, same room as last week"};
+
+	private final File root;
+	private final int segmentsPerDay;
+	private final int recordsPerSegment;
+	private final long firstDay;
+	private int days;
+
+	QueryBench(File root, int segmentsPerDay, int recordsPerSegment) {
+		this.root = root;
+		this.segmentsPerDay = segmentsPerDay;
+		this.recordsPerSegment = recordsPerSegment;
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.clear();
+		calendar.set(2016, Calendar.JANUARY, 1);
+		this.firstDay = calendar.getTimeInMillis();
+	}
+
+	/**
+	 * @param records at least this many, in whole days
+	 * @throws IOException
+	 */
+	void generate(long records) throws IOException {
+		days = (int) ((records + (long) segmentsPerDay * recordsPerSegment - 1) / ((long) segmentsPerDay * recordsPerSegment));
+		ArchiveIndexer indexer = new ArchiveIndexer(new RollupStore(root));
+		BinaryRecordEncoder encoder = new BinaryRecordEncoder();
+		SmsData sms = new SmsData();
+		long start = System.currentTimeMillis();
+		long bytes = 0;
+		for (int day = 0; day < days; day++) {
+			File partition = new File(root, partitionName(day));
+			if (!partition.mkdirs()) {
+				throw new IOException("Can't create " + partition);
+			}
+			for (int segment = 0; segment < segmentsPerDay; segment++) {
+				int device = segment;
+				Random random = new Random((long) day * segmentsPerDay + segment);
+				File file = new File(partition, String.format("%s%s_bench-%06d%s", PartitionedStore.PREFIX,
+						partition.getName(), segment, MultipartHandler.BINARY_SUFFIX));
+				SegmentIndex.Builder builder = new SegmentIndex.Builder();
+				Rollup rollup = new Rollup();
+				String deviceId = "bench-" + device;
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+				try {
+					encoder.startSegment(out);
+					long dayStart = firstDay + day * MILLIS_PER_DAY;
+					for (int i = 0; i < recordsPerSegment; i++) {
+						sms.setId((long) day * recordsPerSegment + i + 1);
+						sms.setDate(dayStart + (long) i * MILLIS_PER_DAY / recordsPerSegment + random.nextInt(1000));
+						sms.setNumber(numberOf(contactOf(device, random.nextInt(CONTACTS))));
+						sms.setDirection(random.nextBoolean() ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+						sms.setBody(BODIES[random.nextInt(BODIES.length)]);
+						encoder.encode(sms, out);
+						builder.add(sms);
+						rollup.add(deviceId, sms);
+					}
+				} finally {
+					out.close();
+				}
+				bytes += file.length();
+				indexer.commit(file, builder, rollup);
+			}
+			if ((day + 1) % 10 == 0) {
+				System.out.println("generated " + (day + 1) + "/" + days + " days");
+			}
+		}
+		System.out.println(String.format("generated %d records in %d days, %d MB in %d s", (long) days
+				* segmentsPerDay * recordsPerSegment, days, bytes >> 20, (System.currentTimeMillis() - start) / 1000));
+	}
+
+	private static int contactOf(int device, int contact) {
+		return (int) (((long) device * 7919 + contact * 104729L) % NUMBERS);
+	}
+
+	private static String numberOf(int number) {
+		return "+4477" + (1000000 + number);
+	}
+
+	private String partitionName(int day) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(firstDay + day * MILLIS_PER_DAY);
+		return String.format("%04d/%02d/%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+				calendar.get(Calendar.DAY_OF_MONTH));
+	}
+
+	/**
+	 * Time one kind of query with and without the indexes
+	 * @param name
+	 * @param queries runs of the indexed query
+	 * @param withNumber
+	 * @param rangeMs 0 for the whole archive, otherwise a range that ends on the last day
+	 * @param limit
+	 * @throws IOException
+	 */
+	void run(String name, int queries, boolean withNumber, long rangeMs, long limit) throws IOException {
+		ArchiveQuery indexed = new ArchiveQuery(root, true);
+		ArchiveQuery scan = new ArchiveQuery(root, false);
+		LatencyHistogram indexedMs = new LatencyHistogram(name + " indexedMs");
+		LatencyHistogram scanMs = new LatencyHistogram(name + " scanMs");
+		final long[] checksum = new long[1];
+		RecordSink sink = new RecordSink() {
+			@Override
+			public void accept(SmsData record) {
+				checksum[0] += record.getId();
+			}
+		};
+		Random random = new Random(42);
+		long archiveEnd = firstDay + days * MILLIS_PER_DAY;
+		ArchiveQuery.Stats last = null;
+		for (int i = 0; i < queries; i++) {
+			String number = withNumber ? numberOf(contactOf(random.nextInt(segmentsPerDay), random.nextInt(CONTACTS)))
+					: null;
+			long fromMs = rangeMs == 0 ? Long.MIN_VALUE : archiveEnd - rangeMs - random.nextInt(3600000);
+			long toMs = rangeMs == 0 ? Long.MAX_VALUE : fromMs + rangeMs;
+			checksum[0] = 0;
+			long start = System.nanoTime();
+			last = indexed.find(number, fromMs, toMs, null, limit, sink);
+			indexedMs.record((System.nanoTime() - start) / 1000000);
+			if (i < SCAN_QUERIES) {
+				long indexedChecksum = checksum[0];
+				checksum[0] = 0;
+				start = System.nanoTime();
+				ArchiveQuery.Stats scanned = scan.find(number, fromMs, toMs, null, limit, sink);
+				scanMs.record((System.nanoTime() - start) / 1000000);
+				if (checksum[0] != indexedChecksum) {
+					throw new IllegalStateException(name + " results differ, indexed " + last + " scan " + scanned);
+				}
+			}
+		}
+		System.out.println(indexedMs + " " + scanMs);
+		System.out.println("  last indexed " + last);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: QueryBench <archive dir> [records] [segments per day] [records per segment] [queries]");
+			System.exit(1);
+		}
+		File root = new File(args[0]);
+		long records = args.length > 1 ? Long.parseLong(args[1]) : 100000000L;
+		int segmentsPerDay = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+		int recordsPerSegment = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+		int queries = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+		QueryBench bench = new QueryBench(root, segmentsPerDay, recordsPerSegment);
+		if (ArchiveIndexer.partitions(root).length == 0) {
+			bench.generate(records);
+		} else {
+			bench.days = ArchiveIndexer.partitions(root).length;
+			System.out.println("using the archive in " + root + ", " + bench.days + " days");
+		}
+		bench.run("number", queries, true, 0, Long.MAX_VALUE);
+		bench.run("number week", queries, true, 7 * MILLIS_PER_DAY, Long.MAX_VALUE);
+		bench.run("hour", queries, false, 3600000, 1000);
+	}
+}
@@ -0,0 +1,103 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.CsvRecordEncoder;
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Query API over the archive, answers a GET with the matching records as RFC 4180 CSV:
+ * <pre>
+ * /query?number=%2B447700900123&amp;from=1472425200000&amp;to=1475017200000&amp;direction=In&amp;limit=1000
+ * </pre>
+ * Every parameter is optional: number matches exactly, from and to are epoch millis inclusive,
+ * direction is In or Out and limit defaults to 1000. Records are streamed as they're found, the
+ * query's ArchiveQuery.Stats go in the server log.
+ */
+public class QueryEndpoint implements HttpHandler {
+	private static final long DEFAULT_LIMIT = 1000;
+	private static final long MAX_LIMIT = 1000000;
+
+	private final ArchiveQuery query;
+
+	public QueryEndpoint(ArchiveQuery query) {
+		this.query = query;
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		try {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				sendError(exchange, 405, "GET only");
+				return;
+			}
+			Map<String, String> parameters = parse(exchange.getRequestURI().getRawQuery());
+			String number = parameters.get("number");
+			long fromMs;
+			long toMs;
+			long limit;
+			SmsData.SMSDirection direction = null;
+			try {
+				fromMs = parameters.containsKey("from") ? Long.parseLong(parameters.get("from")) : Long.MIN_VALUE;
+				toMs = parameters.containsKey("to") ? Long.parseLong(parameters.get("to")) : Long.MAX_VALUE;
+				limit = Math.min(MAX_LIMIT,
+						parameters.containsKey("limit") ? Long.parseLong(parameters.get("limit")) : DEFAULT_LIMIT);
+				if (parameters.containsKey("direction")) {
+					direction = SmsData.SMSDirection.valueOf(parameters.get("direction"));
+				}
+			} catch (IllegalArgumentException e) {
+				sendError(exchange, 400, "bad parameter " + e.getMessage());
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+			exchange.sendResponseHeaders(200, 0);
+			final OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), 64 * 1024);
+			final CsvRecordEncoder encoder = new CsvRecordEncoder();
+			encoder.startSegment(out);
+			long start = System.nanoTime();
+			ArchiveQuery.Stats stats = query.find(number, fromMs, toMs, direction, limit, new RecordSink() {
+				@Override
+				public void accept(SmsData record) throws IOException {
+					encoder.encode(record, out);
+				}
+			});
+			out.close();
+			System.out.println("query " + exchange.getRequestURI().getRawQuery() + " "
+					+ (System.nanoTime() - start) / 1000000 + " ms " + stats);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static Map<String, String> parse(String query) throws IOException {
+		Map<String, String> parameters = new HashMap<>();
+		if (query == null) {
+			return parameters;
+		}
+		for (String pair : query.split("&")) {
+			int equals = pair.indexOf('=');
+			if (equals > 0) {
+				parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+						URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+			}
+		}
+		return parameters;
+	}
+
+	private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+		byte[] bytes = message.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+}
@@ -0,0 +1,328 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.Utf8;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Message statistics per device, number, UTC day and direction: count, body bytes in UTF-8 and
+ * the first and last message dates. Devices and numbers are interned to ints and rows are held
+ * in an open addressing table over primitive arrays, adding a record is a hash probe and a few
+ * array writes however many rows there are.
+ * Rollups merge by adding counts and bytes and taking the earliest first and latest last date,
+ * so one built from a segment, a day or a month is the same structure and any of them can be
+ * merged into a bigger one.
+ * <pre>
+ * int magic "SMRU", int version, int min day, int max day
+ * int devices, UTF device ...
+ * int numbers, UTF number ...
+ * int rows, then int device, int number, int day &lt;&lt; 1 | direction, long count, long bytes,
+ *           long first date, long last date for each
+ * </pre>
+ * Days are days since the epoch in UTC, direction 0 is In and 1 Out. Not thread safe.
+ */
+public class Rollup {
+	static final long MILLIS_PER_DAY = 86400000L;
+	private static final int MAGIC = 0x534d5255;
+	private static final int VERSION = 1;
+	private static final int EMPTY = -1;
+
+	/**
+	 * Given each row by forEach()
+	 */
+	public interface RowVisitor {
+		void visit(String device, String number, int day, SmsData.SMSDirection direction, long count, long bytes,
+				long firstMs, long lastMs);
+	}
+
+	private final HashMap<String, Integer> deviceIds = new HashMap<>();
+	private final List<String> devices = new ArrayList<>();
+	private final HashMap<String, Integer> numberIds = new HashMap<>();
+	private final List<String> numbers = new ArrayList<>();
+	// Hash slot to row, EMPTY if unused
+	private int[] slots;
+	// Row columns, (device << 32 | number) and (day << 1 | direction) make the key
+	private long[] parties;
+	private int[] dayDirections;
+	private long[] counts;
+	private long[] bytes;
+	private long[] firsts;
+	private long[] lasts;
+	private int rows;
+	private int minDay = Integer.MAX_VALUE;
+	private int maxDay = Integer.MIN_VALUE;
+
+	public Rollup() {
+		this(64);
+	}
+
+	/**
+	 * @param capacity rows allocated up front
+	 */
+	public Rollup(int capacity) {
+		int size = Math.max(16, capacity);
+		slots = new int[Integer.highestOneBit(size * 2 - 1) * 2];
+		Arrays.fill(slots, EMPTY);
+		parties = new long[size];
+		dayDirections = new int[size];
+		counts = new long[size];
+		bytes = new long[size];
+		firsts = new long[size];
+		lasts = new long[size];
+	}
+
+	/**
+	 * @param device
+	 * @param record counted on the UTC day of its date
+	 */
+	public void add(String device, SmsData record) {
+		long date = record.getDate();
+		add(intern(deviceIds, devices, device), intern(numberIds, numbers, record.getNumber()), dayOf(date),
+				record.getDirection() == SmsData.SMSDirection.In ? 0 : 1, 1,
+				record.getBody() == null ? 0 : Utf8.encodedLength(record.getBody()), date, date);
+	}
+
+	/**
+	 * Merge another rollup's rows into this
+	 * @param other
+	 */
+	public void add(Rollup other) {
+		add(other, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+	}
+
+	/**
+	 * Merge the rows of another rollup for some days into this
+	 * @param other
+	 * @param fromDay first day included
+	 * @param toDay last day included
+	 * @param monthly count each row on the first day of its month
+	 */
+	public void add(Rollup other, int fromDay, int toDay, boolean monthly) {
+		if (other.rows == 0 || other.maxDay < fromDay || other.minDay > toDay) {
+			return;
+		}
+		int[] deviceMap = map(other.devices, deviceIds, devices);
+		int[] numberMap = map(other.numbers, numberIds, numbers);
+		for (int row = 0; row < other.rows; row++) {
+			int day = other.dayDirections[row] >> 1;
+			if (day < fromDay || day > toDay) {
+				continue;
+			}
+			long party = other.parties[row];
+			add(deviceMap[(int) (party >>> 32)], numberMap[(int) party], monthly ? monthOf(day) : day,
+					other.dayDirections[row] & 1, other.counts[row], other.bytes[row], other.firsts[row],
+					other.lasts[row]);
+		}
+	}
+
+	private void add(int device, int number, int day, int direction, long count, long byteCount, long firstMs,
+			long lastMs) {
+		long party = (long) device << 32 | (number & 0xffffffffL);
+		int dayDirection = day << 1 | direction;
+		int mask = slots.length - 1;
+		int slot = hash(party, dayDirection) & mask;
+		int row;
+		while ((row = slots[slot]) != EMPTY) {
+			if (parties[row] == party && dayDirections[row] == dayDirection) {
+				counts[row] += count;
+				bytes[row] += byteCount;
+				firsts[row] = Math.min(firsts[row], firstMs);
+				lasts[row] = Math.max(lasts[row], lastMs);
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if (rows == parties.length) {
+			grow();
+			add(device, number, day, direction, count, byteCount, firstMs, lastMs);
+			return;
+		}
+		row = rows++;
+		slots[slot] = row;
+		parties[row] = party;
+		dayDirections[row] = dayDirection;
+		counts[row] = count;
+		bytes[row] = byteCount;
+		firsts[row] = firstMs;
+		lasts[row] = lastMs;
+		minDay = Math.min(minDay, day);
+		maxDay = Math.max(maxDay, day);
+	}
+
+	/**
+	 * Double the rows and rehash, the table stays at most half full
+	 */
+	private void grow() {
+		int size = parties.length * 2;
+		parties = Arrays.copyOf(parties, size);
+		dayDirections = Arrays.copyOf(dayDirections, size);
+		counts = Arrays.copyOf(counts, size);
+		bytes = Arrays.copyOf(bytes, size);
+		firsts = Arrays.copyOf(firsts, size);
+		lasts = Arrays.copyOf(lasts, size);
+		slots = new int[slots.length * 2];
+		Arrays.fill(slots, EMPTY);
+		int mask = slots.length - 1;
+		for (int row = 0; row < rows; row++) {
+			int slot = hash(parties[row], dayDirections[row]) & mask;
+			while (slots[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			slots[slot] = row;
+		}
+	}
+
+	private static int hash(long party, int dayDirection) {
+		long h = (party ^ (long) dayDirection * 0x9e3779b97f4a7c15L) * 0xbf58476d1ce4e5b9L;
+		return (int) (h ^ (h >>> 31));
+	}
+
+	private static int intern(HashMap<String, Integer> ids, List<String> values, String value) {
+		String key = value == null ? "" : value;
+		Integer id = ids.get(key);
+		if (id == null) {
+			id = values.size();
+			ids.put(key, id);
+			values.add(key);
+		}
+		return id;
+	}
+
+	private static int[] map(List<String> from, HashMap<String, Integer> ids, List<String> values) {
+		int[] mapped = new int[from.size()];
+		for (int i = 0; i < mapped.length; i++) {
+			mapped[i] = intern(ids, values, from.get(i));
+		}
+		return mapped;
+	}
+
+	/**
+	 * @param epochMs
+	 * @return days since the epoch in UTC
+	 */
+	static int dayOf(long epochMs) {
+		long day = epochMs / MILLIS_PER_DAY;
+		return (int) (epochMs < 0 && day * MILLIS_PER_DAY != epochMs ? day - 1 : day);
+	}
+
+	/**
+	 * Civil calendar arithmetic, no Calendar per row when a month view is merged
+	 * @param day days since the epoch
+	 * @return the first day of its month
+	 */
+	static int monthOf(int day) {
+		int shifted = day + 719468;
+		int era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+		int dayOfEra = shifted - era * 146097;
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int dayOfMonth = dayOfYear - (153 * ((5 * dayOfYear + 2) / 153) + 2) / 5 + 1;
+		return day - dayOfMonth + 1;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	public boolean isEmpty() {
+		return rows == 0;
+	}
+
+	/**
+	 * @param visitor given every row, in no particular order
+	 */
+	public void forEach(RowVisitor visitor) {
+		for (int row = 0; row < rows; row++) {
+			long party = parties[row];
+			visitor.visit(devices.get((int) (party >>> 32)), numbers.get((int) party), dayDirections[row] >> 1,
+					(dayDirections[row] & 1) == 0 ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out, counts[row],
+					bytes[row], firsts[row], lasts[row]);
+		}
+	}
+
+	/**
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(minDay);
+		out.writeInt(maxDay);
+		writeStrings(out, devices);
+		writeStrings(out, numbers);
+		out.writeInt(rows);
+		for (int row = 0; row < rows; row++) {
+			out.writeInt((int) (parties[row] >>> 32));
+			out.writeInt((int) parties[row]);
+			out.writeInt(dayDirections[row]);
+			out.writeLong(counts[row]);
+			out.writeLong(bytes[row]);
+			out.writeLong(firsts[row]);
+			out.writeLong(lasts[row]);
+		}
+	}
+
+	/**
+	 * @param in
+	 * @return the rollup written by writeTo()
+	 * @throws IOException if it isn't one, or it's cut short
+	 */
+	public static Rollup readFrom(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a rollup");
+		}
+		in.readInt();
+		in.readInt();
+		Rollup rollup = new Rollup();
+		int[] deviceMap = readStrings(in, rollup.deviceIds, rollup.devices);
+		int[] numberMap = readStrings(in, rollup.numberIds, rollup.numbers);
+		int rows = in.readInt();
+		for (int i = 0; i < rows; i++) {
+			int device = deviceMap[in.readInt()];
+			int number = numberMap[in.readInt()];
+			int dayDirection = in.readInt();
+			long count = in.readLong();
+			long byteCount = in.readLong();
+			long firstMs = in.readLong();
+			rollup.add(device, number, dayDirection >> 1, dayDirection & 1, count, byteCount, firstMs, in.readLong());
+		}
+		return rollup;
+	}
+
+	/**
+	 * Read only the day range from a rollup's header
+	 * @param in positioned on a rollup
+	 * @return min day, max day
+	 * @throws IOException
+	 */
+	static int[] readDays(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a rollup");
+		}
+		return new int[]{in.readInt(), in.readInt()};
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> values) throws IOException {
+		out.writeInt(values.size());
+		for (String value : values) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static int[] readStrings(DataInputStream in, HashMap<String, Integer> ids, List<String> values)
+			throws IOException {
+		int[] mapped = new int[in.readInt()];
+		for (int i = 0; i < mapped.length; i++) {
+			mapped[i] = intern(ids, values, in.readUTF());
+		}
+		return mapped;
+	}
+}
@@ -0,0 +1,107 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.SmsData;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Times building and merging rollups. RollupStoreTest checks the views against a rescan.
+ * <pre>
+ * java RollupBench &lt;empty dir&gt; [records] [segments per day] [records per segment]
+ * </pre>
+ * Generates an archive with QueryBench, 5M records by default over two months, and times day and
+ * month views over it before and after the closed partitions are compacted.
+ * Throughput is rolling up records as the indexer does, one rollup per segment, merging segment
+ * rollups into a day, and building a month's view from disk.
+ */
+public class RollupBench {
+	private RollupBench() {
+	}
+
+	/**
+	 * @param store
+	 * @param name
+	 * @param fromDay
+	 * @param toDay
+	 * @param monthly
+	 * @throws IOException
+	 */
+	static void timeView(RollupStore store, String name, int fromDay, int toDay, boolean monthly)
+			throws IOException {
+		long start = System.nanoTime();
+		Rollup view = store.view(fromDay, toDay, monthly);
+		System.out.println(String.format("%s: %d rows in %d ms", name, view.getRows(),
+				(System.nanoTime() - start) / 1000000));
+	}
+
+	/**
+	 * Roll up records one segment at a time as the indexer does, then merge the segments' rollups
+	 * @param records
+	 * @param recordsPerSegment
+	 */
+	static void throughput(int records, int recordsPerSegment) {
+		Random random = new Random(7);
+		SmsData[] sample = new SmsData[recordsPerSegment];
+		for (int i = 0; i < sample.length; i++) {
+			sample[i] = new SmsData();
+			sample[i].setDate(1451606400000L + random.nextInt((int) Rollup.MILLIS_PER_DAY));
+			sample[i].setNumber("+4477" + (1000000 + random.nextInt(100)));
+			sample[i].setDirection(random.nextBoolean() ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+			sample[i].setBody("Meeting moved to 3pm, same room as last week");
+		}
+		int segments = records / recordsPerSegment;
+		Rollup[] rollups = new Rollup[Math.min(segments, 1000)];
+		long start = System.nanoTime();
+		for (int segment = 0; segment < segments; segment++) {
+			Rollup rollup = new Rollup();
+			String device = "bench-" + (segment % 1000);
+			for (SmsData record : sample) {
+				rollup.add(device, record);
+			}
+			rollups[segment % rollups.length] = rollup;
+		}
+		long addNs = System.nanoTime() - start;
+		long rows = 0;
+		for (Rollup rollup : rollups) {
+			rows += rollup.getRows();
+		}
+		start = System.nanoTime();
+		Rollup day = new Rollup(1024);
+		for (Rollup rollup : rollups) {
+			day.add(rollup);
+		}
+		long mergeNs = System.nanoTime() - start;
+		System.out.println(String.format("roll up: %.1f M records/s, %d segments of %d", records * 1000.0 / addNs,
+				segments, recordsPerSegment));
+		System.out.println(String.format("merge: %d segment rollups into a day of %d rows in %d ms, %.1f M rows/s",
+				rollups.length, day.getRows(), mergeNs / 1000000, rows * 1000.0 / mergeNs));
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: RollupBench <empty dir> [records] [segments per day] [records per segment]");
+			System.exit(1);
+		}
+		File root = new File(args[0]);
+		long records = args.length > 1 ? Long.parseLong(args[1]) : 5000000L;
+		int segmentsPerDay = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int recordsPerSegment = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+		if (ArchiveIndexer.partitions(root).length > 0) {
+			System.err.println(root + " isn't empty");
+			System.exit(1);
+		}
+		new QueryBench(root, segmentsPerDay, recordsPerSegment).generate(records);
+		File[] partitions = ArchiveIndexer.partitions(root);
+		int firstDay = RollupStore.dayOf(partitions[0]);
+		int lastDay = RollupStore.dayOf(partitions[partitions.length - 1]);
+		RollupStore store = new RollupStore(root);
+		timeView(store, "days, all", firstDay, lastDay, false);
+		timeView(store, "days, middle week", (firstDay + lastDay) / 2 - 3, (firstDay + lastDay) / 2 + 3, false);
+		timeView(store, "months, all", firstDay, lastDay, true);
+		System.out.println("compacted " + store.compactClosed(System.currentTimeMillis()) + " partitions");
+		timeView(store, "months, all after compaction", firstDay, lastDay, true);
+		throughput(20000000, recordsPerSegment);
+	}
+}
@@ -0,0 +1,304 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.SmsData;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Rollups kept in each day partition, built as segments are indexed so reports never go back to
+ * the records:
+ * <pre>
+ * rollup.log   a block per segment: short name length, UTF-8 name, int length, its Rollup
+ * rollup.sru   long log bytes covered, then the log up to there merged into one Rollup
+ * </pre>
+ * The log is appended to in one write per segment, a block torn by a crash is cut off before the
+ * next append. Once a partition's day is over its log is merged into rollup.sru, written under a
+ * temporary name and renamed. The log is kept, the covered length says where a segment that
+ * arrived late or a crash part way leaves blocks still to merge, so nothing is counted twice.
+ * Rows are by the day the message was sent, a partition by the day it arrived, so a view of some
+ * days merges every partition from the day before the first, allowing for phone clocks.
+ * <pre>
+ * java RollupStore &lt;storage dir&gt; &lt;from yyyy-mm-dd&gt; &lt;to yyyy-mm-dd&gt; [day|month]
+ * </pre>
+ * prints a view as CSV. Thread safe.
+ */
+public class RollupStore {
+	static final String LOG_NAME = "rollup.log";
+	static final String COMPACTED_NAME = "rollup.sru";
+
+	private final File root;
+	// Partitions whose log has been checked for a torn tail since the server started
+	private final Set<File> checked = new HashSet<>();
+
+	/**
+	 * @param root storage directory
+	 */
+	public RollupStore(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Add a segment's rollup to its partition's log
+	 * @param segment stored segment
+	 * @param rollup of every record in it
+	 * @throws IOException
+	 */
+	public synchronized void append(File segment, Rollup rollup) throws IOException {
+		File log = new File(segment.getParentFile(), LOG_NAME);
+		if (checked.add(segment.getParentFile()) && log.exists()) {
+			long valid = readLog(log, 0, null, null);
+			if (valid < log.length()) {
+				RandomAccessFile raf = new RandomAccessFile(log, "rw");
+				try {
+					raf.setLength(valid);
+				} finally {
+					raf.close();
+				}
+			}
+		}
+		ByteArrayOutputStream body = new ByteArrayOutputStream(256 + rollup.getRows() * 44);
+		rollup.writeTo(new DataOutputStream(body));
+		ByteArrayOutputStream block = new ByteArrayOutputStream(body.size() + 128);
+		DataOutputStream data = new DataOutputStream(block);
+		byte[] name = segment.getName().getBytes("UTF-8");
+		data.writeShort(name.length);
+		data.write(name);
+		data.writeInt(body.size());
+		body.writeTo(data);
+		FileOutputStream out = new FileOutputStream(log, true);
+		try {
+			// One write so a crash leaves whole blocks or a torn tail
+			block.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @param partition
+	 * @return names of the segments in the partition's rollups
+	 */
+	public synchronized Set<String> segmentsIn(File partition) {
+		Set<String> names = new HashSet<>();
+		File log = new File(partition, LOG_NAME);
+		if (log.exists()) {
+			readLog(log, 0, names, null);
+		}
+		return names;
+	}
+
+	/**
+	 * Merge the logs of partitions whose day is over into their rollup.sru
+	 * @param nowMs
+	 * @return partitions compacted
+	 */
+	public int compactClosed(long nowMs) {
+		int compacted = 0;
+		int today = Rollup.dayOf(nowMs);
+		for (File partition : ArchiveIndexer.partitions(root)) {
+			if (dayOf(partition) < today && compact(partition)) {
+				compacted++;
+			}
+		}
+		return compacted;
+	}
+
+	/**
+	 * Merge the log blocks the partition's rollup.sru doesn't cover yet into it
+	 * @param partition
+	 * @return true if there were any
+	 */
+	synchronized boolean compact(File partition) {
+		File log = new File(partition, LOG_NAME);
+		File compacted = new File(partition, COMPACTED_NAME);
+		long covered = 0;
+		Rollup merged = new Rollup(1024);
+		try {
+			if (compacted.exists()) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(compacted)));
+				try {
+					covered = in.readLong();
+					merged.add(Rollup.readFrom(in));
+				} finally {
+					in.close();
+				}
+			}
+			if (!log.exists() || log.length() <= covered) {
+				return false;
+			}
+			long end = readLog(log, covered, null, merged);
+			if (end == covered) {
+				return false;
+			}
+			File temp = new File(partition, COMPACTED_NAME + ".tmp");
+			FileOutputStream file = new FileOutputStream(temp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 64 * 1024));
+				out.writeLong(end);
+				merged.writeTo(out);
+				out.flush();
+				file.getChannel().force(true);
+			} finally {
+				file.close();
+			}
+			Files.move(temp.toPath(), compacted.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		} catch (IOException e) {
+			System.err.println("rollup of " + partition + " not compacted " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Merge every partition's rollups for some days
+	 * @param fromDay first day, days since the epoch in UTC
+	 * @param toDay last day
+	 * @param monthly rows per month, on its first day, rather than per day
+	 * @return the view
+	 * @throws IOException if a compacted rollup can't be read
+	 */
+	public Rollup view(int fromDay, int toDay, boolean monthly) throws IOException {
+		Rollup view = new Rollup(1024);
+		for (File partition : ArchiveIndexer.partitions(root)) {
+			// Messages arrive on or after the day they're sent, give or take the phone's clock
+			if (dayOf(partition) < fromDay - 1) {
+				continue;
+			}
+			long covered = 0;
+			File compacted = new File(partition, COMPACTED_NAME);
+			if (compacted.exists()) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(compacted),
+						64 * 1024));
+				try {
+					covered = in.readLong();
+					view.add(Rollup.readFrom(in), fromDay, toDay, monthly);
+				} finally {
+					in.close();
+				}
+			}
+			File log = new File(partition, LOG_NAME);
+			if (log.length() > covered) {
+				Rollup rest = new Rollup();
+				readLog(log, covered, null, rest);
+				view.add(rest, fromDay, toDay, monthly);
+			}
+		}
+		return view;
+	}
+
+	/**
+	 * Read log blocks from an offset
+	 * @param log
+	 * @param from offset of a block
+	 * @param names given each block's segment name, or null
+	 * @param into each block's rollup is merged into it, or null
+	 * @return offset after the last whole block
+	 */
+	private static long readLog(File log, long from, Set<String> names, Rollup into) {
+		long valid = from;
+		long length = log.length();
+		try {
+			FileInputStream file = new FileInputStream(log);
+			try {
+				if (file.skip(from) != from) {
+					return from;
+				}
+				DataInputStream in = new DataInputStream(new BufferedInputStream(file, 64 * 1024));
+				for (;;) {
+					byte[] name = new byte[in.readUnsignedShort()];
+					in.readFully(name);
+					int bodyLength = in.readInt();
+					if (bodyLength < 0 || valid + 6 + name.length + bodyLength > length) {
+						// Torn length
+						break;
+					}
+					byte[] body = new byte[bodyLength];
+					in.readFully(body);
+					if (into != null) {
+						into.add(Rollup.readFrom(new DataInputStream(new ByteArrayInputStream(body))));
+					}
+					if (names != null) {
+						names.add(new String(name, "UTF-8"));
+					}
+					valid += 2 + name.length + 4 + body.length;
+				}
+			} finally {
+				file.close();
+			}
+		} catch (EOFException e) {
+			// End of the log, or a block torn by a crash
+		} catch (IOException e) {
+			System.err.println(log + " unreadable after " + valid + " " + e.getMessage());
+		}
+		return valid;
+	}
+
+	/**
+	 * @param partition YYYY/MM/DD directory
+	 * @return its day since the epoch
+	 */
+	static int dayOf(File partition) {
+		File month = partition.getParentFile();
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.clear();
+		calendar.set(Integer.parseInt(month.getParentFile().getName()), Integer.parseInt(month.getName()) - 1,
+				Integer.parseInt(partition.getName()));
+		return Rollup.dayOf(calendar.getTimeInMillis());
+	}
+
+	private static String formatDay(int day) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.setTimeInMillis(day * Rollup.MILLIS_PER_DAY);
+		return String.format("%04d-%02d-%02d", calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+				calendar.get(Calendar.DAY_OF_MONTH));
+	}
+
+	private static int parseDay(String date) {
+		String[] fields = date.split("-");
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.clear();
+		calendar.set(Integer.parseInt(fields[0]), Integer.parseInt(fields[1]) - 1, Integer.parseInt(fields[2]));
+		return Rollup.dayOf(calendar.getTimeInMillis());
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err.println("usage: RollupStore <storage dir> <from yyyy-mm-dd> <to yyyy-mm-dd> [day|month]");
+			System.exit(1);
+		}
+		RollupStore store = new RollupStore(new File(args[0]));
+		store.compactClosed(System.currentTimeMillis());
+		Rollup view = store.view(parseDay(args[1]), parseDay(args[2]), args.length > 3 && args[3].equals("month"));
+		final StringBuilder line = new StringBuilder();
+		System.out.println("device,number,day,direction,count,bytes,first,last");
+		view.forEach(new Rollup.RowVisitor() {
+			@Override
+			public void visit(String device, String number, int day, SmsData.SMSDirection direction, long count,
+					long bytes, long firstMs, long lastMs) {
+				line.setLength(0);
+				line.append(device).append(',').append(number).append(',').append(formatDay(day))
+						.append(',').append(direction).append(',').append(count).append(',').append(bytes).append(',')
+						.append(firstMs).append(',').append(lastMs);
+				System.out.println(line);
+			}
+		});
+	}
+}
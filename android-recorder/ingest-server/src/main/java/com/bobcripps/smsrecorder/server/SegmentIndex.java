@@ -0,0 +1,328 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.SmsData;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Index of one stored segment, kept beside it as &lt;segment&gt;.idx and read memory mapped.
+ * <pre>
+ * int magic "SMIX", int version, int records, int numbers
+ * long min date, long max date, int string bytes
+ * (numbers + 1) x int      start of each number in the string area, the last is its end
+ * (numbers + 1) x int      start of each number's postings, the last is records
+ * records x int            postings, record ordinals grouped by number in ascending order
+ * records x long           date of each record
+ * records x byte           direction of each record, 0 In, 1 Out
+ * string bytes             the numbers in UTF-8, sorted by their bytes
+ * </pre>
+ * A number is found by binary search over the mapped bytes, its postings are the records to
+ * read. The date and direction columns filter them without touching the segment.
+ * The file's length follows from its header, one cut short by a crash fails to open and the
+ * segment is scanned instead.
+ * Immutable once written, thread safe.
+ */
+public class SegmentIndex {
+	static final String SUFFIX = ".idx";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MAGIC = 0x534d4958;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 36;
+
+	private final ByteBuffer buffer;
+	private final int records;
+	private final int numbers;
+	private final long minDate;
+	private final long maxDate;
+	private final int stringStartsAt;
+	private final int postingStartsAt;
+	private final int postingsAt;
+	private final int datesAt;
+	private final int directionsAt;
+	private final int stringsAt;
+
+	private SegmentIndex(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IOException("Not an index");
+		}
+		records = buffer.getInt(8);
+		numbers = buffer.getInt(12);
+		minDate = buffer.getLong(16);
+		maxDate = buffer.getLong(24);
+		int stringBytes = buffer.getInt(32);
+		stringStartsAt = HEADER_BYTES;
+		postingStartsAt = stringStartsAt + (numbers + 1) * 4;
+		postingsAt = postingStartsAt + (numbers + 1) * 4;
+		datesAt = postingsAt + records * 4;
+		directionsAt = datesAt + records * 8;
+		stringsAt = directionsAt + records;
+		if ((long) stringsAt + stringBytes != buffer.capacity()) {
+			throw new IOException("Index is torn");
+		}
+	}
+
+	/**
+	 * @param segment a stored segment
+	 * @return where its index is kept
+	 */
+	static File indexFileOf(File segment) {
+		return new File(segment.getPath() + SUFFIX);
+	}
+
+	/**
+	 * Map an index, the mapping stays valid after the file is closed
+	 * @param file
+	 * @return the index
+	 * @throws IOException if it can't be read or is torn
+	 */
+	public static SegmentIndex open(File file) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new SegmentIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} finally {
+			channel.close();
+		}
+	}
+
+	public int getRecords() {
+		return records;
+	}
+
+	public long getMinDate() {
+		return minDate;
+	}
+
+	public long getMaxDate() {
+		return maxDate;
+	}
+
+	/**
+	 * @param number UTF-8 bytes of the number
+	 * @return ordinals of the records with the number in ascending order, empty if there are none
+	 */
+	public int[] find(byte[] number) {
+		int low = 0;
+		int high = numbers - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int compared = compareNumber(mid, number);
+			if (compared < 0) {
+				low = mid + 1;
+			} else if (compared > 0) {
+				high = mid - 1;
+			} else {
+				int from = buffer.getInt(postingStartsAt + mid * 4);
+				int to = buffer.getInt(postingStartsAt + (mid + 1) * 4);
+				int[] ordinals = new int[to - from];
+				for (int i = 0; i < ordinals.length; i++) {
+					ordinals[i] = buffer.getInt(postingsAt + (from + i) * 4);
+				}
+				return ordinals;
+			}
+		}
+		return new int[0];
+	}
+
+	/**
+	 * @param ordinal
+	 * @return the record's date
+	 */
+	public long getDate(int ordinal) {
+		return buffer.getLong(datesAt + ordinal * 8);
+	}
+
+	/**
+	 * @param ordinal
+	 * @return the record's direction
+	 */
+	public SmsData.SMSDirection getDirection(int ordinal) {
+		return buffer.get(directionsAt + ordinal) == 0 ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out;
+	}
+
+	/**
+	 * Compare a dictionary entry with a number as unsigned bytes
+	 * @param entry
+	 * @param number
+	 * @return negative, 0 or positive as the entry sorts before, equal to or after the number
+	 */
+	private int compareNumber(int entry, byte[] number) {
+		int start = stringsAt + buffer.getInt(stringStartsAt + entry * 4);
+		int length = stringsAt + buffer.getInt(stringStartsAt + (entry + 1) * 4) - start;
+		int common = Math.min(length, number.length);
+		for (int i = 0; i < common; i++) {
+			int difference = (buffer.get(start + i) & 0xff) - (number[i] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length - number.length;
+	}
+
+	/**
+	 * @param number
+	 * @return the number as the index stores it, empty for null
+	 */
+	static byte[] bytesOf(String number) {
+		return number == null ? new byte[0] : number.getBytes(UTF_8);
+	}
+
+	/**
+	 * Collects a segment's records in order and writes their index
+	 * Not thread safe.
+	 */
+	public static class Builder {
+		private final HashMap<String, Integer> numberIds = new HashMap<>();
+		private int[] numberOf = new int[1024];
+		private long[] dates = new long[1024];
+		private byte[] directions = new byte[1024];
+		private int records;
+		private long minDate = Long.MAX_VALUE;
+		private long maxDate = Long.MIN_VALUE;
+
+		/**
+		 * @param record the next record in the segment
+		 */
+		public void add(SmsData record) {
+			if (records == dates.length) {
+				numberOf = Arrays.copyOf(numberOf, records * 2);
+				dates = Arrays.copyOf(dates, records * 2);
+				directions = Arrays.copyOf(directions, records * 2);
+			}
+			String number = record.getNumber() == null ? "" : record.getNumber();
+			Integer id = numberIds.get(number);
+			if (id == null) {
+				id = numberIds.size();
+				numberIds.put(number, id);
+			}
+			numberOf[records] = id;
+			dates[records] = record.getDate();
+			directions[records] = (byte) (record.getDirection() == SmsData.SMSDirection.In ? 0 : 1);
+			minDate = Math.min(minDate, record.getDate());
+			maxDate = Math.max(maxDate, record.getDate());
+			records++;
+		}
+
+		public int getRecords() {
+			return records;
+		}
+
+		public long getMinDate() {
+			return minDate;
+		}
+
+		public long getMaxDate() {
+			return maxDate;
+		}
+
+		/**
+		 * @return the distinct numbers as UTF-8
+		 */
+		public byte[][] getNumbers() {
+			byte[][] numbers = new byte[numberIds.size()][];
+			for (HashMap.Entry<String, Integer> entry : numberIds.entrySet()) {
+				numbers[entry.getValue()] = bytesOf(entry.getKey());
+			}
+			return numbers;
+		}
+
+		/**
+		 * Write the index under a temporary name and rename it into place. It isn't synced, it
+		 * can be built again from the segment
+		 * @param target
+		 * @throws IOException
+		 */
+		public void write(File target) throws IOException {
+			final byte[][] numbers = getNumbers();
+			Integer[] sorted = new Integer[numbers.length];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = i;
+			}
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return compareBytes(numbers[a], numbers[b]);
+				}
+			});
+			int[] rank = new int[numbers.length];
+			for (int i = 0; i < sorted.length; i++) {
+				rank[sorted[i]] = i;
+			}
+			// Counting sort of the ordinals by number keeps each number's postings ascending
+			int[] postingStarts = new int[numbers.length + 1];
+			for (int i = 0; i < records; i++) {
+				postingStarts[rank[numberOf[i]] + 1]++;
+			}
+			for (int i = 0; i < numbers.length; i++) {
+				postingStarts[i + 1] += postingStarts[i];
+			}
+			int[] next = Arrays.copyOf(postingStarts, numbers.length);
+			int[] postings = new int[records];
+			for (int i = 0; i < records; i++) {
+				postings[next[rank[numberOf[i]]]++] = i;
+			}
+			int stringBytes = 0;
+			for (byte[] number : numbers) {
+				stringBytes += number.length;
+			}
+			File temp = new File(target.getPath() + ".tmp");
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(records);
+				out.writeInt(numbers.length);
+				out.writeLong(records == 0 ? 0 : minDate);
+				out.writeLong(records == 0 ? 0 : maxDate);
+				out.writeInt(stringBytes);
+				int offset = 0;
+				for (Integer id : sorted) {
+					out.writeInt(offset);
+					offset += numbers[id].length;
+				}
+				out.writeInt(offset);
+				for (int start : postingStarts) {
+					out.writeInt(start);
+				}
+				for (int i = 0; i < records; i++) {
+					out.writeInt(postings[i]);
+				}
+				for (int i = 0; i < records; i++) {
+					out.writeLong(dates[i]);
+				}
+				out.write(directions, 0, records);
+				for (Integer id : sorted) {
+					out.write(numbers[id]);
+				}
+			} finally {
+				out.close();
+			}
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	static int compareBytes(byte[] a, byte[] b) {
+		int common = Math.min(a.length, b.length);
+		for (int i = 0; i < common; i++) {
+			int difference = (a[i] & 0xff) - (b[i] & 0xff);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return a.length - b.length;
+	}
+}
@@ -0,0 +1,211 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.BinaryRecordEncoder;
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SmsData;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queries through the partition summaries and segment indexes must return exactly what reading
+ * every record returns, in the same order, with segments that arrived days after their
+ * messages were sent and one that was never indexed
+ */
+public class ArchiveQueryTest {
+	private static final long MILLIS_PER_DAY = 86400000L;
+
+	private File root;
+	private File[] partitions;
+	private long firstDayMs;
+	private long endMs;
+	private List<String> numbers;
+
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("query", "");
+		root.delete();
+		root.mkdirs();
+		// 6 days of 3 devices
+		new QueryBench(root, 3, 40).generate(3 * 40 * 6);
+		partitions = ArchiveIndexer.partitions(root);
+		firstDayMs = dayStart(0);
+		endMs = dayStart(partitions.length);
+		Random random = new Random(5);
+		// Some numbers the other segments have too
+		List<String> shared = new ArrayList<>(numbersIn(new ArchiveQuery(root, false), 5));
+		// Sent over the first four days, arrived on the last
+		addSegment(partitions[partitions.length - 1], "late-1", firstDayMs, dayStart(4), 200, true, shared, random);
+		// Sent over the first day, arrived on the third and never indexed
+		addSegment(partitions[2], "late-2", firstDayMs, dayStart(1), 100, false, shared, random);
+		numbers = new ArrayList<>(numbersIn(new ArchiveQuery(root, false), 20));
+		// On no phone
+		numbers.add("+447700000000");
+	}
+
+	@After
+	public void tearDown() {
+		delete(root);
+	}
+
+	@Test
+	public void wholeArchiveMatchesAScan() throws IOException {
+		assertMatchesScan(null, Long.MIN_VALUE, Long.MAX_VALUE, null, Long.MAX_VALUE);
+		for (String number : numbers) {
+			assertMatchesScan(number, Long.MIN_VALUE, Long.MAX_VALUE, null, Long.MAX_VALUE);
+			assertMatchesScan(number, Long.MIN_VALUE, Long.MAX_VALUE, SmsData.SMSDirection.Out, Long.MAX_VALUE);
+		}
+	}
+
+	@Test
+	public void rangesAcrossPartitionBoundariesMatchAScan() throws IOException {
+		long[][] ranges = {
+				// Exactly one day, its first and last millisecond
+				{dayStart(2), dayStart(3) - 1},
+				// Midday to midday over two boundaries
+				{dayStart(1) + MILLIS_PER_DAY / 2, dayStart(3) + MILLIS_PER_DAY / 2},
+				// The last day and what came late into it
+				{dayStart(partitions.length - 1), Long.MAX_VALUE},
+		};
+		for (long[] range : ranges) {
+			assertTrue(assertMatchesScan(null, range[0], range[1], null, Long.MAX_VALUE) > 0);
+			assertMatchesScan(null, range[0], range[1], SmsData.SMSDirection.In, Long.MAX_VALUE);
+			for (String number : numbers) {
+				assertMatchesScan(number, range[0], range[1], null, Long.MAX_VALUE);
+			}
+		}
+		// A millisecond either side of a boundary, which may hold nothing
+		assertMatchesScan(null, dayStart(4) - 1, dayStart(4), null, Long.MAX_VALUE);
+	}
+
+	@Test
+	public void emptyRangesFindNothing() throws IOException {
+		long[][] ranges = {
+				{firstDayMs - 30 * MILLIS_PER_DAY, firstDayMs - 1},
+				{endMs + 2 * MILLIS_PER_DAY, Long.MAX_VALUE},
+				// Backwards
+				{dayStart(3), dayStart(2)},
+		};
+		for (long[] range : ranges) {
+			assertEquals(0, assertMatchesScan(null, range[0], range[1], null, Long.MAX_VALUE));
+		}
+		assertEquals(0, assertMatchesScan("+447700000000", Long.MIN_VALUE, Long.MAX_VALUE, null, Long.MAX_VALUE));
+		assertEquals(0, new ArchiveQuery(root, true).find(null, endMs + 2 * MILLIS_PER_DAY, Long.MAX_VALUE, null,
+				Long.MAX_VALUE, new Results()).recordsRead);
+	}
+
+	@Test
+	public void limitedQueriesStopAtTheSameRecord() throws IOException {
+		assertEquals(7, assertMatchesScan(null, dayStart(1), Long.MAX_VALUE, null, 7));
+		assertMatchesScan(numbers.get(0), Long.MIN_VALUE, Long.MAX_VALUE, null, 1);
+	}
+
+	/**
+	 * Run a query with and without the indexes and check they return the same records
+	 * @return records matched
+	 */
+	private long assertMatchesScan(String number, long fromMs, long toMs, SmsData.SMSDirection direction, long limit)
+			throws IOException {
+		Results indexed = new Results();
+		Results scanned = new Results();
+		ArchiveQuery.Stats indexedStats = new ArchiveQuery(root, true).find(number, fromMs, toMs, direction, limit,
+				indexed);
+		ArchiveQuery.Stats scanStats = new ArchiveQuery(root, false).find(number, fromMs, toMs, direction, limit,
+				scanned);
+		String query = number + " " + fromMs + " to " + toMs + " " + direction + " limit " + limit;
+		assertEquals(query, scanned.records, indexed.records);
+		assertEquals(query, scanStats.matched, indexedStats.matched);
+		assertTrue(query, indexedStats.recordsRead <= scanStats.recordsRead);
+		return indexedStats.matched;
+	}
+
+	private static Set<String> numbersIn(ArchiveQuery query, int count) throws IOException {
+		final Set<String> numbers = new LinkedHashSet<>();
+		final int every = 37;
+		query.find(null, Long.MIN_VALUE, Long.MAX_VALUE, null, (long) count * every, new RecordSink() {
+			private int seen;
+
+			@Override
+			public void accept(SmsData record) {
+				if (seen++ % every == 0) {
+					numbers.add(record.getNumber());
+				}
+			}
+		});
+		return numbers;
+	}
+
+	/**
+	 * @param day from the first partition
+	 * @return when the day starts
+	 */
+	private long dayStart(int day) {
+		return RollupStore.dayOf(partitions[0]) * MILLIS_PER_DAY + day * MILLIS_PER_DAY;
+	}
+
+	/**
+	 * Add a segment of messages sent at random between two times to a partition
+	 */
+	private void addSegment(File partition, String name, long fromMs, long toMs, int records, boolean index,
+			List<String> shared, Random random) throws IOException {
+		File file = new File(partition, String.format("%s%s_bench-%06d%s", PartitionedStore.PREFIX, name, 9,
+				MultipartHandler.BINARY_SUFFIX));
+		BinaryRecordEncoder encoder = new BinaryRecordEncoder();
+		SmsData sms = new SmsData();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			encoder.startSegment(out);
+			for (int i = 0; i < records; i++) {
+				sms.setId(2000000000L + i);
+				sms.setDate(fromMs + (long) (random.nextDouble() * (toMs - fromMs)));
+				sms.setNumber(i % 3 == 0 ? shared.get(i % shared.size()) : "+4478" + (1000000 + random.nextInt(20)));
+				sms.setDirection(random.nextBoolean() ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+				sms.setBody("Sorry, only just got signal " + i);
+				encoder.encode(sms, out);
+			}
+		} finally {
+			out.close();
+		}
+		if (index) {
+			new ArchiveIndexer(new RollupStore(root)).index(file, "bench-9", true, true);
+		}
+	}
+
+	/**
+	 * Each record a query returns, as a string so they can be compared
+	 */
+	private static class Results implements RecordSink {
+		final List<String> records = new ArrayList<>();
+
+		@Override
+		public void accept(SmsData record) {
+			records.add(record.getId() + " " + record.getDate() + " " + record.getNumber() + " "
+					+ record.getDirection() + " " + record.getBody());
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
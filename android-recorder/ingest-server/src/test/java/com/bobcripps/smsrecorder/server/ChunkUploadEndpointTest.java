@@ -0,0 +1,78 @@
+package com.bobcripps.smsrecorder.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkUploadEndpointTest {
+	private static final long DAY_MS = 24 * 60 * 60 * 1000;
+
+	private File root;
+	private File sessions;
+	private ArchiveIndexer indexer;
+	private ChunkUploadEndpoint endpoint;
+
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("chunks", "");
+		root.delete();
+		root.mkdirs();
+		PartitionedStore store = new PartitionedStore(root);
+		indexer = new ArchiveIndexer(new RollupStore(root));
+		endpoint = new ChunkUploadEndpoint(store, new DedupIngest(store, new DeviceLedgers(root, 16), indexer));
+		sessions = new File(root, "sessions");
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		indexer.shutdown();
+		delete(root);
+	}
+
+	@Test
+	public void sweepRemovesOldMarkersAndAbandonedParts() throws IOException {
+		long nowMs = System.currentTimeMillis();
+		File oldDone = session("old-done.done", nowMs - 8 * DAY_MS);
+		File newDone = session("new-done.done", nowMs - DAY_MS);
+		File oldPart = session("old-part.part", nowMs - 8 * DAY_MS);
+		File newPart = session("new-part.part", nowMs - DAY_MS);
+		assertEquals(2, endpoint.sweep(nowMs));
+		assertFalse(oldDone.exists());
+		assertFalse(oldPart.exists());
+		assertTrue(newDone.exists());
+		assertTrue(newPart.exists());
+		// A week later the rest have aged out too
+		assertEquals(2, endpoint.sweep(nowMs + 7 * DAY_MS));
+		assertEquals(0, sessions.list().length);
+	}
+
+	private File session(String name, long modifiedMs) throws IOException {
+		File file = new File(sessions, name);
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write("1024".getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		assertTrue(file.setLastModified(modifiedMs));
+		return file;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
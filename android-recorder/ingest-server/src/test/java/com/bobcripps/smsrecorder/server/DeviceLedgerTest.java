@@ -0,0 +1,140 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.IdIntervalSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A device's committed IDs must survive reloads, a crash part way through a journal append and
+ * the journal being compacted
+ */
+public class DeviceLedgerTest {
+	private File root;
+	private File journal;
+
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("ledgers", "");
+		root.delete();
+		root.mkdirs();
+		journal = new File(root, "device.ids");
+	}
+
+	@After
+	public void tearDown() {
+		delete(root);
+	}
+
+	@Test
+	public void committedIdsAreReplayed() throws IOException {
+		DeviceLedger ledger = DeviceLedger.load(journal);
+		assertEquals(0, ledger.getCommittedId());
+		ledger.commit(ids(1, 100));
+		ledger.commit(ids(150, 160));
+		ledger.commit(ids(101, 120));
+		DeviceLedger reloaded = DeviceLedger.load(journal);
+		assertEquals(160, reloaded.getCommittedId());
+		assertEquals(2, reloaded.getRangeCount());
+		assertTrue(reloaded.contains(120));
+		assertFalse(reloaded.contains(121));
+		assertEquals("[1, 120, 150, 160]", Arrays.toString(reloaded.getCommittedRanges(10)));
+	}
+
+	@Test
+	public void tornJournalIsCutBackToItsLastWholePair() throws IOException {
+		DeviceLedger ledger = DeviceLedger.load(journal);
+		ledger.commit(ids(1, 10));
+		ledger.commit(ids(20, 30));
+		long whole = journal.length();
+		// A crash part way through appending 40 to 50
+		FileOutputStream out = new FileOutputStream(journal, true);
+		try {
+			out.write(new byte[] {0, 0, 0, 0, 0, 0, 0, 40, 0, 0, 0});
+		} finally {
+			out.close();
+		}
+
+		DeviceLedger reloaded = DeviceLedger.load(journal);
+		assertEquals(whole, journal.length());
+		assertEquals(30, reloaded.getCommittedId());
+		assertFalse(reloaded.contains(40));
+		// The client resends the upload that wasn't acknowledged
+		reloaded.commit(ids(40, 50));
+		DeviceLedger again = DeviceLedger.load(journal);
+		assertEquals(50, again.getCommittedId());
+		assertEquals(3, again.getRangeCount());
+		assertTrue(again.contains(45));
+	}
+
+	@Test
+	public void longJournalIsCompactedToASnapshot() throws IOException {
+		DeviceLedger ledger = DeviceLedger.load(journal);
+		// One upload per ID, each appending a pair that extends the single range
+		for (long id = 1; id <= 3000; id++) {
+			ledger.commit(ids(id, id));
+		}
+		assertEquals(1, ledger.getRangeCount());
+		assertTrue("journal of " + journal.length() + " bytes", journal.length() < 3000 * 16);
+		assertFalse(new File(journal.getPath() + ".tmp").exists());
+		DeviceLedger reloaded = DeviceLedger.load(journal);
+		assertEquals(3000, reloaded.getCommittedId());
+		assertEquals(1, reloaded.getRangeCount());
+		// Appends carry on after the snapshot
+		reloaded.commit(ids(3002, 3002));
+		assertEquals(2, DeviceLedger.load(journal).getRangeCount());
+	}
+
+	@Test
+	public void evictedLedgerIsReloadedFromItsJournal() throws IOException {
+		DeviceLedgers ledgers = new DeviceLedgers(root, 1);
+		DeviceLedger first = get(ledgers, "phone-1");
+		assertSame(first, get(ledgers, "phone-1"));
+		first.commit(ids(1, 5));
+		// Evicts phone-1
+		get(ledgers, "phone-2");
+		DeviceLedger reloaded = get(ledgers, "phone-1");
+		assertNotSame(first, reloaded);
+		assertEquals(5, reloaded.getCommittedId());
+		assertFalse(DeviceLedgers.isValid("../phone"));
+	}
+
+	private static DeviceLedger get(DeviceLedgers ledgers, String device) throws IOException {
+		ReentrantLock lock = ledgers.lockFor(device);
+		lock.lock();
+		try {
+			return ledgers.get(device);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static IdIntervalSet ids(long start, long end) {
+		IdIntervalSet ids = new IdIntervalSet();
+		ids.add(start, end);
+		return ids;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
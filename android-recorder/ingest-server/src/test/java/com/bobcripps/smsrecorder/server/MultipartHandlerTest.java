@@ -0,0 +1,96 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MultipartHandlerTest {
+	private static final String BOUNDARY = "test-boundary";
+
+	private HttpServer server;
+	private MultipartHandler failing;
+
+	@Before
+	public void setUp() throws IOException {
+		server = HttpServer.create(new InetSocketAddress(0), 0);
+		failing = new MultipartHandler() {
+			@Override
+			protected Result handleParts(MultipartReader reader) throws IOException {
+				reader.next();
+				if ("bad".equals(reader.getName())) {
+					throw new BadRequestException("no such part");
+				}
+				throw new IllegalStateException("endpoint bug");
+			}
+		};
+		server.createContext("/upload", failing);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop(0);
+	}
+
+	@Test
+	public void runtimeExceptionIsAnswered500() throws IOException {
+		HttpURLConnection connection = post("uploaded_file");
+		assertEquals(500, connection.getResponseCode());
+		String body = read(connection.getErrorStream());
+		assertTrue(body, body.contains("\"succeeded\":false"));
+		assertEquals(1, failing.getFailures());
+		// The server is still answering
+		assertEquals(500, post("uploaded_file").getResponseCode());
+		assertEquals(2, failing.getRequests());
+	}
+
+	@Test
+	public void badRequestIsAnswered400() throws IOException {
+		HttpURLConnection connection = post("bad");
+		assertEquals(400, connection.getResponseCode());
+		assertTrue(read(connection.getErrorStream()).contains("no such part"));
+	}
+
+	private HttpURLConnection post(String part) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:"
+				+ server.getAddress().getPort() + "/upload").openConnection();
+		connection.setRequestMethod("POST");
+		connection.setDoOutput(true);
+		connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"" + part + "\"\r\n\r\n"
+					+ "value\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		return connection;
+	}
+
+	private static String read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[1024];
+		int read;
+		try {
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toString("UTF-8");
+	}
+}
@@ -0,0 +1,186 @@
+package com.bobcripps.smsrecorder.server;
+
+import com.bobcripps.smsrecorder.core.BinaryRecordEncoder;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordReader;
+import com.bobcripps.smsrecorder.core.Utf8;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Day and month views must match what a rescan of every record adds up to, over the whole
+ * archive and part of it, with segments that arrive days after their messages were sent into
+ * partitions before and after they're compacted
+ */
+public class RollupStoreTest {
+	private static final Pattern DEVICE = Pattern.compile("bench-(\\d+)");
+
+	private File root;
+	private RollupStore store;
+	private int firstDay;
+	private int lastDay;
+
+	@Before
+	public void setUp() throws IOException {
+		root = File.createTempFile("rollups", "");
+		root.delete();
+		root.mkdirs();
+		// 40 days from the 1st of January so there are two months
+		new QueryBench(root, 4, 50).generate(4 * 50 * 40);
+		store = new RollupStore(root);
+		File[] partitions = ArchiveIndexer.partitions(root);
+		firstDay = RollupStore.dayOf(partitions[0]);
+		lastDay = RollupStore.dayOf(partitions[partitions.length - 1]);
+		Random random = new Random(3);
+		addLateSegment(partitions[partitions.length - 1], "late-1", 1, firstDay, lastDay, 500, random);
+		assertTrue(store.compactClosed(System.currentTimeMillis()) > 0);
+		addLateSegment(partitions[partitions.length / 2], "late-2", 2, firstDay, lastDay, 500, random);
+		addLateSegment(partitions[1], "late-3", 3, firstDay, firstDay + 1, 500, random);
+	}
+
+	@After
+	public void tearDown() {
+		delete(root);
+	}
+
+	@Test
+	public void dayViewsMatchARescan() throws IOException {
+		assertMatchesRescan(firstDay, lastDay, false);
+		assertMatchesRescan((firstDay + lastDay) / 2 - 3, (firstDay + lastDay) / 2 + 3, false);
+	}
+
+	@Test
+	public void monthViewsMatchARescan() throws IOException {
+		assertMatchesRescan(firstDay, lastDay, true);
+		store.compactClosed(System.currentTimeMillis());
+		assertMatchesRescan(firstDay, lastDay, true);
+	}
+
+	private void assertMatchesRescan(int fromDay, int toDay, boolean monthly) throws IOException {
+		Rollup view = new RollupStore(root).view(fromDay, toDay, monthly);
+		final Map<String, long[]> expected = rescan(fromDay, toDay, monthly);
+		final int[] mismatches = new int[1];
+		view.forEach(new Rollup.RowVisitor() {
+			@Override
+			public void visit(String device, String number, int day, SmsData.SMSDirection direction, long count,
+					long bytes, long firstMs, long lastMs) {
+				long[] total = expected.remove(device + "|" + number + "|" + day + "|" + direction);
+				if (total == null || total[0] != count || total[1] != bytes || total[2] != firstMs
+						|| total[3] != lastMs) {
+					mismatches[0]++;
+				}
+			}
+		});
+		assertEquals("rows differing", 0, mismatches[0]);
+		assertEquals("rows missing from the view", 0, expected.size());
+		assertTrue(view.getRows() > 0);
+	}
+
+	/**
+	 * Add a segment of messages sent on random earlier days to a partition
+	 * @param partition
+	 * @param name unique in the partition
+	 * @param device
+	 * @param firstDay earliest day a message can be sent
+	 * @param lastDay latest
+	 * @param records
+	 * @param random
+	 * @throws IOException
+	 */
+	private void addLateSegment(File partition, String name, int device, int firstDay, int lastDay, int records,
+			Random random) throws IOException {
+		File file = new File(partition, String.format("%s%s_bench-%06d%s", PartitionedStore.PREFIX, name, device,
+				MultipartHandler.BINARY_SUFFIX));
+		BinaryRecordEncoder encoder = new BinaryRecordEncoder();
+		SmsData sms = new SmsData();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			encoder.startSegment(out);
+			for (int i = 0; i < records; i++) {
+				sms.setId(1000000000L + i);
+				sms.setDate((firstDay + random.nextInt(lastDay - firstDay + 1)) * Rollup.MILLIS_PER_DAY
+						+ random.nextInt((int) Rollup.MILLIS_PER_DAY));
+				sms.setNumber("+4477" + (1000000 + random.nextInt(50)));
+				sms.setDirection(random.nextBoolean() ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+				sms.setBody(i % 7 == 0 ? null : "Sorry, only just got signal " + i);
+				encoder.encode(sms, out);
+			}
+		} finally {
+			out.close();
+		}
+		new ArchiveIndexer(new RollupStore(root)).index(file, "bench-" + device, true, true);
+	}
+
+	/**
+	 * Add up every record in the archive the way the rollups should
+	 * @param fromDay
+	 * @param toDay
+	 * @param monthly
+	 * @return count, bytes, first, last by device|number|day|direction
+	 * @throws IOException
+	 */
+	private Map<String, long[]> rescan(int fromDay, int toDay, boolean monthly) throws IOException {
+		Map<String, long[]> totals = new HashMap<>();
+		SmsData record = new SmsData();
+		for (File partition : ArchiveIndexer.partitions(root)) {
+			for (File segment : ArchiveIndexer.segments(partition)) {
+				Matcher matcher = DEVICE.matcher(segment.getName());
+				String device = matcher.find() ? "bench-" + Integer.parseInt(matcher.group(1)) : "";
+				InputStream in = new BufferedInputStream(new FileInputStream(segment), 64 * 1024);
+				try {
+					SmsRecordReader reader = RecordFormat.readableFormatOf(segment.getName()).createReader(in);
+					while (reader.read(record)) {
+						int day = Rollup.dayOf(record.getDate());
+						if (day < fromDay || day > toDay) {
+							continue;
+						}
+						String key = device + "|" + record.getNumber() + "|" + (monthly ? Rollup.monthOf(day) : day)
+								+ "|" + record.getDirection();
+						long[] total = totals.get(key);
+						if (total == null) {
+							total = new long[]{0, 0, Long.MAX_VALUE, Long.MIN_VALUE};
+							totals.put(key, total);
+						}
+						total[0]++;
+						total[1] += record.getBody() == null ? 0 : Utf8.encodedLength(record.getBody());
+						total[2] = Math.min(total[2], record.getDate());
+						total[3] = Math.max(total[3], record.getDate());
+					}
+				} finally {
+					in.close();
+				}
+			}
+		}
+		return totals;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
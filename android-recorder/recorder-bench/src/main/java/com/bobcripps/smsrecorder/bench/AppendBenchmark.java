@@ -0,0 +1,90 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsLogWriter;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appending a batch of records to the log file under each durability policy, fsync included.
+ * Results depend heavily on the disk, compare runs from the same machine only.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+	private static final int BATCH = 4;
+	private static final int RECORDS = 256;
+
+	@Param({"every-batch", "group-commit", "on-upload-handoff"})
+	public String policy;
+
+	private SmsData[] records;
+	private SmsRecordEncoder encoder;
+	private File file;
+	private SmsLogWriter writer;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		SyntheticSmsSource source = new SyntheticSmsSource(1, 50, 1);
+		records = new SmsData[RECORDS];
+		for (int i = 0; i < RECORDS; i++) {
+			records[i] = new SmsData();
+			source.fill(i + 1, records[i]);
+		}
+		encoder = RecordFormat.CSV.createEncoder();
+	}
+
+	/**
+	 * A fresh file each iteration so it doesn't grow without bound
+	 * @throws IOException
+	 */
+	@Setup(Level.Iteration)
+	public void openFile() throws IOException {
+		file = File.createTempFile("append-bench", ".csv");
+		writer = new SmsLogWriter(file, Policies.byName(policy), 8192);
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteFile() throws IOException {
+		writer.close();
+		file.delete();
+	}
+
+	/**
+	 * @return per record time
+	 */
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long appendBatch() throws IOException {
+		for (int i = 0; i < BATCH; i++) {
+			encoder.encode(records[next], writer.getStream());
+			next = (next + 1) % RECORDS;
+		}
+		writer.commit(BATCH, System.currentTimeMillis());
+		return writer.getSyncCount();
+	}
+}
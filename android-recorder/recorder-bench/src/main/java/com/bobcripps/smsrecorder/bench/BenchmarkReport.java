@@ -0,0 +1,160 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Turns JMH JSON results into a table that diffs cleanly between releases and compares two.
+ * One benchmark per line sorted by name and parameters:
+ * <pre>
+ * EncodeBenchmark.encodeSegment format=BINARY	avgt	41.237	0.512	ns/op
+ * </pre>
+ * Usage:
+ * <pre>
+ * BenchmarkReport report results.json results/1.1.txt
+ * BenchmarkReport compare results/1.0.txt results/1.1.txt
+ * </pre>
+ */
+public class BenchmarkReport {
+	private static final String PACKAGE = BenchmarkReport.class.getPackage().getName() + ".";
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 3 && args[0].equals("report")) {
+			report(new File(args[1]), new File(args[2]));
+		} else if (args.length == 3 && args[0].equals("compare")) {
+			compare(new File(args[1]), new File(args[2]));
+		} else {
+			System.err.println("Usage: BenchmarkReport report <results.json> <table.txt>");
+			System.err.println("       BenchmarkReport compare <baseline.txt> <table.txt>");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * @param json JMH results in JSON
+	 * @param table written as a sorted table
+	 * @throws IOException
+	 */
+	static void report(File json, File table) throws IOException {
+		TreeMap<String, String> lines = new TreeMap<>();
+		Reader reader = new InputStreamReader(new FileInputStream(json), "UTF-8");
+		try {
+			JsonArray results = new JsonParser().parse(reader).getAsJsonArray();
+			for (JsonElement element : results) {
+				JsonObject result = element.getAsJsonObject();
+				JsonObject metric = result.getAsJsonObject("primaryMetric");
+				lines.put(key(result), result.get("mode").getAsString()
+						+ "\t" + format(metric.get("score").getAsDouble())
+						+ "\t" + format(metric.get("scoreError").getAsDouble())
+						+ "\t" + metric.get("scoreUnit").getAsString());
+			}
+		} finally {
+			reader.close();
+		}
+		File dir = table.getAbsoluteFile().getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+		Writer writer = new OutputStreamWriter(new FileOutputStream(table), "UTF-8");
+		try {
+			for (Map.Entry<String, String> line : lines.entrySet()) {
+				writer.write(line.getKey() + "\t" + line.getValue() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		System.out.println(lines.size() + " results written to " + table);
+	}
+
+	/**
+	 * Print each benchmark's score in both tables and the change. For time modes a negative
+	 * change is faster
+	 * @param baseline
+	 * @param current
+	 * @throws IOException
+	 */
+	static void compare(File baseline, File current) throws IOException {
+		TreeMap<String, String[]> before = read(baseline);
+		TreeMap<String, String[]> after = read(current);
+		System.out.println(String.format(Locale.ROOT, "%-70s %14s %14s %9s", "benchmark", baseline.getName(),
+				current.getName(), "change"));
+		for (Map.Entry<String, String[]> entry : after.entrySet()) {
+			String[] now = entry.getValue();
+			String[] was = before.get(entry.getKey());
+			String change = "new";
+			if (was != null) {
+				double old = Double.parseDouble(was[1]);
+				change = old == 0 ? "-" : String.format(Locale.ROOT, "%+.1f%%",
+						(Double.parseDouble(now[1]) - old) * 100 / old);
+			}
+			System.out.println(String.format(Locale.ROOT, "%-70s %14s %14s %9s %s", entry.getKey(),
+					was == null ? "-" : was[1], now[1], change, now[3]));
+		}
+		for (String key : before.keySet()) {
+			if (!after.containsKey(key)) {
+				System.out.println(String.format(Locale.ROOT, "%-70s %14s %14s %9s", key, before.get(key)[1], "-",
+						"removed"));
+			}
+		}
+	}
+
+	/**
+	 * @param result
+	 * @return short benchmark name followed by its parameters in name order
+	 */
+	private static String key(JsonObject result) {
+		StringBuilder key = new StringBuilder(result.get("benchmark").getAsString().replace(PACKAGE, ""));
+		JsonObject params = result.getAsJsonObject("params");
+		if (params != null) {
+			TreeMap<String, String> sorted = new TreeMap<>();
+			for (Map.Entry<String, JsonElement> param : params.entrySet()) {
+				sorted.put(param.getKey(), param.getValue().getAsString());
+			}
+			for (Map.Entry<String, String> param : sorted.entrySet()) {
+				key.append(' ').append(param.getKey()).append('=').append(param.getValue());
+			}
+		}
+		return key.toString();
+	}
+
+	private static String format(double value) {
+		return Double.isNaN(value) ? "NaN" : String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/**
+	 * @param table
+	 * @return key to mode, score, error and unit
+	 * @throws IOException
+	 */
+	private static TreeMap<String, String[]> read(File table) throws IOException {
+		TreeMap<String, String[]> rows = new TreeMap<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(table), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length == 5) {
+					rows.put(fields[0], new String[]{fields[1], fields[2], fields[3], fields[4]});
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return rows;
+	}
+}
@@ -0,0 +1,114 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.IdIntervalSet;
+import com.bobcripps.smsrecorder.server.DeviceLedger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's per device committed IDs at the scale of a phone's whole history: adding a
+ * million IDs as uploads deliver them, checking an upload's IDs against them and loading a
+ * device's ledger from a journal of single ID uploads. The stream is in order apart from one
+ * ID in a hundred arriving a little late, as messages that overtake others do. Time is per ID
+ * apart from ledgerLoad, which is per load.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommittedIdsBenchmark {
+	private static final int IDS = 1000000;
+	// Pairs in the journal loaded, each a range of its own so it isn't compacted
+	private static final int JOURNAL_PAIRS = 1000;
+
+	private long[] ids;
+	private IdIntervalSet committed;
+	private File dir;
+	private File journal;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		Random random = new Random(1);
+		ids = new long[IDS];
+		for (int i = 0; i < IDS; i++) {
+			ids[i] = i + 1;
+		}
+		// Swap one in a hundred with an ID up to 50 later so it arrives late
+		for (int i = 0; i < IDS - 50; i += 100) {
+			int j = i + 1 + random.nextInt(49);
+			long id = ids[i];
+			ids[i] = ids[j];
+			ids[j] = id;
+		}
+		committed = add();
+		dir = File.createTempFile("ledger-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		journal = new File(dir, "bench.ids");
+		DeviceLedger ledger = DeviceLedger.load(journal);
+		IdIntervalSet upload = new IdIntervalSet();
+		upload.add(1, 1);
+		ledger.commit(upload);
+		for (int i = 1; i < JOURNAL_PAIRS; i++) {
+			upload = new IdIntervalSet();
+			upload.add(i * 2 + 1, i * 2 + 1);
+			ledger.commit(upload);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		journal.delete();
+		dir.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(IDS)
+	public IdIntervalSet addMillion() {
+		return add();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(IDS)
+	public int containsMillion() {
+		int held = 0;
+		for (long id : ids) {
+			if (committed.contains(id)) {
+				held++;
+			}
+		}
+		return held;
+	}
+
+	@Benchmark
+	public long ledgerLoad() throws IOException {
+		return DeviceLedger.load(journal).getCommittedId();
+	}
+
+	private IdIntervalSet add() {
+		IdIntervalSet set = new IdIntervalSet();
+		for (long id : ids) {
+			set.add(id);
+		}
+		return set;
+	}
+}
@@ -0,0 +1,103 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.BinaryRecordConverter;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+import com.bobcripps.smsrecorder.core.SmsRecordReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a segment's worth of records back in each readable format, as the server does when it
+ * deduplicates, indexes and rolls up uploads, and converting a binary segment to CSV.
+ * Time is per record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeBenchmark {
+	private static final int RECORDS = 1024;
+
+	/**
+	 * A segment in the format being read
+	 */
+	@State(Scope.Thread)
+	public static class Segment {
+		@Param({"CSV", "BINARY"})
+		public RecordFormat format;
+
+		byte[] bytes;
+		final SmsData record = new SmsData();
+
+		@Setup
+		public void setUp() throws IOException {
+			bytes = encode(format);
+		}
+	}
+
+	/**
+	 * A binary segment and somewhere to convert it to
+	 */
+	@State(Scope.Thread)
+	public static class Conversion {
+		byte[] bytes;
+		final SmsRecordEncoder csvEncoder = RecordFormat.CSV.createEncoder();
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(RECORDS * 256);
+
+		@Setup
+		public void setUp() throws IOException {
+			bytes = encode(RecordFormat.BINARY);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long decodeSegment(Segment segment) throws IOException {
+		SmsRecordReader reader = segment.format.createReader(new ByteArrayInputStream(segment.bytes));
+		long ids = 0;
+		while (reader.read(segment.record)) {
+			ids += segment.record.getId();
+		}
+		return ids;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public long convertToCsv(Conversion conversion) throws IOException {
+		conversion.out.reset();
+		return BinaryRecordConverter.convert(new ByteArrayInputStream(conversion.bytes), conversion.out,
+				conversion.csvEncoder);
+	}
+
+	private static byte[] encode(RecordFormat format) throws IOException {
+		SyntheticSmsSource source = new SyntheticSmsSource(1, 50, 1);
+		SmsRecordEncoder encoder = format.createEncoder();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(RECORDS * 256);
+		encoder.startSegment(out);
+		SmsData record = new SmsData();
+		for (int i = 0; i < RECORDS; i++) {
+			source.fill(i + 1, record);
+			encoder.encode(record, out);
+		}
+		return out.toByteArray();
+	}
+}
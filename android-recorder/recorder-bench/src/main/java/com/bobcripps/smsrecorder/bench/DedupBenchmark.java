@@ -0,0 +1,75 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.SeenIdWindow;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking notification IDs against the IDs already written. Each stream has every ID
+ * repeated a few times, out of order within a small window, as observer notifications are.
+ * The HashSet is the unbounded set the service used to keep, for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DedupBenchmark {
+	private static final int EVENTS = 16384;
+
+	private long[] ids;
+	private long base;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(1);
+		ids = new long[EVENTS];
+		for (int i = 0; i < EVENTS; i++) {
+			// About three notifications per message, a few IDs out of order
+			ids[i] = i / 3 + random.nextInt(4);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public int seenIdWindow() {
+		// Move on each time so the window keeps sliding as it does in service
+		SeenIdWindow window = new SeenIdWindow(base, 4096);
+		int added = 0;
+		for (long id : ids) {
+			if (!window.contains(base + id + 1) && window.add(base + id + 1)) {
+				added++;
+			}
+		}
+		base += EVENTS;
+		return added;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(EVENTS)
+	public int hashSet() {
+		HashSet<Long> seen = new HashSet<>();
+		int added = 0;
+		for (long id : ids) {
+			if (!seen.contains(id + 1) && seen.add(id + 1)) {
+				added++;
+			}
+		}
+		return added;
+	}
+}
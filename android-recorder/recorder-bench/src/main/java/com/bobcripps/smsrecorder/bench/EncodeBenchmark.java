@@ -0,0 +1,71 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding a segment's worth of records in each record format.
+ * Encoded bytes per record are printed at setup so size can be compared alongside speed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+	private static final int RECORDS = 1024;
+
+	@Param({"LEGACY_CSV", "CSV", "BINARY"})
+	public RecordFormat format;
+
+	private SmsData[] records;
+	private SmsRecordEncoder encoder;
+	private ByteArrayOutputStream out;
+
+	@Setup
+	public void setUp() throws IOException {
+		SyntheticSmsSource source = new SyntheticSmsSource(1, 50, 1);
+		records = new SmsData[RECORDS];
+		for (int i = 0; i < RECORDS; i++) {
+			records[i] = new SmsData();
+			source.fill(i + 1, records[i]);
+		}
+		encoder = format.createEncoder();
+		out = new ByteArrayOutputStream(RECORDS * 256);
+		encodeSegment();
+		System.out.println(format + " bytes/record=" + out.size() / RECORDS);
+	}
+
+	/**
+	 * @return per record time
+	 */
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public int encodeSegment() throws IOException {
+		out.reset();
+		encoder.startSegment(out);
+		for (SmsData record : records) {
+			encoder.encode(record, out);
+		}
+		return out.size();
+	}
+}
@@ -0,0 +1,143 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsSource;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An SMS table held in memory the way SQLite holds it, rows in _ID order, so a query costs what
+ * it would on a phone relative to other queries: a range seeks to its first ID and steps
+ * through every row after it, a lookup by ID is one binary search. Rows in other folders (drafts,
+ * outbox, failed) are skipped as the type in the selection would skip them.
+ * Counts the rows each query steps through. Not thread safe.
+ */
+public class FakeSmsProvider implements SmsSource {
+	// Folders as in Telephony.TextBasedSmsColumns.TYPE
+	static final int TYPE_INBOX = 1;
+	static final int TYPE_SENT = 2;
+	static final int TYPE_OUTBOX = 4;
+
+	private final long[] ids;
+	private final int[] types;
+	private final long[] dates;
+	private final String[] numbers;
+	private final String[] bodies;
+	private final SmsData row = new SmsData();
+	private long rowsExamined;
+
+	/**
+	 * @param rows messages in the table, IDs 1 to rows
+	 * @param seed
+	 */
+	public FakeSmsProvider(int rows, long seed) {
+		Random random = new Random(seed);
+		ids = new long[rows];
+		types = new int[rows];
+		dates = new long[rows];
+		numbers = new String[rows];
+		bodies = new String[rows];
+		String[] contacts = new String[100];
+		for (int i = 0; i < contacts.length; i++) {
+			contacts[i] = "+4477009" + String.format("%05d", i);
+		}
+		String[] texts = {"On my way", "Running late, see you at the station?", "Thanks!",
+				"Can you call me back when you get this"};
+		for (int i = 0; i < rows; i++) {
+			ids[i] = i + 1;
+			// Mostly inbox and sent with the odd draft or failed message
+			types[i] = random.nextInt(50) == 0 ? 3 + random.nextInt(3) : 1 + random.nextInt(2);
+			dates[i] = 1472475636000L + i * 60000L;
+			numbers[i] = contacts[random.nextInt(contacts.length)];
+			bodies[i] = texts[random.nextInt(texts.length)];
+		}
+	}
+
+	/**
+	 * Move a message to another folder, e.g. from the outbox to sent once it's gone
+	 * @param id
+	 * @param type
+	 */
+	public void setType(long id, int type) {
+		types[index(id)] = type;
+	}
+
+	/**
+	 * @return rows the queries have stepped through so far
+	 */
+	public long getRowsExamined() {
+		return rowsExamined;
+	}
+
+	@Override
+	public int read(long afterId, RecordSink sink) throws IOException {
+		return read(afterId, Long.MAX_VALUE, Integer.MAX_VALUE, sink);
+	}
+
+	@Override
+	public int readMessage(long id, RecordSink sink) throws IOException {
+		int i = index(id);
+		if (i < 0) {
+			return 0;
+		}
+		rowsExamined++;
+		return emit(i, sink);
+	}
+
+	@Override
+	public int read(long afterId, long toId, int limit, RecordSink sink) throws IOException {
+		int count = 0;
+		for (int i = first(afterId); i < ids.length && ids[i] <= toId && count < limit; i++) {
+			rowsExamined++;
+			count += emit(i, sink);
+		}
+		return count;
+	}
+
+	@Override
+	public long count(long afterId, long toId) {
+		long count = 0;
+		for (int i = first(afterId); i < ids.length && ids[i] <= toId; i++) {
+			if (types[i] == TYPE_INBOX || types[i] == TYPE_SENT) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public long getTopMessageId() {
+		return ids.length == 0 ? 0 : ids[ids.length - 1];
+	}
+
+	private int emit(int i, RecordSink sink) throws IOException {
+		int type = types[i];
+		if (type != TYPE_INBOX && type != TYPE_SENT) {
+			return 0;
+		}
+		row.setId(ids[i]);
+		row.setDate(dates[i]);
+		row.setNumber(numbers[i]);
+		row.setBody(bodies[i]);
+		row.setDirection(type == TYPE_INBOX ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+		sink.accept(row);
+		return 1;
+	}
+
+	private int index(long id) {
+		int i = Arrays.binarySearch(ids, id);
+		return i < 0 ? -1 : i;
+	}
+
+	/**
+	 * @param afterId
+	 * @return index of the first row with a higher ID
+	 */
+	private int first(long afterId) {
+		int i = Arrays.binarySearch(ids, afterId);
+		return i < 0 ? -i - 1 : i + 1;
+	}
+}
@@ -0,0 +1,95 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.LogAppender;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SeenIdWindow;
+import com.bobcripps.smsrecorder.core.SegmentedSmsLog;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End to end ingest of a synthetic SMS stream on the persist path the pipeline runs: read the
+ * source after the watermark, skip seen IDs, encode, append to the segmented log, commit under
+ * the durability policy and seal segments. Sealed segments are deleted straight away as if the
+ * upload had succeeded. Time is per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IngestBenchmark {
+	// Messages arriving per coalesced batch of notifications
+	private static final int BATCH = 16;
+
+	@Param({"CSV", "BINARY"})
+	public RecordFormat format;
+
+	@Param({"every-batch", "group-commit"})
+	public String policy;
+
+	private File dir;
+	private SyntheticSmsSource source;
+	private SegmentedSmsLog log;
+	private LogAppender appender;
+	private SeenIdWindow seenIds;
+	private long currentId;
+
+	@Setup(Level.Iteration)
+	public void openLog() throws IOException {
+		dir = File.createTempFile("ingest-bench", "");
+		dir.delete();
+		SmsRecordEncoder encoder = format.createEncoder();
+		log = new SegmentedSmsLog(dir, format, encoder, Policies.byName(policy), 8192, 256 * 1024, 60 * 60 * 1000);
+		log.recover();
+		source = new SyntheticSmsSource(1, 50, 1);
+		appender = new LogAppender(encoder);
+		seenIds = new SeenIdWindow(0, 4096);
+		currentId = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteLog() throws IOException {
+		log.close();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public long ingestBatch() throws IOException {
+		source.arrive(BATCH);
+		appender.begin(seenIds, log.getStream());
+		source.read(currentId, appender);
+		log.commit(appender.getCount(), appender.getHighestId(), System.currentTimeMillis());
+		currentId = appender.getHighestId();
+		while (log.hasSealedSegments()) {
+			log.markUploaded(log.getSealedSegments().get(0));
+		}
+		return currentId;
+	}
+}
@@ -0,0 +1,163 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsSource;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * An SMS provider filling up in real time. Each message's date is the wall clock time it arrived
+ * so latency can be measured from any record downstream. The number, direction and body are
+ * derived from the ID as in SyntheticSmsSource, only the dates are stored, allocated up front
+ * so the table itself doesn't grow the heap during a run.
+ * Thread safe for one reader and one thread calling arrive().
+ */
+public class LiveSmsSource implements SmsSource {
+	/**
+	 * How long bodies are, percent short and filling one SMS part, the rest run to several parts
+	 */
+	public enum BodySizes {
+		// A few words
+		SHORT(100, 0),
+		// Mostly short, some filling one SMS part, a few of several parts
+		MIXED(70, 22),
+		// Every message runs to several parts
+		LONG(0, 0);
+
+		private final int shortPercent;
+		private final int singlePartPercent;
+
+		BodySizes(int shortPercent, int singlePartPercent) {
+			this.shortPercent = shortPercent;
+			this.singlePartPercent = singlePartPercent;
+		}
+
+		/**
+		 * @param name case insensitive
+		 * @return the sizes, MIXED if the name isn't known
+		 */
+		public static BodySizes fromName(String name) {
+			for (BodySizes sizes : values()) {
+				if (sizes.name().equalsIgnoreCase(name)) {
+					return sizes;
+				}
+			}
+			return MIXED;
+		}
+	}
+
+	private static final String[] WORDS = {"ok", "see", "you", "at", "the", "station", "running", "late",
+			"call", "me", "when", "you're", "free", "thanks!", "how's", "it", "going", "tonight", "?", "x"};
+	private static final String[] NON_ASCII = {"café", "naïve", "Grüße", "привет", "你好", "😀", "👍"};
+	// Characters in a GSM SMS part
+	private static final int PART_CHARS = 160;
+
+	private final BodySizes sizes;
+	private final int correspondents;
+	private final long[] dates;
+	private volatile long topId;
+	private final Random random = new Random();
+	private final StringBuilder body = new StringBuilder();
+	private final SmsData row = new SmsData();
+
+	/**
+	 * @param capacity most messages that can arrive, IDs 1 to capacity
+	 * @param correspondents number of distinct phone numbers
+	 * @param sizes
+	 */
+	public LiveSmsSource(int capacity, int correspondents, BodySizes sizes) {
+		this.dates = new long[capacity];
+		this.correspondents = correspondents;
+		this.sizes = sizes;
+	}
+
+	/**
+	 * A message arrives now, call from one thread
+	 * @return its ID, 0 if the source is full
+	 */
+	public long arrive() {
+		long id = topId + 1;
+		if (id > dates.length) {
+			return 0;
+		}
+		dates[(int) id - 1] = System.currentTimeMillis();
+		// Published by the volatile write
+		topId = id;
+		return id;
+	}
+
+	public int getCapacity() {
+		return dates.length;
+	}
+
+	@Override
+	public long getTopMessageId() {
+		return topId;
+	}
+
+	@Override
+	public int read(long afterId, RecordSink sink) throws IOException {
+		return read(afterId, Long.MAX_VALUE, Integer.MAX_VALUE, sink);
+	}
+
+	@Override
+	public int readMessage(long id, RecordSink sink) throws IOException {
+		if (id <= 0 || id > topId) {
+			return 0;
+		}
+		fill(id, row);
+		sink.accept(row);
+		return 1;
+	}
+
+	@Override
+	public int read(long afterId, long toId, int limit, RecordSink sink) throws IOException {
+		long to = Math.min(toId, topId);
+		int count = 0;
+		for (long id = Math.max(afterId, 0) + 1; id <= to && count < limit; id++) {
+			fill(id, row);
+			sink.accept(row);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public long count(long afterId, long toId) {
+		return Math.max(0, Math.min(toId, topId) - Math.max(afterId, 0));
+	}
+
+	/**
+	 * @param id must have arrived
+	 * @param smsData filled in with the message that has this ID
+	 */
+	public void fill(long id, SmsData smsData) {
+		random.setSeed(id);
+		// Squaring skews the choice towards the first few correspondents
+		double skew = random.nextDouble();
+		smsData.setId(id);
+		smsData.setDate(dates[(int) id - 1]);
+		smsData.setNumber("+4477009" + String.format("%05d", (int) (skew * skew * correspondents)));
+		smsData.setDirection(random.nextInt(3) == 0 ? SmsData.SMSDirection.Out : SmsData.SMSDirection.In);
+		int percent = random.nextInt(100);
+		int length;
+		if (percent < sizes.shortPercent) {
+			length = 5 + random.nextInt(40);
+		} else if (percent < sizes.shortPercent + sizes.singlePartPercent) {
+			length = 100 + random.nextInt(PART_CHARS - 100);
+		} else {
+			length = 2 * PART_CHARS + random.nextInt(4 * PART_CHARS);
+		}
+		body.setLength(0);
+		while (body.length() < length) {
+			if (body.length() > 0) {
+				body.append(' ');
+			}
+			body.append(random.nextInt(8) == 0 ? NON_ASCII[random.nextInt(NON_ASCII.length)]
+					: WORDS[random.nextInt(WORDS.length)]);
+		}
+		smsData.setBody(body.toString());
+	}
+}
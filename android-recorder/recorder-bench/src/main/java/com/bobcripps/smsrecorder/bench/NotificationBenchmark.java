@@ -0,0 +1,86 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.RecorderPipeline;
+import com.bobcripps.smsrecorder.core.SmsData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.text.NumberFormat;
+import java.text.ParsePosition;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one notification naming a message that's gap rows below the top of a large provider,
+ * e.g. one sent after sitting in the outbox while others arrived. The range scan is what the
+ * persist worker used to do, read everything after the ID and skip what's been written, the
+ * lookup is the read by ID it does now. Parsing the ID from the URI is compared with the
+ * NumberFormat parse it replaced.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NotificationBenchmark {
+	private static final int ROWS_BELOW = 100000;
+	private static final String URI = "content://sms/1048577";
+
+	@Param({"100", "10000", "1000000"})
+	public int gap;
+
+	private FakeSmsProvider provider;
+	private long id;
+	private final RecordSink sink = new RecordSink() {
+		@Override
+		public void accept(SmsData record) {
+			records++;
+		}
+	};
+	private long records;
+
+	@Setup
+	public void setUp() {
+		provider = new FakeSmsProvider(ROWS_BELOW + gap, 1);
+		id = ROWS_BELOW;
+		provider.setType(id, FakeSmsProvider.TYPE_SENT);
+	}
+
+	@Benchmark
+	public long rangeScan() throws IOException {
+		provider.read(id - 1, sink);
+		return records;
+	}
+
+	@Benchmark
+	public long pointLookup() throws IOException {
+		provider.readMessage(id, sink);
+		return records;
+	}
+
+	@Benchmark
+	public long parseNumberFormat() {
+		String[] tokens = URI.split("/");
+		String lastToken = tokens[tokens.length - 1];
+		ParsePosition pos = new ParsePosition(0);
+		NumberFormat.getInstance().parse(lastToken, pos);
+		return lastToken.length() == pos.getIndex() ? Long.parseLong(lastToken) : RecorderPipeline.NO_ID;
+	}
+
+	@Benchmark
+	public long parseInPlace() {
+		return RecorderPipeline.idOf(URI);
+	}
+}
@@ -0,0 +1,324 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.Backfill;
+import com.bobcripps.smsrecorder.core.DurabilityPolicy;
+import com.bobcripps.smsrecorder.core.FileUploadListener;
+import com.bobcripps.smsrecorder.core.OverflowPolicy;
+import com.bobcripps.smsrecorder.core.PipelineConfig;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.RecorderMetrics;
+import com.bobcripps.smsrecorder.core.RecorderPipeline;
+import com.bobcripps.smsrecorder.core.RetryScheduler;
+import com.bobcripps.smsrecorder.core.SegmentedSmsLog;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+import com.bobcripps.smsrecorder.core.SmsRecordReader;
+import com.bobcripps.smsrecorder.core.UploadEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Weeks of SMS traffic with the server unreachable, once for each overflow policy, then the
+ * server comes back and the backlog drains.
+ * <pre>
+ * java OfflineSimulation [weeks] [messages per day] [max backlog KB]
+ * </pre>
+ * Runs the real pipeline, with a backfill, on a SyntheticSmsSource with an uploader that fails
+ * every upload until the end. The log directory's size on disk is sampled after every batch.
+ * Metadata only has no hard ceiling, the bytes each message adds once over the quota are
+ * reported instead. I/O per message counts log appends and compaction's reads
+ * and writes, syncs per message the log's fsyncs.
+ * Once uploads succeed the messages the server got are counted. OfflineSimulationTest runs a
+ * shorter simulation and checks the ceiling and that every message arrives exactly once, less
+ * the ones the policy dropped.
+ */
+public class OfflineSimulation {
+	private static final int SEGMENT_BYTES = 32 * 1024;
+	private static final long DRAIN_TIMEOUT_MS = 60000;
+
+	/**
+	 * What one run saw
+	 */
+	static class Result {
+		final OverflowPolicy policy;
+		final int messages;
+		final int missing;
+		final int duplicates;
+		// Received without a body
+		final int withoutBody;
+		final long errors;
+		final long peakBytes;
+		// Most the log can hold under a hard quota, the active segment can't be compacted or dropped
+		final long ceiling;
+		final RecorderMetrics metrics;
+
+		Result(OverflowPolicy policy, int messages, int missing, int duplicates, int withoutBody, long errors,
+				long peakBytes, long ceiling, RecorderMetrics metrics) {
+			this.policy = policy;
+			this.messages = messages;
+			this.missing = missing;
+			this.duplicates = duplicates;
+			this.withoutBody = withoutBody;
+			this.errors = errors;
+			this.peakBytes = peakBytes;
+			this.ceiling = ceiling;
+			this.metrics = metrics;
+		}
+	}
+
+	private final int days;
+	private final int messagesPerDay;
+	private final long maxBacklogBytes;
+
+	private volatile boolean online;
+	// Message IDs the server got, with and without a body
+	private int[] received;
+	private int[] bodiless;
+	private final AtomicLong eventsHandled = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	// Written by the persist worker
+	private volatile long peakBytes;
+	private File logDir;
+
+	OfflineSimulation(int days, int messagesPerDay, long maxBacklogBytes) {
+		this.days = days;
+		this.messagesPerDay = messagesPerDay;
+		this.maxBacklogBytes = maxBacklogBytes;
+	}
+
+	/**
+	 * @param policy
+	 * @return what the server got, after the offline figures have been printed
+	 * @throws Exception
+	 */
+	Result run(OverflowPolicy policy) throws Exception {
+		logDir = File.createTempFile("offline-sim", "");
+		logDir.delete();
+		int messages = days * messagesPerDay;
+		received = new int[messages + 1];
+		bodiless = new int[messages + 1];
+		online = false;
+		peakBytes = 0;
+		eventsHandled.set(0);
+		errors.set(0);
+
+		SyntheticSmsSource source = new SyntheticSmsSource(7, 50, 1);
+		SmsRecordEncoder encoder = RecordFormat.CSV.createEncoder();
+		SegmentedSmsLog log = new SegmentedSmsLog(logDir, RecordFormat.CSV, encoder,
+				DurabilityPolicy.groupCommit(1000, 32), 8192, SEGMENT_BYTES, 24 * 60 * 60 * 1000L);
+		PipelineConfig config = new PipelineConfig();
+		config.setCoalesceWindowMs(0);
+		config.setEventCapacity(messagesPerDay * 2);
+		config.setCompactAboveBytes(maxBacklogBytes / 4);
+		config.setMaxBacklogBytes(maxBacklogBytes);
+		config.setOverflowPolicy(policy);
+		config.setBackfillPauseMs(10);
+		ExecutorService persistExecutor = Executors.newSingleThreadExecutor();
+		ExecutorService uploadExecutor = Executors.newSingleThreadExecutor();
+		ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor();
+		ScheduledExecutorService backfillExecutor = Executors.newSingleThreadScheduledExecutor();
+		final RecorderPipeline[] pipeline = new RecorderPipeline[1];
+		RetryScheduler retryScheduler = new RetryScheduler(retryExecutor, new Runnable() {
+			@Override
+			public void run() {
+				pipeline[0].retryUploads();
+			}
+		}, 20, 200, RetryScheduler.SYSTEM_CLOCK, RetryScheduler.ALWAYS_OPEN, new Random(1));
+		pipeline[0] = new RecorderPipeline(source, log, encoder, new ServerUploader(), retryScheduler, config,
+				persistExecutor, uploadExecutor, new SimulationCallbacks());
+		RecorderPipeline recorder = pipeline[0];
+		recorder.setBackfill(new Backfill(new File(logDir, "backfill")), backfillExecutor);
+		recorder.start();
+		// Handled once the log is recovered, so the messages that follow aren't taken for ones
+		// already on the phone
+		recorder.notifyChanged(RecorderPipeline.NO_ID);
+		long offered = 1;
+		while (eventsHandled.get() < offered) {
+			Thread.sleep(1);
+		}
+		for (int day = 0; day < days; day++) {
+			for (int i = 0; i < messagesPerDay; i++) {
+				source.arrive(1);
+				recorder.notifyChanged(source.getTopMessageId());
+				offered++;
+			}
+			while (eventsHandled.get() < offered) {
+				Thread.sleep(1);
+			}
+		}
+		File metricsFile = new File(logDir.getParentFile(), logDir.getName() + ".metrics");
+		recorder.saveMetrics(metricsFile);
+		RecorderMetrics metrics = recorder.getMetrics();
+		long offlineBacklog = metrics.getBacklogBytes();
+		long offlineRecords = metrics.getBacklogRecords();
+		long syncs = recorder.getSyncCount();
+		long stored = recorder.getIngestStats().getMessagesStored();
+		long io = metrics.getBytesWritten() + metrics.getBytesCompacted() * 2 - metrics.getCompactionSaved();
+
+		// The server comes back
+		online = true;
+		long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+		do {
+			Thread.sleep(50);
+			recorder.saveMetrics(metricsFile);
+		} while ((metrics.getBacklogRecords() > 0 || metrics.isOverQuota()
+				|| received(messages) + metrics.getRecordsDropped() < messages)
+				&& System.currentTimeMillis() < deadline);
+		recorder.stop();
+		persistExecutor.shutdown();
+		uploadExecutor.shutdown();
+		retryExecutor.shutdown();
+		backfillExecutor.shutdown();
+		uploadExecutor.awaitTermination(10, TimeUnit.SECONDS);
+
+		int missing = 0;
+		int duplicates = 0;
+		int withoutBody = 0;
+		for (int id = 1; id <= messages; id++) {
+			if (received[id] == 0) {
+				missing++;
+			} else if (received[id] > 1) {
+				duplicates++;
+			}
+			withoutBody += bodiless[id];
+		}
+		System.out.println(String.format("%s: %d messages over %d days, peak on disk %d KB (quota %d KB), "
+						+ "offline backlog %d KB %d records", policy, messages, days, peakBytes / 1024,
+				maxBacklogBytes / 1024, offlineBacklog / 1024, offlineRecords));
+		System.out.println(String.format("  offline: %d stored, %.1f bytes written and %.3f syncs per message, "
+						+ "compacted %d KB saving %d KB", stored, stored == 0 ? 0.0 : (double) io / stored,
+				stored == 0 ? 0.0 : (double) syncs / stored, metrics.getBytesCompacted() / 1024,
+				metrics.getCompactionSaved() / 1024));
+		System.out.println(String.format("  after reconnect: %d missing, %d duplicates, %d dropped, %d without body "
+						+ "(%d bodies dropped), %d errors", missing, duplicates, metrics.getRecordsDropped(), withoutBody,
+				metrics.getBodiesDropped(), errors.get()));
+		if (policy == OverflowPolicy.METADATA_ONLY) {
+			long overQuota = Math.max(0, peakBytes - maxBacklogBytes);
+			System.out.println(String.format("  %.1f bytes per message over the quota", metrics.getBodiesDropped() == 0
+					? 0.0 : (double) overQuota / metrics.getBodiesDropped()));
+		}
+		deleteLog();
+		metricsFile.delete();
+		return new Result(policy, messages, missing, duplicates, withoutBody, errors.get(), peakBytes,
+				maxBacklogBytes + SEGMENT_BYTES, metrics);
+	}
+
+	private int received(int messages) {
+		int count = 0;
+		for (int id = 1; id <= messages; id++) {
+			if (received[id] > 0) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return bytes of every file in the log directory
+	 */
+	private long diskBytes() {
+		long total = 0;
+		File[] files = logDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				total += file.length();
+			}
+		}
+		return total;
+	}
+
+	private void deleteLog() {
+		File[] files = logDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		logDir.delete();
+	}
+
+	/**
+	 * Fails every upload while offline. Online it reads the segment as the server would and
+	 * counts each message ID it holds
+	 */
+	private class ServerUploader implements UploadEngine.Uploader {
+		@Override
+		public void discard(File file) {
+			// Nothing is kept between attempts
+		}
+
+		@Override
+		public void uploadFile(File file, FileUploadListener listener) {
+			if (!online) {
+				listener.fileUploaded(file, false);
+				return;
+			}
+			SmsData record = new SmsData();
+			try {
+				InputStream in = SegmentedSmsLog.openSegment(file);
+				try {
+					SmsRecordReader reader = RecordFormat.readableFormatOf(SegmentedSmsLog.uncompressedName(file))
+							.createReader(in);
+					while (reader.read(record)) {
+						int id = (int) record.getId();
+						received[id]++;
+						// CSV reads a missing body back as empty
+						if (record.getBody() == null || record.getBody().isEmpty()) {
+							bodiless[id]++;
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				errors.incrementAndGet();
+				listener.fileUploaded(file, false);
+				return;
+			}
+			listener.fileUploaded(file, true);
+		}
+	}
+
+	private class SimulationCallbacks implements RecorderPipeline.Callbacks {
+		@Override
+		public void logRecovered(SegmentedSmsLog log) {
+		}
+
+		@Override
+		public void batchPersisted(int events, int written) {
+			long bytes = diskBytes();
+			if (bytes > peakBytes) {
+				peakBytes = bytes;
+			}
+			eventsHandled.addAndGet(events);
+		}
+
+		@Override
+		public void backfillPersisted(int written, long remaining) {
+		}
+
+		@Override
+		public void error(String where, Exception e) {
+			errors.incrementAndGet();
+			System.err.println(where + " " + e);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int weeks = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+		int messagesPerDay = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+		long maxBacklogBytes = (args.length > 2 ? Long.parseLong(args[2]) : 256) * 1024;
+		OfflineSimulation simulation = new OfflineSimulation(weeks * 7, messagesPerDay, maxBacklogBytes);
+		for (OverflowPolicy policy : OverflowPolicy.values()) {
+			simulation.run(policy);
+		}
+	}
+}
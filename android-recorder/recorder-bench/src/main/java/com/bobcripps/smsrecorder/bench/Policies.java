@@ -0,0 +1,26 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.DurabilityPolicy;
+
+/**
+ * Durability policies by the name benchmarks take as a parameter
+ */
+final class Policies {
+	private Policies() {
+	}
+
+	/**
+	 * @param name every-batch, group-commit or on-upload-handoff
+	 * @return the policy, group commit with the settings the service uses
+	 */
+	static DurabilityPolicy byName(String name) {
+		if (name.equals("every-batch")) {
+			return DurabilityPolicy.everyBatch();
+		} else if (name.equals("group-commit")) {
+			return DurabilityPolicy.groupCommit(1000, 32);
+		} else if (name.equals("on-upload-handoff")) {
+			return DurabilityPolicy.onUploadHandoff();
+		}
+		throw new IllegalArgumentException("Unknown policy " + name);
+	}
+}
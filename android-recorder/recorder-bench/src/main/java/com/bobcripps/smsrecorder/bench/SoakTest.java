@@ -0,0 +1,486 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.Backfill;
+import com.bobcripps.smsrecorder.core.DurabilityPolicy;
+import com.bobcripps.smsrecorder.core.FileUploadListener;
+import com.bobcripps.smsrecorder.core.LatencyHistogram;
+import com.bobcripps.smsrecorder.core.PipelineConfig;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.RecorderMetrics;
+import com.bobcripps.smsrecorder.core.RecorderPipeline;
+import com.bobcripps.smsrecorder.core.RetryScheduler;
+import com.bobcripps.smsrecorder.core.SegmentedSmsLog;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+import com.bobcripps.smsrecorder.core.SmsRecordReader;
+import com.bobcripps.smsrecorder.core.UploadEngine;
+import com.bobcripps.smsrecorder.server.DeviceLedgers;
+import com.bobcripps.smsrecorder.server.IngestServer;
+import com.bobcripps.smsrecorder.server.PartitionedStore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End to end soak of the recorder: SMS arrive in real time, the pipeline SmsListenerService
+ * runs persists them and uploads its segments over HTTP to an ingest server.
+ * <pre>
+ * java SoakTest [base url|local] [seconds] [messages/s] [burst] [short|mixed|long] [segment seconds] [min messages/s]
+ * </pre>
+ * local, the default, starts an IngestServer on a free port storing in a temporary directory.
+ * Messages arrive at the rate, 0 for as fast as the pipeline persists them, and every 10 seconds
+ * a burst of that many arrive at once as they do when a phone comes back into coverage. Body
+ * sizes are drawn from LiveSmsSource.BodySizes. Segments are sealed at 256KB as on the phone or
+ * once they're the given age, which bounds end to end latency from below at low rates.
+ * Each message is notified the way the provider's observer sees it: most with their ID, some
+ * twice, some as "raw" without an ID, some after the message that followed them and a few not
+ * at all, which the next notification's gap read picks up.
+ * Reports messages a second persisted while they were arriving and acknowledged including the
+ * drain after, end to end latency from arrival to the server acknowledging the segment, the
+ * heap after a GC before and after the run, and fsyncs per message.
+ * Fails with exit code 1 if fewer than the minimum messages a second were persisted, so a
+ * scripted run catches throughput regressions. SoakDeliveryTest runs a short soak and checks
+ * every message reaches the server exactly once.
+ */
+public class SoakTest {
+	private static final long MAX_SEGMENT_BYTES = 256 * 1024;
+	private static final long BURST_INTERVAL_NS = TimeUnit.SECONDS.toNanos(10);
+	private static final long PROGRESS_INTERVAL_MS = 10000;
+	// Messages as fast as it goes can be ahead of the persisted ones
+	private static final int MAX_AHEAD = 20000;
+	// Most messages as fast as it goes, the source's dates take 8 bytes each
+	private static final int MAX_MESSAGES = 8000000;
+	private static final long DRAIN_TIMEOUT_MS = 60000;
+	// Percent of notifications, see notifyArrived()
+	private static final int LOST_PERCENT = 2;
+	private static final int RAW_PERCENT = 5;
+	private static final int OUT_OF_ORDER_PERCENT = 5;
+	private static final int DUPLICATE_PERCENT = 10;
+	private static final String BOUNDARY = "soak-boundary";
+
+	/**
+	 * What one run saw
+	 */
+	static class Result {
+		final long messages;
+		final int missing;
+		// Reached the server more than once
+		final int repeated;
+		final long errors;
+		// Messages a second persisted while they were arriving
+		final double persistedRate;
+
+		Result(long messages, int missing, int repeated, long errors, double persistedRate) {
+			this.messages = messages;
+			this.missing = missing;
+			this.repeated = repeated;
+			this.errors = errors;
+			this.persistedRate = persistedRate;
+		}
+	}
+
+	private final String baseUrl;
+	private final int seconds;
+	private final int rate;
+	private final int burst;
+	private final LiveSmsSource source;
+	private final long segmentAgeMs;
+	private final String device = "soak-" + System.currentTimeMillis();
+	private final Random random = new Random(11);
+	// Times each message ID was in a segment the server acknowledged
+	private final byte[] received;
+	private final LatencyHistogram endToEnd = new LatencyHistogram("endToEndMs");
+	private final AtomicLong acknowledged = new AtomicLong();
+	private final AtomicLong uploadFailures = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong eventsHandled = new AtomicLong();
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private volatile long peakHeap;
+	private RecorderPipeline recorder;
+	// Notifications by pattern
+	private long notifications;
+	private long duplicates;
+	private long raw;
+	private long outOfOrder;
+	private long lost;
+	// Held back to be notified after the next message
+	private long heldId;
+
+	SoakTest(String baseUrl, int seconds, int rate, int burst, LiveSmsSource.BodySizes sizes, long segmentAgeMs) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+		this.seconds = seconds;
+		this.rate = rate;
+		this.burst = burst;
+		this.segmentAgeMs = segmentAgeMs;
+		long bursts = burst == 0 ? 0 : (long) burst * (seconds / 10 + 1);
+		long capacity = rate == 0 ? MAX_MESSAGES : Math.min(MAX_MESSAGES, (long) rate * seconds + bursts);
+		this.source = new LiveSmsSource((int) capacity, 50, sizes);
+		this.received = new byte[(int) capacity + 1];
+	}
+
+	/**
+	 * @return what the server got, after the figures have been printed
+	 * @throws Exception
+	 */
+	Result run() throws Exception {
+		File logDir = File.createTempFile("soak", "");
+		logDir.delete();
+		SmsRecordEncoder encoder = RecordFormat.CSV.createEncoder();
+		SegmentedSmsLog log = new SegmentedSmsLog(logDir, RecordFormat.CSV, encoder,
+				DurabilityPolicy.groupCommit(1000, 32), 8192, MAX_SEGMENT_BYTES, segmentAgeMs);
+		// The app's defaults
+		PipelineConfig config = new PipelineConfig();
+		ExecutorService persistExecutor = Executors.newSingleThreadExecutor();
+		ExecutorService uploadExecutor = Executors.newSingleThreadExecutor();
+		ScheduledExecutorService retryExecutor = Executors.newSingleThreadScheduledExecutor();
+		ScheduledExecutorService backfillExecutor = Executors.newSingleThreadScheduledExecutor();
+		ScheduledExecutorService progressExecutor = Executors.newSingleThreadScheduledExecutor();
+		RetryScheduler retryScheduler = new RetryScheduler(retryExecutor, new Runnable() {
+			@Override
+			public void run() {
+				recorder.retryUploads();
+			}
+		}, 100, 5000, RetryScheduler.SYSTEM_CLOCK, RetryScheduler.ALWAYS_OPEN, new Random(1));
+		recorder = new RecorderPipeline(source, log, encoder, new HttpUploader(), retryScheduler, config,
+				persistExecutor, uploadExecutor, new SoakCallbacks());
+		recorder.setBackfill(new Backfill(new File(logDir, "backfill")), backfillExecutor);
+		recorder.start();
+		// Handled once the log is recovered, so the messages that follow aren't taken for ones
+		// already on the phone
+		recorder.notifyChanged(RecorderPipeline.NO_ID);
+		while (eventsHandled.get() == 0) {
+			Thread.sleep(1);
+		}
+		long heapBefore = heapAfterGc();
+		final long begin = System.nanoTime();
+		progressExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				long used = memory.getHeapMemoryUsage().getUsed();
+				peakHeap = Math.max(peakHeap, used);
+				System.out.println(String.format("  %3d s: %d arrived, %d persisted, %d acknowledged, heap %d MB",
+						(System.nanoTime() - begin) / 1000000000L, source.getTopMessageId(),
+						recorder.getIngestStats().getMessagesStored(), acknowledged.get(), used >> 20));
+			}
+		}, PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+		inject(begin);
+		long injectNs = System.nanoTime() - begin;
+		long persistedWhileArriving = recorder.getIngestStats().getMessagesStored();
+		// Picks up lost notifications at the end of the run
+		recorder.notifyChanged(RecorderPipeline.NO_ID);
+		long messages = source.getTopMessageId();
+		long deadline = System.currentTimeMillis() + segmentAgeMs + DRAIN_TIMEOUT_MS;
+		while (acknowledged.get() < messages && System.currentTimeMillis() < deadline) {
+			Thread.sleep(200);
+			// Seals the last segment once it's old enough, then sends it
+			recorder.notifyChanged(RecorderPipeline.NO_ID);
+			recorder.retryUploads();
+		}
+		long totalNs = System.nanoTime() - begin;
+		progressExecutor.shutdown();
+		long heapAfter = heapAfterGc();
+		recorder.saveMetrics(new File(logDir, "metrics"));
+		RecorderMetrics metrics = recorder.getMetrics();
+		long syncs = recorder.getSyncCount();
+		recorder.stop();
+		persistExecutor.shutdown();
+		uploadExecutor.shutdown();
+		retryExecutor.shutdown();
+		backfillExecutor.shutdown();
+		uploadExecutor.awaitTermination(10, TimeUnit.SECONDS);
+
+		int missing = 0;
+		int repeated = 0;
+		for (int id = 1; id <= messages; id++) {
+			if (received[id] == 0) {
+				missing++;
+			} else if (received[id] > 1) {
+				repeated++;
+			}
+		}
+		double persistedRate = persistedWhileArriving * 1e9 / injectNs;
+		System.out.println(String.format("notifications: %d, %d duplicated, %d raw, %d out of order, %d lost",
+				notifications, duplicates, raw, outOfOrder, lost));
+		System.out.println(String.format("throughput: %.1f messages/s persisted while arriving, %.1f messages/s "
+				+ "acknowledged including %d ms to drain", persistedRate, acknowledged.get() * 1e9 / totalNs,
+				(totalNs - injectNs) / 1000000));
+		System.out.println("latency: " + endToEnd + " " + metrics.getPersistLatency() + " " + metrics.getAckLatency());
+		System.out.println(String.format("heap: %d KB after GC before, %d KB after, %+d KB growth, peak %d MB",
+				heapBefore >> 10, heapAfter >> 10, (heapAfter - heapBefore) >> 10, peakHeap >> 20));
+		System.out.println(String.format("syncs: %d, %.4f per message, %s", syncs, messages == 0 ? 0.0
+				: (double) syncs / messages, metrics.getSyncTime()));
+		System.out.println(String.format("delivery: %d messages, %d missing, %d twice, %d upload failures, %d errors",
+				messages, missing, repeated, uploadFailures.get(), errors.get()));
+		deleteTree(logDir);
+		return new Result(messages, missing, repeated, errors.get(), persistedRate);
+	}
+
+	/**
+	 * Messages arrive at the rate with a burst every interval until the time is up
+	 * @param begin System.nanoTime() the run started
+	 * @throws InterruptedException
+	 */
+	private void inject(long begin) throws InterruptedException {
+		long end = begin + TimeUnit.SECONDS.toNanos(seconds);
+		long nextBurst = begin + BURST_INTERVAL_NS;
+		long paced = 0;
+		long now;
+		while ((now = System.nanoTime()) < end) {
+			if (burst > 0 && now >= nextBurst) {
+				for (int i = 0; i < burst; i++) {
+					if (!arrive()) {
+						return;
+					}
+				}
+				nextBurst += BURST_INTERVAL_NS;
+			}
+			if (rate == 0) {
+				if (source.getTopMessageId() - recorder.getIngestStats().getMessagesStored() < MAX_AHEAD) {
+					if (!arrive()) {
+						return;
+					}
+				} else {
+					Thread.sleep(1);
+				}
+				continue;
+			}
+			long due = (now - begin) * rate / 1000000000L;
+			for (; paced < due; paced++) {
+				if (!arrive()) {
+					return;
+				}
+			}
+			Thread.sleep(1);
+		}
+		if (heldId != 0) {
+			recorder.notifyChanged(heldId);
+			heldId = 0;
+		}
+	}
+
+	/**
+	 * @return false if the source is full
+	 */
+	private boolean arrive() {
+		long id = source.arrive();
+		if (id == 0) {
+			System.out.println("  the source is full at " + source.getCapacity() + " messages");
+			return false;
+		}
+		notifyArrived(id);
+		return true;
+	}
+
+	/**
+	 * Notify the pipeline of a message the way the observer would, lost, raw, held back until
+	 * after the next message or with its ID, and sometimes twice
+	 * @param id
+	 */
+	private void notifyArrived(long id) {
+		int pattern = random.nextInt(100);
+		long notified;
+		if (pattern < LOST_PERCENT) {
+			lost++;
+			notified = 0;
+		} else if (pattern < LOST_PERCENT + RAW_PERCENT) {
+			raw++;
+			notified = RecorderPipeline.NO_ID;
+		} else if (pattern < LOST_PERCENT + RAW_PERCENT + OUT_OF_ORDER_PERCENT && heldId == 0) {
+			outOfOrder++;
+			heldId = id;
+			return;
+		} else {
+			notified = id;
+		}
+		if (notified != 0) {
+			recorder.notifyChanged(notified);
+			notifications++;
+			if (random.nextInt(100) < DUPLICATE_PERCENT) {
+				recorder.notifyChanged(notified);
+				notifications++;
+				duplicates++;
+			}
+		}
+		if (heldId != 0) {
+			recorder.notifyChanged(heldId);
+			notifications++;
+			heldId = 0;
+		}
+	}
+
+	private long heapAfterGc() {
+		System.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	/**
+	 * Posts each segment to fileupload.php as FileUploadHandler does. Once the server has
+	 * acknowledged it counts each message in it and how long since it arrived
+	 */
+	private class HttpUploader implements UploadEngine.Uploader {
+		@Override
+		public void discard(File file) {
+			// Nothing is kept between attempts
+		}
+
+		@Override
+		public void uploadFile(File file, FileUploadListener listener) {
+			if (!file.exists()) {
+				listener.fileUploaded(file, false);
+				return;
+			}
+			String name = SegmentedSmsLog.uncompressedName(file);
+			byte[] segment;
+			try {
+				segment = readSegment(file);
+				if (!post(name, segment)) {
+					uploadFailures.incrementAndGet();
+					listener.fileUploaded(file, false);
+					return;
+				}
+				long now = System.currentTimeMillis();
+				SmsData record = new SmsData();
+				SmsRecordReader reader = RecordFormat.readableFormatOf(name).createReader(
+						new ByteArrayInputStream(segment));
+				while (reader.read(record)) {
+					received[(int) record.getId()]++;
+					endToEnd.record(now - record.getDate());
+					acknowledged.incrementAndGet();
+				}
+			} catch (IOException e) {
+				uploadFailures.incrementAndGet();
+				listener.fileUploaded(file, false);
+				return;
+			}
+			listener.fileUploaded(file, true);
+		}
+
+		private byte[] readSegment(File file) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+			InputStream in = SegmentedSmsLog.openSegment(file);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				in.close();
+			}
+			return out.toByteArray();
+		}
+
+		/**
+		 * @return true if the server answered succeeded
+		 */
+		private boolean post(String name, byte[] segment) throws IOException {
+			String head = "--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"description\"\r\n\r\n"
+					+ "SMS file for upload\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"device\"\r\n\r\n"
+					+ device + "\r\n--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"smslog\"; filename=\""
+					+ name + "\"\r\nContent-Type: text/csv\r\n\r\n";
+			byte[] headBytes = head.getBytes("UTF-8");
+			byte[] tailBytes = ("\r\n--" + BOUNDARY + "--\r\n").getBytes("UTF-8");
+			HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + "fileupload.php").openConnection();
+			connection.setDoOutput(true);
+			connection.setRequestMethod("POST");
+			connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + BOUNDARY);
+			connection.setFixedLengthStreamingMode(headBytes.length + segment.length + tailBytes.length);
+			OutputStream out = connection.getOutputStream();
+			out.write(headBytes);
+			out.write(segment);
+			out.write(tailBytes);
+			out.close();
+			int status = connection.getResponseCode();
+			InputStream in = status == 200 ? connection.getInputStream() : connection.getErrorStream();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			if (in != null) {
+				byte[] buffer = new byte[256];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					response.write(buffer, 0, read);
+				}
+				in.close();
+			}
+			return status == 200 && response.toString("UTF-8").contains("\"succeeded\":true");
+		}
+	}
+
+	private class SoakCallbacks implements RecorderPipeline.Callbacks {
+		@Override
+		public void logRecovered(SegmentedSmsLog log) {
+		}
+
+		@Override
+		public void batchPersisted(int events, int written) {
+			eventsHandled.addAndGet(events);
+		}
+
+		@Override
+		public void backfillPersisted(int written, long remaining) {
+		}
+
+		@Override
+		public void error(String where, Exception e) {
+			errors.incrementAndGet();
+			System.err.println(where + " " + e);
+		}
+	}
+
+	private static void deleteTree(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+
+	public static void main(String[] args) throws Exception {
+		String url = args.length > 0 ? args[0] : "local";
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+		int rate = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+		int burst = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+		LiveSmsSource.BodySizes sizes = LiveSmsSource.BodySizes.fromName(args.length > 4 ? args[4] : "mixed");
+		long segmentAgeMs = (args.length > 5 ? Long.parseLong(args[5]) : 5) * 1000;
+		double minRate = args.length > 6 ? Double.parseDouble(args[6]) : 0;
+		IngestServer server = null;
+		File storage = null;
+		if (url.equals("local")) {
+			storage = File.createTempFile("soak-server", "");
+			storage.delete();
+			server = new IngestServer(new PartitionedStore(storage), new DeviceLedgers(storage, 100), 0, 16);
+			server.start();
+			url = "http://localhost:" + server.getPort() + "/";
+		}
+		System.out.println(String.format("soak: %d s at %s messages/s with bursts of %d, %s bodies, segments "
+						+ "sealed at %d s, to %s", seconds, rate == 0 ? "as many" : String.valueOf(rate), burst, sizes,
+				segmentAgeMs / 1000, url));
+		Result result = new SoakTest(url, seconds, rate, burst, sizes, segmentAgeMs).run();
+		if (server != null) {
+			server.stop();
+			System.out.println("server: " + server);
+			deleteTree(storage);
+		}
+		if (result.persistedRate < minRate) {
+			System.out.println(String.format("FAILED: %.1f messages/s is under the minimum %.1f", result.persistedRate,
+					minRate));
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.RecordSink;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsSource;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Generates SMS traffic without storing it. Every message is derived from its ID so any range
+ * can be read again and gives the same records.
+ * A few correspondents get most of the traffic, bodies vary in length up to a few SMS parts
+ * and a proportion contain non ASCII text.
+ * Messages "arrive" with arrive(), until then they aren't in the source.
+ * Thread safe for one reader and one thread calling arrive().
+ */
+public class SyntheticSmsSource implements SmsSource {
+	private static final String[] WORDS = {"ok", "see", "you", "at", "the", "station", "running", "late",
+			"call", "me", "when", "you're", "free", "thanks!", "how's", "it", "going", "tonight", "?", "x"};
+	private static final String[] NON_ASCII = {"café", "naïve", "Grüße", "привет", "你好", "😀", "👍"};
+
+	private final long seed;
+	private final int correspondents;
+	private final long startDate;
+	private volatile long topId;
+	private final Random random = new Random();
+	private final StringBuilder body = new StringBuilder();
+	private final SmsData row = new SmsData();
+
+	/**
+	 * @param seed same seed same traffic
+	 * @param correspondents number of distinct phone numbers
+	 * @param firstId ID of the first message to arrive
+	 */
+	public SyntheticSmsSource(long seed, int correspondents, long firstId) {
+		this.seed = seed;
+		this.correspondents = correspondents;
+		this.startDate = 1472475636000L;
+		this.topId = firstId - 1;
+	}
+
+	/**
+	 * Make more messages available to read
+	 * @param count
+	 */
+	public void arrive(int count) {
+		topId += count;
+	}
+
+	@Override
+	public long getTopMessageId() {
+		return topId;
+	}
+
+	@Override
+	public int read(long afterId, RecordSink sink) throws IOException {
+		long top = topId;
+		int count = 0;
+		for (long id = Math.max(afterId, 0) + 1; id <= top; id++) {
+			fill(id, row);
+			sink.accept(row);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public int readMessage(long id, RecordSink sink) throws IOException {
+		if (id <= 0 || id > topId) {
+			return 0;
+		}
+		fill(id, row);
+		sink.accept(row);
+		return 1;
+	}
+
+	@Override
+	public int read(long afterId, long toId, int limit, RecordSink sink) throws IOException {
+		long to = Math.min(toId, topId);
+		int count = 0;
+		for (long id = Math.max(afterId, 0) + 1; id <= to && count < limit; id++) {
+			fill(id, row);
+			sink.accept(row);
+			count++;
+		}
+		return count;
+	}
+
+	@Override
+	public long count(long afterId, long toId) {
+		return Math.max(0, Math.min(toId, topId) - Math.max(afterId, 0));
+	}
+
+	/**
+	 * @param id
+	 * @param smsData filled in with the message that has this ID
+	 */
+	public void fill(long id, SmsData smsData) {
+		random.setSeed(seed * 31 + id);
+		// Squaring skews the choice towards the first few correspondents
+		double skew = random.nextDouble();
+		int correspondent = (int) (skew * skew * correspondents);
+		smsData.setId(id);
+		// About a minute apart with some jitter
+		smsData.setDate(startDate + id * 60000L + random.nextInt(30000));
+		smsData.setNumber("+4477009" + String.format("%05d", correspondent));
+		smsData.setDirection(random.nextInt(3) == 0 ? SmsData.SMSDirection.Out : SmsData.SMSDirection.In);
+		body.setLength(0);
+		int words = 1 + random.nextInt(random.nextInt(10) == 0 ? 80 : 15);
+		for (int i = 0; i < words; i++) {
+			if (i > 0) {
+				body.append(' ');
+			}
+			body.append(random.nextInt(8) == 0 ? NON_ASCII[random.nextInt(NON_ASCII.length)]
+					: WORDS[random.nextInt(WORDS.length)]);
+		}
+		smsData.setBody(body.toString());
+	}
+}
@@ -0,0 +1,93 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SmsData;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * The CPU an upload codec costs to stream a segment into a request, per MiB of segment, on SMS
+ * corpora of each body size mix. Bytes on the wire per MiB are printed at setup so the saving
+ * can be weighed against the time. The app's UploadCodec can't be loaded off Android, this is
+ * the same Okio pipeline FileRequestBody runs it through: the segment copied from a stream into
+ * the request sink, through a GzipSink for gzip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UploadCodecBenchmark {
+	private static final int MIB = 1024 * 1024;
+
+	@Param({"SHORT", "MIXED", "LONG"})
+	public LiveSmsSource.BodySizes bodies;
+
+	@Param({"CSV", "BINARY"})
+	public RecordFormat format;
+
+	@Param({"none", "gzip"})
+	public String codec;
+
+	private byte[] segment;
+	private Buffer wire;
+
+	@Setup
+	public void setUp() throws IOException {
+		LiveSmsSource source = new LiveSmsSource(MIB / 16, 50, bodies);
+		SmsRecordEncoder encoder = format.createEncoder();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(MIB + 4096);
+		encoder.startSegment(out);
+		SmsData record = new SmsData();
+		while (out.size() < MIB) {
+			source.fill(source.arrive(), record);
+			encoder.encode(record, out);
+		}
+		// Cut to a MiB so the time is per MiB
+		segment = Arrays.copyOf(out.toByteArray(), MIB);
+		wire = new Buffer();
+		send();
+		System.out.println(bodies + " " + format + " " + codec + " bytes on wire/MiB=" + wire.size());
+	}
+
+	/**
+	 * @return bytes on the wire
+	 */
+	@Benchmark
+	public long send() throws IOException {
+		wire.clear();
+		Source source = Okio.source(new ByteArrayInputStream(segment));
+		if ("gzip".equals(codec)) {
+			BufferedSink encoded = Okio.buffer(new GzipSink(wire));
+			encoded.writeAll(source);
+			encoded.close();
+		} else {
+			wire.writeAll(source);
+		}
+		return wire.size();
+	}
+}
@@ -0,0 +1,166 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.FileUploadListener;
+import com.bobcripps.smsrecorder.core.UploadEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Dispatcher;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Time to drain a backlog of sealed segments through the upload engine to a server that takes
+ * a fixed time to answer each request, as a phone on a mobile network sees it. With the latency
+ * dominating, the drain time should fall roughly in proportion to the uploads allowed in flight
+ * until the server or the link runs out. Time is per drain of the whole backlog.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadDrainBenchmark {
+	private static final int SEGMENTS = 32;
+	private static final int SEGMENT_BYTES = 16 * 1024;
+	private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+	@Param({"1", "2", "4", "8"})
+	public int concurrency;
+
+	// Added by the server before each response
+	@Param({"50"})
+	public long latencyMs;
+
+	private MockWebServer server;
+	private OkHttpClient client;
+	private File dir;
+	private File[] segments;
+
+	@Setup(Level.Trial)
+	public void start() throws IOException {
+		server = new MockWebServer();
+		server.setDispatcher(new okhttp3.mockwebserver.Dispatcher() {
+			@Override
+			public MockResponse dispatch(RecordedRequest request) {
+				return new MockResponse().setBody("OK").setBodyDelay(latencyMs, TimeUnit.MILLISECONDS);
+			}
+		});
+		server.start();
+		Dispatcher dispatcher = new Dispatcher();
+		// OkHttp's default of 5 per host would cap the higher settings
+		dispatcher.setMaxRequestsPerHost(Math.max(concurrency, 5));
+		client = new OkHttpClient.Builder().dispatcher(dispatcher).build();
+		dir = File.createTempFile("drain-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		Random random = new Random(1);
+		byte[] bytes = new byte[SEGMENT_BYTES];
+		segments = new File[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			random.nextBytes(bytes);
+			segments[i] = new File(dir, "smslog_" + i + ".csv");
+			FileOutputStream out = new FileOutputStream(segments[i]);
+			try {
+				out.write(bytes);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void stop() throws IOException {
+		client.dispatcher().executorService().shutdown();
+		server.shutdown();
+		for (File segment : segments) {
+			segment.delete();
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public int drain() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(SEGMENTS);
+		final int[] failed = new int[1];
+		UploadEngine engine = new UploadEngine(new HttpUploader(), new UploadEngine.Listener() {
+			@Override
+			public void uploaded(File file) {
+				done.countDown();
+			}
+
+			@Override
+			public void uploadFailed(File file) {
+				synchronized (failed) {
+					failed[0]++;
+				}
+				done.countDown();
+			}
+		}, concurrency);
+		for (File segment : segments) {
+			engine.submit(segment);
+		}
+		if (!done.await(60, TimeUnit.SECONDS) || failed[0] > 0) {
+			throw new IllegalStateException("backlog not drained, " + failed[0] + " failed");
+		}
+		return engine.getOutstanding();
+	}
+
+	/**
+	 * Posts each file as the request body, the upload's shape doesn't matter next to the latency
+	 */
+	private class HttpUploader implements UploadEngine.Uploader {
+		@Override
+		public void uploadFile(final File file, final FileUploadListener listener) {
+			Request request = new Request.Builder()
+					.url(server.url("/upload"))
+					.post(RequestBody.create(OCTET_STREAM, file))
+					.build();
+			client.newCall(request).enqueue(new Callback() {
+				@Override
+				public void onFailure(Call call, IOException e) {
+					listener.fileUploaded(file, false);
+				}
+
+				@Override
+				public void onResponse(Call call, Response response) throws IOException {
+					response.body().close();
+					listener.fileUploaded(file, response.isSuccessful());
+				}
+			});
+		}
+
+		@Override
+		public void discard(File file) {
+			// Nothing is kept between attempts
+		}
+	}
+}
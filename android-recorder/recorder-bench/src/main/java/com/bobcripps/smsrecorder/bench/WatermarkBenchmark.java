@@ -0,0 +1,134 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.DurabilityPolicy;
+import com.bobcripps.smsrecorder.core.LogAppender;
+import com.bobcripps.smsrecorder.core.RecordFormat;
+import com.bobcripps.smsrecorder.core.SeenIdWindow;
+import com.bobcripps.smsrecorder.core.SegmentedSmsLog;
+import com.bobcripps.smsrecorder.core.SmsRecordEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Where the last written ID is kept, before and after it moved into the segmented log. Each
+ * invocation persists one batch of notifications, committed every batch.
+ * <ul>
+ * <li>prefs - as the service used to: the ID read from SharedPreferences before the batch and
+ * written back with commit() after it. SharedPreferences needs Android, so its commit is done
+ * the way SharedPreferencesImpl does it: the file renamed to a backup, the XML rewritten and
+ * synced, then the backup deleted</li>
+ * <li>journal - as it is now: the ID kept in memory and journaled with the batch's commit</li>
+ * </ul>
+ * Time is per batch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WatermarkBenchmark {
+	private static final int BATCH = 4;
+	private static final String CURRENT_ID = "currentId";
+
+	@Param({"prefs", "journal"})
+	public String watermark;
+
+	private File dir;
+	private File prefs;
+	private File prefsBackup;
+	// SharedPreferences answers reads from memory once the file is loaded
+	private final Map<String, Long> prefsValues = new HashMap<>();
+	private SyntheticSmsSource source;
+	private SegmentedSmsLog log;
+	private LogAppender appender;
+	private SeenIdWindow seenIds;
+	private long currentId;
+
+	@Setup(Level.Iteration)
+	public void openLog() throws IOException {
+		dir = File.createTempFile("watermark-bench", "");
+		dir.delete();
+		dir.mkdirs();
+		prefs = new File(dir, "prefs.xml");
+		prefsBackup = new File(dir, "prefs.xml.bak");
+		prefsValues.put(CURRENT_ID, 0L);
+		SmsRecordEncoder encoder = RecordFormat.CSV.createEncoder();
+		log = new SegmentedSmsLog(dir, RecordFormat.CSV, encoder, DurabilityPolicy.everyBatch(), 8192,
+				256 * 1024, 60 * 60 * 1000);
+		log.recover();
+		source = new SyntheticSmsSource(1, 50, 1);
+		appender = new LogAppender(encoder);
+		seenIds = new SeenIdWindow(0, 4096);
+		currentId = 0;
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteLog() throws IOException {
+		log.close();
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public long persistBatch() throws IOException {
+		boolean usePrefs = "prefs".equals(watermark);
+		long fromId = usePrefs ? prefsValues.get(CURRENT_ID) : currentId;
+		source.arrive(BATCH);
+		appender.begin(seenIds, log.getStream());
+		source.read(fromId, appender);
+		log.commit(appender.getCount(), appender.getHighestId(), System.currentTimeMillis());
+		currentId = appender.getHighestId();
+		if (usePrefs) {
+			commitPrefs(currentId);
+		}
+		while (log.hasSealedSegments()) {
+			log.markUploaded(log.getSealedSegments().get(0));
+		}
+		return currentId;
+	}
+
+	/**
+	 * What SharedPreferences.Editor.commit() writes for a one value preferences file
+	 * @param id
+	 */
+	private void commitPrefs(long id) throws IOException {
+		prefsValues.put(CURRENT_ID, id);
+		if (prefs.exists() && !prefs.renameTo(prefsBackup)) {
+			throw new IOException("Can't back up " + prefs);
+		}
+		FileOutputStream out = new FileOutputStream(prefs);
+		try {
+			out.write(("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n<map>\n"
+					+ "    <long name=\"" + CURRENT_ID + "\" value=\"" + id + "\" />\n</map>\n").getBytes("UTF-8"));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		prefsBackup.delete();
+	}
+}
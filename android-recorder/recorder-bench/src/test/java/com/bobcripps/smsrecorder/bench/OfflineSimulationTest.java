@@ -0,0 +1,53 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.core.OverflowPolicy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Two weeks offline against a quota a few days fill. Once uploads succeed every message must
+ * reach the server exactly once, less the ones the policy dropped
+ */
+public class OfflineSimulationTest {
+	private final OfflineSimulation simulation = new OfflineSimulation(14, 300, 48 * 1024);
+
+	@Test
+	public void stopRecordingStaysUnderTheQuota() throws Exception {
+		assertDroppedWhole(run(OverflowPolicy.STOP_RECORDING));
+	}
+
+	@Test
+	public void dropOldestStaysUnderTheQuota() throws Exception {
+		OfflineSimulation.Result result = run(OverflowPolicy.DROP_OLDEST);
+		assertDroppedWhole(result);
+		assertTrue(result.metrics.getRecordsDropped() > 0);
+	}
+
+	@Test
+	public void metadataOnlyKeepsEveryMessage() throws Exception {
+		OfflineSimulation.Result result = run(OverflowPolicy.METADATA_ONLY);
+		assertEquals("missing", 0, result.missing);
+		assertTrue(result.metrics.getBodiesDropped() > 0);
+		assertEquals("without a body", result.metrics.getBodiesDropped(), result.withoutBody);
+	}
+
+	private OfflineSimulation.Result run(OverflowPolicy policy) throws Exception {
+		OfflineSimulation.Result result = simulation.run(policy);
+		assertEquals("errors", 0, result.errors);
+		assertEquals("duplicates", 0, result.duplicates);
+		return result;
+	}
+
+	/**
+	 * Under a hard quota the messages missing are the ones dropped, and the rest kept their bodies
+	 * @param result
+	 */
+	private static void assertDroppedWhole(OfflineSimulation.Result result) {
+		assertTrue("peak " + result.peakBytes + " over " + result.ceiling, result.peakBytes <= result.ceiling);
+		assertEquals("missing", result.metrics.getRecordsDropped(), result.missing);
+		assertEquals("without a body", 0, result.withoutBody);
+	}
+}
@@ -0,0 +1,60 @@
+package com.bobcripps.smsrecorder.bench;
+
+import com.bobcripps.smsrecorder.server.DeviceLedgers;
+import com.bobcripps.smsrecorder.server.IngestServer;
+import com.bobcripps.smsrecorder.server.PartitionedStore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A short soak against an in-process ingest server. With notifications duplicated, raw, out of
+ * order and lost, and bursts on top of the steady rate, every message must reach the server
+ * exactly once
+ */
+public class SoakDeliveryTest {
+	private File storage;
+	private IngestServer server;
+
+	@Before
+	public void setUp() throws IOException {
+		storage = File.createTempFile("soak-server", "");
+		storage.delete();
+		server = new IngestServer(new PartitionedStore(storage), new DeviceLedgers(storage, 16), 0, 8);
+		server.start();
+	}
+
+	@After
+	public void tearDown() {
+		server.stop();
+		delete(storage);
+	}
+
+	@Test
+	public void everyMessageArrivesOnce() throws Exception {
+		// Segments sealed after a second so most go up while messages are still arriving
+		SoakTest.Result result = new SoakTest("http://localhost:" + server.getPort(), 12, 200, 500,
+				LiveSmsSource.BodySizes.MIXED, 1000).run();
+		assertTrue(result.messages > 2000);
+		assertEquals("missing", 0, result.missing);
+		assertEquals("repeated", 0, result.repeated);
+		assertEquals("errors", 0, result.errors);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,163 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Message ID ranges the live path has left behind it to be read into the log in chunks: the
+ * messages already on the phone when backfilling history is turned on, and the gap left by a
+ * long stop. Each range is (after, to] and after moves up as chunks are committed.
+ * The ranges are checkpointed in a small text file rewritten atomically after each chunk, the
+ * same way as the log's manifest, so a backfill carries on where it was after the process dies:
+ * <pre>
+ * range 0 5230
+ * range 6100 6420
+ * </pre>
+ * The newest range is read first so messages missed while stopped come before old history.
+ * Not thread safe, the pipeline uses it under its lock.
+ */
+public class Backfill {
+	private final File file;
+	// after, to pairs, oldest range first, never overlapping
+	private final List<long[]> ranges = new ArrayList<>();
+
+	/**
+	 * @param file where the ranges are checkpointed, read by load()
+	 */
+	public Backfill(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Read the ranges checkpointed before a stop, if there are any
+	 * @throws IOException
+	 */
+	public void load() throws IOException {
+		ranges.clear();
+		if (!file.exists()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				try {
+					if (fields[0].equals("range") && fields.length == 3) {
+						merge(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+					}
+				} catch (NumberFormatException e) {
+					// Ignore the line, it can only have been written whole
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Add a range to backfill, merged with any it overlaps, and checkpoint
+	 * @param afterId
+	 * @param toId
+	 * @throws IOException
+	 */
+	public void add(long afterId, long toId) throws IOException {
+		if (toId <= afterId) {
+			return;
+		}
+		merge(afterId, toId);
+		save();
+	}
+
+	/**
+	 * @return after, to of the range to read next, null if there's nothing to backfill
+	 */
+	public long[] next() {
+		return ranges.isEmpty() ? null : ranges.get(ranges.size() - 1).clone();
+	}
+
+	/**
+	 * Everything in the next range up to the ID has been committed to the log, checkpoint it
+	 * @param id the range is finished once this reaches its end
+	 * @throws IOException
+	 */
+	public void advance(long id) throws IOException {
+		long[] range = ranges.get(ranges.size() - 1);
+		if (id >= range[1]) {
+			ranges.remove(ranges.size() - 1);
+		} else if (id > range[0]) {
+			range[0] = id;
+		} else {
+			return;
+		}
+		save();
+	}
+
+	public boolean isEmpty() {
+		return ranges.isEmpty();
+	}
+
+	/**
+	 * @return the ranges still to read as after, to pairs
+	 */
+	public List<long[]> getRanges() {
+		List<long[]> copy = new ArrayList<>(ranges.size());
+		for (long[] range : ranges) {
+			copy.add(range.clone());
+		}
+		return copy;
+	}
+
+	private void merge(long afterId, long toId) {
+		int i = 0;
+		while (i < ranges.size() && ranges.get(i)[1] < afterId) {
+			i++;
+		}
+		while (i < ranges.size() && ranges.get(i)[0] <= toId) {
+			long[] overlapping = ranges.remove(i);
+			afterId = Math.min(afterId, overlapping[0]);
+			toId = Math.max(toId, overlapping[1]);
+		}
+		ranges.add(i, new long[]{afterId, toId});
+	}
+
+	/**
+	 * Write to a temporary file, sync it and rename it over the old one so a crash leaves
+	 * either the old or the new ranges
+	 * @throws IOException
+	 */
+	private void save() throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			for (long[] range : ranges) {
+				writer.write("range " + range[0] + " " + range[1] + "\n");
+			}
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Can't rename " + temp);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder("backfill");
+		for (long[] range : ranges) {
+			out.append(" (").append(range[0]).append(',').append(range[1]).append(']');
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,58 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts binary segments to CSV so server side consumers can move over to the binary
+ * format when they're ready.
+ * <pre>
+ * java com.bobcripps.smsrecorder.BinaryRecordConverter in.smsb out.csv [CSV|LEGACY_CSV]
+ * </pre>
+ */
+public class BinaryRecordConverter {
+
+	/**
+	 * @param binary a whole binary segment
+	 * @param out where the records are written
+	 * @param encoder format to write them in
+	 * @return number of records converted
+	 * @throws IOException
+	 */
+	public static long convert(InputStream binary, OutputStream out, SmsRecordEncoder encoder) throws IOException {
+		BinaryRecordReader reader = new BinaryRecordReader(binary);
+		SmsData smsData = new SmsData();
+		encoder.startSegment(out);
+		long count = 0;
+		while (reader.read(smsData)) {
+			encoder.encode(smsData, out);
+			count++;
+		}
+		return count;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: BinaryRecordConverter <in.smsb> <out.csv> [CSV|LEGACY_CSV]");
+			System.exit(1);
+		}
+		RecordFormat format = args.length > 2 ? RecordFormat.valueOf(args[2]) : RecordFormat.CSV;
+		InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+		try {
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(args[1]));
+			try {
+				long count = convert(in, out, format.createEncoder());
+				System.out.println(count + " records");
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
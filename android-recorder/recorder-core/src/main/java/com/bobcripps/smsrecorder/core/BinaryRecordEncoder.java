@@ -0,0 +1,103 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Compact binary segment format, version 1.
+ * <pre>
+ * segment = "SMSB" version(1 byte) record*
+ * record  = varint(zigzag(id - previous id))
+ *           varint(zigzag(date - previous date))      epoch millis
+ *           varint(address ref &lt;&lt; 1 | direction)   direction 0 In, 1 Out
+ *           [varint(length) UTF-8 address]            only when ref is a new dictionary entry
+ *           varint(body length + 1) UTF-8 body        0 for a null body
+ * </pre>
+ * Varints are unsigned LEB128. Previous id and date start at 0 in each segment.
+ * Addresses are dictionary encoded per segment, a ref equal to the dictionary size adds a new
+ * entry so traffic with a few correspondents costs a byte or two per record for the number.
+ * Not thread safe, use one encoder per writer.
+ */
+public class BinaryRecordEncoder implements SmsRecordEncoder {
+	static final byte[] MAGIC = {'S', 'M', 'S', 'B'};
+	static final int VERSION = 1;
+
+	private final HashMap<String, Integer> dictionary = new HashMap<>();
+	private long previousId;
+	private long previousDate;
+	private byte[] buffer = new byte[256];
+	private int position;
+
+	@Override
+	public void startSegment(OutputStream out) throws IOException {
+		dictionary.clear();
+		previousId = 0;
+		previousDate = 0;
+		out.write(MAGIC);
+		out.write(VERSION);
+	}
+
+	@Override
+	public void encode(SmsData smsData, OutputStream out) throws IOException {
+		position = 0;
+		writeVarLong(zigzag(smsData.getId() - previousId));
+		writeVarLong(zigzag(smsData.getDate() - previousDate));
+		previousId = smsData.getId();
+		previousDate = smsData.getDate();
+
+		String number = smsData.getNumber() == null ? "" : smsData.getNumber();
+		int direction = smsData.getDirection() == SmsData.SMSDirection.Out ? 1 : 0;
+		Integer ref = dictionary.get(number);
+		if (ref != null) {
+			writeVarLong(((long) ref << 1) | direction);
+		} else {
+			int newRef = dictionary.size();
+			dictionary.put(number, newRef);
+			writeVarLong(((long) newRef << 1) | direction);
+			writeString(number, 0);
+		}
+
+		String body = smsData.getBody();
+		if (body == null) {
+			writeVarLong(0);
+		} else {
+			writeString(body, 1);
+		}
+		out.write(buffer, 0, position);
+	}
+
+	/**
+	 * Length prefixed UTF-8
+	 * @param value
+	 * @param lengthBias added to the length prefix
+	 */
+	private void writeString(String value, int lengthBias) {
+		int length = Utf8.encodedLength(value);
+		writeVarLong(length + lengthBias);
+		ensureCapacity(length);
+		position = Utf8.encode(value, buffer, position);
+	}
+
+	private void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[position++] = (byte) value;
+	}
+
+	static long zigzag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private void ensureCapacity(int extra) {
+		int required = position + extra;
+		if (required > buffer.length) {
+			byte[] grown = new byte[Math.max(required, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, position);
+			buffer = grown;
+		}
+	}
+}
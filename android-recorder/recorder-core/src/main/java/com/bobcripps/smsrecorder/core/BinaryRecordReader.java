@@ -0,0 +1,130 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads segments written by BinaryRecordEncoder
+ * Not thread safe.
+ */
+public class BinaryRecordReader implements SmsRecordReader {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final InputStream in;
+	private final List<String> dictionary = new ArrayList<>();
+	private long previousId;
+	private long previousDate;
+	private byte[] buffer = new byte[256];
+	// Bytes read so far and up to the end of the last complete record
+	private long position;
+	private long recordEnd;
+
+	/**
+	 * Reads and checks the segment header
+	 * @param in buffered by the caller if it's a file
+	 * @throws IOException if it isn't a segment in a version we can read
+	 */
+	public BinaryRecordReader(InputStream in) throws IOException {
+		this.in = in;
+		for (byte b : BinaryRecordEncoder.MAGIC) {
+			if (readByte() != b) {
+				throw new IOException("Not an SMS binary segment");
+			}
+		}
+		int version = readByte();
+		if (version != BinaryRecordEncoder.VERSION) {
+			throw new IOException("Unsupported segment version " + version);
+		}
+		recordEnd = position;
+	}
+
+	@Override
+	public boolean read(SmsData smsData) throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			return false;
+		}
+		position++;
+		long id = previousId + unzigzag(readVarLong(first));
+		long date = previousDate + unzigzag(readVarLong(readByte()));
+		long addressRef = readVarLong(readByte());
+		int ref = (int) (addressRef >>> 1);
+		String number;
+		if (ref < dictionary.size()) {
+			number = dictionary.get(ref);
+		} else if (ref == dictionary.size()) {
+			number = readString((int) readVarLong(readByte()));
+			dictionary.add(number);
+		} else {
+			throw new IOException("Bad address ref " + ref + " at " + position);
+		}
+		long bodyLength = readVarLong(readByte());
+		String body = bodyLength == 0 ? null : readString((int) (bodyLength - 1));
+
+		previousId = id;
+		previousDate = date;
+		smsData.setId(id);
+		smsData.setDate(date);
+		smsData.setNumber(number);
+		smsData.setDirection((addressRef & 1) == 0 ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+		smsData.setBody(body);
+		recordEnd = position;
+		return true;
+	}
+
+	@Override
+	public long getRecordEnd() {
+		return recordEnd;
+	}
+
+	private String readString(int length) throws IOException {
+		if (length < 0) {
+			throw new IOException("Bad length at " + position);
+		}
+		if (length > buffer.length) {
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		}
+		int read = 0;
+		while (read < length) {
+			int count = in.read(buffer, read, length - read);
+			if (count < 0) {
+				throw new EOFException();
+			}
+			read += count;
+		}
+		position += length;
+		return new String(buffer, 0, length, UTF_8);
+	}
+
+	private long readVarLong(int first) throws IOException {
+		long value = first & 0x7F;
+		int shift = 7;
+		int b = first;
+		while ((b & 0x80) != 0) {
+			if (shift > 63) {
+				throw new IOException("Bad varint at " + position);
+			}
+			b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		}
+		return value;
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		position++;
+		return b;
+	}
+
+	private static long unzigzag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+}
@@ -0,0 +1,171 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes SMS records as RFC 4180 CSV in UTF-8 without creating any objects per record.
+ * Fields are in the same order as the legacy format, all quoted with embedded quotes doubled
+ * so bodies containing quotes, commas or newlines survive. The date is ISO-8601 UTC with
+ * milliseconds e.g. "2016-08-29T13:00:36.123Z".
+ * Each record is built in a reusable buffer and written to the stream with one call.
+ * Not thread safe, use one encoder per writer.
+ */
+public class CsvRecordEncoder implements SmsRecordEncoder {
+	private static final long MILLIS_PER_DAY = 86400000L;
+	private static final byte QUOTE = '"';
+	private static final byte COMMA = ',';
+	private static final byte NEWLINE = '\n';
+	private static final byte[] IN = {'I', 'n'};
+	private static final byte[] OUT = {'O', 'u', 't'};
+
+	private byte[] buffer = new byte[512];
+	private int position;
+
+	@Override
+	public void startSegment(OutputStream out) {
+		// No header, segments can be concatenated
+	}
+
+	@Override
+	public void encode(SmsData smsData, OutputStream out) throws IOException {
+		position = 0;
+		writeQuoted(smsData.getNumber());
+		writeByte(COMMA);
+		writeByte(QUOTE);
+		writeBytes(smsData.getDirection() == SmsData.SMSDirection.In ? IN : OUT);
+		writeByte(QUOTE);
+		writeByte(COMMA);
+		writeQuoted(smsData.getBody());
+		writeByte(COMMA);
+		writeByte(QUOTE);
+		writeLong(smsData.getId());
+		writeByte(QUOTE);
+		writeByte(COMMA);
+		writeByte(QUOTE);
+		writeIsoDate(smsData.getDate());
+		writeByte(QUOTE);
+		writeByte(NEWLINE);
+		out.write(buffer, 0, position);
+	}
+
+	/**
+	 * Write a quoted field as UTF-8 doubling any quote characters. Null is an empty field
+	 * @param value
+	 */
+	private void writeQuoted(String value) {
+		writeByte(QUOTE);
+		if (value != null) {
+			int quotes = 0;
+			for (int i = value.indexOf('"'); i >= 0; i = value.indexOf('"', i + 1)) {
+				quotes++;
+			}
+			ensureCapacity(Utf8.encodedLength(value) + quotes);
+			int end = Utf8.encode(value, buffer, position);
+			// Double the quotes in place working back from the end, a quote byte is never part of
+			// a multi-byte sequence
+			int p = end + quotes;
+			for (int i = end - 1; p > i + 1; i--) {
+				byte b = buffer[i];
+				buffer[--p] = b;
+				if (b == QUOTE) {
+					buffer[--p] = QUOTE;
+				}
+			}
+			position = end + quotes;
+		}
+		writeByte(QUOTE);
+	}
+
+	private void writeLong(long value) {
+		ensureCapacity(20);
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value / 10; v != 0; v /= 10) {
+			digits++;
+		}
+		int p = position + digits;
+		position = p;
+		do {
+			buffer[--p] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+	}
+
+	/**
+	 * Write epoch millis as yyyy-MM-ddTHH:mm:ss.SSSZ in UTC.
+	 * Converts days since the epoch to a civil date directly rather than going through Calendar
+	 * @param millis
+	 */
+	private void writeIsoDate(long millis) {
+		ensureCapacity(24);
+		long days = millis / MILLIS_PER_DAY;
+		long millisOfDay = millis % MILLIS_PER_DAY;
+		if (millisOfDay < 0) {
+			days--;
+			millisOfDay += MILLIS_PER_DAY;
+		}
+		// Days to year/month/day in the proleptic Gregorian calendar using 400 year eras
+		// that start on 1st March so the leap day is the last day of the year
+		long z = days + 719468;
+		long era = (z >= 0 ? z : z - 146096) / 146097;
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long monthFromMarch = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * monthFromMarch + 2) / 5 + 1);
+		int month = (int) (monthFromMarch < 10 ? monthFromMarch + 3 : monthFromMarch - 9);
+		int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+		int secondOfDay = (int) (millisOfDay / 1000);
+
+		writeDigits(year, 4);
+		buffer[position++] = '-';
+		writeDigits(month, 2);
+		buffer[position++] = '-';
+		writeDigits(day, 2);
+		buffer[position++] = 'T';
+		writeDigits(secondOfDay / 3600, 2);
+		buffer[position++] = ':';
+		writeDigits((secondOfDay / 60) % 60, 2);
+		buffer[position++] = ':';
+		writeDigits(secondOfDay % 60, 2);
+		buffer[position++] = '.';
+		writeDigits((int) (millisOfDay % 1000), 3);
+		buffer[position++] = 'Z';
+	}
+
+	/**
+	 * Zero padded to width, the caller has ensured capacity
+	 */
+	private void writeDigits(int value, int width) {
+		int p = position + width;
+		position = p;
+		for (int i = 0; i < width; i++) {
+			buffer[--p] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+	}
+
+	private void writeByte(byte b) {
+		ensureCapacity(1);
+		buffer[position++] = b;
+	}
+
+	private void writeBytes(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, buffer, position, bytes.length);
+		position += bytes.length;
+	}
+
+	private void ensureCapacity(int extra) {
+		int required = position + extra;
+		if (required > buffer.length) {
+			byte[] grown = new byte[Math.max(required, buffer.length * 2)];
+			System.arraycopy(buffer, 0, grown, 0, position);
+			buffer = grown;
+		}
+	}
+}
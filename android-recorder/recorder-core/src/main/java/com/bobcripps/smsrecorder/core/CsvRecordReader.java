@@ -0,0 +1,170 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Reads records written by CsvRecordEncoder: five quoted RFC 4180 fields, number, direction,
+ * body, ID and ISO-8601 UTC date, ending in a newline. Empty number and body fields are read as
+ * empty strings as the format doesn't distinguish them from null.
+ * Not thread safe.
+ */
+public class CsvRecordReader implements SmsRecordReader {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int FIELDS = 5;
+	private static final int ISO_DATE_LENGTH = 24;
+
+	private final InputStream in;
+	// Every field of the current record is unquoted into one buffer
+	private byte[] buffer = new byte[512];
+	private final int[] fieldStart = new int[FIELDS + 1];
+	private long position;
+	private long recordEnd;
+
+	/**
+	 * @param in buffered by the caller if it's a file
+	 */
+	public CsvRecordReader(InputStream in) {
+		this.in = in;
+	}
+
+	@Override
+	public boolean read(SmsData smsData) throws IOException {
+		int length = 0;
+		for (int field = 0; field < FIELDS; field++) {
+			int b = in.read();
+			if (b < 0) {
+				if (field == 0) {
+					return false;
+				}
+				throw new EOFException();
+			}
+			position++;
+			if (b != '"') {
+				throw new IOException("Expected a quote at " + position);
+			}
+			fieldStart[field] = length;
+			for (;;) {
+				b = readByte();
+				if (b == '"') {
+					b = readByte();
+					if (b != '"') {
+						break;
+					}
+				}
+				if (length == buffer.length) {
+					byte[] grown = new byte[buffer.length * 2];
+					System.arraycopy(buffer, 0, grown, 0, length);
+					buffer = grown;
+				}
+				buffer[length++] = (byte) b;
+			}
+			if (b == '\r' && field == FIELDS - 1) {
+				b = readByte();
+			}
+			if (b != (field == FIELDS - 1 ? '\n' : ',')) {
+				throw new IOException("Bad separator at " + position);
+			}
+		}
+		fieldStart[FIELDS] = length;
+
+		smsData.setNumber(field(0));
+		smsData.setDirection(fieldEquals(1, "Out") ? SmsData.SMSDirection.Out : SmsData.SMSDirection.In);
+		smsData.setBody(field(2));
+		smsData.setId(parseLong(3));
+		smsData.setDate(parseIsoDate(4));
+		recordEnd = position;
+		return true;
+	}
+
+	@Override
+	public long getRecordEnd() {
+		return recordEnd;
+	}
+
+	private String field(int field) {
+		return new String(buffer, fieldStart[field], fieldStart[field + 1] - fieldStart[field], UTF_8);
+	}
+
+	private boolean fieldEquals(int field, String value) {
+		int start = fieldStart[field];
+		if (fieldStart[field + 1] - start != value.length()) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (buffer[start + i] != value.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long parseLong(int field) throws IOException {
+		int start = fieldStart[field];
+		int end = fieldStart[field + 1];
+		boolean negative = start < end && buffer[start] == '-';
+		int i = negative ? start + 1 : start;
+		if (i == end) {
+			throw new IOException("Empty number before " + recordEnd);
+		}
+		long value = 0;
+		for (; i < end; i++) {
+			value = value * 10 + digit(buffer[i]);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * yyyy-MM-ddTHH:mm:ss.SSSZ to epoch millis, the inverse of CsvRecordEncoder.writeIsoDate()
+	 * @param field
+	 * @return
+	 * @throws IOException
+	 */
+	private long parseIsoDate(int field) throws IOException {
+		int p = fieldStart[field];
+		if (fieldStart[field + 1] - p != ISO_DATE_LENGTH) {
+			throw new IOException("Bad date in the record after " + recordEnd);
+		}
+		int year = digits(p, 4);
+		int month = digits(p + 5, 2);
+		int day = digits(p + 8, 2);
+		int hour = digits(p + 11, 2);
+		int minute = digits(p + 14, 2);
+		int second = digits(p + 17, 2);
+		int millis = digits(p + 20, 3);
+		// Civil date to days since the epoch using 400 year eras starting on 1st March
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		long days = era * 146097 + dayOfEra - 719468;
+		return ((days * 24 + hour) * 60 + minute) * 60000L + second * 1000L + millis;
+	}
+
+	private int digits(int start, int count) throws IOException {
+		int value = 0;
+		for (int i = start; i < start + count; i++) {
+			value = value * 10 + digit(buffer[i]);
+		}
+		return value;
+	}
+
+	private int digit(byte b) throws IOException {
+		if (b < '0' || b > '9') {
+			throw new IOException("Bad digit in the record after " + recordEnd);
+		}
+		return b - '0';
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException();
+		}
+		position++;
+		return b;
+	}
+}
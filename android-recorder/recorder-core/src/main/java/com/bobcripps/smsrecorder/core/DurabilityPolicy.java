@@ -0,0 +1,72 @@
+package com.bobcripps.smsrecorder.core;
+
+/**
+ * Decides when records appended to the SMS file are forced to flash.
+ * Every policy syncs before the file is handed over for upload. The difference is how much
+ * can be lost if the process or device dies in between.
+ */
+public class DurabilityPolicy {
+	private final String name;
+	private final int maxRecords;
+	private final long maxDelayMs;
+
+	private DurabilityPolicy(String name, int maxRecords, long maxDelayMs) {
+		this.name = name;
+		this.maxRecords = maxRecords;
+		this.maxDelayMs = maxDelayMs;
+	}
+
+	/**
+	 * Sync after every batch, the original behaviour.
+	 * Crash-loss window: none once a batch has been written, one fsync per batch.
+	 */
+	public static DurabilityPolicy everyBatch() {
+		return new DurabilityPolicy("every-batch", 1, 0);
+	}
+
+	/**
+	 * Group commit. Sync once maxRecords are waiting or the oldest waiting record is maxDelayMs old,
+	 * whichever comes first.
+	 * Crash-loss window: at most maxRecords records or maxDelayMs of traffic.
+	 * @param maxDelayMs
+	 * @param maxRecords
+	 */
+	public static DurabilityPolicy groupCommit(long maxDelayMs, int maxRecords) {
+		if (maxDelayMs < 0 || maxRecords < 1) {
+			throw new IllegalArgumentException("maxDelayMs must be >= 0 and maxRecords >= 1");
+		}
+		return new DurabilityPolicy("group-commit", maxRecords, maxDelayMs);
+	}
+
+	/**
+	 * Only sync when the file is handed over for upload.
+	 * Crash-loss window: everything written since the last upload hand off. Cheapest on flash.
+	 */
+	public static DurabilityPolicy onUploadHandoff() {
+		return new DurabilityPolicy("on-upload-handoff", Integer.MAX_VALUE, -1);
+	}
+
+	/**
+	 * @param pendingRecords records written since the last sync
+	 * @param pendingMs age of the oldest record written since the last sync
+	 * @return true if the file should be synced now
+	 */
+	public boolean shouldSync(int pendingRecords, long pendingMs) {
+		if (pendingRecords <= 0) {
+			return false;
+		}
+		return pendingRecords >= maxRecords || (maxDelayMs >= 0 && pendingMs >= maxDelayMs);
+	}
+
+	/**
+	 * @return how long unsynced records may wait before a timed sync, -1 if they wait for the next hand off
+	 */
+	public long getMaxDelayMs() {
+		return maxDelayMs;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
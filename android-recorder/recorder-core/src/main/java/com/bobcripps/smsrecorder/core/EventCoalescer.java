@@ -0,0 +1,77 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collapses bursts of queued events into a single batch.
+ * A single SMS usually fires several content observer notifications and a bulk send fires
+ * dozens so the consumer takes everything that arrives inside a short window and handles it once
+ * @param <T> event type placed on the queue
+ */
+public class EventCoalescer<T> {
+	private final BlockingQueue<T> queue;
+	private final long windowNanos;
+	private final int maxBatch;
+
+	/**
+	 * @param queue the queue the producer puts events on
+	 * @param windowMs how long to keep collecting after the first event of a batch arrives
+	 * @param maxBatch stop collecting once this many events are in the batch
+	 */
+	public EventCoalescer(BlockingQueue<T> queue, long windowMs, int maxBatch) {
+		if (maxBatch < 1) {
+			throw new IllegalArgumentException("maxBatch must be at least 1");
+		}
+		this.queue = queue;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMs);
+		this.maxBatch = maxBatch;
+	}
+
+	/**
+	 * Block until at least one event is available then drain the queue until the window
+	 * closes or the batch is full
+	 * @param batch cleared and filled with the events taken
+	 * @return the number of events in the batch
+	 * @throws InterruptedException
+	 */
+	public int takeBatch(List<T> batch) throws InterruptedException {
+		return takeBatch(batch, -1);
+	}
+
+	/**
+	 * As takeBatch(List) but give up if nothing arrives before the timeout
+	 * @param batch cleared and filled with the events taken
+	 * @param timeoutMs how long to wait for the first event, negative waits forever
+	 * @return the number of events in the batch, zero if the wait timed out
+	 * @throws InterruptedException
+	 */
+	public int takeBatch(List<T> batch, long timeoutMs) throws InterruptedException {
+		batch.clear();
+		if (timeoutMs < 0) {
+			batch.add(queue.take());
+		} else {
+			T first = queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+			if (first == null) {
+				return 0;
+			}
+			batch.add(first);
+		}
+		long deadline = System.nanoTime() + windowNanos;
+		while (batch.size() < maxBatch) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				// Window closed but take anything already queued without waiting
+				queue.drainTo(batch, maxBatch - batch.size());
+				break;
+			}
+			T next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+			if (next == null) {
+				break;
+			}
+			batch.add(next);
+		}
+		return batch.size();
+	}
+}
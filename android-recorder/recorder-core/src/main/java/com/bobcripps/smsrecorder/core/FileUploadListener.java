@@ -0,0 +1,7 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.File;
+
+public interface FileUploadListener {
+	void fileUploaded(File file, boolean success);
+}
@@ -0,0 +1,222 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Set of message IDs held as sorted, disjoint, non-adjacent closed ranges in two primitive arrays.
+ * SMS IDs mostly arrive in order so millions of them usually collapse into a handful of ranges and
+ * adding the next ID just moves the end of the last one. An ID arriving out of order is a binary
+ * search and at worst an array shift.
+ * Not thread safe.
+ */
+public class IdIntervalSet {
+	private long[] starts;
+	private long[] ends;
+	private int count;
+
+	public IdIntervalSet() {
+		this(16);
+	}
+
+	/**
+	 * @param capacity ranges allocated up front
+	 */
+	public IdIntervalSet(int capacity) {
+		starts = new long[Math.max(capacity, 4)];
+		ends = new long[starts.length];
+	}
+
+	/**
+	 * @param id
+	 * @return true if the ID is in the set
+	 */
+	public boolean contains(long id) {
+		int i = floorIndex(id);
+		return i >= 0 && id <= ends[i];
+	}
+
+	/**
+	 * @param id
+	 * @return true if it wasn't already in the set
+	 */
+	public boolean add(long id) {
+		// In order, the usual case
+		if (count > 0 && id > ends[count - 1]) {
+			if (id == ends[count - 1] + 1) {
+				ends[count - 1] = id;
+			} else {
+				insert(count, id, id);
+			}
+			return true;
+		}
+		if (contains(id)) {
+			return false;
+		}
+		add(id, id);
+		return true;
+	}
+
+	/**
+	 * Add every ID from start to end inclusive
+	 * @param start
+	 * @param end
+	 */
+	public void add(long start, long end) {
+		if (start > end) {
+			return;
+		}
+		// First range that ends at or after start - 1, it may merge
+		int first = floorIndex(start - 1);
+		if (first < 0 || ends[first] < start - 1) {
+			first++;
+		}
+		// Last range that starts at or before end + 1
+		int last = floorIndex(end == Long.MAX_VALUE ? end : end + 1);
+		if (first > last) {
+			insert(first, start, end);
+			return;
+		}
+		long mergedStart = Math.min(start, starts[first]);
+		long mergedEnd = Math.max(end, ends[last]);
+		starts[first] = mergedStart;
+		ends[first] = mergedEnd;
+		int removed = last - first;
+		if (removed > 0) {
+			System.arraycopy(starts, last + 1, starts, first + 1, count - last - 1);
+			System.arraycopy(ends, last + 1, ends, first + 1, count - last - 1);
+			count -= removed;
+		}
+	}
+
+	/**
+	 * @param other every range of it is added to this
+	 */
+	public void addAll(IdIntervalSet other) {
+		for (int i = 0; i < other.count; i++) {
+			add(other.starts[i], other.ends[i]);
+		}
+	}
+
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * @return number of ranges
+	 */
+	public int getRangeCount() {
+		return count;
+	}
+
+	public long getStart(int range) {
+		return starts[range];
+	}
+
+	public long getEnd(int range) {
+		return ends[range];
+	}
+
+	/**
+	 * @return highest ID in the set, 0 if it's empty
+	 */
+	public long getMax() {
+		return count == 0 ? 0 : ends[count - 1];
+	}
+
+	/**
+	 * @param maxRanges most ranges to include
+	 * @return the highest ranges as start, end pairs in ascending order
+	 */
+	public long[] toArray(int maxRanges) {
+		int from = Math.max(0, count - maxRanges);
+		long[] pairs = new long[(count - from) * 2];
+		for (int i = from; i < count; i++) {
+			pairs[(i - from) * 2] = starts[i];
+			pairs[(i - from) * 2 + 1] = ends[i];
+		}
+		return pairs;
+	}
+
+	/**
+	 * @param pairs start, end pairs as toArray() makes them, in any order
+	 */
+	public void addPairs(long[] pairs) {
+		for (int i = 0; i + 1 < pairs.length; i += 2) {
+			add(pairs[i], pairs[i + 1]);
+		}
+	}
+
+	/**
+	 * Write the ranges, a count then start, end pairs
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(count);
+		for (int i = 0; i < count; i++) {
+			out.writeLong(starts[i]);
+			out.writeLong(ends[i]);
+		}
+	}
+
+	/**
+	 * Add ranges written by writeTo()
+	 * @param in
+	 * @throws IOException
+	 */
+	public void readFrom(DataInputStream in) throws IOException {
+		int ranges = in.readInt();
+		for (int i = 0; i < ranges; i++) {
+			long start = in.readLong();
+			add(start, in.readLong());
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return index of the last range starting at or before the ID, -1 if there's none
+	 */
+	private int floorIndex(long id) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] <= id) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return high;
+	}
+
+	private void insert(int index, long start, long end) {
+		if (count == starts.length) {
+			starts = Arrays.copyOf(starts, count * 2);
+			ends = Arrays.copyOf(ends, count * 2);
+		}
+		System.arraycopy(starts, index, starts, index + 1, count - index);
+		System.arraycopy(ends, index, ends, index + 1, count - index);
+		starts[index] = start;
+		ends[index] = end;
+		count++;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder out = new StringBuilder("[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				out.append(' ');
+			}
+			out.append(starts[i]);
+			if (ends[i] != starts[i]) {
+				out.append('-').append(ends[i]);
+			}
+		}
+		return out.append(']').toString();
+	}
+}
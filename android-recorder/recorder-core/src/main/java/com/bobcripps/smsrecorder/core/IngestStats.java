@@ -0,0 +1,72 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for the observer to file path so we can see how well bursts of
+ * notifications collapse into provider queries
+ */
+public class IngestStats {
+	private final AtomicLong eventsReceived = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong providerQueries = new AtomicLong();
+	private final AtomicLong messagesStored = new AtomicLong();
+
+	public void eventsReceived(int count) {
+		eventsReceived.addAndGet(count);
+	}
+
+	public void batchProcessed() {
+		batches.incrementAndGet();
+	}
+
+	public void providerQueried() {
+		providerQueries.incrementAndGet();
+	}
+
+	public void messagesStored(int count) {
+		messagesStored.addAndGet(count);
+	}
+
+	public long getEventsReceived() {
+		return eventsReceived.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getProviderQueries() {
+		return providerQueries.get();
+	}
+
+	public long getMessagesStored() {
+		return messagesStored.get();
+	}
+
+	/**
+	 * @return events received per batch processed, 1.0 means nothing was coalesced
+	 */
+	public double getCollapseRatio() {
+		long b = batches.get();
+		return b == 0 ? 0 : (double) eventsReceived.get() / b;
+	}
+
+	/**
+	 * @return provider queries per message written to file, lower is better
+	 */
+	public double getQueriesPerMessage() {
+		long m = messagesStored.get();
+		return m == 0 ? 0 : (double) providerQueries.get() / m;
+	}
+
+	@Override
+	public String toString() {
+		return "events=" + getEventsReceived()
+				+ " batches=" + getBatches()
+				+ " queries=" + getProviderQueries()
+				+ " stored=" + getMessagesStored()
+				+ " collapse=" + String.format("%.2f", getCollapseRatio())
+				+ " queries/msg=" + String.format("%.2f", getQueriesPerMessage());
+	}
+}
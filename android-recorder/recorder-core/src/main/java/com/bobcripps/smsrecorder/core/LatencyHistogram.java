@@ -0,0 +1,150 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size histogram of non-negative values, e.g. latencies, cheap enough to record on the hot path.
+ * Buckets are log-linear: values below 16 get a bucket each and every power of two above that is
+ * split into 8, so a bucket is never more than 12.5% wide. All the buckets are allocated up front
+ * and recording is a few atomic adds, no locks and no allocation.
+ * Bucket counts from many histograms can be added together, which is how the server merges
+ * snapshots from the fleet, so they're written out rather than just percentiles.
+ * Thread safe.
+ */
+public class LatencyHistogram {
+	// Values below this get a bucket each
+	private static final int LINEAR_BUCKETS = 16;
+	// Buckets each power of two is split into
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Powers of two from 2^4 to 2^62
+	public static final int BUCKETS = LINEAR_BUCKETS + (63 - 4) * SUB_BUCKETS;
+
+	private final String name;
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * @param name for the snapshot, the unit goes on the end e.g. uploadMs
+	 */
+	public LatencyHistogram(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * @param value negative values, e.g. from a clock change, count as 0
+	 */
+	public void record(long value) {
+		record(value, 1);
+	}
+
+	/**
+	 * @param value negative values count as 0
+	 * @param times how many times it was seen, e.g. for a sample standing for several values
+	 */
+	public void record(long value, long times) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.addAndGet(bucketOf(value), times);
+		count.addAndGet(times);
+		sum.addAndGet(value * times);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// Lost a race with another recorder, try again
+		}
+	}
+
+	/**
+	 * @param value
+	 * @return index of the bucket the value is counted in
+	 */
+	static int bucketOf(long value) {
+		if (value < LINEAR_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @param bucket
+	 * @return smallest value counted in the bucket
+	 */
+	static long lowerBound(int bucket) {
+		if (bucket < LINEAR_BUCKETS) {
+			return bucket;
+		}
+		int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+		long sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+		return (1L << exponent) + (sub << (exponent - SUB_BUCKET_BITS));
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param fraction e.g. 0.99
+	 * @return lower bound of the bucket holding the value at that fraction, 0 if nothing's recorded
+	 */
+	public long getPercentile(double fraction) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * n));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(lowerBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Compact form for the snapshot, count sum max then bucket:count for the non-empty buckets
+	 * <pre>
+	 * 12 340 95 3:2 17:4 24:6
+	 * </pre>
+	 * @param out appended to
+	 */
+	public void appendTo(StringBuilder out) {
+		out.append(count.get()).append(' ').append(sum.get()).append(' ').append(max.get());
+		for (int i = 0; i < BUCKETS; i++) {
+			long c = counts.get(i);
+			if (c != 0) {
+				out.append(' ').append(i).append(':').append(c);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + " n=" + getCount() + " p50=" + getPercentile(0.5) + " p99=" + getPercentile(0.99)
+				+ " max=" + getMax();
+	}
+}
@@ -0,0 +1,20 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The original record format from SmsData.toCsvString()
+ * Kept for servers that still parse it. Quotes and newlines in the body are not escaped
+ */
+public class LegacyCsvEncoder implements SmsRecordEncoder {
+	@Override
+	public void startSegment(OutputStream out) {
+		// No header
+	}
+
+	@Override
+	public void encode(SmsData smsData, OutputStream out) throws IOException {
+		out.write(smsData.toCsvString().getBytes());
+	}
+}
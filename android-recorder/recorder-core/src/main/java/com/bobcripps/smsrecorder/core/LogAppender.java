@@ -0,0 +1,152 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes records from a source onto the log's stream, skipping any already written.
+ * Bear in mind duplicate events for the same message ID can occur so only records whose ID
+ * has not been seen are written.
+ * Not thread safe, only the persist stage uses it.
+ */
+public class LogAppender implements RecordSink {
+	// Most record dates kept for the latency metrics, a batch bigger than this keeps a sample
+	static final int MAX_DATES = 4096;
+
+	private final SmsRecordEncoder encoder;
+	private SeenIdWindow seenIds;
+	private OutputStream out;
+	private int count;
+	private long highestId;
+	private long lastId;
+	private int duplicates;
+	// Over the backlog quota with the metadata only policy
+	private boolean dropBodies;
+	private int bodiesDropped;
+	// DATE of every dateStride'th record written since begin(), kept for the latency metrics.
+	// Grows to MAX_DATES and is reused, after that the stride doubles so a backlog of any size
+	// is sampled in the same memory
+	private long[] dates = new long[64];
+	private int dateCount;
+	private int dateStride;
+
+	/**
+	 * @param encoder format the records are written in
+	 */
+	public LogAppender(SmsRecordEncoder encoder) {
+		this.encoder = encoder;
+	}
+
+	/**
+	 * Start a batch
+	 * @param seenIds records whose ID is already in here are skipped, written records are added
+	 * @param out destination for the encoded records
+	 */
+	public void begin(SeenIdWindow seenIds, OutputStream out) {
+		this.seenIds = seenIds;
+		this.out = out;
+		this.count = 0;
+		this.dateCount = 0;
+		this.dateStride = 1;
+		this.duplicates = 0;
+		this.bodiesDropped = 0;
+		this.lastId = 0;
+	}
+
+	/**
+	 * @param dropBodies write records without their body until this is set false again
+	 */
+	public void setDropBodies(boolean dropBodies) {
+		this.dropBodies = dropBodies;
+	}
+
+	@Override
+	public void accept(SmsData record) throws IOException {
+		final long id = record.getId();
+		lastId = id;
+		if (!seenIds.add(id)) {
+			duplicates++;
+			return;
+		}
+		if (dropBodies && record.getBody() != null) {
+			// The source refills the record for each row so it's safe to change
+			record.setBody(null);
+			bodiesDropped++;
+		}
+		encoder.encode(record, out);
+		if (count % dateStride == 0) {
+			addDate(record.getDate());
+		}
+		if (id > highestId) {
+			highestId = id;
+		}
+		count++;
+	}
+
+	/**
+	 * @return records written since begin()
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return records skipped since begin() because their ID had already been written
+	 */
+	public int getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return records written without their body since begin()
+	 */
+	public int getBodiesDropped() {
+		return bodiesDropped;
+	}
+
+	/**
+	 * Record the time from each record's DATE until now, call once the batch is committed
+	 * @param latency
+	 * @param nowMs
+	 */
+	public void recordLatency(LatencyHistogram latency, long nowMs) {
+		for (int i = 0; i < dateCount; i++) {
+			// Each date stands for the records up to the next one
+			latency.record(nowMs - dates[i], Math.min(dateStride, count - i * dateStride));
+		}
+	}
+
+	private void addDate(long date) {
+		if (dateCount == dates.length) {
+			if (dateCount < MAX_DATES) {
+				dates = Arrays.copyOf(dates, dateCount * 2);
+			} else {
+				// Keep every other one
+				for (int i = 0; i < dateCount / 2; i++) {
+					dates[i] = dates[i * 2];
+				}
+				dateCount /= 2;
+				dateStride *= 2;
+				if (count % dateStride != 0) {
+					return;
+				}
+			}
+		}
+		dates[dateCount++] = date;
+	}
+
+	/**
+	 * @return ID of the last record given since begin(), written or skipped, 0 if there were none
+	 */
+	public long getLastId() {
+		return lastId;
+	}
+
+	/**
+	 * @return the highest ID written so far
+	 */
+	public long getHighestId() {
+		return highestId;
+	}
+}
@@ -0,0 +1,28 @@
+package com.bobcripps.smsrecorder.core;
+
+/**
+ * What the pipeline does once the backlog waiting for upload is over its quota, after the
+ * oldest segments have been compacted
+ */
+public enum OverflowPolicy {
+	// Stop reading the source. The watermark stays put so the messages are read from the phone
+	// once uploads have made room, as long as they haven't been deleted in the meantime
+	STOP_RECORDING,
+	// Delete the oldest sealed segments until the backlog fits, their records are lost
+	DROP_OLDEST,
+	// Keep recording the ID, number, date and direction of each message but not its body
+	METADATA_ONLY;
+
+	/**
+	 * @param name policy name from config, case insensitive
+	 * @return the policy, STOP_RECORDING if the name isn't known
+	 */
+	public static OverflowPolicy fromName(String name) {
+		for (OverflowPolicy policy : values()) {
+			if (policy.name().equalsIgnoreCase(name)) {
+				return policy;
+			}
+		}
+		return STOP_RECORDING;
+	}
+}
@@ -0,0 +1,128 @@
+package com.bobcripps.smsrecorder.core;
+
+/**
+ * Buffer sizes and batching for the RecorderPipeline
+ */
+public class PipelineConfig {
+	// Observer notifications buffered, more are refused and force a full read instead
+	private int eventCapacity = 1024;
+	// Keep collecting notifications for this long after the first one of a burst
+	private long coalesceWindowMs = 250;
+	// Upper limit on the notifications handled as one batch
+	private int maxBatch = 64;
+	// Sealed segments buffered for the upload stage, more wait in the log
+	private int uploadCapacity = 64;
+	// Number of message IDs above the watermark remembered by the seen window
+	private int seenWindowCapacity = 4096;
+	// Most segment uploads in flight at once
+	private int maxUploadsInFlight = 3;
+	// On the first start backfill the messages already on the phone rather than skipping them
+	private boolean backfillHistory = false;
+	// Messages read from the source per backfill chunk, a gap bigger than this after a stop is
+	// backfilled rather than read in one go by the persist worker
+	private int backfillChunk = 200;
+	// Wait between backfill chunks, and before trying again while the persist worker is busy
+	private long backfillPauseMs = 500;
+	// Once the backlog waiting for upload is over this many bytes the oldest sealed segments are
+	// compressed in place
+	private long compactAboveBytes = 1024 * 1024;
+	// Backlog quota, checked after compaction. Over it the overflow policy applies
+	private long maxBacklogBytes = 16 * 1024 * 1024;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.STOP_RECORDING;
+
+	public int getEventCapacity() {
+		return eventCapacity;
+	}
+
+	public void setEventCapacity(int eventCapacity) {
+		this.eventCapacity = eventCapacity;
+	}
+
+	public long getCoalesceWindowMs() {
+		return coalesceWindowMs;
+	}
+
+	public void setCoalesceWindowMs(long coalesceWindowMs) {
+		this.coalesceWindowMs = coalesceWindowMs;
+	}
+
+	public int getMaxBatch() {
+		return maxBatch;
+	}
+
+	public void setMaxBatch(int maxBatch) {
+		this.maxBatch = maxBatch;
+	}
+
+	public int getUploadCapacity() {
+		return uploadCapacity;
+	}
+
+	public void setUploadCapacity(int uploadCapacity) {
+		this.uploadCapacity = uploadCapacity;
+	}
+
+	public int getSeenWindowCapacity() {
+		return seenWindowCapacity;
+	}
+
+	public void setSeenWindowCapacity(int seenWindowCapacity) {
+		this.seenWindowCapacity = seenWindowCapacity;
+	}
+
+	public int getMaxUploadsInFlight() {
+		return maxUploadsInFlight;
+	}
+
+	public void setMaxUploadsInFlight(int maxUploadsInFlight) {
+		this.maxUploadsInFlight = maxUploadsInFlight;
+	}
+
+	public boolean isBackfillHistory() {
+		return backfillHistory;
+	}
+
+	public void setBackfillHistory(boolean backfillHistory) {
+		this.backfillHistory = backfillHistory;
+	}
+
+	public int getBackfillChunk() {
+		return backfillChunk;
+	}
+
+	public void setBackfillChunk(int backfillChunk) {
+		this.backfillChunk = backfillChunk;
+	}
+
+	public long getBackfillPauseMs() {
+		return backfillPauseMs;
+	}
+
+	public void setBackfillPauseMs(long backfillPauseMs) {
+		this.backfillPauseMs = backfillPauseMs;
+	}
+
+	public long getCompactAboveBytes() {
+		return compactAboveBytes;
+	}
+
+	public void setCompactAboveBytes(long compactAboveBytes) {
+		this.compactAboveBytes = compactAboveBytes;
+	}
+
+	public long getMaxBacklogBytes() {
+		return maxBacklogBytes;
+	}
+
+	public void setMaxBacklogBytes(long maxBacklogBytes) {
+		this.maxBacklogBytes = maxBacklogBytes;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+	}
+}
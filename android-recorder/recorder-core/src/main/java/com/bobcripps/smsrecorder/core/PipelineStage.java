@@ -0,0 +1,287 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of a pipeline. Items are queued on a bounded buffer and handled in batches by a
+ * single worker that runs on the executor the stage is given, so each stage can be scheduled
+ * on its own thread and priority.
+ * The bounded buffer is the backpressure. offer() refuses an item when it's full and put() waits
+ * for room, the producer decides which it can afford.
+ * Counts items in and out, refusals, queue depth and time spent handling for throughput metrics.
+ * Thread safe.
+ * @param <T> item type
+ */
+public class PipelineStage<T> {
+	// Queued by stop() to wake the worker, never handed to the handler
+	private static final Object STOP = new Object();
+
+	/**
+	 * Does the work of a stage, always called on the stage's worker
+	 * @param <T>
+	 */
+	public abstract static class Handler<T> {
+		/**
+		 * Called once before anything is taken from the buffer
+		 * @throws InterruptedException
+		 */
+		public void started() throws InterruptedException {
+		}
+
+		/**
+		 * @param batch items taken together, at least one
+		 * @throws InterruptedException
+		 */
+		public abstract void handle(List<T> batch) throws InterruptedException;
+
+		/**
+		 * @return ms to wait for an item before idle() is called, negative waits forever
+		 */
+		public long getIdleTimeoutMs() {
+			return -1;
+		}
+
+		/**
+		 * Called when nothing arrived within the idle timeout
+		 * @throws InterruptedException
+		 */
+		public void idle() throws InterruptedException {
+		}
+
+		/**
+		 * Called when started(), handle() or idle() throws. If it was started() the stage stops
+		 * @param e
+		 */
+		public void error(RuntimeException e) {
+		}
+	}
+
+	private final String name;
+	private final BlockingQueue<T> buffer;
+	private final EventCoalescer<T> coalescer;
+	private final Executor executor;
+	private final Handler<T> handler;
+	private final AtomicLong offered = new AtomicLong();
+	private final AtomicLong refused = new AtomicLong();
+	private final AtomicLong handled = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong busyNanos = new AtomicLong();
+	private final AtomicLong maxDepth = new AtomicLong();
+	private volatile boolean running;
+	// Set by stop() or the handler failing to start, items are refused from then on
+	private volatile boolean stopped;
+	private volatile boolean started;
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/**
+	 * @param name for metrics
+	 * @param capacity most items buffered
+	 * @param windowMs how long to keep collecting items into a batch after the first arrives
+	 * @param maxBatch most items handled together
+	 * @param executor runs the worker, it keeps a thread for as long as the stage runs
+	 * @param handler
+	 */
+	public PipelineStage(String name, int capacity, long windowMs, int maxBatch, Executor executor,
+						 Handler<T> handler) {
+		this.name = name;
+		this.buffer = new ArrayBlockingQueue<>(capacity);
+		this.coalescer = new EventCoalescer<>(buffer, windowMs, maxBatch);
+		this.executor = executor;
+		this.handler = handler;
+	}
+
+	/**
+	 * Start the worker on the executor
+	 */
+	public void start() {
+		running = true;
+		started = true;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				work();
+			}
+		});
+	}
+
+	/**
+	 * Stop the worker once the batch it's handling is done, items still buffered are dropped.
+	 * A waiting worker is woken with an item rather than interrupted, an interrupt would close
+	 * any FileChannel the handler is forcing. See awaitStopped() to wait for it
+	 */
+	@SuppressWarnings("unchecked")
+	public void stop() {
+		stopped = true;
+		running = false;
+		// A producer already past the stopped check can take the room, so clear until it fits
+		do {
+			buffer.clear();
+		} while (!buffer.offer((T) STOP));
+	}
+
+	/**
+	 * Wait for the worker to finish after stop()
+	 * @param timeoutMs
+	 * @return true if it has finished or was never started
+	 * @throws InterruptedException
+	 */
+	public boolean awaitStopped(long timeoutMs) throws InterruptedException {
+		return !started || finished.await(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Queue an item without waiting
+	 * @param item
+	 * @return false if the buffer is full or the stage has stopped and the item was refused
+	 */
+	public boolean offer(T item) {
+		if (stopped || !buffer.offer(item)) {
+			refused.incrementAndGet();
+			return false;
+		}
+		queued();
+		return true;
+	}
+
+	/**
+	 * Queue an item, waiting for room if the buffer is full
+	 * @param item
+	 * @return false if the stage has stopped and the item was refused
+	 * @throws InterruptedException
+	 */
+	public boolean put(T item) throws InterruptedException {
+		if (stopped) {
+			refused.incrementAndGet();
+			return false;
+		}
+		buffer.put(item);
+		queued();
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getDepth() {
+		return buffer.size();
+	}
+
+	public int getCapacity() {
+		return buffer.size() + buffer.remainingCapacity();
+	}
+
+	public long getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	public long getOffered() {
+		return offered.get();
+	}
+
+	public long getRefused() {
+		return refused.get();
+	}
+
+	public long getHandled() {
+		return handled.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * @return batches the handler threw a runtime exception on, and its start if that threw
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+
+	public long getBusyMs() {
+		return TimeUnit.NANOSECONDS.toMillis(busyNanos.get());
+	}
+
+	/**
+	 * @return items handled per second of handler time, how fast the stage could go if kept busy
+	 */
+	public double getThroughput() {
+		long busy = busyNanos.get();
+		return busy == 0 ? 0 : handled.get() * 1e9 / busy;
+	}
+
+	@Override
+	public String toString() {
+		return name + " depth=" + getDepth() + "/" + getCapacity() + " maxDepth=" + maxDepth.get()
+				+ " offered=" + offered.get() + " refused=" + refused.get() + " handled=" + handled.get()
+				+ " batches=" + batches.get() + " errors=" + errors.get() + " busyMs=" + getBusyMs()
+				+ " throughput=" + String.format("%.1f", getThroughput()) + "/s";
+	}
+
+	private void queued() {
+		offered.incrementAndGet();
+		long depth = buffer.size();
+		long max;
+		while (depth > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, depth)) {
+			// Lost a race with another producer, try again
+		}
+	}
+
+	private void work() {
+		List<T> batch = new ArrayList<>();
+		try {
+			try {
+				handler.started();
+			} catch (RuntimeException e) {
+				// Nothing it handles would work without what started() set up, refuse items
+				// rather than queue them for a worker that's gone
+				stopped = true;
+				running = false;
+				errors.incrementAndGet();
+				handler.error(e);
+				return;
+			}
+			while (running) {
+				int size = coalescer.takeBatch(batch, handler.getIdleTimeoutMs());
+				if (!running) {
+					// Woken by stop(), what was taken with its item is dropped
+					break;
+				}
+				long start = System.nanoTime();
+				try {
+					if (size == 0) {
+						handler.idle();
+					} else {
+						handler.handle(batch);
+					}
+				} catch (RuntimeException e) {
+					// Keep the stage going, the items are lost but the next batch may succeed
+					errors.incrementAndGet();
+					handler.error(e);
+				}
+				busyNanos.addAndGet(System.nanoTime() - start);
+				if (size > 0) {
+					handled.addAndGet(size);
+					batches.incrementAndGet();
+				}
+			}
+		} catch (InterruptedException e) {
+			// The executor was shut down under it
+		} finally {
+			buffer.clear();
+			finished.countDown();
+		}
+	}
+}
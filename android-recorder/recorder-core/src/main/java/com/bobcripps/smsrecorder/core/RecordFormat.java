@@ -0,0 +1,108 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Record formats the SMS file can be written in
+ */
+public enum RecordFormat {
+	// SmsData.toCsvString(), unescaped body and d:m:yyyy h:m:s local date with a 0 based month.
+	// Its own suffix so it's never mistaken for RFC 4180 CSV, it still ends in .csv for servers
+	// that only look at that
+	LEGACY_CSV(".legacy.csv") {
+		@Override
+		public SmsRecordEncoder createEncoder() {
+			return new LegacyCsvEncoder();
+		}
+	},
+	// RFC 4180 escaped fields, UTF-8 and an ISO-8601 UTC date
+	CSV(".csv") {
+		@Override
+		public SmsRecordEncoder createEncoder() {
+			return new CsvRecordEncoder();
+		}
+
+		@Override
+		public SmsRecordReader createReader(InputStream in) {
+			return new CsvRecordReader(in);
+		}
+	},
+	// Compact binary segments, see BinaryRecordEncoder. BinaryRecordConverter turns them into CSV
+	BINARY(".smsb") {
+		@Override
+		public SmsRecordEncoder createEncoder() {
+			return new BinaryRecordEncoder();
+		}
+
+		@Override
+		public SmsRecordReader createReader(InputStream in) throws IOException {
+			return new BinaryRecordReader(in);
+		}
+	};
+
+	private final String fileSuffix;
+
+	RecordFormat(String fileSuffix) {
+		this.fileSuffix = fileSuffix;
+	}
+
+	public abstract SmsRecordEncoder createEncoder();
+
+	/**
+	 * @param in a whole segment in this format
+	 * @return reader for the records, null if the format can't be read back reliably
+	 * @throws IOException if the segment header is bad
+	 */
+	public SmsRecordReader createReader(InputStream in) throws IOException {
+		// The legacy format doesn't escape the body so records can't be split reliably
+		return null;
+	}
+
+	/**
+	 * @param fileName segment file name, without any compression suffix
+	 * @return the format it was written in going by its suffix, null if there's none.
+	 * A .csv file that isn't .legacy.csv is RFC 4180 CSV
+	 */
+	public static RecordFormat ofFileName(String fileName) {
+		// Also ends in .csv
+		if (fileName.endsWith(LEGACY_CSV.fileSuffix)) {
+			return LEGACY_CSV;
+		}
+		for (RecordFormat candidate : values()) {
+			if (fileName.endsWith(candidate.fileSuffix)) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param fileName segment file name, without any compression suffix
+	 * @return the format it can be read back in going by its suffix, null if there's none
+	 */
+	public static RecordFormat readableFormatOf(String fileName) {
+		RecordFormat format = ofFileName(fileName);
+		return format == LEGACY_CSV ? null : format;
+	}
+
+	/**
+	 * @param name format name from config, case insensitive
+	 * @return the format, CSV if the name isn't known
+	 */
+	public static RecordFormat fromName(String name) {
+		for (RecordFormat candidate : values()) {
+			if (candidate.name().equalsIgnoreCase(name)) {
+				return candidate;
+			}
+		}
+		return CSV;
+	}
+
+	/**
+	 * @return suffix for segment files in this format, tells the server how to read them
+	 */
+	public String getFileSuffix() {
+		return fileSuffix;
+	}
+}
@@ -0,0 +1,14 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+
+/**
+ * Receives SMS records one at a time from an SmsSource
+ */
+public interface RecordSink {
+	/**
+	 * @param record reused by the source, copy anything that's kept
+	 * @throws IOException
+	 */
+	void accept(SmsData record) throws IOException;
+}
@@ -0,0 +1,362 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms, counters and gauges for the whole recorder, from the SMS arriving to the
+ * server acknowledging it. Recording is lock free and allocation free so it's done inline on
+ * the persist and upload paths.
+ * The pipeline saves a snapshot to a small file every so often and the uploaders send the latest
+ * one with each segment, so the fleet can be monitored from the server. The snapshot is text,
+ * one metric per line, and the counters and histogram buckets are totals since the recorder
+ * started so the server can subtract consecutive snapshots or add up devices:
+ * <pre>
+ * metrics 2 1476700000000 1476690000000
+ * counter eventsReceived 212
+ * gauge eventQueueDepth 0
+ * gauge backoffDelayMs 120000
+ * histogram persistMs 180 9120 1006 5:3 23:60 33:117
+ * </pre>
+ * The first line is the format version, when the snapshot was taken and when the recorder started.
+ * Thread safe.
+ */
+public class RecorderMetrics {
+	// 2 added the retry backoff state
+	public static final int SNAPSHOT_VERSION = 2;
+
+	private final IngestStats ingestStats;
+	private final long startedMs;
+	// SMS DATE to its record being committed to the log, ms
+	private final LatencyHistogram persistLatency = new LatencyHistogram("persistMs");
+	// Record committed to the server acknowledging its segment, ms. Measured from the oldest record
+	// in the segment so it's the worst case for the segment
+	private final LatencyHistogram ackLatency = new LatencyHistogram("ackMs");
+	// One read of the source, us
+	private final LatencyHistogram queryTime = new LatencyHistogram("queryUs");
+	// One sync of segment data, us
+	private final LatencyHistogram syncTime = new LatencyHistogram("syncUs");
+	// Upload of one segment from start to the server's response, ms
+	private final LatencyHistogram uploadTime = new LatencyHistogram("uploadMs");
+	private final AtomicLong eventsCoalesced = new AtomicLong();
+	private final AtomicLong duplicatesSuppressed = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final AtomicLong bytesUploaded = new AtomicLong();
+	private final AtomicLong uploadsFailed = new AtomicLong();
+	// History and missed messages read by the backfill, behind the live path
+	private final AtomicLong backfilled = new AtomicLong();
+	// Sealed segments compressed to keep the backlog down, bytes before and bytes saved
+	private final AtomicLong bytesCompacted = new AtomicLong();
+	private final AtomicLong compactionSaved = new AtomicLong();
+	// Lost to the overflow policy while over the backlog quota
+	private final AtomicLong recordsDropped = new AtomicLong();
+	private final AtomicLong bodiesDropped = new AtomicLong();
+	// Gauges are sampled just before each snapshot
+	private volatile long eventQueueDepth;
+	private volatile long uploadQueueDepth;
+	private volatile long backlogBytes;
+	private volatile long backlogRecords;
+	// 1 while the backlog is over its quota after compaction
+	private volatile long overQuota;
+	// Set by the backfill after each chunk
+	private volatile long backfillRemaining;
+	private volatile long backfillStartedMs;
+	private volatile long backfillRate;
+	// Sampled from the retry scheduler, the delay is 0 while not backing off
+	private volatile long backoffFailures;
+	private volatile long backoffDelayMs;
+	private volatile long retriesRun;
+	private volatile long retriesGated;
+
+	/**
+	 * @param ingestStats event, batch and query counters kept by the pipeline
+	 * @param startedMs when the recorder started
+	 */
+	public RecorderMetrics(IngestStats ingestStats, long startedMs) {
+		this.ingestStats = ingestStats;
+		this.startedMs = startedMs;
+	}
+
+	public LatencyHistogram getPersistLatency() {
+		return persistLatency;
+	}
+
+	public LatencyHistogram getAckLatency() {
+		return ackLatency;
+	}
+
+	public LatencyHistogram getQueryTime() {
+		return queryTime;
+	}
+
+	public LatencyHistogram getSyncTime() {
+		return syncTime;
+	}
+
+	public LatencyHistogram getUploadTime() {
+		return uploadTime;
+	}
+
+	/**
+	 * @param count events folded into a batch with another, so didn't cost a read of their own
+	 */
+	public void eventsCoalesced(int count) {
+		eventsCoalesced.addAndGet(count);
+	}
+
+	/**
+	 * @param count records the seen ID window stopped being written twice
+	 */
+	public void duplicatesSuppressed(int count) {
+		duplicatesSuppressed.addAndGet(count);
+	}
+
+	public void bytesWritten(long count) {
+		bytesWritten.addAndGet(count);
+	}
+
+	public void bytesUploaded(long count) {
+		bytesUploaded.addAndGet(count);
+	}
+
+	public void uploadFailed() {
+		uploadsFailed.incrementAndGet();
+	}
+
+	/**
+	 * A backfill chunk has been committed
+	 * @param count records read in the chunk
+	 * @param remaining estimate of the records still to backfill
+	 * @param nowMs
+	 */
+	public void backfilled(int count, long remaining, long nowMs) {
+		long total = backfilled.addAndGet(count);
+		if (backfillStartedMs == 0) {
+			backfillStartedMs = nowMs;
+		}
+		backfillRemaining = remaining;
+		// Records per second since the first chunk, pauses between chunks included
+		backfillRate = nowMs > backfillStartedMs ? total * 1000 / (nowMs - backfillStartedMs) : 0;
+	}
+
+	/**
+	 * A sealed segment has been compacted
+	 * @param bytes its size before
+	 * @param saved bytes smaller it is now
+	 */
+	public void compacted(long bytes, long saved) {
+		bytesCompacted.addAndGet(bytes);
+		compactionSaved.addAndGet(saved);
+	}
+
+	/**
+	 * @param count records deleted unsent to make room
+	 */
+	public void recordsDropped(int count) {
+		recordsDropped.addAndGet(count);
+	}
+
+	/**
+	 * @param count records written without their body to save room
+	 */
+	public void bodiesDropped(int count) {
+		bodiesDropped.addAndGet(count);
+	}
+
+	public void setOverQuota(boolean over) {
+		overQuota = over ? 1 : 0;
+	}
+
+	/**
+	 * @param events notifications waiting for the persist worker
+	 * @param uploads segments waiting for the upload worker
+	 * @param backlog bytes in the log not yet acknowledged by the server
+	 * @param records records in the log not yet acknowledged
+	 */
+	public void setGauges(long events, long uploads, long backlog, long records) {
+		eventQueueDepth = events;
+		uploadQueueDepth = uploads;
+		backlogBytes = backlog;
+		backlogRecords = records;
+	}
+
+	/**
+	 * Sample the backoff state of failed uploads
+	 * @param scheduler
+	 */
+	public void setBackoff(RetryScheduler scheduler) {
+		backoffFailures = scheduler.getFailures();
+		backoffDelayMs = scheduler.getCurrentDelayMs();
+		retriesRun = scheduler.getRetriesRun();
+		retriesGated = scheduler.getGatedRetries();
+	}
+
+	public long getEventsCoalesced() {
+		return eventsCoalesced.get();
+	}
+
+	public long getDuplicatesSuppressed() {
+		return duplicatesSuppressed.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public long getBytesUploaded() {
+		return bytesUploaded.get();
+	}
+
+	public long getUploadsFailed() {
+		return uploadsFailed.get();
+	}
+
+	public long getBacklogBytes() {
+		return backlogBytes;
+	}
+
+	public long getBacklogRecords() {
+		return backlogRecords;
+	}
+
+	public boolean isOverQuota() {
+		return overQuota != 0;
+	}
+
+	public long getBytesCompacted() {
+		return bytesCompacted.get();
+	}
+
+	public long getCompactionSaved() {
+		return compactionSaved.get();
+	}
+
+	public long getRecordsDropped() {
+		return recordsDropped.get();
+	}
+
+	public long getBodiesDropped() {
+		return bodiesDropped.get();
+	}
+
+	public long getBackfilled() {
+		return backfilled.get();
+	}
+
+	public long getBackfillRemaining() {
+		return backfillRemaining;
+	}
+
+	/**
+	 * @return records backfilled per second
+	 */
+	public long getBackfillRate() {
+		return backfillRate;
+	}
+
+	public long getBackoffFailures() {
+		return backoffFailures;
+	}
+
+	public long getBackoffDelayMs() {
+		return backoffDelayMs;
+	}
+
+	public long getRetriesRun() {
+		return retriesRun;
+	}
+
+	public long getRetriesGated() {
+		return retriesGated;
+	}
+
+	/**
+	 * @param nowMs when the snapshot is taken
+	 * @return the snapshot text
+	 */
+	public String snapshot(long nowMs) {
+		StringBuilder out = new StringBuilder(512);
+		out.append("metrics ").append(SNAPSHOT_VERSION).append(' ').append(nowMs).append(' ').append(startedMs)
+				.append('\n');
+		counter(out, "eventsReceived", ingestStats.getEventsReceived());
+		counter(out, "eventsCoalesced", eventsCoalesced.get());
+		counter(out, "batches", ingestStats.getBatches());
+		counter(out, "providerQueries", ingestStats.getProviderQueries());
+		counter(out, "messagesStored", ingestStats.getMessagesStored());
+		counter(out, "duplicatesSuppressed", duplicatesSuppressed.get());
+		counter(out, "bytesWritten", bytesWritten.get());
+		counter(out, "bytesUploaded", bytesUploaded.get());
+		counter(out, "uploadsFailed", uploadsFailed.get());
+		counter(out, "backfilled", backfilled.get());
+		counter(out, "bytesCompacted", bytesCompacted.get());
+		counter(out, "compactionSavedBytes", compactionSaved.get());
+		counter(out, "recordsDropped", recordsDropped.get());
+		counter(out, "bodiesDropped", bodiesDropped.get());
+		counter(out, "retriesRun", retriesRun);
+		counter(out, "retriesGated", retriesGated);
+		gauge(out, "eventQueueDepth", eventQueueDepth);
+		gauge(out, "uploadQueueDepth", uploadQueueDepth);
+		gauge(out, "backlogBytes", backlogBytes);
+		gauge(out, "backlogRecords", backlogRecords);
+		gauge(out, "overQuota", overQuota);
+		gauge(out, "backfillRemaining", backfillRemaining);
+		gauge(out, "backfillPerSecond", backfillRate);
+		gauge(out, "backoffFailures", backoffFailures);
+		gauge(out, "backoffDelayMs", backoffDelayMs);
+		histogram(out, persistLatency);
+		histogram(out, ackLatency);
+		histogram(out, queryTime);
+		histogram(out, syncTime);
+		histogram(out, uploadTime);
+		return out.toString();
+	}
+
+	/**
+	 * Write a snapshot to a temporary file and rename it over the old one so an uploader reading
+	 * it sees a whole snapshot. Not synced, losing the latest snapshot in a crash only loses a sample
+	 * @param file
+	 * @param nowMs when the snapshot is taken
+	 * @throws IOException
+	 */
+	public void saveSnapshot(File file, long nowMs) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(snapshot(nowMs).getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(file)) {
+			throw new IOException("Can't rename " + temp);
+		}
+	}
+
+	private static void counter(StringBuilder out, String name, long value) {
+		out.append("counter ").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder out, String name, long value) {
+		out.append("gauge ").append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void histogram(StringBuilder out, LatencyHistogram histogram) {
+		out.append("histogram ").append(histogram.getName()).append(' ');
+		histogram.appendTo(out);
+		out.append('\n');
+	}
+
+	@Override
+	public String toString() {
+		return persistLatency + " " + ackLatency + " " + queryTime + " " + syncTime + " " + uploadTime
+				+ " coalesced=" + getEventsCoalesced() + " duplicates=" + getDuplicatesSuppressed()
+				+ " written=" + getBytesWritten() + " uploaded=" + getBytesUploaded()
+				+ " failed=" + getUploadsFailed() + " backlog=" + getBacklogBytes() + " backfilled=" + getBackfilled()
+				+ " remaining=" + getBackfillRemaining() + " backfill/s=" + getBackfillRate()
+				+ " records=" + getBacklogRecords() + " compacted=" + getBytesCompacted() + " saved=" + getCompactionSaved()
+				+ " dropped=" + getRecordsDropped() + " bodiesDropped=" + getBodiesDropped()
+				+ " backoffFailures=" + getBackoffFailures() + " backoffDelayMs=" + getBackoffDelayMs()
+				+ " retries=" + getRetriesRun() + " gated=" + getRetriesGated();
+	}
+}
@@ -0,0 +1,875 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The recorder as a staged pipeline:
+ * <pre>
+ * notifications -&gt; [events] coalesce -&gt; read source, encode, durable append -&gt; [uploads] -&gt; upload engine
+ * </pre>
+ * Each bracketed stage has a bounded buffer and its own worker on an executor the caller chooses.
+ * The provider read, encode and append are fused in the persist worker because records stream
+ * from the cursor straight into the log's buffer, splitting them would copy every record.
+ * <p>
+ * Backpressure:
+ * <ul>
+ * <li>A notification only says something changed so when the event buffer is full it's refused
+ * and the next batch reads everything after the watermark instead. Memory stays bounded
+ * however bursty the notifications.</li>
+ * <li>The persist worker never waits on uploads. Sealed segments are offered to the upload stage
+ * and any it hasn't room for stay in the log, on flash, until an upload completes and they're
+ * offered again. Slow uploads only make segments pile up on disk.</li>
+ * </ul>
+ * A batch whose notifications all carry IDs that follow on from the watermark, or are below it,
+ * is persisted by looking those messages up by ID so its cost doesn't depend on how many rows
+ * sit above the watermark. Notifications without an ID and gaps in the IDs read everything
+ * after the watermark.
+ * Optionally a backfill reads messages the live path has left behind it, the history already on
+ * the phone and big gaps left by a stop, in chunks on its own lower priority executor. Each chunk
+ * holds the log only for one bounded read, gives way while notifications are waiting and is
+ * checkpointed once it's on flash, so new messages are still persisted promptly.
+ * <p>
+ * The backlog waiting for upload has a quota. Once it's over a threshold the oldest sealed
+ * segments are compacted, and if it's still over the quota after that the overflow policy
+ * decides what gives: new messages wait on the phone, the oldest segments are deleted or bodies
+ * stop being recorded. Segments being uploaded are never touched. The backfill waits while the
+ * backlog is over its quota.
+ * Has no Android dependencies so it runs on the JVM with a fake SmsSource and Uploader.
+ */
+public class RecorderPipeline implements UploadEngine.Listener {
+	// Message ID of a notification that didn't carry one, e.g. "raw"
+	public static final long NO_ID = -1;
+	// More digits than this can't be a message ID
+	private static final int MAX_ID_DIGITS = 18;
+	// How long stop() waits for each worker to finish its batch before closing the log
+	private static final long STOP_WAIT_MS = 5000;
+
+	/**
+	 * Hooks into the pipeline for the host, all optional
+	 */
+	public interface Callbacks {
+		/**
+		 * Called on the persist worker once the log has been recovered, before anything is read.
+		 * The place to adopt files left by older versions or seed the watermark
+		 * @param log
+		 * @throws IOException
+		 */
+		void logRecovered(SegmentedSmsLog log) throws IOException;
+
+		/**
+		 * A batch of notifications has been handled
+		 * @param events notifications in the batch
+		 * @param written records appended to the log
+		 */
+		void batchPersisted(int events, int written);
+
+		/**
+		 * A backfill chunk has been committed
+		 * @param written records appended to the log
+		 * @param remaining estimate of the records still to backfill, 0 once it's done
+		 */
+		void backfillPersisted(int written, long remaining);
+
+		void error(String where, Exception e);
+	}
+
+	private final SmsSource source;
+	private final SegmentedSmsLog segmentLog;
+	private final LogAppender appender;
+	private final RetryScheduler retryScheduler;
+	private final UploadEngine uploadEngine;
+	private final PipelineStage<Long> eventStage;
+	private final PipelineStage<File> uploadStage;
+	private final PipelineConfig config;
+	private final Callbacks callbacks;
+	// Counters showing how many notifications collapse into each provider read
+	private final IngestStats ingestStats = new IngestStats();
+	// Latency, throughput and backlog from notification to server acknowledgement
+	private final RecorderMetrics metrics = new RecorderMetrics(ingestStats, System.currentTimeMillis());
+	// Guards the segment log, used by the persist worker and upload callbacks
+	private final Object lock = new Object();
+	// A notification was refused because the event buffer was full
+	private final AtomicBoolean eventsRefused = new AtomicBoolean();
+	// The last message ID written, messages above it are read from the source
+	// Only the persist worker uses it, the log persists it with the records
+	private long currentId;
+	// So we don't write duplicate records keep a record of the unique IDs written
+	// Created on the persist worker once the watermark has been recovered, changed under the lock
+	private SeenIdWindow seenIds;
+	// Unseen IDs of the batch being processed, sorted. Only the persist worker uses it
+	private long[] batchIds;
+	// Optional, ranges behind the watermark still to read and the executor that reads them
+	private Backfill backfill;
+	private ScheduledExecutorService backfillExecutor;
+	// Shares the encoder with the live appender, only used under the lock
+	private final LogAppender backfillAppender;
+	// Records still to backfill, counted when the backfill starts. Only the backfill worker uses it
+	private long backfillRemaining = -1;
+	private volatile boolean running;
+	// The backlog is over its quota after compaction, set under the lock
+	private volatile boolean overQuota;
+	// Uploads have made room after recording was stopped, the persist worker catches up
+	private final AtomicBoolean recordingResumed = new AtomicBoolean();
+	// A BackfillTask is waiting to run, so there's only ever one
+	private final AtomicBoolean backfillScheduled = new AtomicBoolean();
+
+	/**
+	 * @param source messages are read from
+	 * @param segmentLog records are appended to, recovered when the pipeline starts
+	 * @param encoder the encoder the log was created with
+	 * @param uploader sends sealed segments
+	 * @param retryScheduler backs off failed uploads, its retry should call retryUploads()
+	 * @param config
+	 * @param persistExecutor runs the persist worker
+	 * @param uploadExecutor runs the upload worker
+	 * @param callbacks
+	 */
+	public RecorderPipeline(SmsSource source, SegmentedSmsLog segmentLog, SmsRecordEncoder encoder,
+							UploadEngine.Uploader uploader, RetryScheduler retryScheduler, PipelineConfig config,
+							Executor persistExecutor, Executor uploadExecutor, Callbacks callbacks) {
+		this.source = source;
+		this.segmentLog = segmentLog;
+		this.appender = new LogAppender(encoder);
+		this.backfillAppender = new LogAppender(encoder);
+		this.batchIds = new long[config.getMaxBatch()];
+		this.retryScheduler = retryScheduler;
+		this.config = config;
+		this.callbacks = callbacks;
+		this.uploadEngine = new UploadEngine(uploader, this, config.getMaxUploadsInFlight());
+		uploadEngine.setUploadTimes(metrics.getUploadTime());
+		segmentLog.setSyncTimes(metrics.getSyncTime());
+		this.eventStage = new PipelineStage<>("events", config.getEventCapacity(), config.getCoalesceWindowMs(),
+				config.getMaxBatch(), persistExecutor, new PersistHandler());
+		this.uploadStage = new PipelineStage<>("uploads", config.getUploadCapacity(), 0,
+				config.getUploadCapacity(), uploadExecutor, new UploadHandler());
+	}
+
+	/**
+	 * Start both workers. The persist worker recovers the log, catches up with messages missed
+	 * while stopped and hands sealed segments to the upload stage before taking notifications
+	 */
+	public void start() {
+		running = true;
+		uploadStage.start();
+		eventStage.start();
+	}
+
+	/**
+	 * Backfill history and gaps bigger than a chunk, call before start()
+	 * @param backfill checkpoint of the ranges still to read
+	 * @param executor runs the backfill a chunk at a time, give it a lower priority thread than
+	 *                 the persist worker's
+	 */
+	public void setBackfill(Backfill backfill, ScheduledExecutorService executor) {
+		this.backfill = backfill;
+		this.backfillExecutor = executor;
+	}
+
+	/**
+	 * Stop both workers, wait for them to finish their batches and close the log. Segments
+	 * waiting for upload stay in the log
+	 */
+	public void stop() {
+		running = false;
+		eventStage.stop();
+		uploadStage.stop();
+		try {
+			if (!eventStage.awaitStopped(STOP_WAIT_MS) || !uploadStage.awaitStopped(STOP_WAIT_MS)) {
+				callbacks.error("stop", new IllegalStateException("worker still running after " + STOP_WAIT_MS + " ms"));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			try {
+				segmentLog.close();
+			} catch (IOException e) {
+				callbacks.error("stop", e);
+			}
+		}
+	}
+
+	/**
+	 * The source changed. Never blocks so it can be called from the main thread
+	 * @param id message ID the notification carried or NO_ID
+	 */
+	public void notifyChanged(long id) {
+		if (!eventStage.offer(id)) {
+			eventsRefused.set(true);
+		}
+	}
+
+	/**
+	 * Parse the message ID from the end of a notification's URI without allocating,
+	 * e.g. content://sms/5230
+	 * @param uri
+	 * @return the number after the last '/', NO_ID if it isn't one, e.g. "raw"
+	 */
+	public static long idOf(CharSequence uri) {
+		int end = uri.length();
+		int start = end;
+		while (start > 0 && uri.charAt(start - 1) >= '0' && uri.charAt(start - 1) <= '9') {
+			start--;
+		}
+		if (start == end || end - start > MAX_ID_DIGITS || (start > 0 && uri.charAt(start - 1) != '/')) {
+			return NO_ID;
+		}
+		long id = 0;
+		for (int i = start; i < end; i++) {
+			id = id * 10 + (uri.charAt(i) - '0');
+		}
+		return id;
+	}
+
+	/**
+	 * Called by the retry scheduler when a retry is due
+	 */
+	public void retryUploads() {
+		uploadHandoff(true);
+	}
+
+	public PipelineStage<Long> getEventStage() {
+		return eventStage;
+	}
+
+	public PipelineStage<File> getUploadStage() {
+		return uploadStage;
+	}
+
+	public IngestStats getIngestStats() {
+		return ingestStats;
+	}
+
+	public RecorderMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sample the queue, backlog and backoff gauges and save a metrics snapshot for the uploaders to send
+	 * @param file
+	 * @throws IOException
+	 */
+	public void saveMetrics(File file) throws IOException {
+		long backlog;
+		long records;
+		synchronized (lock) {
+			backlog = segmentLog.getBacklogBytes();
+			records = segmentLog.getBacklogRecords();
+		}
+		metrics.setGauges(eventStage.getDepth(), uploadStage.getDepth(), backlog, records);
+		metrics.setBackoff(retryScheduler);
+		metrics.saveSnapshot(file, System.currentTimeMillis());
+	}
+
+	public UploadEngine getUploadEngine() {
+		return uploadEngine;
+	}
+
+	/**
+	 * @return log syncs so far
+	 */
+	public long getSyncCount() {
+		synchronized (lock) {
+			return segmentLog.getSyncCount();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return ingestStats + " syncs=" + getSyncCount() + " " + metrics + " [" + eventStage + "] [" + uploadStage
+				+ "] in flight=" + uploadEngine.getInFlight() + " queued=" + uploadEngine.getQueued() + " skipped="
+				+ uploadEngine.getUploadsSkipped();
+	}
+
+	/**
+	 * Callback from the upload engine, called in segment order
+	 * the server has the segment so delete it and keep the uploads going
+	 * @param file
+	 */
+	@Override
+	public void uploaded(File file) {
+		retryScheduler.succeeded();
+		boolean resume;
+		synchronized (lock) {
+			boolean stopped = isRecordingStopped();
+			try {
+				metrics.getAckLatency().record(System.currentTimeMillis() - segmentLog.getFirstRecordMs(file));
+				metrics.bytesUploaded(file.length());
+				segmentLog.markUploaded(file);
+				applyQuota();
+			} catch (IOException e) {
+				callbacks.error("uploaded", e);
+			}
+			resume = stopped && !isRecordingStopped();
+		}
+		if (resume) {
+			// Read everything that arrived while recording was stopped
+			recordingResumed.set(true);
+			notifyChanged(NO_ID);
+		}
+		// Drain the backlog
+		uploadHandoff(false);
+	}
+
+	/**
+	 * Callback from the upload engine. The segment stays sealed and is retried once the backoff
+	 * delay has passed
+	 * @param file
+	 */
+	@Override
+	public void uploadFailed(File file) {
+		if (!file.exists()) {
+			// Compacted or dropped after it was handed to the upload stage, not the server's fault
+			uploadEngine.cancel(file);
+			return;
+		}
+		metrics.uploadFailed();
+		retryScheduler.failed();
+	}
+
+	/**
+	 * Keep the backlog within its quota, call holding the lock after anything that changes it.
+	 * Over the compaction threshold the oldest sealed segments are compacted, then if it's still
+	 * over the quota the overflow policy applies. Segments the upload engine is sending are
+	 * skipped, any it only has queued or failed are taken back first
+	 * @throws IOException
+	 */
+	private void applyQuota() throws IOException {
+		long backlog = segmentLog.getBacklogBytes();
+		if (backlog > config.getCompactAboveBytes()) {
+			for (File segment : segmentLog.getSealedSegments()) {
+				if (backlog <= config.getCompactAboveBytes()) {
+					break;
+				}
+				if (SegmentedSmsLog.isCompacted(segment) || !uploadEngine.cancel(segment)) {
+					continue;
+				}
+				long bytes = segment.length();
+				File compacted = segmentLog.compact(segment);
+				if (compacted != null) {
+					uploadEngine.discarded(segment);
+					metrics.compacted(bytes, bytes - compacted.length());
+					backlog -= bytes - compacted.length();
+				}
+			}
+		}
+		OverflowPolicy policy = config.getOverflowPolicy();
+		if (backlog > config.getMaxBacklogBytes() && policy == OverflowPolicy.DROP_OLDEST) {
+			for (File segment : segmentLog.getSealedSegments()) {
+				if (backlog <= config.getMaxBacklogBytes()) {
+					break;
+				}
+				if (!uploadEngine.cancel(segment)) {
+					continue;
+				}
+				long bytes = segment.length();
+				metrics.recordsDropped(segmentLog.drop(segment));
+				uploadEngine.discarded(segment);
+				backlog -= bytes;
+			}
+		}
+		overQuota = backlog > config.getMaxBacklogBytes();
+		metrics.setOverQuota(overQuota);
+		boolean dropBodies = overQuota && policy == OverflowPolicy.METADATA_ONLY;
+		appender.setDropBodies(dropBodies);
+		backfillAppender.setDropBodies(dropBodies);
+	}
+
+	/**
+	 * @return true while the backlog is over its quota and the policy is to stop recording
+	 */
+	private boolean isRecordingStopped() {
+		return overQuota && config.getOverflowPolicy() == OverflowPolicy.STOP_RECORDING;
+	}
+
+	/**
+	 * Rebuild the segment list, recover the watermark from the log and seed it from the source
+	 * the first time in so only new messages are recorded
+	 */
+	private void recover() {
+		synchronized (lock) {
+			try {
+				segmentLog.recover();
+				callbacks.logRecovered(segmentLog);
+				if (backfill != null) {
+					backfill.load();
+				}
+				if (segmentLog.getWatermark() == 0) {
+					long topId = source.getTopMessageId();
+					if (backfill != null && config.isBackfillHistory()) {
+						// Checkpointed before the watermark so a crash in between can't skip history
+						backfill.add(0, topId);
+					}
+					segmentLog.checkpoint(topId);
+				} else {
+					backfillGap();
+				}
+				applyQuota();
+			} catch (IOException e) {
+				callbacks.error("recover", e);
+			}
+			currentId = segmentLog.getWatermark();
+			// Everything at or below the watermark has already been written, apart from the IDs
+			// read past that the log checkpointed
+			seenIds = new SeenIdWindow(currentId, config.getSeenWindowCapacity());
+			seenIds.addUnseen(segmentLog.getUnseenIds());
+			segmentLog.setSeenIds(seenIds);
+		}
+	}
+
+	/**
+	 * A gap above the watermark too big to read in one go is backfilled so the live path starts
+	 * at the top. Call holding the lock
+	 * @return true if there was one
+	 * @throws IOException
+	 */
+	private boolean backfillGap() throws IOException {
+		if (backfill == null) {
+			return false;
+		}
+		long topId = source.getTopMessageId();
+		if (topId - segmentLog.getWatermark() <= config.getBackfillChunk()) {
+			return false;
+		}
+		// Checkpointed before the watermark so a crash in between can't skip the gap
+		backfill.add(segmentLog.getWatermark(), topId);
+		segmentLog.checkpoint(topId);
+		return true;
+	}
+
+	/**
+	 * Recording has resumed now uploads have made room. The messages that arrived while it was
+	 * stopped are backfilled like a gap left by a stop, rather than read in one batch that
+	 * would take the backlog straight back over its quota
+	 */
+	private void catchUp() {
+		synchronized (lock) {
+			try {
+				if (!backfillGap()) {
+					return;
+				}
+			} catch (IOException e) {
+				callbacks.error("catchUp", e);
+				return;
+			}
+			currentId = segmentLog.getWatermark();
+			// The IDs read past before the gap stay unseen
+			seenIds.skipTo(currentId);
+		}
+		scheduleBackfill(0);
+	}
+
+	/**
+	 * Handle a batch of coalesced notifications with at most one read of the source
+	 * @param batch
+	 * @return records written
+	 */
+	private int processBatch(List<Long> batch) {
+		long lowestId = Long.MAX_VALUE;
+		// Refused notifications could have been for anything so read
+		boolean unknown = eventsRefused.getAndSet(false);
+		if (batchIds.length < batch.size()) {
+			batchIds = new long[batch.size()];
+		}
+		int count = 0;
+		for (Long id : batch) {
+			// The notification should carry an ID for the message although for inbound it
+			// sometimes doesn't ("raw") but by the time we read the source it could have a valid ID
+			if (id <= 0) {
+				unknown = true;
+				continue;
+			}
+			if (id < lowestId) {
+				lowestId = id;
+			}
+			// Only IDs not known to be seen need reading
+			if (!seenIds.contains(id)) {
+				batchIds[count++] = id;
+			}
+		}
+		if (unknown) {
+			// Check the lowest ID in the batch is not < than the currentId
+			return processMessages(lowestId == Long.MAX_VALUE ? currentId : overtakeCheck(lowestId));
+		}
+		if (count == 0) {
+			return 0;
+		}
+		Arrays.sort(batchIds, 0, count);
+		// Messages between the watermark and the IDs above it could have arrived without us being
+		// told, e.g. notifications folded into one, so a gap means reading everything after it
+		long lookUpTo = Long.MAX_VALUE;
+		long expected = currentId + 1;
+		for (int i = 0; i < count; i++) {
+			if (batchIds[i] > expected) {
+				lookUpTo = currentId;
+				break;
+			}
+			expected = Math.max(expected, batchIds[i] + 1);
+		}
+		int written = lookUpTo == Long.MAX_VALUE ? 0 : processMessages(currentId);
+		if (batchIds[0] <= lookUpTo) {
+			written += lookUp(count, lookUpTo);
+		}
+		return written;
+	}
+
+	/**
+	 * It's possible for a message to get to the state we persist it out of sequence
+	 * so read from just below it if we detect that condition
+	 * The seen window stops the records already written being written again
+	 * @param id
+	 * @return ID to read after
+	 */
+	private long overtakeCheck(long id) {
+		return id > 0 && id <= currentId ? id - 1 : currentId;
+	}
+
+	/**
+	 * read and persist messages with an ID > than the one given
+	 * @param afterId the currentId, or below it after an overtake
+	 * @return records written
+	 */
+	private int processMessages(long afterId) {
+		int count = append(afterId);
+		ingestStats.providerQueried();
+		if (count > 0) {
+			// Records are written in ID order, the log committed the highest one with them
+			currentId = Math.max(currentId, appender.getHighestId());
+			ingestStats.messagesStored(count);
+			uploadHandoff(false);
+		}
+		return count;
+	}
+
+	/**
+	 * Read and persist the batch's messages by ID, one row each
+	 * @param count IDs in batchIds
+	 * @param maxId IDs above this are skipped
+	 * @return records written
+	 */
+	private int lookUp(int count, long maxId) {
+		int written;
+		synchronized (lock) {
+			long bytesBefore = segmentLog.getBytesWritten();
+			try {
+				appender.begin(seenIds, segmentLog.getStream());
+				long start = System.nanoTime();
+				for (int i = 0; i < count && batchIds[i] <= maxId; i++) {
+					long id = batchIds[i];
+					// Repeats, and IDs a read after a gap has just written
+					if ((i > 0 && id == batchIds[i - 1]) || seenIds.contains(id)) {
+						continue;
+					}
+					source.readMessage(id, appender);
+					ingestStats.providerQueried();
+				}
+				commitBatch(start);
+			} catch (IOException e) {
+				callbacks.error("lookUp", e);
+			}
+			written = appended(bytesBefore);
+		}
+		if (written > 0) {
+			// A message below the watermark, e.g. sent after it had been queued for a while,
+			// doesn't move it
+			currentId = Math.max(currentId, appender.getHighestId());
+			ingestStats.messagesStored(written);
+			uploadHandoff(false);
+		}
+		return written;
+	}
+
+	/**
+	 * Stream messages after the ID from the source to the active segment of the log
+	 * The whole read is inside the lock as records go straight into the log's buffer
+	 * @param afterId read messages with a higher ID than this
+	 * @return the number of messages written
+	 */
+	private int append(long afterId) {
+		synchronized (lock) {
+			long bytesBefore = segmentLog.getBytesWritten();
+			try {
+				appender.begin(seenIds, segmentLog.getStream());
+				long start = System.nanoTime();
+				source.read(afterId, appender);
+				commitBatch(start);
+			} catch (IOException e) {
+				callbacks.error("append", e);
+			}
+			return appended(bytesBefore);
+		}
+	}
+
+	/**
+	 * Commit what the appender has written since begin(), call holding the lock
+	 * @param start System.nanoTime() when the source was first read
+	 * @throws IOException
+	 */
+	private void commitBatch(long start) throws IOException {
+		// Includes encoding as records stream from the source into the log's buffer
+		metrics.getQueryTime().record((System.nanoTime() - start) / 1000);
+		// The durability policy decides whether this batch is synced now
+		// and the segment is sealed if it has reached its size or age limit
+		// The watermark goes with the records so a crash can't separate them
+		long nowMs = System.currentTimeMillis();
+		segmentLog.commit(appender.getCount(), appender.getHighestId(), nowMs);
+		appender.recordLatency(metrics.getPersistLatency(), nowMs);
+		applyQuota();
+	}
+
+	/**
+	 * Count what the appender has written since begin(), call holding the lock
+	 * @param bytesBefore log bytes written before begin()
+	 * @return records written
+	 */
+	private int appended(long bytesBefore) {
+		metrics.duplicatesSuppressed(appender.getDuplicates());
+		metrics.bodiesDropped(appender.getBodiesDropped());
+		metrics.bytesWritten(segmentLog.getBytesWritten() - bytesBefore);
+		return appender.getCount();
+	}
+
+	/**
+	 * Called once the log is recovered
+	 * Appends any messages that arrived while we were stopped
+	 */
+	private void missedMessageCheck() {
+		if (!isRecordingStopped() && currentId < source.getTopMessageId()) {
+			processMessages(currentId);
+		}
+	}
+
+	/**
+	 * Run the next backfill chunk after a delay
+	 * @param delayMs
+	 */
+	private void scheduleBackfill(long delayMs) {
+		if (backfill == null || !running || !backfillScheduled.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			backfillExecutor.schedule(new BackfillTask(), delayMs, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// The host shut the executor down as we stopped
+			backfillScheduled.set(false);
+		}
+	}
+
+	/**
+	 * Read the next chunk of the backfill into the log and checkpoint how far it has got.
+	 * The chunk is synced before the checkpoint so a crash can only read some of it again,
+	 * the server drops the duplicates
+	 * @return true if there's more to backfill
+	 */
+	private boolean backfillChunk() {
+		// Counted again when ranges are added after it has finished
+		if (backfillRemaining <= 0) {
+			List<long[]> ranges;
+			synchronized (lock) {
+				ranges = backfill.getRanges();
+			}
+			// Counted outside the lock, it can take a while on a big history
+			long remaining = 0;
+			for (long[] range : ranges) {
+				remaining += source.count(range[0], range[1]);
+			}
+			backfillRemaining = remaining;
+		}
+		int written;
+		boolean sealed;
+		boolean more;
+		synchronized (lock) {
+			long[] range = backfill.next();
+			if (!running || range == null) {
+				return false;
+			}
+			int chunk = config.getBackfillChunk();
+			int sealedBefore = segmentLog.getSealedSegments().size();
+			long bytesBefore = segmentLog.getBytesWritten();
+			try {
+				// Nothing in the range has been written, the window only guards against a source
+				// repeating a row
+				backfillAppender.begin(new SeenIdWindow(range[0], chunk), segmentLog.getStream());
+				int read = source.read(range[0], range[1], chunk, backfillAppender);
+				// Below the watermark so it doesn't move, and not in the persist latency as the
+				// records can be years old
+				segmentLog.commit(backfillAppender.getCount(), backfillAppender.getLastId(),
+						System.currentTimeMillis());
+				segmentLog.sync();
+				applyQuota();
+				backfill.advance(read < chunk ? range[1] : backfillAppender.getLastId());
+				backfillRemaining = Math.max(0, backfillRemaining - read);
+				if (backfill.isEmpty()) {
+					backfillRemaining = 0;
+				}
+			} catch (IOException e) {
+				callbacks.error("backfill", e);
+			}
+			written = backfillAppender.getCount();
+			metrics.duplicatesSuppressed(backfillAppender.getDuplicates());
+			metrics.bodiesDropped(backfillAppender.getBodiesDropped());
+			metrics.bytesWritten(segmentLog.getBytesWritten() - bytesBefore);
+			metrics.backfilled(written, backfillRemaining, System.currentTimeMillis());
+			sealed = segmentLog.getSealedSegments().size() > sealedBefore;
+			more = !backfill.isEmpty();
+		}
+		callbacks.backfillPersisted(written, backfillRemaining);
+		// Left to the live path otherwise, sealing the active segment after every chunk would
+		// upload lots of small segments
+		if (sealed || !more) {
+			uploadHandoff(false);
+		}
+		return more;
+	}
+
+	/**
+	 * Offer every sealed segment not already with the upload engine to the upload stage
+	 * If the uploads are idle the active segment is sealed so new records go up straight
+	 * away, while they're busy records accumulate into the active segment
+	 * While the retry scheduler is backing off everything waits for the scheduled retry so
+	 * new SMS don't hammer a failing server
+	 * Called from the persist worker and upload callbacks
+	 * @param retry offer segments that failed as well so the upload worker retries them
+	 */
+	private void uploadHandoff(boolean retry) {
+		if (retryScheduler.isBackingOff()) {
+			return;
+		}
+		List<File> sealed;
+		synchronized (lock) {
+			try {
+				if (uploadEngine.hasCapacity() && uploadStage.getDepth() == 0) {
+					// Syncs and closes it first so everything handed over is on flash
+					segmentLog.sealActive();
+				}
+			} catch (IOException e) {
+				callbacks.error("seal", e);
+			}
+			sealed = segmentLog.getSealedSegments();
+		}
+		for (File segment : sealed) {
+			// Segments the stage has no room for are offered again after the next upload
+			if ((retry || !uploadEngine.isSubmitted(segment)) && !uploadStage.offer(segment)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Persist worker. Reads and appends on notifications and syncs group commits when they're due
+	 */
+	private class PersistHandler extends PipelineStage.Handler<Long> {
+		@Override
+		public void started() {
+			// Seal whatever was being written when we stopped before appending anything new
+			recover();
+			// There could be SMS we have not read while we were stopped so they need persisting
+			missedMessageCheck();
+			// If there are sealed segments then try and upload them
+			uploadHandoff(false);
+			scheduleBackfill(0);
+		}
+
+		@Override
+		public void handle(List<Long> batch) {
+			ingestStats.eventsReceived(batch.size());
+			metrics.eventsCoalesced(batch.size() - 1);
+			int written = 0;
+			// The messages stay on the phone above the watermark until uploads make room
+			if (!isRecordingStopped()) {
+				if (recordingResumed.getAndSet(false)) {
+					catchUp();
+				}
+				written = processBatch(batch);
+			}
+			ingestStats.batchProcessed();
+			callbacks.batchPersisted(batch.size(), written);
+		}
+
+		/**
+		 * Only wait as long as any group commit allows
+		 */
+		@Override
+		public long getIdleTimeoutMs() {
+			synchronized (lock) {
+				return segmentLog.getSyncDelayMs(System.currentTimeMillis());
+			}
+		}
+
+		/**
+		 * Sync records that have waited as long as the durability policy allows
+		 */
+		@Override
+		public void idle() {
+			synchronized (lock) {
+				try {
+					segmentLog.syncIfDue(System.currentTimeMillis());
+				} catch (IOException e) {
+					callbacks.error("sync", e);
+				}
+			}
+		}
+
+		@Override
+		public void error(RuntimeException e) {
+			callbacks.error("persist", e);
+		}
+	}
+
+	/**
+	 * One backfill chunk, schedules the next after the pause
+	 */
+	private class BackfillTask implements Runnable {
+		@Override
+		public void run() {
+			backfillScheduled.set(false);
+			boolean more;
+			if (eventStage.getDepth() > 0 || overQuota) {
+				// Give way to the live path while it has notifications waiting, and wait for room
+				synchronized (lock) {
+					more = !backfill.isEmpty();
+				}
+			} else {
+				more = backfillChunk();
+			}
+			if (more) {
+				scheduleBackfill(config.getBackfillPauseMs());
+			}
+		}
+	}
+
+	/**
+	 * Upload worker. Submits segments to the upload engine off the persist worker so slow
+	 * uploaders, e.g. the chunked one saving its session, never hold up persistence
+	 */
+	private class UploadHandler extends PipelineStage.Handler<File> {
+		@Override
+		public void handle(List<File> batch) {
+			if (retryScheduler.isBackingOff()) {
+				// They stay in the log for the scheduled retry
+				return;
+			}
+			// Already queued or in flight segments are ignored by the engine
+			for (File segment : batch) {
+				// Compacted or dropped since it was offered, its replacement is offered separately
+				if (segment.exists()) {
+					uploadEngine.submit(segment);
+				}
+			}
+			uploadEngine.retryFailed();
+		}
+
+		@Override
+		public void error(RuntimeException e) {
+			callbacks.error("upload", e);
+		}
+	}
+}
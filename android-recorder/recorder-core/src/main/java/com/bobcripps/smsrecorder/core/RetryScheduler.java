@@ -0,0 +1,254 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules another go at failed uploads using exponential backoff with jitter.
+ * The delay doubles with every failure from the base delay up to the cap, a random part of it
+ * is jittered so a fleet of handsets doesn't retry in step. Success resets it.
+ * While a retry is pending isBackingOff() is true and the service holds back new uploads.
+ * A retry that falls due while the gate is closed (no connectivity) waits for gateOpened().
+ * The state can be saved through the Listener and restored after a restart.
+ * Thread safe.
+ */
+public class RetryScheduler {
+
+	/**
+	 * Source of the current time, replaceable with a virtual clock
+	 */
+	public interface Clock {
+		long currentTimeMillis();
+	}
+
+	/**
+	 * Says whether a retry could get anywhere, e.g. the device has connectivity
+	 */
+	public interface Gate {
+		boolean isOpen();
+	}
+
+	/**
+	 * Told whenever the backoff state changes so it can be persisted
+	 */
+	public interface Listener {
+		void retryStateChanged(int failures, long nextRetryAtMs);
+	}
+
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		@Override
+		public long currentTimeMillis() {
+			return System.currentTimeMillis();
+		}
+	};
+
+	public static final Gate ALWAYS_OPEN = new Gate() {
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+	};
+
+	private final ScheduledExecutorService executor;
+	private final Runnable retry;
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	private final Clock clock;
+	private final Gate gate;
+	private final Random random;
+	private Listener listener;
+	// Failures since the last success
+	private int failures;
+	private long currentDelayMs;
+	// When the pending retry is due, 0 if none is pending
+	private long nextRetryAtMs;
+	private ScheduledFuture<?> pending;
+	// A retry fell due with the gate closed
+	private boolean waitingForGate;
+	private long retriesRun;
+	private long gatedRetries;
+
+	/**
+	 * @param executor runs the retry
+	 * @param retry what to do when a retry is due
+	 * @param baseDelayMs delay after the first failure
+	 * @param maxDelayMs cap on the delay
+	 * @param clock
+	 * @param gate checked when a retry falls due
+	 * @param random source of jitter
+	 */
+	public RetryScheduler(ScheduledExecutorService executor, Runnable retry, long baseDelayMs, long maxDelayMs,
+						  Clock clock, Gate gate, Random random) {
+		this.executor = executor;
+		this.retry = retry;
+		this.baseDelayMs = baseDelayMs;
+		this.maxDelayMs = maxDelayMs;
+		this.clock = clock;
+		this.gate = gate;
+		this.random = random;
+	}
+
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Restore saved state after a restart and schedule the retry that was pending
+	 * @param failures
+	 * @param nextRetryAtMs
+	 */
+	public synchronized void restore(int failures, long nextRetryAtMs) {
+		this.failures = failures;
+		this.currentDelayMs = failures == 0 ? 0 : delayFor(failures);
+		if (failures > 0 && nextRetryAtMs > 0) {
+			schedule(nextRetryAtMs);
+		}
+	}
+
+	/**
+	 * An upload failed. Schedules a retry unless one is already pending, so several uploads
+	 * failing together only count as one failure
+	 */
+	public synchronized void failed() {
+		if (isBackingOff()) {
+			return;
+		}
+		failures++;
+		currentDelayMs = delayFor(failures);
+		// Equal jitter, half the delay is fixed and half is random
+		long half = currentDelayMs / 2;
+		long delay = half + (long) (random.nextDouble() * (currentDelayMs - half));
+		schedule(clock.currentTimeMillis() + delay);
+		notifyListener();
+	}
+
+	/**
+	 * An upload succeeded, reset the backoff and drop any pending retry
+	 */
+	public synchronized void succeeded() {
+		if (failures == 0 && !isBackingOff()) {
+			return;
+		}
+		cancel();
+		failures = 0;
+		currentDelayMs = 0;
+		notifyListener();
+	}
+
+	/**
+	 * Call when the gate may have opened, e.g. connectivity came back. Runs a retry that was
+	 * waiting for it straight away
+	 */
+	public void gateOpened() {
+		synchronized (this) {
+			if (!waitingForGate || !gate.isOpen()) {
+				return;
+			}
+			waitingForGate = false;
+			nextRetryAtMs = 0;
+			notifyListener();
+		}
+		runRetry();
+	}
+
+	/**
+	 * @return true while a retry is pending, uploads should be held back until it runs
+	 */
+	public synchronized boolean isBackingOff() {
+		return nextRetryAtMs != 0 || waitingForGate;
+	}
+
+	public synchronized int getFailures() {
+		return failures;
+	}
+
+	public synchronized long getCurrentDelayMs() {
+		return currentDelayMs;
+	}
+
+	public synchronized long getNextRetryAtMs() {
+		return nextRetryAtMs;
+	}
+
+	public synchronized long getRetriesRun() {
+		return retriesRun;
+	}
+
+	public synchronized long getGatedRetries() {
+		return gatedRetries;
+	}
+
+	/**
+	 * Stop any pending retry, the state is left for the listener to have saved
+	 */
+	public synchronized void shutdown() {
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "failures=" + failures + " delayMs=" + currentDelayMs + " nextRetryAt=" + nextRetryAtMs
+				+ " waitingForGate=" + waitingForGate + " retries=" + retriesRun + " gated=" + gatedRetries;
+	}
+
+	private long delayFor(int failures) {
+		long delay = baseDelayMs;
+		for (int i = 1; i < failures && delay < maxDelayMs; i++) {
+			delay *= 2;
+		}
+		return Math.min(delay, maxDelayMs);
+	}
+
+	private void schedule(long atMs) {
+		cancel();
+		nextRetryAtMs = atMs;
+		long delay = Math.max(0, atMs - clock.currentTimeMillis());
+		pending = executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				fire();
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void cancel() {
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+		nextRetryAtMs = 0;
+		waitingForGate = false;
+	}
+
+	private void fire() {
+		synchronized (this) {
+			pending = null;
+			nextRetryAtMs = 0;
+			if (!gate.isOpen()) {
+				waitingForGate = true;
+				gatedRetries++;
+				return;
+			}
+			notifyListener();
+		}
+		runRetry();
+	}
+
+	private void runRetry() {
+		synchronized (this) {
+			retriesRun++;
+		}
+		retry.run();
+	}
+
+	private void notifyListener() {
+		if (listener != null) {
+			listener.retryStateChanged(failures, nextRetryAtMs);
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package com.bobcripps.smsrecorder.core;
+
+/**
+ * Fixed size record of which SMS _ID's have been written to file.
+ * IDs from the floor upwards are held as bits in a ring so memory stays constant however long
+ * the service runs. Adding an ID above the top of the window slides the floor up.
+ * Below the floor an ID is treated as seen unless it was passed over without being written, e.g.
+ * a message still in the outbox when the IDs after it were read. The most recent of those are
+ * kept as unseen so the message is recorded when it moves to sent, as it would have been with
+ * every stored ID in a set. The log checkpoints them with the watermark so they survive a restart.
+ * Not thread safe, the pipeline uses it under its lock.
+ */
+public class SeenIdWindow {
+	// Most IDs below the floor remembered as unseen, the highest are kept
+	public static final int MAX_UNSEEN = 256;
+	private static final int UNSEEN_MASK = MAX_UNSEEN - 1;
+
+	private final long[] bits;
+	private final int capacity;
+	private final int mask;
+	// Lowest ID held in the ring
+	private long floor;
+	// Highest ID added, or the watermark the window started at
+	private long highest;
+	// IDs below the floor that were passed over, ascending in a ring from unseenHead
+	private final long[] unseen = new long[MAX_UNSEEN];
+	private int unseenHead;
+	private int unseenCount;
+
+	/**
+	 * @param watermark everything at or below this ID is treated as already seen, apart from
+	 * IDs given to addUnseen()
+	 * @param capacity number of IDs tracked above the floor, rounded up to a power of two
+	 */
+	public SeenIdWindow(long watermark, int capacity) {
+		if (capacity < 64) {
+			capacity = 64;
+		}
+		this.capacity = Integer.highestOneBit(capacity - 1) << 1;
+		this.mask = this.capacity - 1;
+		this.bits = new long[this.capacity >>> 6];
+		this.floor = watermark + 1;
+		this.highest = watermark;
+	}
+
+	/**
+	 * @param id message _ID, only positive IDs are ever seen
+	 * @return true if the ID has been added, or is below the window and wasn't passed over
+	 */
+	public boolean contains(long id) {
+		if (id <= 0) {
+			return false;
+		}
+		if (id < floor) {
+			return findUnseen(id) < 0;
+		}
+		if (id >= floor + capacity) {
+			return false;
+		}
+		int slot = (int) (id & mask);
+		return (bits[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * Mark an ID as seen
+	 * @param id message _ID
+	 * @return true if it was not seen before
+	 */
+	public boolean add(long id) {
+		if (id <= 0) {
+			return false;
+		}
+		if (id < floor) {
+			int index = findUnseen(id);
+			if (index < 0) {
+				return false;
+			}
+			removeUnseen(index);
+			return true;
+		}
+		if (id >= floor + capacity) {
+			slideTo(id - capacity + 1, id);
+		}
+		int slot = (int) (id & mask);
+		long bit = 1L << slot;
+		int word = slot >>> 6;
+		if ((bits[word] & bit) != 0) {
+			return false;
+		}
+		bits[word] |= bit;
+		highest = Math.max(highest, id);
+		return true;
+	}
+
+	/**
+	 * Restore IDs passed over before a restart, from getUnseen()
+	 * @param ids ascending, below the floor
+	 */
+	public void addUnseen(long[] ids) {
+		for (long id : ids) {
+			if (id > 0 && id < floor && (unseenCount == 0 || id > unseenAt(unseenCount - 1))) {
+				pushUnseen(id);
+			}
+		}
+	}
+
+	/**
+	 * Move the floor above a watermark that jumped, e.g. over a gap handed to the backfill.
+	 * IDs passed over up to the highest added stay unseen, the ones above it are the backfill's
+	 * @param watermark
+	 */
+	public void skipTo(long watermark) {
+		if (watermark + 1 > floor) {
+			slideTo(watermark + 1, Math.min(highest, watermark));
+			highest = Math.max(highest, watermark);
+		}
+	}
+
+	/**
+	 * @param watermark
+	 * @return IDs at or below the watermark that were passed over, ascending, at most MAX_UNSEEN
+	 */
+	public long[] getUnseen(long watermark) {
+		// Ring of the highest found so far, ids[count] is the lowest once it's full
+		long[] ids = new long[MAX_UNSEEN];
+		int count = 0;
+		for (int i = 0; i < unseenCount; i++) {
+			long id = unseenAt(i);
+			if (id <= watermark) {
+				ids[count++ & UNSEEN_MASK] = id;
+			}
+		}
+		long top = Math.min(Math.min(watermark, highest), floor + capacity - 1);
+		for (long id = Math.max(floor, top - MAX_UNSEEN + 1); id <= top; id++) {
+			int slot = (int) (id & mask);
+			if ((bits[slot >>> 6] & (1L << slot)) == 0) {
+				ids[count++ & UNSEEN_MASK] = id;
+			}
+		}
+		int first = count > MAX_UNSEEN ? count & UNSEEN_MASK : 0;
+		long[] result = new long[Math.min(count, MAX_UNSEEN)];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = ids[(first + i) & UNSEEN_MASK];
+		}
+		return result;
+	}
+
+	public long getFloor() {
+		return floor;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Move the floor up, clearing the slots of the IDs that drop out so they can be reused
+	 * for the IDs coming in at the top. Those that were never added become unseen
+	 * @param newFloor
+	 * @param passedUpTo IDs up to this were read past, those above it just drop out
+	 */
+	private void slideTo(long newFloor, long passedUpTo) {
+		long ringEnd = Math.min(newFloor, floor + capacity);
+		for (long id = floor; id < ringEnd; id++) {
+			int slot = (int) (id & mask);
+			long bit = 1L << slot;
+			if ((bits[slot >>> 6] & bit) != 0) {
+				bits[slot >>> 6] &= ~bit;
+			} else if (id <= passedUpTo) {
+				pushUnseen(id);
+			}
+		}
+		// Never held in the ring, only the highest can be kept
+		long end = Math.min(newFloor - 1, passedUpTo);
+		for (long id = Math.max(ringEnd, end - MAX_UNSEEN + 1); id <= end; id++) {
+			pushUnseen(id);
+		}
+		floor = newFloor;
+	}
+
+	private long unseenAt(int index) {
+		return unseen[(unseenHead + index) & UNSEEN_MASK];
+	}
+
+	/**
+	 * @param id higher than every unseen ID, the lowest is dropped if they're full
+	 */
+	private void pushUnseen(long id) {
+		if (unseenCount == MAX_UNSEEN) {
+			unseenHead = (unseenHead + 1) & UNSEEN_MASK;
+			unseenCount--;
+		}
+		unseen[(unseenHead + unseenCount) & UNSEEN_MASK] = id;
+		unseenCount++;
+	}
+
+	/**
+	 * @param id
+	 * @return index of the ID in the unseen IDs, -1 if it isn't there
+	 */
+	private int findUnseen(long id) {
+		int low = 0;
+		int high = unseenCount - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long value = unseenAt(middle);
+			if (value < id) {
+				low = middle + 1;
+			} else if (value > id) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	private void removeUnseen(int index) {
+		for (int i = index; i < unseenCount - 1; i++) {
+			unseen[(unseenHead + i) & UNSEEN_MASK] = unseenAt(i + 1);
+		}
+		unseenCount--;
+	}
+}
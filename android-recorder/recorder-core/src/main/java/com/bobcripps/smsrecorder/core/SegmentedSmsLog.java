@@ -0,0 +1,795 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Append only SMS log split into numbered segment files.
+ * Records are appended to the active segment. It is sealed when it reaches a size or age limit,
+ * or when the uploader is idle, and a new one is started with the next number.
+ * Sealed segments wait in the manifest until they are uploaded and deleted so any number can be
+ * pending and a failed upload only has to resend one segment.
+ * The manifest is a small text file rewritten atomically whenever a segment is sealed or deleted:
+ * <pre>
+ * next 12
+ * watermark 5230
+ * unseen 5101 5228
+ * sealed 10 smslog-0000000010.csv.gz 1630
+ * sealed 11 smslog-0000000011.csv 1204
+ * </pre>
+ * The file suffix comes from the record format so segments written in an earlier format are
+ * still recovered and uploaded after the format is changed. The last field is the number of
+ * records in the segment so the backlog can be counted without reading it.
+ * <p>
+ * While uploads are failing the backlog can be kept down by compacting sealed segments, gzipping
+ * each into a file with .gz added to its name that replaces it in the manifest. The server
+ * decompresses a file uploaded with that suffix so a compacted segment is sent as it is.
+ * <p>
+ * The log also holds the watermark, the highest message ID recorded, so the records and the
+ * watermark are committed by the same write. The manifest keeps a checkpoint of it covering
+ * everything synced when it was last written. On recovery the segment that was active is read
+ * to find the highest ID that reached flash and any record torn by a crash is cut off, so the
+ * messages after the watermark are exactly the ones that need reading again.
+ * IDs at or below the watermark that were read past without being recorded, e.g. a message
+ * still in the outbox, are checkpointed with it from the pipeline's SeenIdWindow. Those after
+ * the checkpoint are found from the gaps in the segment that was active.
+ * Callers synchronize access, the service does it inside its lock.
+ */
+public class SegmentedSmsLog {
+	private static final String MANIFEST = "manifest";
+	private static final String SEGMENT_PREFIX = "smslog-";
+	private static final String TEMP_SUFFIX = ".tmp";
+	// Added to the name of a compacted segment, the same suffix the server decompresses uploads by
+	public static final String COMPACTED_SUFFIX = ".gz";
+
+	private final File dir;
+	private final RecordFormat format;
+	private final SmsRecordEncoder encoder;
+	private final DurabilityPolicy policy;
+	private final int bufferSize;
+	private final long maxSegmentBytes;
+	private final long maxSegmentAgeMs;
+	// Sealed segment number to its file, oldest first
+	private final TreeMap<Long, File> sealed = new TreeMap<>();
+	// When the first record of a sealed segment was committed, only for segments sealed since start
+	private final Map<Long, Long> sealedStartedMs = new HashMap<>();
+	// Records in each sealed segment
+	private final Map<Long, Integer> sealedRecords = new HashMap<>();
+	// Total size of the sealed segments, kept as they change so the quota is cheap to check
+	private long sealedBytes;
+	private long nextSeq = 1;
+	// The segment being appended to, null until the first record after a seal
+	private SmsLogWriter activeWriter;
+	private File activeFile;
+	private long activeSeq;
+	private long activeStartedMs;
+	private int activeRecords;
+	// Bytes of the active segment counted in bytesWritten
+	private long activeLength;
+	private long bytesWritten;
+	// Optional, passed to each segment writer
+	private LatencyHistogram syncTimes;
+	// Highest message ID appended, and the highest known to be on flash
+	private long watermark;
+	private long durableWatermark;
+	// Syncs done by segment writers that have been closed
+	private long closedSyncCount;
+	// Records found by the last recoverSegment()
+	private int recoveredRecords;
+	// IDs above the checkpointed watermark found by recoverSegment(), ascending once sorted
+	private long[] recoveredIds = new long[64];
+	private int recoveredIdCount;
+	// IDs passed over at or below the watermark, checkpointed from the seen window once there is one
+	private long[] unseenIds = new long[0];
+	private SeenIdWindow seenIds;
+
+	/**
+	 * @param dir directory holding the segments and manifest, created if needed
+	 * @param format records are written in, gives the segment file suffix
+	 * @param encoder told when a new segment starts so it can write a header and reset its state
+	 * @param policy when appended records are synced
+	 * @param bufferSize size of the buffer records are encoded into
+	 * @param maxSegmentBytes seal the active segment once it's this big
+	 * @param maxSegmentAgeMs seal the active segment once its first record is this old
+	 */
+	public SegmentedSmsLog(File dir, RecordFormat format, SmsRecordEncoder encoder, DurabilityPolicy policy,
+						   int bufferSize, long maxSegmentBytes, long maxSegmentAgeMs) {
+		this.dir = dir;
+		this.format = format;
+		this.encoder = encoder;
+		this.policy = policy;
+		this.bufferSize = bufferSize;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.maxSegmentAgeMs = maxSegmentAgeMs;
+	}
+
+	/**
+	 * @param syncTimes told how long each sync of segment data takes in us, null for none
+	 */
+	public void setSyncTimes(LatencyHistogram syncTimes) {
+		this.syncTimes = syncTimes;
+	}
+
+	/**
+	 * Rebuild state after a start or crash. Reads the manifest, drops entries whose files
+	 * were deleted after upload and seals any segment that was still being appended to, once
+	 * its records have been read to recover the watermark.
+	 * Must be called before anything else
+	 * @throws IOException
+	 */
+	public void recover() throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can't create " + dir);
+		}
+		sealed.clear();
+		sealedStartedMs.clear();
+		sealedRecords.clear();
+		unseenIds = new long[0];
+		readManifest();
+		long checkpointed = durableWatermark;
+		recoveredIdCount = 0;
+		// Uploaded segments are deleted before the manifest is rewritten so skip missing ones
+		List<Long> missing = new ArrayList<>();
+		for (Map.Entry<Long, File> entry : sealed.entrySet()) {
+			if (!entry.getValue().exists()) {
+				missing.add(entry.getKey());
+			}
+		}
+		for (Long seq : missing) {
+			sealed.remove(seq);
+			sealedRecords.remove(seq);
+		}
+		// Segments on disk but not in the manifest were active when we stopped
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(TEMP_SUFFIX)) {
+					// A compaction cut short, the segment it was compressing is still there
+					file.delete();
+					continue;
+				}
+				long seq = parseSeq(file.getName());
+				if (seq < 0) {
+					continue;
+				}
+				if (sealed.containsKey(seq)) {
+					if (!file.equals(sealed.get(seq))) {
+						// The other half of a compaction the manifest doesn't point at
+						file.delete();
+					}
+					continue;
+				}
+				if (recoverSegment(file, checkpointed) == 0) {
+					file.delete();
+				} else {
+					sealed.put(seq, file);
+					sealedRecords.put(seq, recoveredRecords);
+				}
+				nextSeq = Math.max(nextSeq, seq + 1);
+			}
+		}
+		sealedBytes = 0;
+		for (Map.Entry<Long, File> entry : sealed.entrySet()) {
+			sealedBytes += entry.getValue().length();
+			// Manifests written before record counts were kept
+			if (!sealedRecords.containsKey(entry.getKey())) {
+				sealedRecords.put(entry.getKey(), countRecords(entry.getValue()));
+			}
+		}
+		watermark = durableWatermark;
+		addRecoveredUnseen(checkpointed);
+		writeManifest();
+	}
+
+	/**
+	 * The IDs missing between the checkpoint and the recovered watermark were read past, add
+	 * them to those checkpointed, keeping the highest
+	 * @param checkpointed watermark in the manifest
+	 */
+	private void addRecoveredUnseen(long checkpointed) {
+		Arrays.sort(recoveredIds, 0, recoveredIdCount);
+		SeenIdWindow window = new SeenIdWindow(checkpointed, SeenIdWindow.MAX_UNSEEN);
+		window.addUnseen(unseenIds);
+		for (int i = 0; i < recoveredIdCount; i++) {
+			window.add(recoveredIds[i]);
+		}
+		window.skipTo(durableWatermark);
+		unseenIds = window.getUnseen(durableWatermark);
+		recoveredIds = new long[64];
+	}
+
+	/**
+	 * @return IDs at or below the watermark that were read past without being recorded, as
+	 * recovered, to give the seen window
+	 */
+	public long[] getUnseenIds() {
+		return unseenIds.clone();
+	}
+
+	/**
+	 * @param seenIds checkpointed with the watermark from now on, null to keep the recovered IDs
+	 */
+	public void setSeenIds(SeenIdWindow seenIds) {
+		this.seenIds = seenIds;
+	}
+
+	/**
+	 * Read a segment that was active when we stopped to find the highest ID that reached flash
+	 * and cut off any record torn by a crash
+	 * @param file
+	 * @param checkpointed IDs above this are kept to find the ones passed over
+	 * @return bytes of complete records left in the file, 0 if there are none. Sets recoveredRecords
+	 * @throws IOException
+	 */
+	private long recoverSegment(File file, long checkpointed) throws IOException {
+		RecordFormat segmentFormat = RecordFormat.readableFormatOf(file.getName());
+		long length = file.length();
+		long validLength = length;
+		recoveredRecords = 0;
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			SmsRecordReader reader = segmentFormat == null ? null : segmentFormat.createReader(in);
+			if (reader != null) {
+				SmsData record = new SmsData();
+				int records = 0;
+				try {
+					while (reader.read(record)) {
+						durableWatermark = Math.max(durableWatermark, record.getId());
+						if (record.getId() > checkpointed) {
+							if (recoveredIdCount == recoveredIds.length) {
+								recoveredIds = Arrays.copyOf(recoveredIds, recoveredIdCount * 2);
+							}
+							recoveredIds[recoveredIdCount++] = record.getId();
+						}
+						records++;
+					}
+				} catch (EOFException e) {
+					validLength = reader.getRecordEnd();
+				}
+				if (records == 0) {
+					validLength = 0;
+				}
+				recoveredRecords = records;
+			}
+		} catch (EOFException e) {
+			// Torn in the header
+			validLength = 0;
+		} catch (IOException e) {
+			// Not in the format the suffix suggests, keep it whole and rely on the checkpoint
+		} finally {
+			in.close();
+		}
+		if (validLength > 0 && validLength < length) {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(validLength);
+				raf.getFD().sync();
+			} finally {
+				raf.close();
+			}
+		}
+		return validLength;
+	}
+
+	/**
+	 * @param file a sealed segment, compacted or not
+	 * @return records it holds, 0 if its format can't be read back
+	 */
+	private int countRecords(File file) {
+		String name = uncompressedName(file);
+		RecordFormat segmentFormat = RecordFormat.readableFormatOf(name);
+		if (segmentFormat == null) {
+			return 0;
+		}
+		int records = 0;
+		try {
+			InputStream in = openSegment(file);
+			try {
+				SmsRecordReader reader = segmentFormat.createReader(in);
+				if (reader == null) {
+					return 0;
+				}
+				SmsData record = new SmsData();
+				while (reader.read(record)) {
+					records++;
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Counted up to where it can't be read, it's uploaded whole anyway
+		}
+		return records;
+	}
+
+	/**
+	 * Move a file written by an older version of the app into the log as a sealed segment.
+	 * Give legacy CSV files LEGACY_CSV's suffix: if we crash before the manifest is written
+	 * recovery finds the file by its name, and it's kept whole rather than read as CSV and cut
+	 * back to the last record that parsed
+	 * @param file
+	 * @param suffix file suffix for the format the file was written in
+	 * @throws IOException
+	 */
+	public void adopt(File file, String suffix) throws IOException {
+		if (!file.exists()) {
+			return;
+		}
+		if (file.length() == 0) {
+			file.delete();
+			return;
+		}
+		long seq = nextSeq++;
+		File segment = new File(dir, SEGMENT_PREFIX + String.format("%010d", seq) + suffix);
+		if (!file.renameTo(segment)) {
+			throw new IOException("Can't move " + file + " to " + segment);
+		}
+		sealed.put(seq, segment);
+		sealedRecords.put(seq, countRecords(segment));
+		sealedBytes += segment.length();
+		writeManifest();
+	}
+
+	/**
+	 * @return stream to encode records into, starting a new active segment if needed
+	 * @throws IOException
+	 */
+	public OutputStream getStream() throws IOException {
+		if (activeWriter == null) {
+			activeSeq = nextSeq++;
+			activeFile = segmentFile(activeSeq);
+			activeWriter = new SmsLogWriter(activeFile, policy, bufferSize);
+			activeWriter.setSyncTimes(syncTimes);
+			activeStartedMs = 0;
+			activeRecords = 0;
+			activeLength = 0;
+			encoder.startSegment(activeWriter.getStream());
+		}
+		return activeWriter.getStream();
+	}
+
+	/**
+	 * Call after each batch of records. Syncs according to the durability policy and seals the
+	 * active segment if it's reached its size or age limit
+	 * @param records number of records in the batch
+	 * @param highestId highest message ID in the batch, it becomes the watermark
+	 * @param nowMs current time
+	 * @throws IOException
+	 */
+	public void commit(int records, long highestId, long nowMs) throws IOException {
+		if (activeWriter == null) {
+			return;
+		}
+		if (records > 0) {
+			if (activeStartedMs == 0) {
+				activeStartedMs = nowMs;
+			}
+			activeRecords += records;
+			watermark = Math.max(watermark, highestId);
+		}
+		activeWriter.commit(records, nowMs);
+		updateDurableWatermark();
+		long length = activeWriter.length();
+		bytesWritten += length - activeLength;
+		activeLength = length;
+		if (length >= maxSegmentBytes
+				|| (activeStartedMs != 0 && nowMs - activeStartedMs >= maxSegmentAgeMs)) {
+			sealActive();
+		}
+	}
+
+	/**
+	 * For group commit, sync records that have waited long enough with no new batch arriving
+	 * @param nowMs
+	 * @throws IOException
+	 */
+	public void syncIfDue(long nowMs) throws IOException {
+		if (activeWriter != null) {
+			activeWriter.syncIfDue(nowMs);
+			updateDurableWatermark();
+		}
+	}
+
+	/**
+	 * Sync the records committed to the active segment now, whatever the durability policy
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		if (activeWriter != null) {
+			activeWriter.syncPending();
+			updateDurableWatermark();
+		}
+	}
+
+	/**
+	 * Raise the watermark without appending records, e.g. on the first start when messages
+	 * already on the phone are skipped. Syncs anything pending and checkpoints it in the manifest
+	 * @param id
+	 * @throws IOException
+	 */
+	public void checkpoint(long id) throws IOException {
+		if (id <= watermark) {
+			return;
+		}
+		if (activeWriter != null) {
+			// Reopened by the next getStream()
+			activeWriter.close();
+		}
+		watermark = id;
+		durableWatermark = id;
+		writeManifest();
+	}
+
+	/**
+	 * @return highest message ID appended to the log, recovered from it on start
+	 */
+	public long getWatermark() {
+		return watermark;
+	}
+
+	/**
+	 * @return highest message ID known to be on flash
+	 */
+	public long getDurableWatermark() {
+		return durableWatermark;
+	}
+
+	private void updateDurableWatermark() {
+		if (activeWriter.getPendingRecords() == 0) {
+			durableWatermark = watermark;
+		}
+	}
+
+	/**
+	 * @param nowMs
+	 * @return ms until unsynced records are due a timed sync, -1 if none are due
+	 */
+	public long getSyncDelayMs(long nowMs) {
+		return activeWriter == null ? -1 : activeWriter.getSyncDelayMs(nowMs);
+	}
+
+	/**
+	 * Sync and close the active segment and add it to the sealed list. Does nothing if it's empty
+	 * @throws IOException
+	 */
+	public void sealActive() throws IOException {
+		if (activeWriter == null) {
+			return;
+		}
+		SmsLogWriter writer = activeWriter;
+		activeWriter = null;
+		writer.close();
+		closedSyncCount += writer.getSyncCount();
+		durableWatermark = watermark;
+		if (activeRecords == 0) {
+			activeFile.delete();
+		} else {
+			sealed.put(activeSeq, activeFile);
+			sealedStartedMs.put(activeSeq, activeStartedMs);
+			sealedRecords.put(activeSeq, activeRecords);
+			sealedBytes += activeFile.length();
+		}
+		writeManifest();
+	}
+
+	/**
+	 * Sync and close the active segment without sealing it. Recovery seals it on the next start
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (activeWriter != null) {
+			activeWriter.close();
+			durableWatermark = watermark;
+		}
+	}
+
+	/**
+	 * @return sealed segments waiting for upload, oldest first
+	 */
+	public List<File> getSealedSegments() {
+		return Collections.unmodifiableList(new ArrayList<>(sealed.values()));
+	}
+
+	public boolean hasSealedSegments() {
+		return !sealed.isEmpty();
+	}
+
+	/**
+	 * @return total bytes in sealed segments waiting for upload
+	 */
+	public long getSealedBytes() {
+		return sealedBytes;
+	}
+
+	/**
+	 * @return bytes in sealed segments and the active one, everything the server hasn't acknowledged
+	 * @throws IOException
+	 */
+	public long getBacklogBytes() throws IOException {
+		return getSealedBytes() + (activeWriter == null ? 0 : activeWriter.length());
+	}
+
+	/**
+	 * @return records in sealed segments and the active one
+	 */
+	public long getBacklogRecords() {
+		long total = activeWriter == null ? 0 : activeRecords;
+		for (Integer records : sealedRecords.values()) {
+			total += records;
+		}
+		return total;
+	}
+
+	/**
+	 * @param segment a sealed segment
+	 * @return when its first record was committed, or when it was last written to if it was
+	 * sealed before the log was recovered
+	 */
+	public long getFirstRecordMs(File segment) {
+		Long startedMs = sealedStartedMs.get(parseSeq(segment.getName()));
+		return startedMs != null ? startedMs : segment.lastModified();
+	}
+
+	/**
+	 * @return bytes appended to segments since the log was created, counted as batches are committed
+	 */
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Delete a sealed segment the server has accepted
+	 * @param segment
+	 * @throws IOException
+	 */
+	public void markUploaded(File segment) throws IOException {
+		remove(segment);
+	}
+
+	/**
+	 * Delete a sealed segment that hasn't been uploaded to make room
+	 * @param segment
+	 * @return records lost with it
+	 * @throws IOException
+	 */
+	public int drop(File segment) throws IOException {
+		return remove(segment);
+	}
+
+	/**
+	 * @param segment
+	 * @return records it held, 0 if it wasn't sealed
+	 * @throws IOException
+	 */
+	private int remove(File segment) throws IOException {
+		long seq = parseSeq(segment.getName());
+		// The segment may have been compacted while it was being uploaded, delete what it is now
+		File current = sealed.remove(seq);
+		if (current == null) {
+			return 0;
+		}
+		sealedStartedMs.remove(seq);
+		Integer records = sealedRecords.remove(seq);
+		sealedBytes -= current.length();
+		// Delete first so a crash before the manifest is rewritten can't upload it again
+		current.delete();
+		writeManifest();
+		return records == null ? 0 : records;
+	}
+
+	/**
+	 * Gzip a sealed segment into a file with COMPACTED_SUFFIX added to its name and delete it.
+	 * The compressed file is synced and renamed into place before the manifest points at it, a
+	 * crash leaves one or the other and recovery deletes whichever the manifest doesn't name
+	 * @param segment
+	 * @return the compacted segment, null if it isn't sealed or is already compacted
+	 * @throws IOException
+	 */
+	public File compact(File segment) throws IOException {
+		long seq = parseSeq(segment.getName());
+		if (!segment.equals(sealed.get(seq)) || isCompacted(segment)) {
+			return null;
+		}
+		File compacted = new File(dir, segment.getName() + COMPACTED_SUFFIX);
+		File temp = new File(dir, compacted.getName() + TEMP_SUFFIX);
+		InputStream in = new FileInputStream(segment);
+		try {
+			FileOutputStream file = new FileOutputStream(temp);
+			try {
+				GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(file, bufferSize), bufferSize);
+				byte[] buffer = new byte[bufferSize];
+				int read;
+				while ((read = in.read(buffer)) > 0) {
+					out.write(buffer, 0, read);
+				}
+				out.finish();
+				out.flush();
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (!temp.renameTo(compacted)) {
+			temp.delete();
+			throw new IOException("Can't rename " + temp);
+		}
+		sealedBytes += compacted.length() - segment.length();
+		sealed.put(seq, compacted);
+		writeManifest();
+		segment.delete();
+		return compacted;
+	}
+
+	/**
+	 * @param segment
+	 * @return true if it has been compacted
+	 */
+	public static boolean isCompacted(File segment) {
+		return segment.getName().endsWith(COMPACTED_SUFFIX);
+	}
+
+	/**
+	 * @param segment
+	 * @return its name before any compaction, the suffix gives its record format
+	 */
+	public static String uncompressedName(File segment) {
+		String name = segment.getName();
+		return isCompacted(segment) ? name.substring(0, name.length() - COMPACTED_SUFFIX.length()) : name;
+	}
+
+	/**
+	 * @param segment
+	 * @return stream of the records as they were written, decompressed if it has been compacted
+	 * @throws IOException
+	 */
+	public static InputStream openSegment(File segment) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(segment));
+		return isCompacted(segment) ? new GZIPInputStream(in) : in;
+	}
+
+	/**
+	 * Segments are far smaller than 4GB so the length gzip keeps modulo 2^32 in its trailer is exact
+	 * @param segment
+	 * @return its length before any compaction
+	 * @throws IOException
+	 */
+	public static long getUncompressedLength(File segment) throws IOException {
+		if (!isCompacted(segment)) {
+			return segment.length();
+		}
+		RandomAccessFile raf = new RandomAccessFile(segment, "r");
+		try {
+			raf.seek(raf.length() - 4);
+			// Little endian
+			long length = 0;
+			for (int i = 0; i < 4; i++) {
+				length |= (long) raf.read() << (8 * i);
+			}
+			return length;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return fsyncs of segment data since the log was created
+	 */
+	public long getSyncCount() {
+		return closedSyncCount + (activeWriter == null ? 0 : activeWriter.getSyncCount());
+	}
+
+	private File segmentFile(long seq) {
+		return new File(dir, SEGMENT_PREFIX + String.format("%010d", seq) + format.getFileSuffix());
+	}
+
+	/**
+	 * @param name
+	 * @return segment number or -1 if the name isn't a segment
+	 */
+	private static long parseSeq(String name) {
+		int dot = name.indexOf('.');
+		if (!name.startsWith(SEGMENT_PREFIX) || dot < 0 || name.endsWith(TEMP_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), dot));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void readManifest() throws IOException {
+		File manifest = new File(dir, MANIFEST);
+		if (!manifest.exists()) {
+			return;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				try {
+					if (fields[0].equals("next") && fields.length == 2) {
+						nextSeq = Math.max(nextSeq, Long.parseLong(fields[1]));
+					} else if (fields[0].equals("watermark") && fields.length == 2) {
+						durableWatermark = Math.max(durableWatermark, Long.parseLong(fields[1]));
+					} else if (fields[0].equals("unseen")) {
+						long[] ids = new long[fields.length - 1];
+						for (int i = 1; i < fields.length; i++) {
+							ids[i - 1] = Long.parseLong(fields[i]);
+						}
+						unseenIds = ids;
+					} else if (fields[0].equals("sealed") && (fields.length == 3 || fields.length == 4)) {
+						long seq = Long.parseLong(fields[1]);
+						sealed.put(seq, new File(dir, fields[2]));
+						if (fields.length == 4) {
+							sealedRecords.put(seq, Integer.parseInt(fields[3]));
+						}
+					}
+				} catch (NumberFormatException e) {
+					// Ignore the line, recovery picks the file up from the directory listing
+				}
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Write to a temporary file, sync it and rename over the old manifest so a crash leaves
+	 * either the old or the new one
+	 * @throws IOException
+	 */
+	private void writeManifest() throws IOException {
+		File temp = new File(dir, MANIFEST + TEMP_SUFFIX);
+		FileOutputStream out = new FileOutputStream(temp);
+		try {
+			Writer writer = new OutputStreamWriter(out, "UTF-8");
+			writer.write("next " + nextSeq + "\n");
+			writer.write("watermark " + durableWatermark + "\n");
+			long[] unseen = seenIds == null ? unseenIds : seenIds.getUnseen(durableWatermark);
+			if (unseen.length > 0) {
+				StringBuilder line = new StringBuilder("unseen");
+				for (long id : unseen) {
+					line.append(' ').append(id);
+				}
+				writer.write(line.append('\n').toString());
+			}
+			for (Map.Entry<Long, File> entry : sealed.entrySet()) {
+				Integer records = sealedRecords.get(entry.getKey());
+				writer.write("sealed " + entry.getKey() + " " + entry.getValue().getName() + " "
+						+ (records == null ? 0 : records) + "\n");
+			}
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!temp.renameTo(new File(dir, MANIFEST))) {
+			throw new IOException("Can't rename " + temp);
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The client's view of which of its message IDs the server has committed, built from the ranges
+ * the server sends back with each upload. The server only ever adds IDs so anything learnt here
+ * stays true.
+ * Used as the upload engine's skip check: a segment is only skipped if every record in it is
+ * known to be on the server, so a lost response doesn't mean sending the segment again. The
+ * server's high-water mark alone isn't enough for that, a segment can hold IDs below it the
+ * server never got, e.g. one that failed while a later one went through or a message that
+ * overtook others on its way into the provider.
+ * Thread safe.
+ */
+public class ServerCommittedIds implements UploadEngine.SkipCheck {
+	private final IdIntervalSet ids = new IdIntervalSet();
+	private long committedId;
+
+	/**
+	 * @param highWaterMark highest ID the server holds for this device
+	 * @param ranges start, end pairs the server holds, null if it sent none
+	 */
+	public synchronized void merge(long highWaterMark, long[] ranges) {
+		committedId = Math.max(committedId, highWaterMark);
+		if (ranges != null) {
+			ids.addPairs(ranges);
+		}
+	}
+
+	/**
+	 * @return highest ID the server has said it holds, 0 if it hasn't said
+	 */
+	public synchronized long getCommittedId() {
+		return committedId;
+	}
+
+	/**
+	 * @param id
+	 * @return true if the server is known to hold the record
+	 */
+	public synchronized boolean holds(long id) {
+		return ids.contains(id);
+	}
+
+	/**
+	 * Read the segment's IDs and check the server holds them all
+	 * @param file a sealed segment, compacted or not
+	 * @return false if any record might not be on the server, or the segment can't be read
+	 */
+	@Override
+	public boolean isUploaded(File file) {
+		synchronized (this) {
+			if (ids.isEmpty()) {
+				return false;
+			}
+		}
+		RecordFormat format = RecordFormat.readableFormatOf(SegmentedSmsLog.uncompressedName(file));
+		if (format == null) {
+			return false;
+		}
+		try {
+			InputStream in = SegmentedSmsLog.openSegment(file);
+			try {
+				SmsRecordReader reader = format.createReader(in);
+				SmsData record = new SmsData();
+				int records = 0;
+				while (reader.read(record)) {
+					if (!holds(record.getId())) {
+						return false;
+					}
+					records++;
+				}
+				return records > 0;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// Can't be read back, send it
+			return false;
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "committedId=" + committedId + " ranges=" + ids.getRangeCount();
+	}
+}
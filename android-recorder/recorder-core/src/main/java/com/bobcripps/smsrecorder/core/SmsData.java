@@ -1,4 +1,4 @@
-package com.bobcripps.smsrecorder;
+package com.bobcripps.smsrecorder.core;
 
 import java.util.Calendar;
 
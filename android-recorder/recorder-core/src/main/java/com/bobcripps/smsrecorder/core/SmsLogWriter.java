@@ -0,0 +1,171 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends records to the SMS file through a stream that stays open across batches.
+ * When the buffered records are forced to flash is left to a DurabilityPolicy.
+ * Callers synchronize access, the service does it inside its lock.
+ */
+public class SmsLogWriter {
+	private final File file;
+	private final DurabilityPolicy policy;
+	private final int bufferSize;
+	private FileOutputStream fileStream;
+	private FileChannel channel;
+	private BufferedOutputStream bufferedStream;
+	// Records written since the last sync and when the first of them was written
+	private int pendingRecords;
+	private long pendingSinceMs;
+	private long syncCount;
+	// Optional, each sync's duration in us
+	private LatencyHistogram syncTimes;
+
+	/**
+	 * @param file the file to append to, opened on first use
+	 * @param policy when to sync
+	 * @param bufferSize size of the buffer records are encoded into
+	 */
+	public SmsLogWriter(File file, DurabilityPolicy policy, int bufferSize) {
+		this.file = file;
+		this.policy = policy;
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @param syncTimes told how long each sync takes in us, null for none
+	 */
+	public void setSyncTimes(LatencyHistogram syncTimes) {
+		this.syncTimes = syncTimes;
+	}
+
+	/**
+	 * @return stream to encode records into, opening the file in append mode if needed
+	 * @throws IOException
+	 */
+	public OutputStream getStream() throws IOException {
+		if (bufferedStream == null) {
+			fileStream = new FileOutputStream(file, true);
+			channel = fileStream.getChannel();
+			bufferedStream = new BufferedOutputStream(fileStream, bufferSize);
+		}
+		return bufferedStream;
+	}
+
+	/**
+	 * Call after each batch of records has been encoded into the stream.
+	 * Flushes the buffer to the file and syncs if the policy says so
+	 * @param records number of records in the batch
+	 * @param nowMs current time
+	 * @throws IOException
+	 */
+	public void commit(int records, long nowMs) throws IOException {
+		if (bufferedStream == null) {
+			return;
+		}
+		bufferedStream.flush();
+		if (records > 0) {
+			if (pendingRecords == 0) {
+				pendingSinceMs = nowMs;
+			}
+			pendingRecords += records;
+		}
+		if (policy.shouldSync(pendingRecords, nowMs - pendingSinceMs)) {
+			sync();
+		}
+	}
+
+	/**
+	 * For group commit, sync records that have waited long enough with no new batch arriving
+	 * @param nowMs
+	 * @throws IOException
+	 */
+	public void syncIfDue(long nowMs) throws IOException {
+		if (channel != null && policy.shouldSync(pendingRecords, nowMs - pendingSinceMs)) {
+			sync();
+		}
+	}
+
+	/**
+	 * Sync any pending records whatever the policy, for a checkpoint that relies on them being on flash
+	 * @throws IOException
+	 */
+	public void syncPending() throws IOException {
+		if (channel != null && pendingRecords > 0) {
+			sync();
+		}
+	}
+
+	/**
+	 * @param nowMs
+	 * @return ms until unsynced records are due a timed sync, -1 if none are due
+	 */
+	public long getSyncDelayMs(long nowMs) {
+		long maxDelayMs = policy.getMaxDelayMs();
+		if (pendingRecords == 0 || maxDelayMs < 0) {
+			return -1;
+		}
+		return Math.max(0, pendingSinceMs + maxDelayMs - nowMs);
+	}
+
+	/**
+	 * Flush, sync and close the file. Called before the file is handed over for upload.
+	 * The next getStream() reopens it
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (bufferedStream == null) {
+			return;
+		}
+		try {
+			bufferedStream.flush();
+			if (pendingRecords > 0) {
+				sync();
+			}
+		} finally {
+			fileStream.close();
+			fileStream = null;
+			channel = null;
+			bufferedStream = null;
+		}
+	}
+
+	private void sync() throws IOException {
+		long start = System.nanoTime();
+		// Data only, the file length is still synced but not timestamps
+		channel.force(false);
+		if (syncTimes != null) {
+			syncTimes.record((System.nanoTime() - start) / 1000);
+		}
+		syncCount++;
+		pendingRecords = 0;
+	}
+
+	/**
+	 * @return bytes in the file, including any written since the last sync
+	 * @throws IOException
+	 */
+	public long length() throws IOException {
+		return channel != null ? channel.size() : file.length();
+	}
+
+	public DurabilityPolicy getPolicy() {
+		return policy;
+	}
+
+	public long getSyncCount() {
+		return syncCount;
+	}
+
+	/**
+	 * @return records written but not yet synced
+	 */
+	public int getPendingRecords() {
+		return pendingRecords;
+	}
+}
@@ -0,0 +1,19 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes one SMS record at a time in the format stored in the SMS file and uploaded
+ */
+public interface SmsRecordEncoder {
+	/**
+	 * Called when a new segment file is started, before any records are written to it.
+	 * Formats with a header or per segment state write and reset it here
+	 * @param out
+	 * @throws IOException
+	 */
+	void startSegment(OutputStream out) throws IOException;
+
+	void encode(SmsData smsData, OutputStream out) throws IOException;
+}
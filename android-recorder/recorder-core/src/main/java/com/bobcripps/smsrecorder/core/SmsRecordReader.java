@@ -0,0 +1,22 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+
+/**
+ * Reads back SMS records written by the matching SmsRecordEncoder, one at a time
+ */
+public interface SmsRecordReader {
+	/**
+	 * Read the next record
+	 * @param smsData filled in with the record
+	 * @return false at the end of the segment
+	 * @throws java.io.EOFException if the segment ends part way through a record
+	 * @throws IOException
+	 */
+	boolean read(SmsData smsData) throws IOException;
+
+	/**
+	 * @return offset just past the last complete record read, a torn segment can be cut here
+	 */
+	long getRecordEnd();
+}
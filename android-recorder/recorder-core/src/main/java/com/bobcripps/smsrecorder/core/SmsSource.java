@@ -0,0 +1,50 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+
+/**
+ * Where SMS records are read from, the SMS content provider on a phone or a fake on the JVM
+ */
+public interface SmsSource {
+	/**
+	 * Stream the inbox and sent messages with a higher ID than afterId to the sink, oldest first
+	 * @param afterId
+	 * @param sink
+	 * @return number of records passed to the sink
+	 * @throws IOException if the sink fails
+	 */
+	int read(long afterId, RecordSink sink) throws IOException;
+
+	/**
+	 * Look up one message by ID
+	 * @param id
+	 * @param sink given the message if it's in the inbox or sent
+	 * @return 1 if it was, 0 if there's no such message or it's in another folder, e.g. still queued
+	 * @throws IOException if the sink fails
+	 */
+	int readMessage(long id, RecordSink sink) throws IOException;
+
+	/**
+	 * Stream at most limit inbox and sent messages with IDs in (afterId, toId] to the sink, oldest
+	 * first. Pages through history a bounded chunk at a time
+	 * @param afterId
+	 * @param toId
+	 * @param limit
+	 * @param sink
+	 * @return number of records passed to the sink, less than limit once the range is exhausted
+	 * @throws IOException if the sink fails
+	 */
+	int read(long afterId, long toId, int limit, RecordSink sink) throws IOException;
+
+	/**
+	 * @param afterId
+	 * @param toId
+	 * @return number of inbox and sent messages with IDs in (afterId, toId]
+	 */
+	long count(long afterId, long toId);
+
+	/**
+	 * @return highest message ID in the source, 0 if it's empty
+	 */
+	long getTopMessageId();
+}
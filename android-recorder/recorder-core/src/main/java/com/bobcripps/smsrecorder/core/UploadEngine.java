@@ -0,0 +1,302 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads files with up to a configured number of requests in flight.
+ * Files are queued in the order they're submitted and acknowledged to the listener in that
+ * same order, so a file is only reported as uploaded once it and every file before it has
+ * been confirmed by the server. A file that fails waits until retryFailed() is called rather
+ * than being resent straight away.
+ * Thread safe. The listener and uploader are always called outside the engine's lock.
+ */
+public class UploadEngine implements FileUploadListener {
+
+	/**
+	 * Sends one file and reports the result to the listener, normally asynchronously
+	 */
+	public interface Uploader {
+		void uploadFile(File file, FileUploadListener listener);
+
+		/**
+		 * The file was deleted or rewritten before it was uploaded, drop anything kept to resume it
+		 * @param file
+		 */
+		void discard(File file);
+	}
+
+	/**
+	 * Told about files in submission order once the server has confirmed them
+	 */
+	public interface Listener {
+		void uploaded(File file);
+
+		void uploadFailed(File file);
+	}
+
+	/**
+	 * Asked before each file is sent whether the server already holds it, e.g. because the
+	 * response to an earlier attempt was lost
+	 */
+	public interface SkipCheck {
+		boolean isUploaded(File file);
+	}
+
+	private enum State {QUEUED, IN_FLIGHT, FAILED, CONFIRMED}
+
+	private final Uploader uploader;
+	private final Listener listener;
+	private final int maxInFlight;
+	// Every file not yet acknowledged in submission order
+	private final LinkedHashMap<File, State> tracked = new LinkedHashMap<>();
+	// Files waiting to be sent
+	private final ArrayDeque<File> pending = new ArrayDeque<>();
+	// When each in flight upload started, ns
+	private final Map<File, Long> startedNanos = new HashMap<>();
+	// Optional, each upload's duration in ms
+	private volatile LatencyHistogram uploadTimes;
+	private volatile SkipCheck skipCheck;
+	private int inFlight;
+	private long uploadsStarted;
+	private long uploadsFailed;
+	private long uploadsSkipped;
+
+	/**
+	 * @param uploader sends the files
+	 * @param listener told when files are confirmed or fail
+	 * @param maxInFlight most uploads allowed at once
+	 */
+	public UploadEngine(Uploader uploader, Listener listener, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be at least 1");
+		}
+		this.uploader = uploader;
+		this.listener = listener;
+		this.maxInFlight = maxInFlight;
+	}
+
+	/**
+	 * @param uploadTimes told how long each upload takes in ms, failed ones included, null for none
+	 */
+	public void setUploadTimes(LatencyHistogram uploadTimes) {
+		this.uploadTimes = uploadTimes;
+	}
+
+	/**
+	 * @param skipCheck files it says the server holds are confirmed without being sent, null for none
+	 */
+	public void setSkipCheck(SkipCheck skipCheck) {
+		this.skipCheck = skipCheck;
+	}
+
+	/**
+	 * Queue a file for upload. Ignored if it's already queued, in flight or failed
+	 * @param file
+	 */
+	public void submit(File file) {
+		synchronized (this) {
+			if (tracked.containsKey(file)) {
+				return;
+			}
+			tracked.put(file, State.QUEUED);
+			pending.add(file);
+		}
+		pump();
+	}
+
+	/**
+	 * Queue every failed file again, oldest first
+	 */
+	public void retryFailed() {
+		synchronized (this) {
+			List<File> failed = new ArrayList<>();
+			for (Map.Entry<File, State> entry : tracked.entrySet()) {
+				if (entry.getValue() == State.FAILED) {
+					entry.setValue(State.QUEUED);
+					failed.add(entry.getKey());
+				}
+			}
+			for (int i = failed.size() - 1; i >= 0; i--) {
+				pending.addFirst(failed.get(i));
+			}
+		}
+		pump();
+	}
+
+	/**
+	 * Stop tracking a file that's queued or failed, e.g. because it's about to be compacted or
+	 * deleted. Confirmed files it was holding back are acknowledged
+	 * @param file
+	 * @return false if it's in flight or confirmed and has to be left alone, true otherwise
+	 */
+	public boolean cancel(File file) {
+		List<File> confirmed = new ArrayList<>();
+		synchronized (this) {
+			State state = tracked.get(file);
+			if (state == State.IN_FLIGHT || state == State.CONFIRMED) {
+				return false;
+			}
+			if (state == null) {
+				return true;
+			}
+			tracked.remove(file);
+			pending.remove(file);
+			takeConfirmed(confirmed);
+		}
+		for (File done : confirmed) {
+			listener.uploaded(done);
+		}
+		return true;
+	}
+
+	/**
+	 * Tell the uploader a file it may have started on was deleted or rewritten after cancel()
+	 * @param file
+	 */
+	public void discarded(File file) {
+		uploader.discard(file);
+	}
+
+	/**
+	 * @param file
+	 * @return true if the file is queued, in flight or failed
+	 */
+	public synchronized boolean isSubmitted(File file) {
+		return tracked.containsKey(file);
+	}
+
+	/**
+	 * @return true if another upload could start now
+	 */
+	public synchronized boolean hasCapacity() {
+		return inFlight < maxInFlight && pending.isEmpty();
+	}
+
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	public synchronized int getQueued() {
+		return pending.size();
+	}
+
+	/**
+	 * @return files submitted and not yet confirmed, including failed ones
+	 */
+	public synchronized int getOutstanding() {
+		return tracked.size();
+	}
+
+	public synchronized long getUploadsStarted() {
+		return uploadsStarted;
+	}
+
+	public synchronized long getUploadsFailed() {
+		return uploadsFailed;
+	}
+
+	/**
+	 * @return files confirmed without being sent because the skip check said the server held them
+	 */
+	public synchronized long getUploadsSkipped() {
+		return uploadsSkipped;
+	}
+
+	/**
+	 * Callback from the uploader
+	 * @param file
+	 * @param success
+	 */
+	@Override
+	public void fileUploaded(File file, boolean success) {
+		finish(file, success, true);
+		pump();
+	}
+
+	/**
+	 * Record the outcome of an in flight file and tell the listener about anything confirmed
+	 * @param file
+	 * @param success
+	 * @param sent false if it was skipped, it doesn't count as an upload time
+	 */
+	private void finish(File file, boolean success, boolean sent) {
+		List<File> confirmed = new ArrayList<>();
+		long durationNanos;
+		synchronized (this) {
+			if (tracked.get(file) != State.IN_FLIGHT) {
+				return;
+			}
+			inFlight--;
+			durationNanos = System.nanoTime() - startedNanos.remove(file);
+			if (success) {
+				tracked.put(file, State.CONFIRMED);
+				takeConfirmed(confirmed);
+			} else {
+				tracked.put(file, State.FAILED);
+				uploadsFailed++;
+			}
+		}
+		LatencyHistogram times = uploadTimes;
+		if (times != null && sent) {
+			times.record(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+		}
+		for (File done : confirmed) {
+			listener.uploaded(done);
+		}
+		if (!success) {
+			listener.uploadFailed(file);
+		}
+	}
+
+	/**
+	 * Remove the confirmed files at the head of the order, call holding the engine's lock
+	 * @param confirmed they're added to this to be acknowledged
+	 */
+	private void takeConfirmed(List<File> confirmed) {
+		Iterator<Map.Entry<File, State>> iterator = tracked.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<File, State> entry = iterator.next();
+			if (entry.getValue() != State.CONFIRMED) {
+				break;
+			}
+			confirmed.add(entry.getKey());
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Start queued uploads until the in flight limit is reached
+	 */
+	private void pump() {
+		for (;;) {
+			File next;
+			synchronized (this) {
+				if (inFlight >= maxInFlight || pending.isEmpty()) {
+					return;
+				}
+				next = pending.poll();
+				tracked.put(next, State.IN_FLIGHT);
+				startedNanos.put(next, System.nanoTime());
+				inFlight++;
+				uploadsStarted++;
+			}
+			SkipCheck check = skipCheck;
+			if (check != null && check.isUploaded(next)) {
+				synchronized (this) {
+					uploadsSkipped++;
+				}
+				finish(next, true, false);
+				continue;
+			}
+			uploader.uploadFile(next, this);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.bobcripps.smsrecorder.core;
+
+/**
+ * UTF-8 encoding straight into a byte array without going through String.getBytes()
+ * Unpaired surrogates are written as '?' the same as String.getBytes()
+ */
+public final class Utf8 {
+	private Utf8() {
+	}
+
+	/**
+	 * @param value
+	 * @return bytes needed to encode value
+	 */
+	public static int encodedLength(String value) {
+		int length = value.length();
+		int bytes = length;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c >= 0x80) {
+				if (c < 0x800) {
+					bytes += 1;
+				} else if (Character.isHighSurrogate(c) && i + 1 < length
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					// 4 bytes for the pair
+					bytes += 2;
+					i++;
+				} else if (c < Character.MIN_SURROGATE || c > Character.MAX_SURROGATE) {
+					bytes += 2;
+				}
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * @param value
+	 * @param buffer with at least encodedLength(value) bytes free from position
+	 * @param position where to start writing
+	 * @return position after the last byte written
+	 */
+	public static int encode(String value, byte[] buffer, int position) {
+		int length = value.length();
+		int p = position;
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				buffer[p++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[p++] = (byte) (0xC0 | (c >> 6));
+				buffer[p++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[p++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[p++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[p++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[p++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				buffer[p++] = '?';
+			} else {
+				buffer[p++] = (byte) (0xE0 | (c >> 12));
+				buffer[p++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[p++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		return p;
+	}
+}
@@ -0,0 +1,119 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryRecordReaderTest {
+	private static final String[] BODIES = {
+			"",
+			"Hello",
+			"Say \"hi\", then \"\"bye\"\"\r\nand go",
+			"café \"中文\" 😀\"",
+			"a body longer than the reader's first buffer " + new String(new char[300]).replace('\0', 'x'),
+	};
+	private static final String[] NUMBERS = {"+447700900000", "+447700900001", "Bank", ""};
+
+	@Test
+	public void recordsRoundTrip() throws IOException {
+		SmsData[] records = records();
+		records[3].setBody(null);
+		byte[] segment = encode(new BinaryRecordEncoder(), records);
+		BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(segment));
+		SmsData read = new SmsData();
+		for (SmsData record : records) {
+			assertTrue(reader.read(read));
+			assertEquals(record.getId(), read.getId());
+			assertEquals(record.getDate(), read.getDate());
+			assertEquals(record.getNumber(), read.getNumber());
+			assertEquals(record.getDirection(), read.getDirection());
+			assertEquals(record.getBody(), read.getBody());
+		}
+		assertFalse(reader.read(read));
+		assertEquals(segment.length, reader.getRecordEnd());
+	}
+
+	@Test
+	public void convertedSegmentMatchesTheCsvEncoder() throws IOException {
+		for (RecordFormat format : new RecordFormat[] {RecordFormat.CSV, RecordFormat.LEGACY_CSV}) {
+			SmsData[] records = records();
+			byte[] expected = encode(format.createEncoder(), records);
+			ByteArrayOutputStream converted = new ByteArrayOutputStream();
+			long count = BinaryRecordConverter.convert(
+					new ByteArrayInputStream(encode(new BinaryRecordEncoder(), records)), converted,
+					format.createEncoder());
+			assertEquals(records.length, count);
+			assertArrayEquals(format.toString(), expected, converted.toByteArray());
+		}
+	}
+
+	@Test
+	public void tornRecordIsNotCounted() throws IOException {
+		SmsData[] records = records();
+		byte[] segment = encode(new BinaryRecordEncoder(), records);
+		byte[] whole = encode(new BinaryRecordEncoder(), Arrays.copyOf(records, records.length - 1));
+		// Cut part way through the last record
+		byte[] torn = Arrays.copyOf(segment, whole.length + (segment.length - whole.length) / 2);
+		BinaryRecordReader reader = new BinaryRecordReader(new ByteArrayInputStream(torn));
+		SmsData read = new SmsData();
+		for (int i = 0; i < records.length - 1; i++) {
+			assertTrue(reader.read(read));
+		}
+		try {
+			reader.read(read);
+			fail("read a torn record");
+		} catch (EOFException e) {
+			// Expected
+		}
+		assertEquals(whole.length, reader.getRecordEnd());
+	}
+
+	@Test
+	public void otherFilesAreRejected() {
+		for (byte[] header : new byte[][] {"SMSX\u0001".getBytes(), {'S', 'M', 'S', 'B', 2}, {'S', 'M'}}) {
+			try {
+				new BinaryRecordReader(new ByteArrayInputStream(header));
+				fail(Arrays.toString(header));
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+	/**
+	 * IDs and dates that go backwards as well as forwards, as messages that move to sent do,
+	 * a few repeated numbers and each direction
+	 */
+	private static SmsData[] records() {
+		SmsData[] records = new SmsData[40];
+		for (int i = 0; i < records.length; i++) {
+			SmsData record = new SmsData();
+			record.setId(i % 7 == 3 ? i - 2 : (i + 1) * 1000003L);
+			record.setDate(1472475636123L + (i % 5 == 0 ? -i : i) * 61000L);
+			record.setNumber(NUMBERS[i % NUMBERS.length]);
+			record.setDirection(i % 3 == 0 ? SmsData.SMSDirection.Out : SmsData.SMSDirection.In);
+			record.setBody(BODIES[i % BODIES.length]);
+			records[i] = record;
+		}
+		return records;
+	}
+
+	private static byte[] encode(SmsRecordEncoder encoder, SmsData[] records) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.startSegment(out);
+		for (SmsData record : records) {
+			encoder.encode(record, out);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,181 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Crashes the log at random points, with records half written, synced or not, then recovers it
+ * and carries on from the recovered watermark as the pipeline does after a restart. Whatever the
+ * crash took must be read again and whatever it kept must not be, so every message ends up in
+ * the log exactly once and in order.
+ */
+public class CrashInjectionTest {
+	private static final int TRIALS = 100;
+	private static final int MESSAGES = 200;
+	private static final int CRASHES = 4;
+
+	private File dir;
+	private Random random;
+	private RecordFormat format;
+	private DurabilityPolicy policy;
+	private SmsRecordEncoder encoder;
+	private SegmentedSmsLog log;
+	private SeenIdWindow window;
+	private final SmsData record = new SmsData();
+	private long syncCount;
+	private long syncedLength;
+
+	@Before
+	public void setUp() {
+		random = new Random(1476700000000L);
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteTree(dir);
+	}
+
+	@Test
+	public void csvNeitherLosesNorRepeatsAMessage() throws IOException {
+		for (int trial = 0; trial < TRIALS; trial++) {
+			trial(RecordFormat.CSV);
+		}
+	}
+
+	@Test
+	public void binaryNeitherLosesNorRepeatsAMessage() throws IOException {
+		for (int trial = 0; trial < TRIALS; trial++) {
+			trial(RecordFormat.BINARY);
+		}
+	}
+
+	private void trial(RecordFormat format) throws IOException {
+		TestFiles.deleteTree(dir);
+		dir = TestFiles.createTempDir("crash");
+		this.format = format;
+		policy = DurabilityPolicy.groupCommit(60000, 1 + random.nextInt(16));
+		open();
+		int crashes = 0;
+		long nowMs = 0;
+		while (log.getWatermark() < MESSAGES) {
+			// A restart reads from the watermark, and a raw notification can hand back a few it has
+			long nextId = Math.max(1, log.getWatermark() + 1 - random.nextInt(3));
+			int batch = 1 + random.nextInt(5);
+			boolean crashMidBatch = crashes < CRASHES && random.nextInt(20) == 0;
+			LogAppender appender = new LogAppender(encoder);
+			OutputStream out = log.getStream();
+			noteSync();
+			appender.begin(window, out);
+			for (int i = 0; i < batch && nextId <= MESSAGES; i++) {
+				append(appender, nextId++, nowMs);
+			}
+			if (crashMidBatch) {
+				// Written, maybe partly flushed, never committed
+				out.flush();
+				crash();
+				crashes++;
+				continue;
+			}
+			nowMs += 1000;
+			log.commit(appender.getCount(), appender.getHighestId(), nowMs);
+			noteSync();
+			if (crashes < CRASHES && random.nextInt(15) == 0) {
+				crash();
+				crashes++;
+			}
+		}
+		log.sealActive();
+		assertEachOnceInOrder();
+	}
+
+	private void open() throws IOException {
+		encoder = format.createEncoder();
+		log = new SegmentedSmsLog(dir, format, encoder, policy, 256, 2048, 3600000);
+		log.recover();
+		window = new SeenIdWindow(log.getWatermark(), 64);
+		log.setSeenIds(window);
+		syncCount = log.getSyncCount();
+		File active = activeFile();
+		syncedLength = active == null ? 0 : active.length();
+	}
+
+	private void append(LogAppender appender, long id, long nowMs) throws IOException {
+		record.setId(id);
+		record.setDate(1472475636000L + nowMs);
+		record.setNumber("+447700900000");
+		record.setDirection(id % 3 == 0 ? SmsData.SMSDirection.Out : SmsData.SMSDirection.In);
+		record.setBody("Message " + id);
+		appender.accept(record);
+	}
+
+	/**
+	 * Call after anything that could sync, to know how much of the active segment a crash keeps
+	 */
+	private void noteSync() {
+		if (log.getSyncCount() != syncCount) {
+			syncCount = log.getSyncCount();
+			File active = activeFile();
+			syncedLength = active == null ? 0 : active.length();
+		}
+	}
+
+	/**
+	 * Cut the active segment anywhere between what was synced and what was written, then recover
+	 * the log as a restart would, abandoning the old one without closing it
+	 */
+	private void crash() throws IOException {
+		File active = activeFile();
+		if (active != null && active.length() > syncedLength) {
+			RandomAccessFile raf = new RandomAccessFile(active, "rw");
+			try {
+				raf.setLength(syncedLength + random.nextInt((int) (active.length() - syncedLength) + 1));
+			} finally {
+				raf.close();
+			}
+		}
+		open();
+	}
+
+	/**
+	 * @return the segment being appended to, the one on disk that isn't sealed
+	 */
+	private File activeFile() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return null;
+		}
+		for (File file : files) {
+			if (file.getName().startsWith("smslog-") && !log.getSealedSegments().contains(file)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	private void assertEachOnceInOrder() throws IOException {
+		long expected = 1;
+		SmsData read = new SmsData();
+		for (File segment : log.getSealedSegments()) {
+			InputStream in = SegmentedSmsLog.openSegment(segment);
+			try {
+				SmsRecordReader reader = format.createReader(in);
+				while (reader.read(read)) {
+					assertEquals(segment.getName(), expected++, read.getId());
+				}
+			} finally {
+				in.close();
+			}
+		}
+		assertEquals(MESSAGES + 1, expected);
+	}
+}
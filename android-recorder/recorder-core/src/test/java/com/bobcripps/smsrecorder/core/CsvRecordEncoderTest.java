@@ -0,0 +1,63 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CsvRecordEncoderTest {
+	private static final String[] BODIES = {
+			"",
+			"Hello",
+			"\"",
+			"Say \"hi\", then \"\"bye\"\"\r\nand go",
+			"café \"中文\" 😀\"",
+			"unpaired \ud83d then \"quote\"",
+	};
+
+	@Test
+	public void quotedFieldsMatchStringGetBytes() throws IOException {
+		CsvRecordEncoder encoder = new CsvRecordEncoder();
+		for (String body : BODIES) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			encoder.encode(record(1, body), out);
+			String expected = "\"+447700900000\",\"In\",\"" + body.replace("\"", "\"\"")
+					+ "\",\"1\",\"2016-08-29T13:00:36.123Z\"\n";
+			assertArrayEquals(body, expected.getBytes("UTF-8"), out.toByteArray());
+		}
+	}
+
+	@Test
+	public void bodiesRoundTrip() throws IOException {
+		CsvRecordEncoder encoder = new CsvRecordEncoder();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < BODIES.length; i++) {
+			encoder.encode(record(i + 1, BODIES[i]), out);
+		}
+		CsvRecordReader reader = new CsvRecordReader(new ByteArrayInputStream(out.toByteArray()));
+		SmsData read = new SmsData();
+		for (int i = 0; i < BODIES.length; i++) {
+			assertTrue(reader.read(read));
+			assertEquals(i + 1, read.getId());
+			// An unpaired surrogate can't be encoded and comes back as '?'
+			assertEquals(BODIES[i].replace('\ud83d', '?').replace("?\ude00", "😀"), read.getBody());
+		}
+		assertFalse(reader.read(read));
+	}
+
+	private static SmsData record(long id, String body) {
+		SmsData record = new SmsData();
+		record.setId(id);
+		record.setDate(1472475636123L);
+		record.setNumber("+447700900000");
+		record.setDirection(SmsData.SMSDirection.In);
+		record.setBody(body);
+		return record;
+	}
+}
@@ -0,0 +1,207 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Crash simulation for each policy. A power cut keeps what was synced and can tear whatever was
+ * written after it, so the crash cuts the active segment to a few bytes past the last sync. The
+ * log must then recover every record it reported durable and lose no more than the policy's
+ * window allows.
+ */
+public class DurabilityPolicyTest {
+	// Bytes of the unsynced tail that make it to flash, enough to tear a record
+	private static final int TORN_BYTES = 7;
+
+	private File dir;
+	private DurabilityPolicy policy;
+	private SmsRecordEncoder encoder;
+	private SegmentedSmsLog log;
+	private SeenIdWindow window;
+	private final SmsData record = new SmsData();
+	private long nextId = 1;
+	private long syncCount;
+	private long syncedLength;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestFiles.createTempDir("durability");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteTree(dir);
+	}
+
+	@Test
+	public void everyBatchLosesNothingWritten() throws IOException {
+		open(DurabilityPolicy.everyBatch());
+		for (int i = 0; i < 10; i++) {
+			append(3, i * 10L);
+		}
+		crash();
+		assertEquals(30, log.getWatermark());
+		assertEquals(30, recordsOnDisk());
+	}
+
+	@Test
+	public void groupCommitLosesAtMostMaxRecords() throws IOException {
+		open(DurabilityPolicy.groupCommit(60000, 8));
+		for (int i = 0; i < 10; i++) {
+			append(3, i);
+		}
+		long durable = log.getDurableWatermark();
+		crash();
+		assertEquals(durable, log.getWatermark());
+		assertEquals(durable, recordsOnDisk());
+		assertTrue("lost " + (30 - durable), 30 - durable < 8);
+	}
+
+	@Test
+	public void groupCommitLosesAtMostMaxDelay() throws IOException {
+		open(DurabilityPolicy.groupCommit(100, 1000));
+		long nowMs = 0;
+		for (int i = 0; i < 20; i++) {
+			append(1, nowMs);
+			nowMs += 30;
+			// The pipeline's timer
+			log.syncIfDue(nowMs);
+			noteSync();
+		}
+		long durable = log.getDurableWatermark();
+		crash();
+		assertEquals(durable, log.getWatermark());
+		assertEquals(durable, recordsOnDisk());
+		// A record every 30ms, and the oldest unsynced one is under 100ms old
+		assertTrue("lost " + (20 - durable), 20 - durable <= 100 / 30 + 1);
+	}
+
+	@Test
+	public void onUploadHandoffLosesWhatWasWrittenSinceTheLastHandoff() throws IOException {
+		open(DurabilityPolicy.onUploadHandoff());
+		for (int i = 0; i < 5; i++) {
+			append(2, i);
+		}
+		log.sealActive();
+		noteSync();
+		for (int i = 0; i < 5; i++) {
+			append(2, i);
+		}
+		assertEquals(10, log.getDurableWatermark());
+		crash();
+		assertEquals(10, log.getWatermark());
+		assertEquals(10, recordsOnDisk());
+	}
+
+	@Test
+	public void recordsAfterTheCrashFollowTheRecoveredOnes() throws IOException {
+		open(DurabilityPolicy.groupCommit(60000, 4));
+		append(6, 0);
+		crash();
+		long recovered = log.getWatermark();
+		nextId = recovered + 1;
+		append(3, 1);
+		log.sealActive();
+		assertEquals(recovered + 3, recordsOnDisk());
+	}
+
+	private void open(DurabilityPolicy policy) throws IOException {
+		this.policy = policy;
+		encoder = RecordFormat.CSV.createEncoder();
+		log = new SegmentedSmsLog(dir, RecordFormat.CSV, encoder, policy, 1024, 1024 * 1024, 3600000);
+		log.recover();
+		window = new SeenIdWindow(log.getWatermark(), 64);
+		log.setSeenIds(window);
+		syncCount = log.getSyncCount();
+		syncedLength = activeFile() == null ? 0 : activeFile().length();
+	}
+
+	private void append(int records, long nowMs) throws IOException {
+		LogAppender appender = new LogAppender(encoder);
+		appender.begin(window, log.getStream());
+		for (int i = 0; i < records; i++) {
+			record.setId(nextId++);
+			record.setDate(1472475636000L + nowMs);
+			record.setNumber("+447700900000");
+			record.setDirection(SmsData.SMSDirection.In);
+			record.setBody("Message " + record.getId());
+			appender.accept(record);
+		}
+		log.commit(appender.getCount(), appender.getHighestId(), nowMs);
+		noteSync();
+	}
+
+	/**
+	 * Call after anything that could sync, to know how much of the active segment a crash keeps
+	 */
+	private void noteSync() {
+		if (log.getSyncCount() != syncCount) {
+			syncCount = log.getSyncCount();
+			File active = activeFile();
+			syncedLength = active == null ? 0 : active.length();
+		}
+	}
+
+	/**
+	 * Cut the active segment back to what was synced plus a torn fragment, then recover the log
+	 * as a restart would, abandoning the old one without closing it
+	 */
+	private void crash() throws IOException {
+		File active = activeFile();
+		if (active != null && active.length() > syncedLength) {
+			RandomAccessFile raf = new RandomAccessFile(active, "rw");
+			try {
+				raf.setLength(Math.min(active.length(), syncedLength + TORN_BYTES));
+			} finally {
+				raf.close();
+			}
+		}
+		open(policy);
+	}
+
+	/**
+	 * @return the segment being appended to, the one on disk that isn't sealed
+	 */
+	private File activeFile() {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return null;
+		}
+		for (File file : files) {
+			if (file.getName().startsWith("smslog-") && !log.getSealedSegments().contains(file)) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return records read back from every segment, failing on a torn one
+	 */
+	private long recordsOnDisk() throws IOException {
+		long records = 0;
+		SmsData read = new SmsData();
+		for (File segment : log.getSealedSegments()) {
+			InputStream in = SegmentedSmsLog.openSegment(segment);
+			try {
+				SmsRecordReader reader = RecordFormat.CSV.createReader(in);
+				while (reader.read(read)) {
+					records++;
+					assertEquals(records, read.getId());
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return records;
+	}
+}
@@ -0,0 +1,109 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class IdIntervalSetTest {
+
+	@Test
+	public void inOrderIdsCollapseIntoOneRange() {
+		IdIntervalSet ids = new IdIntervalSet();
+		for (long id = 1; id <= 1000000; id++) {
+			assertTrue(ids.add(id));
+		}
+		assertEquals(1, ids.getRangeCount());
+		assertEquals(1000000, ids.getMax());
+		assertFalse(ids.add(500000));
+		assertFalse(ids.contains(0));
+		assertFalse(ids.contains(1000001));
+	}
+
+	@Test
+	public void gapsAreFilledAndRangesMerged() {
+		IdIntervalSet ids = new IdIntervalSet();
+		ids.add(1, 3);
+		ids.add(10, 12);
+		ids.add(20, 22);
+		assertEquals("[1-3 10-12 20-22]", ids.toString());
+		// Adjacent on both sides
+		ids.add(4, 9);
+		assertEquals("[1-12 20-22]", ids.toString());
+		// Inside one range
+		ids.add(2, 5);
+		assertEquals("[1-12 20-22]", ids.toString());
+		// Before everything, and spanning everything
+		ids.add(-5, -5);
+		assertEquals("[-5 1-12 20-22]", ids.toString());
+		ids.add(-10, 30);
+		assertEquals("[-10-30]", ids.toString());
+		ids.add(32, Long.MAX_VALUE);
+		assertEquals(2, ids.getRangeCount());
+		assertEquals(Long.MAX_VALUE, ids.getMax());
+		assertFalse(ids.contains(31));
+	}
+
+	@Test
+	public void outOfOrderIdsMatchABitSet() {
+		Random random = new Random(7);
+		IdIntervalSet ids = new IdIntervalSet(4);
+		BitSet expected = new BitSet();
+		for (int i = 0; i < 20000; i++) {
+			int id = random.nextInt(5000);
+			if (random.nextInt(10) == 0) {
+				int end = id + random.nextInt(20);
+				ids.add(id, end);
+				expected.set(id, end + 1);
+			} else {
+				assertEquals("add " + id, !expected.get(id), ids.add(id));
+				expected.set(id);
+			}
+		}
+		for (int id = -1; id <= 5100; id++) {
+			assertEquals("contains " + id, id >= 0 && expected.get(id), ids.contains(id));
+		}
+		// Sorted, disjoint and not adjacent
+		for (int i = 1; i < ids.getRangeCount(); i++) {
+			assertTrue(ids.toString(), ids.getStart(i) > ids.getEnd(i - 1) + 1);
+		}
+	}
+
+	@Test
+	public void toArrayKeepsTheHighestRanges() {
+		IdIntervalSet ids = new IdIntervalSet();
+		ids.add(1, 2);
+		ids.add(5, 6);
+		ids.add(9, 9);
+		assertArrayEquals(new long[] {5, 6, 9, 9}, ids.toArray(2));
+		assertArrayEquals(new long[] {1, 2, 5, 6, 9, 9}, ids.toArray(10));
+		IdIntervalSet copy = new IdIntervalSet();
+		copy.addPairs(new long[] {9, 9, 1, 2, 5, 6});
+		assertEquals(ids.toString(), copy.toString());
+	}
+
+	@Test
+	public void writtenRangesReadBack() throws IOException {
+		IdIntervalSet ids = new IdIntervalSet();
+		ids.add(3, 8);
+		ids.add(100, 100);
+		ids.add(1L << 40, (1L << 40) + 5);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ids.writeTo(new DataOutputStream(bytes));
+		assertEquals(4 + 3 * 16, bytes.size());
+		IdIntervalSet read = new IdIntervalSet();
+		read.add(9, 9);
+		read.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+		assertEquals("[3-9 100 1099511627776-1099511627781]", read.toString());
+	}
+}
@@ -0,0 +1,32 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogAppenderTest {
+	@Test
+	public void latencyCountsEveryRecordOfABacklog() throws IOException {
+		LogAppender appender = new LogAppender(RecordFormat.CSV.createEncoder());
+		appender.begin(new SeenIdWindow(0, 64), new ByteArrayOutputStream());
+		int records = LogAppender.MAX_DATES * 10 + 7;
+		SmsData record = new SmsData();
+		record.setNumber("+447700900000");
+		record.setDirection(SmsData.SMSDirection.In);
+		for (int id = 1; id <= records; id++) {
+			record.setId(id);
+			// A second apart, the newest now
+			record.setDate((id - records) * 1000L);
+			appender.accept(record);
+		}
+		LatencyHistogram latency = new LatencyHistogram("persistMs");
+		appender.recordLatency(latency, 0);
+		assertEquals(records, latency.getCount());
+		assertEquals((records - 1) * 1000L, latency.getMax());
+		// Sampled so within a stride of the true mean
+		assertEquals((records - 1) * 500.0, latency.getMean(), 16 * 1000);
+	}
+}
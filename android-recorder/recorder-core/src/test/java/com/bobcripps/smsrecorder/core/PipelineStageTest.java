@@ -0,0 +1,136 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PipelineStageTest {
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void failedStartIsReportedAndStopsTheStage() throws Exception {
+		final RuntimeException failure = new IllegalStateException("can't open the log");
+		final AtomicReference<RuntimeException> reported = new AtomicReference<>();
+		final CountDownLatch errored = new CountDownLatch(1);
+		PipelineStage<Long> stage = new PipelineStage<>("events", 4, 0, 4, executor, new PipelineStage.Handler<Long>() {
+			@Override
+			public void started() {
+				throw failure;
+			}
+
+			@Override
+			public void handle(List<Long> batch) {
+			}
+
+			@Override
+			public void error(RuntimeException e) {
+				reported.set(e);
+				errored.countDown();
+			}
+		});
+		stage.start();
+		assertTrue(errored.await(5, TimeUnit.SECONDS));
+		assertSame(failure, reported.get());
+		assertEquals(1, stage.getErrors());
+		assertTrue(stage.isStopped());
+		assertFalse(stage.offer(1L));
+		assertFalse(stage.put(2L));
+		assertEquals(2, stage.getRefused());
+		assertEquals(0, stage.getDepth());
+	}
+
+	@Test
+	public void failedBatchIsReportedAndTheStageCarriesOn() throws Exception {
+		final CountDownLatch handled = new CountDownLatch(2);
+		final AtomicReference<RuntimeException> reported = new AtomicReference<>();
+		PipelineStage<Long> stage = new PipelineStage<>("events", 4, 0, 1, executor, new PipelineStage.Handler<Long>() {
+			@Override
+			public void handle(List<Long> batch) {
+				handled.countDown();
+				if (batch.get(0) == 1L) {
+					throw new IllegalArgumentException("bad batch");
+				}
+			}
+
+			@Override
+			public void error(RuntimeException e) {
+				reported.set(e);
+			}
+		});
+		stage.start();
+		assertTrue(stage.offer(1L));
+		assertTrue(stage.offer(2L));
+		assertTrue(handled.await(5, TimeUnit.SECONDS));
+		assertEquals("bad batch", reported.get().getMessage());
+		assertEquals(1, stage.getErrors());
+		assertFalse(stage.isStopped());
+		stage.stop();
+	}
+
+	@Test
+	public void stopWakesAWaitingWorker() throws Exception {
+		PipelineStage<Long> stage = new PipelineStage<>("events", 4, 0, 4, executor, new PipelineStage.Handler<Long>() {
+			@Override
+			public void handle(List<Long> batch) {
+			}
+		});
+		stage.start();
+		stage.stop();
+		assertTrue(stage.awaitStopped(5000));
+		assertEquals(0, stage.getHandled());
+		assertEquals(0, stage.getDepth());
+	}
+
+	@Test
+	public void stopLetsTheBatchFinishWithoutAnInterrupt() throws Exception {
+		final CountDownLatch handling = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		PipelineStage<Long> stage = new PipelineStage<>("events", 4, 0, 1, executor, new PipelineStage.Handler<Long>() {
+			@Override
+			public void handle(List<Long> batch) {
+				handling.countDown();
+				try {
+					// Where the persist worker would be forcing the log
+					release.await();
+				} catch (InterruptedException e) {
+					interrupted.set(true);
+				}
+			}
+		});
+		stage.start();
+		assertTrue(stage.offer(1L));
+		assertTrue(handling.await(5, TimeUnit.SECONDS));
+		assertTrue(stage.offer(2L));
+		stage.stop();
+		assertFalse(stage.awaitStopped(100));
+		release.countDown();
+		assertTrue(stage.awaitStopped(5000));
+		assertFalse(interrupted.get());
+		// The item still buffered was dropped
+		assertEquals(1, stage.getHandled());
+	}
+}
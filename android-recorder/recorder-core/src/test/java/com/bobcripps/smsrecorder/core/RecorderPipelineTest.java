@@ -0,0 +1,542 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Notifications in, records uploaded out, on real executors with a segment log in a temporary
+ * directory
+ */
+public class RecorderPipelineTest {
+	private static final long TIMEOUT_MS = 10000;
+
+	private File dir;
+	private TestSmsSource source;
+	private RecorderPipeline pipeline;
+	private ExecutorService persistExecutor;
+	private ExecutorService uploadExecutor;
+	private ScheduledExecutorService retryExecutor;
+	private ScheduledExecutorService backfillExecutor;
+	// Holds the persist worker after each batch while it's closed
+	private volatile CountDownLatch persistGate;
+	private final AtomicLong eventsHandled = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private long eventsOffered;
+	// Times each message ID has been uploaded
+	private final Map<Long, Integer> uploaded = new HashMap<>();
+	// Written, remaining of each backfill chunk
+	private final List<long[]> backfillChunks = new ArrayList<>();
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestFiles.createTempDir("pipeline");
+		source = new TestSmsSource();
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		openPersistGate();
+		stop();
+		TestFiles.deleteTree(dir);
+	}
+
+	@Test
+	public void duplicateNotificationsWriteEachMessageOnce() throws Exception {
+		start();
+		source.addInbox(5);
+		notifyAndWait(1, 2, 3, 4, 5);
+		notifyAndWait(3, 3, 5, RecorderPipeline.NO_ID, 1);
+		assertEquals(5, stored());
+		awaitUploaded(1, 2, 3, 4, 5);
+		assertUploadedOnce(5);
+		assertEquals(0, errors.get());
+	}
+
+	@Test
+	public void burstOfNotificationsIsReadOnce() throws Exception {
+		start();
+		persistGate = new CountDownLatch(1);
+		notifyAndWait(RecorderPipeline.NO_ID);
+		long queriesBefore = source.getQueries();
+		long providerQueriesBefore = pipeline.getIngestStats().getProviderQueries();
+		source.addInbox(3);
+		// Duplicates, raw and IDs queued behind the held batch
+		offer(1, 1, RecorderPipeline.NO_ID, 2, 3, 3, RecorderPipeline.NO_ID);
+		openPersistGate();
+		notifyAndWait();
+		assertEquals(3, stored());
+		assertEquals(1, source.getQueries() - queriesBefore);
+		assertEquals(1, pipeline.getIngestStats().getProviderQueries() - providerQueriesBefore);
+		// 9 events in 3 batches: the one at start, the held one and the burst
+		assertEquals(9, pipeline.getIngestStats().getEventsReceived());
+		assertEquals(3, pipeline.getIngestStats().getBatches());
+		assertEquals(3.0, pipeline.getIngestStats().getCollapseRatio(), 1e-9);
+		assertEquals(6, pipeline.getMetrics().getEventsCoalesced());
+		awaitUploaded(1, 2, 3);
+		assertUploadedOnce(3);
+	}
+
+	@Test
+	public void rawNotificationsReadEverythingNew() throws Exception {
+		start();
+		source.addInbox(3);
+		notifyAndWait(RecorderPipeline.NO_ID);
+		source.addInbox(2);
+		notifyAndWait(RecorderPipeline.NO_ID, 5);
+		assertEquals(5, stored());
+		awaitUploaded(1, 2, 3, 4, 5);
+		assertUploadedOnce(5);
+	}
+
+	@Test
+	public void messageSentAfterLaterOnesIsRecordedWhenItMovesToSent() throws Exception {
+		start();
+		source.addInbox(2);
+		long queued = source.add(TestSmsSource.TYPE_OUTBOX);
+		source.addInbox(2);
+		notifyAndWait(1, 2, queued, 4, 5);
+		assertEquals(4, stored());
+		source.setType(queued, TestSmsSource.TYPE_SENT);
+		notifyAndWait(queued);
+		assertEquals(5, stored());
+		notifyAndWait(queued, RecorderPipeline.NO_ID, 4);
+		assertEquals(5, stored());
+		awaitUploaded(1, 2, 3, 4, 5);
+		assertUploadedOnce(5);
+	}
+
+	@Test
+	public void overtakenByARawNotificationIsRecordedOnce() throws Exception {
+		start();
+		source.addInbox(1);
+		long queued = source.add(TestSmsSource.TYPE_OUTBOX);
+		source.addInbox(2);
+		notifyAndWait(RecorderPipeline.NO_ID);
+		assertEquals(3, stored());
+		source.setType(queued, TestSmsSource.TYPE_SENT);
+		// A batch holding an ID below the watermark and one without an ID rereads from that ID
+		notifyAndWait(RecorderPipeline.NO_ID, queued);
+		assertEquals(4, stored());
+		awaitUploaded(1, 2, 3, 4);
+		assertUploadedOnce(4);
+	}
+
+	@Test
+	public void messageReadPastBeforeARestartIsRecordedAfterIt() throws Exception {
+		start();
+		source.addInbox(1);
+		long queued = source.add(TestSmsSource.TYPE_OUTBOX);
+		source.addInbox(1);
+		notifyAndWait(1, queued, 3);
+		awaitUploaded(1, 3);
+		stop();
+
+		start();
+		notifyAndWait(1, 3, RecorderPipeline.NO_ID);
+		assertEquals(0, stored());
+		source.setType(queued, TestSmsSource.TYPE_SENT);
+		notifyAndWait(queued);
+		assertEquals(1, stored());
+		awaitUploaded(1, 2, 3);
+		assertUploadedOnce(3);
+	}
+
+	@Test
+	public void messageReadPastLongAgoIsRecordedOnceTheWindowHasMoved() throws Exception {
+		start();
+		long queued = source.add(TestSmsSource.TYPE_OUTBOX);
+		long top = source.addInbox(3 * new PipelineConfig().getSeenWindowCapacity());
+		notifyAndWait(RecorderPipeline.NO_ID);
+		source.setType(queued, TestSmsSource.TYPE_SENT);
+		notifyAndWait(queued, top);
+		assertEquals(top, stored());
+		awaitUploaded(queued, top);
+		assertUploadedOnce((int) top);
+	}
+
+	@Test
+	public void backfillCarriesOnFromItsCheckpointAfterARestart() throws Exception {
+		source.addInbox(100);
+		start(backfillConfig(10, 200));
+		awaitBackfillChunks(1);
+		stop();
+		int chunksBefore = backfillChunks();
+		assertTrue(chunksBefore < 10);
+
+		backfillChunks.clear();
+		start(backfillConfig(10, 0));
+		awaitBackfillDone();
+		synchronized (backfillChunks) {
+			// Counted and read from where the checkpoint had got to, not from the start
+			assertEquals(10, backfillChunks.get(0)[0]);
+			assertEquals(100 - 10 * (chunksBefore + 1), backfillChunks.get(0)[1]);
+			assertEquals(10 - chunksBefore, backfillChunks.size());
+		}
+		awaitUploaded(1, 100);
+		assertUploadedOnce(100);
+		assertEquals(0, errors.get());
+	}
+
+	@Test
+	public void backfillGivesWayWhileNotificationsAreWaiting() throws Exception {
+		source.addInbox(1000);
+		long pauseMs = 10;
+		start(backfillConfig(10, pauseMs));
+		awaitBackfillChunks(1);
+		persistGate = new CountDownLatch(1);
+		long first = source.addInbox(3) - 2;
+		// Handled, then the persist worker is held with the rest queued behind it
+		notifyAndWait(first);
+		offer(first + 1, first + 2);
+		int chunks = backfillChunks();
+		Thread.sleep(20 * pauseMs);
+		// Only a chunk already under way when they were queued
+		assertTrue(backfillChunks() <= chunks + 1);
+		openPersistGate();
+		notifyAndWait();
+		assertEquals(3, stored());
+		awaitBackfillDone();
+		awaitUploaded(1, 1000, first + 2);
+		assertUploadedOnce(1003);
+		assertEquals(0, errors.get());
+	}
+
+	@Test
+	public void metricsCountWhatThePipelineDid() throws Exception {
+		// 1 event, 1 batch, 1 query
+		start();
+		source.addInbox(1);
+		long queued = source.add(TestSmsSource.TYPE_OUTBOX);
+		source.addInbox(2);
+		// 1 event, 1 batch, 1 query, 3 stored
+		notifyAndWait(RecorderPipeline.NO_ID);
+		source.setType(queued, TestSmsSource.TYPE_SENT);
+		persistGate = new CountDownLatch(1);
+		// 1 event, 1 batch, already seen so no query
+		notifyAndWait(4);
+		// 2 events coalesced into 1 batch, 1 query rereading 3 and 4 after the overtaken one
+		offer(RecorderPipeline.NO_ID, queued);
+		openPersistGate();
+		notifyAndWait();
+		awaitUploaded(1, 2, 3, 4);
+		RecorderMetrics metrics = pipeline.getMetrics();
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (metrics.getAckLatency().getCount() == 0) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("upload not acknowledged");
+			}
+			Thread.sleep(1);
+		}
+
+		Map<String, String[]> snapshot = saveMetrics();
+		assertEquals(RecorderMetrics.SNAPSHOT_VERSION, Long.parseLong(snapshot.get("metrics")[0]));
+		assertEquals(5, counter(snapshot, "eventsReceived"));
+		assertEquals(1, counter(snapshot, "eventsCoalesced"));
+		assertEquals(4, counter(snapshot, "batches"));
+		assertEquals(3, counter(snapshot, "providerQueries"));
+		assertEquals(4, counter(snapshot, "messagesStored"));
+		assertEquals(2, counter(snapshot, "duplicatesSuppressed"));
+		assertEquals(metrics.getBytesWritten(), counter(snapshot, "bytesWritten"));
+		assertTrue(metrics.getBytesWritten() > 0);
+		assertEquals(metrics.getBytesUploaded(), counter(snapshot, "bytesUploaded"));
+		assertTrue(metrics.getBytesUploaded() > 0);
+		assertEquals(0, counter(snapshot, "uploadsFailed"));
+		assertEquals(0, counter(snapshot, "backfilled"));
+		assertEquals(0, Long.parseLong(snapshot.get("gauge eventQueueDepth")[0]));
+		assertEquals(0, Long.parseLong(snapshot.get("gauge overQuota")[0]));
+		// Count, sum, max then buckets
+		assertEquals(4, Long.parseLong(snapshot.get("histogram persistMs")[0]));
+		assertEquals(3, Long.parseLong(snapshot.get("histogram queryUs")[0]));
+		assertEquals(metrics.getAckLatency().getCount(), Long.parseLong(snapshot.get("histogram ackMs")[0]));
+		assertEquals(0, errors.get());
+	}
+
+	/**
+	 * Backfill history from the first start in chunks
+	 * @param chunk
+	 * @param pauseMs between chunks
+	 */
+	private static PipelineConfig backfillConfig(int chunk, long pauseMs) {
+		PipelineConfig config = new PipelineConfig();
+		config.setBackfillHistory(true);
+		config.setBackfillChunk(chunk);
+		config.setBackfillPauseMs(pauseMs);
+		return config;
+	}
+
+	private void start() throws IOException, InterruptedException {
+		start(new PipelineConfig());
+	}
+
+	/**
+	 * @param config backfills if it backfills history
+	 */
+	private void start(PipelineConfig config) throws IOException, InterruptedException {
+		SmsRecordEncoder encoder = RecordFormat.CSV.createEncoder();
+		SegmentedSmsLog log = new SegmentedSmsLog(dir, RecordFormat.CSV, encoder, DurabilityPolicy.everyBatch(),
+				8192, 64 * 1024, 60000);
+		config.setCoalesceWindowMs(0);
+		persistExecutor = Executors.newSingleThreadExecutor();
+		uploadExecutor = Executors.newSingleThreadExecutor();
+		retryExecutor = Executors.newSingleThreadScheduledExecutor();
+		final RecorderPipeline[] started = new RecorderPipeline[1];
+		RetryScheduler retryScheduler = new RetryScheduler(retryExecutor, new Runnable() {
+			@Override
+			public void run() {
+				started[0].retryUploads();
+			}
+		}, 10, 100, RetryScheduler.SYSTEM_CLOCK, RetryScheduler.ALWAYS_OPEN, new Random(1));
+		pipeline = new RecorderPipeline(source, log, encoder, new CountingUploader(), retryScheduler, config,
+				persistExecutor, uploadExecutor, new TestCallbacks());
+		started[0] = pipeline;
+		if (config.isBackfillHistory()) {
+			backfillExecutor = Executors.newSingleThreadScheduledExecutor();
+			pipeline.setBackfill(new Backfill(new File(dir, "backfill")), backfillExecutor);
+		}
+		eventsHandled.set(0);
+		eventsOffered = 0;
+		pipeline.start();
+		// Handled once the log is recovered
+		notifyAndWait(RecorderPipeline.NO_ID);
+	}
+
+	private void stop() throws InterruptedException {
+		if (pipeline == null) {
+			return;
+		}
+		pipeline.stop();
+		persistExecutor.shutdown();
+		uploadExecutor.shutdown();
+		retryExecutor.shutdown();
+		if (backfillExecutor != null) {
+			// Drops the next chunk waiting out its pause
+			backfillExecutor.shutdownNow();
+			backfillExecutor.awaitTermination(5, TimeUnit.SECONDS);
+			backfillExecutor = null;
+		}
+		persistExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		uploadExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		pipeline = null;
+	}
+
+	/**
+	 * Notify each ID and wait for the pipeline to handle them all
+	 * @param ids
+	 * @throws InterruptedException
+	 */
+	private void notifyAndWait(long... ids) throws InterruptedException {
+		offer(ids);
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (eventsHandled.get() < eventsOffered) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("notifications not handled");
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Notify each ID without waiting
+	 * @param ids
+	 */
+	private void offer(long... ids) {
+		for (long id : ids) {
+			pipeline.notifyChanged(id);
+			eventsOffered++;
+		}
+	}
+
+	private void openPersistGate() {
+		CountDownLatch gate = persistGate;
+		persistGate = null;
+		if (gate != null) {
+			gate.countDown();
+		}
+	}
+
+	private int backfillChunks() {
+		synchronized (backfillChunks) {
+			return backfillChunks.size();
+		}
+	}
+
+	private void awaitBackfillChunks(int chunks) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (backfillChunks() < chunks) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("backfill chunk " + chunks + " not committed");
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Wait for a chunk that leaves nothing to backfill
+	 */
+	private void awaitBackfillDone() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		while (true) {
+			synchronized (backfillChunks) {
+				if (!backfillChunks.isEmpty() && backfillChunks.get(backfillChunks.size() - 1)[1] == 0) {
+					return;
+				}
+			}
+			if (System.currentTimeMillis() > deadline) {
+				fail("backfill not finished");
+			}
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Have the pipeline save a metrics snapshot and read it back
+	 * @return type and name of each metric to its values, the header line under "metrics"
+	 */
+	private Map<String, String[]> saveMetrics() throws IOException {
+		File file = new File(dir, "metrics");
+		pipeline.saveMetrics(file);
+		Map<String, String[]> metrics = new HashMap<>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split(" ");
+				if (fields[0].equals("metrics")) {
+					metrics.put(fields[0], Arrays.copyOfRange(fields, 1, fields.length));
+				} else {
+					metrics.put(fields[0] + " " + fields[1], Arrays.copyOfRange(fields, 2, fields.length));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return metrics;
+	}
+
+	private static long counter(Map<String, String[]> snapshot, String name) {
+		return Long.parseLong(snapshot.get("counter " + name)[0]);
+	}
+
+	private long stored() {
+		return pipeline.getIngestStats().getMessagesStored();
+	}
+
+	private void awaitUploaded(long... ids) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+		for (long id : ids) {
+			while (count(id) == 0) {
+				if (System.currentTimeMillis() > deadline) {
+					fail("message " + id + " not uploaded");
+				}
+				Thread.sleep(1);
+			}
+		}
+	}
+
+	/**
+	 * @param messages IDs 1 to this must each have been uploaded once, and nothing else
+	 */
+	private void assertUploadedOnce(int messages) {
+		synchronized (uploaded) {
+			for (long id = 1; id <= messages; id++) {
+				assertEquals("message " + id, Integer.valueOf(1), uploaded.get(id));
+			}
+			assertEquals(messages, uploaded.size());
+		}
+	}
+
+	private int count(long id) {
+		synchronized (uploaded) {
+			Integer count = uploaded.get(id);
+			return count == null ? 0 : count;
+		}
+	}
+
+	/**
+	 * Reads each segment as the server would and counts the IDs in it
+	 */
+	private class CountingUploader implements UploadEngine.Uploader {
+		@Override
+		public void discard(File file) {
+			// Nothing is kept between attempts
+		}
+
+		@Override
+		public void uploadFile(File file, FileUploadListener listener) {
+			SmsData record = new SmsData();
+			try {
+				InputStream in = SegmentedSmsLog.openSegment(file);
+				try {
+					SmsRecordReader reader = RecordFormat.readableFormatOf(SegmentedSmsLog.uncompressedName(file))
+							.createReader(in);
+					while (reader.read(record)) {
+						synchronized (uploaded) {
+							uploaded.put(record.getId(), count(record.getId()) + 1);
+						}
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				listener.fileUploaded(file, false);
+				return;
+			}
+			listener.fileUploaded(file, true);
+		}
+	}
+
+	private class TestCallbacks implements RecorderPipeline.Callbacks {
+		@Override
+		public void logRecovered(SegmentedSmsLog log) {
+		}
+
+		@Override
+		public void batchPersisted(int events, int written) {
+			eventsHandled.addAndGet(events);
+			CountDownLatch gate = persistGate;
+			if (gate != null) {
+				try {
+					gate.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		@Override
+		public void backfillPersisted(int written, long remaining) {
+			synchronized (backfillChunks) {
+				backfillChunks.add(new long[]{written, remaining});
+			}
+		}
+
+		@Override
+		public void error(String where, Exception e) {
+			errors.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeenIdWindowTest {
+	@Test
+	public void suppressesDuplicates() {
+		SeenIdWindow window = new SeenIdWindow(100, 64);
+		assertFalse(window.contains(101));
+		assertTrue(window.add(101));
+		assertTrue(window.contains(101));
+		assertFalse(window.add(101));
+		assertFalse(window.add(0));
+		assertFalse(window.contains(-1));
+	}
+
+	@Test
+	public void treatsTheWatermarkAndBelowAsSeen() {
+		SeenIdWindow window = new SeenIdWindow(100, 64);
+		assertTrue(window.contains(100));
+		assertTrue(window.contains(1));
+		assertFalse(window.add(100));
+	}
+
+	@Test
+	public void slidesWithoutForgettingRecentIds() {
+		SeenIdWindow window = new SeenIdWindow(0, 64);
+		for (long id = 1; id <= 1000; id++) {
+			assertTrue(window.add(id));
+		}
+		for (long id = 1; id <= 1000; id++) {
+			assertTrue("id " + id, window.contains(id));
+			assertFalse(window.add(id));
+		}
+		assertEquals(1000 - 64 + 1, window.getFloor());
+	}
+
+	@Test
+	public void idReadPastIsUnseenUntilAdded() {
+		SeenIdWindow window = new SeenIdWindow(0, 64);
+		window.add(1);
+		// 2 is still in the outbox when 3 is read
+		window.add(3);
+		assertFalse(window.contains(2));
+		assertTrue(window.add(2));
+		assertFalse(window.add(2));
+	}
+
+	@Test
+	public void idReadPastStaysUnseenOnceItsBelowTheFloor() {
+		SeenIdWindow window = new SeenIdWindow(0, 64);
+		window.add(1);
+		for (long id = 3; id <= 500; id++) {
+			window.add(id);
+		}
+		assertTrue(window.getFloor() > 2);
+		assertFalse(window.contains(2));
+		assertTrue(window.contains(1));
+		assertTrue(window.contains(3));
+		assertTrue(window.add(2));
+		assertTrue(window.contains(2));
+		assertFalse(window.add(2));
+	}
+
+	@Test
+	public void keepsTheMostRecentUnseenIds() {
+		SeenIdWindow window = new SeenIdWindow(0, 64);
+		// Every other ID passed over
+		long top = 4 * SeenIdWindow.MAX_UNSEEN + 200;
+		for (long id = 2; id <= top; id += 2) {
+			window.add(id);
+		}
+		long[] unseen = window.getUnseen(top);
+		assertEquals(SeenIdWindow.MAX_UNSEEN, unseen.length);
+		assertEquals(top - 1, unseen[unseen.length - 1]);
+		for (int i = 1; i < unseen.length; i++) {
+			assertEquals(unseen[i - 1] + 2, unseen[i]);
+		}
+		assertFalse(window.contains(top - 1));
+		// Too old to remember
+		assertTrue(window.contains(1));
+	}
+
+	@Test
+	public void jumpOverTheWindowKeepsTheHighestIdsReadPast() {
+		SeenIdWindow window = new SeenIdWindow(0, 64);
+		window.add(1);
+		window.add(10000);
+		assertFalse(window.contains(9999));
+		// The ring's floor is just below 10000, MAX_UNSEEN below that are remembered
+		long floor = window.getFloor();
+		assertFalse(window.contains(floor - 1));
+		assertFalse(window.contains(floor - SeenIdWindow.MAX_UNSEEN));
+		assertTrue(window.contains(floor - SeenIdWindow.MAX_UNSEEN - 1));
+		assertTrue(window.contains(2));
+	}
+
+	@Test
+	public void unseenIdsAreOnlyThoseAtOrBelowTheWatermark() {
+		SeenIdWindow window = new SeenIdWindow(0, 64);
+		window.add(1);
+		window.add(3);
+		window.add(6);
+		assertArrayEquals(new long[]{2}, window.getUnseen(3));
+		assertArrayEquals(new long[]{2, 4, 5}, window.getUnseen(6));
+	}
+
+	@Test
+	public void restoresUnseenIdsAfterARestart() {
+		SeenIdWindow before = new SeenIdWindow(0, 64);
+		before.add(1);
+		before.add(3);
+		before.add(4);
+		SeenIdWindow after = new SeenIdWindow(4, 64);
+		after.addUnseen(before.getUnseen(4));
+		assertTrue(after.contains(1));
+		assertFalse(after.contains(2));
+		assertTrue(after.add(2));
+		assertTrue(after.contains(3));
+	}
+
+	@Test
+	public void skipKeepsIdsReadPastButNotTheGapAboveThem() {
+		SeenIdWindow window = new SeenIdWindow(0, 64);
+		window.add(1);
+		window.add(3);
+		// 4 to 5000 go to the backfill
+		window.skipTo(5000);
+		assertEquals(5001, window.getFloor());
+		assertFalse(window.contains(2));
+		assertTrue(window.contains(4));
+		assertTrue(window.contains(4999));
+		assertFalse(window.contains(5001));
+	}
+}
@@ -0,0 +1,163 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SegmentedSmsLogTest {
+	private File dir;
+	private final SmsData record = new SmsData();
+	// Shared by the log and appender as in the pipeline
+	private SmsRecordEncoder encoder;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestFiles.createTempDir("smslog");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteTree(dir);
+	}
+
+	@Test
+	public void idsReadPastSurviveASeal() throws IOException {
+		SegmentedSmsLog log = open(DurabilityPolicy.everyBatch());
+		SeenIdWindow window = new SeenIdWindow(log.getWatermark(), 64);
+		log.setSeenIds(window);
+		append(log, window, 1, 3, 4, 7);
+		log.sealActive();
+
+		SegmentedSmsLog recovered = open(DurabilityPolicy.everyBatch());
+		assertEquals(7, recovered.getWatermark());
+		assertArrayEquals(new long[]{2, 5, 6}, recovered.getUnseenIds());
+	}
+
+	@Test
+	public void idsReadPastAreFoundInTheActiveSegmentAfterACrash() throws IOException {
+		SegmentedSmsLog log = open(DurabilityPolicy.everyBatch());
+		SeenIdWindow window = new SeenIdWindow(log.getWatermark(), 64);
+		log.setSeenIds(window);
+		append(log, window, 1, 3);
+		log.sealActive();
+		// Never sealed or closed
+		append(log, window, 4, 6, 9);
+
+		SegmentedSmsLog recovered = open(DurabilityPolicy.everyBatch());
+		assertEquals(9, recovered.getWatermark());
+		assertArrayEquals(new long[]{2, 5, 7, 8}, recovered.getUnseenIds());
+	}
+
+	@Test
+	public void idRecordedAfterARestartIsNoLongerUnseen() throws IOException {
+		SegmentedSmsLog log = open(DurabilityPolicy.everyBatch());
+		SeenIdWindow window = new SeenIdWindow(log.getWatermark(), 64);
+		log.setSeenIds(window);
+		append(log, window, 1, 3);
+		log.sealActive();
+
+		log = open(DurabilityPolicy.everyBatch());
+		window = new SeenIdWindow(log.getWatermark(), 64);
+		window.addUnseen(log.getUnseenIds());
+		log.setSeenIds(window);
+		append(log, window, 2);
+		log.sealActive();
+
+		assertEquals(0, open(DurabilityPolicy.everyBatch()).getUnseenIds().length);
+	}
+
+	@Test
+	public void adoptedLegacyFileIsKeptWholeIfWeCrashBeforeTheManifest() throws IOException {
+		File legacy = writeLegacyFile();
+		byte[] before = readAll(legacy);
+		SegmentedSmsLog log = open(DurabilityPolicy.everyBatch());
+		log.adopt(legacy, RecordFormat.LEGACY_CSV.getFileSuffix());
+		File segment = log.getSealedSegments().get(0);
+		assertTrue(segment.getName().endsWith(RecordFormat.LEGACY_CSV.getFileSuffix()));
+		// Renamed but the manifest never written
+		new File(dir, "manifest").delete();
+
+		SegmentedSmsLog recovered = open(DurabilityPolicy.everyBatch());
+		assertEquals(1, recovered.getSealedSegments().size());
+		assertArrayEquals(before, readAll(recovered.getSealedSegments().get(0)));
+		assertEquals(0, recovered.getBacklogRecords());
+	}
+
+	@Test
+	public void adoptedLegacyFileIsNeverSkippedAsUploaded() throws IOException {
+		SegmentedSmsLog log = open(DurabilityPolicy.everyBatch());
+		log.adopt(writeLegacyFile(), RecordFormat.LEGACY_CSV.getFileSuffix());
+		ServerCommittedIds committed = new ServerCommittedIds();
+		committed.merge(10, new long[]{1, 10});
+		assertFalse(committed.isUploaded(log.getSealedSegments().get(0)));
+		assertEquals(null, RecordFormat.readableFormatOf(log.getSealedSegments().get(0).getName()));
+		assertEquals(RecordFormat.CSV, RecordFormat.readableFormatOf("smslog-0000000001.csv"));
+	}
+
+	/**
+	 * @return a file as older versions wrote it, with bodies that don't parse as RFC 4180
+	 */
+	private File writeLegacyFile() throws IOException {
+		File file = new File(dir.getParentFile(), dir.getName() + "-smsfile");
+		SmsRecordEncoder legacy = RecordFormat.LEGACY_CSV.createEncoder();
+		OutputStream out = new FileOutputStream(file);
+		try {
+			for (long id = 1; id <= 3; id++) {
+				record.setId(id);
+				record.setDate(1472475636000L + id);
+				record.setNumber("+447700900000");
+				record.setDirection(SmsData.SMSDirection.In);
+				record.setBody("Say \"hi\",\nthen " + id);
+				legacy.encode(record, out);
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] readAll(File file) throws IOException {
+		byte[] bytes = new byte[(int) file.length()];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(bytes);
+		} finally {
+			in.close();
+		}
+		return bytes;
+	}
+
+	private SegmentedSmsLog open(DurabilityPolicy policy) throws IOException {
+		encoder = RecordFormat.CSV.createEncoder();
+		SegmentedSmsLog log = new SegmentedSmsLog(dir, RecordFormat.CSV, encoder, policy,
+				1024, 1024 * 1024, 3600000);
+		log.recover();
+		return log;
+	}
+
+	private void append(SegmentedSmsLog log, SeenIdWindow window, long... ids) throws IOException {
+		LogAppender appender = new LogAppender(encoder);
+		appender.begin(window, log.getStream());
+		for (long id : ids) {
+			record.setId(id);
+			record.setDate(1472475636000L + id);
+			record.setNumber("+447700900000");
+			record.setDirection(SmsData.SMSDirection.In);
+			record.setBody("Message " + id);
+			appender.accept(record);
+		}
+		log.commit(appender.getCount(), appender.getHighestId(), System.currentTimeMillis());
+	}
+}
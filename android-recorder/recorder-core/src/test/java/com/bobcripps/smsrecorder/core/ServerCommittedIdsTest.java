@@ -0,0 +1,97 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The skip check reads each segment's IDs, a segment is only skipped if the server holds them all
+ */
+public class ServerCommittedIdsTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestFiles.createTempDir("committed");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.deleteTree(dir);
+	}
+
+	@Test
+	public void mergedRangesAccumulate() {
+		ServerCommittedIds committed = new ServerCommittedIds();
+		committed.merge(10, new long[] {1, 4, 8, 10});
+		committed.merge(7, new long[] {5, 5});
+		// Without ranges, e.g. a server that doesn't deduplicate
+		committed.merge(3, null);
+		assertEquals(10, committed.getCommittedId());
+		assertTrue(committed.holds(5));
+		assertFalse(committed.holds(6));
+		assertTrue(committed.holds(10));
+	}
+
+	@Test
+	public void segmentIsUploadedOnlyIfEveryIdIsHeld() throws IOException {
+		File segment = writeSegment("smslog-0000000001.csv", false, 1, 2, 3, 7);
+		ServerCommittedIds committed = new ServerCommittedIds();
+		assertFalse("nothing known yet", committed.isUploaded(segment));
+		// The high-water mark covers it but 4 to 6 are a gap, 7 may be a message that overtook them
+		committed.merge(7, new long[] {1, 3});
+		assertFalse(committed.isUploaded(segment));
+		committed.merge(7, new long[] {7, 7});
+		assertTrue(committed.isUploaded(segment));
+	}
+
+	@Test
+	public void compactedSegmentIsReadThroughItsCompression() throws IOException {
+		File segment = writeSegment("smslog-0000000002.csv" + SegmentedSmsLog.COMPACTED_SUFFIX, true, 20, 21);
+		ServerCommittedIds committed = new ServerCommittedIds();
+		committed.merge(21, new long[] {20, 21});
+		assertTrue(committed.isUploaded(segment));
+	}
+
+	@Test
+	public void unreadableOrEmptySegmentIsSent() throws IOException {
+		ServerCommittedIds committed = new ServerCommittedIds();
+		committed.merge(100, new long[] {1, 100});
+		assertFalse(committed.isUploaded(writeSegment("smslog-0000000003.csv", false)));
+		assertFalse(committed.isUploaded(new File(dir, "smslog-0000000004.csv")));
+		assertFalse(committed.isUploaded(writeSegment("notes.txt", false, 1)));
+	}
+
+	private File writeSegment(String name, boolean gzip, long... ids) throws IOException {
+		File file = new File(dir, name);
+		OutputStream out = new FileOutputStream(file);
+		if (gzip) {
+			out = new GZIPOutputStream(out);
+		}
+		try {
+			CsvRecordEncoder encoder = new CsvRecordEncoder();
+			SmsData record = new SmsData();
+			for (long id : ids) {
+				record.setId(id);
+				record.setDate(1472475636000L + id * 1000);
+				record.setNumber("+447700900000");
+				record.setDirection(SmsData.SMSDirection.In);
+				record.setBody("Message " + id);
+				encoder.encode(record, out);
+			}
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+}
@@ -0,0 +1,30 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Temporary directories for tests that need a real file system
+ */
+public class TestFiles {
+	public static File createTempDir(String prefix) throws IOException {
+		File dir = File.createTempFile(prefix, "");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Can't create " + dir);
+		}
+		return dir;
+	}
+
+	public static void deleteTree(File file) {
+		if (file == null) {
+			return;
+		}
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				deleteTree(child);
+			}
+		}
+		file.delete();
+	}
+}
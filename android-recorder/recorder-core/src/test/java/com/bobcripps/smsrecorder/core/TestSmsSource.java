@@ -0,0 +1,112 @@
+package com.bobcripps.smsrecorder.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SMS table for tests, rows in ID order in any folder. Only inbox and sent rows are read as the
+ * provider's selection would. Thread safe.
+ */
+public class TestSmsSource implements SmsSource {
+	// Folders as in Telephony.TextBasedSmsColumns.TYPE
+	public static final int TYPE_INBOX = 1;
+	public static final int TYPE_SENT = 2;
+	public static final int TYPE_OUTBOX = 4;
+
+	private final List<long[]> rows = new ArrayList<>();
+	private final SmsData row = new SmsData();
+	private long queries;
+
+	/**
+	 * Add a message with the next ID
+	 * @param type folder
+	 * @return its ID
+	 */
+	public synchronized long add(int type) {
+		long id = rows.size() + 1;
+		rows.add(new long[]{id, type});
+		return id;
+	}
+
+	/**
+	 * Add messages to the inbox
+	 * @param count
+	 * @return ID of the last one
+	 */
+	public synchronized long addInbox(int count) {
+		long id = 0;
+		for (int i = 0; i < count; i++) {
+			id = add(TYPE_INBOX);
+		}
+		return id;
+	}
+
+	/**
+	 * Move a message to another folder, e.g. from the outbox to sent once it's gone
+	 * @param id
+	 * @param type
+	 */
+	public synchronized void setType(long id, int type) {
+		rows.get((int) id - 1)[1] = type;
+	}
+
+	/**
+	 * @return reads and lookups so far
+	 */
+	public synchronized long getQueries() {
+		return queries;
+	}
+
+	@Override
+	public synchronized int read(long afterId, RecordSink sink) throws IOException {
+		return read(afterId, Long.MAX_VALUE, Integer.MAX_VALUE, sink);
+	}
+
+	@Override
+	public synchronized int readMessage(long id, RecordSink sink) throws IOException {
+		queries++;
+		return id > 0 && id <= rows.size() ? emit((int) id - 1, sink) : 0;
+	}
+
+	@Override
+	public synchronized int read(long afterId, long toId, int limit, RecordSink sink) throws IOException {
+		queries++;
+		int count = 0;
+		for (int i = (int) Math.max(afterId, 0); i < rows.size() && i < toId && count < limit; i++) {
+			count += emit(i, sink);
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized long count(long afterId, long toId) {
+		long count = 0;
+		for (int i = (int) Math.max(afterId, 0); i < rows.size() && i < toId; i++) {
+			long type = rows.get(i)[1];
+			if (type == TYPE_INBOX || type == TYPE_SENT) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public synchronized long getTopMessageId() {
+		return rows.size();
+	}
+
+	private int emit(int index, RecordSink sink) throws IOException {
+		long[] message = rows.get(index);
+		if (message[1] != TYPE_INBOX && message[1] != TYPE_SENT) {
+			return 0;
+		}
+		row.setId(message[0]);
+		row.setDate(1472475636000L + message[0] * 1000);
+		row.setNumber("+4477009" + (message[0] % 10));
+		row.setDirection(message[1] == TYPE_INBOX ? SmsData.SMSDirection.In : SmsData.SMSDirection.Out);
+		row.setBody("Message " + message[0]);
+		sink.accept(row);
+		return 1;
+	}
+}
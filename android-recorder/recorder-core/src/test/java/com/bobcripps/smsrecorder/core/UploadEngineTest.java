@@ -0,0 +1,184 @@
+package com.bobcripps.smsrecorder.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The engine against an uploader the test answers for, so files finish in whatever order the
+ * test picks. The files are never opened
+ */
+public class UploadEngineTest {
+	private FakeUploader uploader;
+	private RecordingListener listener;
+
+	@Before
+	public void setUp() {
+		uploader = new FakeUploader();
+		listener = new RecordingListener();
+	}
+
+	@Test
+	public void laterFilesFinishingFirstAreAcknowledgedInOrder() {
+		UploadEngine engine = new UploadEngine(uploader, listener, 3);
+		File a = submit(engine, "a");
+		File b = submit(engine, "b");
+		File c = submit(engine, "c");
+		File d = submit(engine, "d");
+		assertEquals(files(a, b, c), uploader.sent);
+		assertEquals(3, engine.getInFlight());
+		assertEquals(1, engine.getQueued());
+
+		engine.fileUploaded(c, true);
+		// Its slot goes to the queued file but c waits for a and b
+		assertEquals(files(a, b, c, d), uploader.sent);
+		engine.fileUploaded(b, true);
+		assertEquals(files(), listener.uploaded);
+		engine.fileUploaded(a, true);
+		assertEquals(files(a, b, c), listener.uploaded);
+		engine.fileUploaded(d, true);
+		assertEquals(files(a, b, c, d), listener.uploaded);
+		assertEquals(0, engine.getOutstanding());
+	}
+
+	@Test
+	public void cancelReleasesConfirmedFilesItWasHoldingBack() {
+		UploadEngine engine = new UploadEngine(uploader, listener, 3);
+		File a = submit(engine, "a");
+		File b = submit(engine, "b");
+		File c = submit(engine, "c");
+		engine.fileUploaded(a, false);
+		engine.fileUploaded(b, true);
+		engine.fileUploaded(c, true);
+		assertEquals(files(a), listener.failed);
+		assertEquals(files(), listener.uploaded);
+
+		assertTrue(engine.cancel(a));
+		assertEquals(files(b, c), listener.uploaded);
+		assertFalse(engine.isSubmitted(a));
+		assertEquals(0, engine.getOutstanding());
+	}
+
+	@Test
+	public void cancelLeavesInFlightFilesAlone() {
+		UploadEngine engine = new UploadEngine(uploader, listener, 1);
+		File a = submit(engine, "a");
+		File b = submit(engine, "b");
+		assertFalse(engine.cancel(a));
+		assertTrue(engine.cancel(b));
+		engine.fileUploaded(a, true);
+		// b was queued behind a and never sent
+		assertEquals(files(a), uploader.sent);
+		assertEquals(files(a), listener.uploaded);
+	}
+
+	@Test
+	public void retryFailedPutsFilesBackAtTheFrontInOrder() {
+		UploadEngine engine = new UploadEngine(uploader, listener, 2);
+		File a = submit(engine, "a");
+		File b = submit(engine, "b");
+		File c = submit(engine, "c");
+		File d = submit(engine, "d");
+		engine.fileUploaded(b, false);
+		engine.fileUploaded(a, false);
+		// c and d took the slots
+		assertEquals(files(a, b, c, d), uploader.sent);
+		File e = submit(engine, "e");
+		assertEquals(1, engine.getQueued());
+
+		engine.retryFailed();
+		assertEquals(3, engine.getQueued());
+		uploader.sent.clear();
+		engine.fileUploaded(c, true);
+		engine.fileUploaded(d, true);
+		assertEquals(files(a, b), uploader.sent);
+		engine.fileUploaded(b, true);
+		engine.fileUploaded(a, true);
+		assertEquals(files(a, b, c, d), listener.uploaded);
+		assertEquals(files(a, b, e), uploader.sent);
+		engine.fileUploaded(e, true);
+		assertEquals(files(a, b, c, d, e), listener.uploaded);
+		assertEquals(2, engine.getUploadsFailed());
+	}
+
+	@Test
+	public void filesTheServerHoldsAreConfirmedWithoutBeingSent() {
+		UploadEngine engine = new UploadEngine(uploader, listener, 1);
+		final Set<File> held = new HashSet<>();
+		engine.setSkipCheck(new UploadEngine.SkipCheck() {
+			@Override
+			public boolean isUploaded(File file) {
+				return held.contains(file);
+			}
+		});
+		File a = new File("a");
+		File c = new File("c");
+		held.add(a);
+		held.add(c);
+		engine.submit(a);
+		File b = submit(engine, "b");
+		engine.submit(c);
+		File d = submit(engine, "d");
+		// a didn't take the only slot
+		assertEquals(files(a), listener.uploaded);
+		assertEquals(files(b), uploader.sent);
+		engine.fileUploaded(b, true);
+		assertEquals(files(b, d), uploader.sent);
+		assertEquals(files(a, b, c), listener.uploaded);
+		engine.fileUploaded(d, true);
+		assertEquals(files(a, b, c, d), listener.uploaded);
+		assertEquals(2, engine.getUploadsSkipped());
+		assertEquals(4, engine.getUploadsStarted());
+	}
+
+	private static File submit(UploadEngine engine, String name) {
+		File file = new File(name);
+		engine.submit(file);
+		return file;
+	}
+
+	private static List<File> files(File... files) {
+		return Arrays.asList(files);
+	}
+
+	/**
+	 * Remembers what it was asked to send and leaves the test to report the result
+	 */
+	private static class FakeUploader implements UploadEngine.Uploader {
+		final List<File> sent = new ArrayList<>();
+
+		@Override
+		public void uploadFile(File file, FileUploadListener listener) {
+			sent.add(file);
+		}
+
+		@Override
+		public void discard(File file) {
+		}
+	}
+
+	private static class RecordingListener implements UploadEngine.Listener {
+		final List<File> uploaded = new ArrayList<>();
+		final List<File> failed = new ArrayList<>();
+
+		@Override
+		public void uploaded(File file) {
+			uploaded.add(file);
+		}
+
+		@Override
+		public void uploadFailed(File file) {
+			failed.add(file);
+		}
+	}
+}